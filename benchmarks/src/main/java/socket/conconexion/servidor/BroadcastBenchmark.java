@@ -0,0 +1,88 @@
+package socket.conconexion.servidor;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Difusión de un NEW_BID a 10, 1.000 y 10.000 clientes en memoria.
+ * Las colas de salida se vacían en el mismo hilo, así que se mide el
+ * recorrido completo: registro, encolado y escritura en el canal.
+ *
+ * publicarTema envía el mismo NEW_BID solo a los suscritos al lote
+ * GENERAL, que son uno de cada diez clientes: su coste debe seguir a los
+ * suscritos y no al total de conexiones.
+ *
+ * El grupo "conAltas" difunde mientras otro hilo da de alta y de baja
+ * clientes sin parar, como cuando entran y salen conexiones en plena
+ * subasta: el broadcast no debe esperar a esas altas y bajas.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    int sumideros;
+
+    @Param({"CONFLAR"})
+    ColaSalida.Politica politica;
+
+    private GestorClientes gestor;
+
+    @Setup
+    public void preparar() {
+        Entorno.silenciarSalida();
+        gestor = new GestorClientes(Runnable::run, 256, politica);
+        for (int i = 0; i < sumideros; i++) {
+            ClienteConectado cliente = gestor.registrarCliente(new Entorno.Sumidero());
+            if (i % 10 == 0) {
+                gestor.suscribir(cliente, "GENERAL");
+            }
+        }
+    }
+
+    @TearDown
+    public void terminar() {
+        Entorno.restaurarSalida();
+    }
+
+    @Benchmark
+    public void broadcast() {
+        gestor.broadcast("NEW_BID 12.50 C1 ana GENERAL");
+    }
+
+    @Benchmark
+    public void publicarTema() {
+        gestor.publicar("GENERAL", "NEW_BID 12.50 C1 ana GENERAL");
+    }
+
+    @Benchmark
+    @Group("conAltas")
+    @GroupThreads(1)
+    public void difundir() {
+        gestor.broadcast("NEW_BID 12.50 C1 ana GENERAL");
+    }
+
+    @Benchmark
+    @Group("conAltas")
+    @GroupThreads(1)
+    public void altaYBaja() {
+        gestor.eliminarCliente(gestor.registrarCliente(new Entorno.Sumidero()));
+    }
+}
@@ -0,0 +1,96 @@
+package socket.conconexion.servidor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import socket.conconexion.stream.CanalMensajes;
+
+/**
+ * Piezas comunes de los benchmarks: un catálogo sin diario con un lote en
+ * subasta y canales de mensajes en memoria.
+ */
+final class Entorno {
+
+    static final String LOTE = "A";
+
+    private static PrintStream salidaOriginal;
+
+    private Entorno() {
+    }
+
+    /**
+     * Catálogo sin diario, con el historial en un directorio temporal y el
+     * lote LOTE con una subasta abierta de una hora.
+     */
+    static CatalogoLotes catalogoConSubastaAbierta() throws IOException {
+        return catalogoConSubastaAbierta(CierreSuave.DESACTIVADO);
+    }
+
+    static CatalogoLotes catalogoConSubastaAbierta(CierreSuave cierreSuave) throws IOException {
+        return catalogoConSubastaAbierta(cierreSuave, 0L);
+    }
+
+    /**
+     * @param conflacionMs ventana de conflación de NEW_BID del lote (0 = sin ventana)
+     */
+    static CatalogoLotes catalogoConSubastaAbierta(CierreSuave cierreSuave, long conflacionMs)
+            throws IOException {
+        Path directorio = Files.createTempDirectory("bench-subasta");
+        CatalogoLotes catalogo = new CatalogoLotes(LOTE, DiarioSubastas.deshabilitado(),
+                new Montos(2), directorio);
+        EstadoSubasta lote = catalogo.crearLote(LOTE, 3600 * 1000L, 1000L, 0, conflacionMs, 1L, cierreSuave);
+        lote.iniciarSubasta();
+        return catalogo;
+    }
+
+    /**
+     * Silencia las trazas del servidor para no medir la consola. Debe
+     * llamarse antes de usar las clases del servidor: la bitácora toma
+     * System.out al cargarse, y así registrar sigue costando lo mismo
+     * pero el escritor no vuelca nada en la consola.
+     */
+    static void silenciarSalida() {
+        if (salidaOriginal == null) {
+            salidaOriginal = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+    }
+
+    static void restaurarSalida() {
+        if (salidaOriginal != null) {
+            System.setOut(salidaOriginal);
+            salidaOriginal = null;
+        }
+    }
+
+    /**
+     * Canal que descarta los mensajes y solo cuenta los caracteres, para
+     * que el JIT no pueda eliminar el envío.
+     */
+    static final class Sumidero implements CanalMensajes {
+
+        long caracteres;
+
+        public void enviaMensaje(String mensaje) {
+            caracteres += mensaje.length();
+        }
+
+        public void enviaMensaje(CharSequence mensaje) {
+            caracteres += mensaje.length();
+        }
+
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        public int getPort() {
+            return 0;
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package socket.conconexion.servidor;
+
+import java.io.IOException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Implementación del registro de ofertas que se compara en los
+ * benchmarks. Para medir un motor alternativo basta con añadir una
+ * implementación aquí y su nombre al @Param de RegistrarOfertaBenchmark.
+ */
+interface MotorOfertas {
+
+    /**
+     * Igual que EstadoSubasta.registrarOferta: id de la subasta si la
+     * oferta quedó como máxima, negativo si se rechazó.
+     */
+    int registrarOferta(long monto, String idCliente, String alias);
+
+    static MotorOfertas crear(String nombre) throws IOException {
+        if ("cas".equals(nombre)) {
+            return new Cas(CierreSuave.DESACTIVADO);
+        }
+        if ("cas_suave".equals(nombre)) {
+            // Cierre suave activo en una subasta de una hora, lejos de su
+            // ventana de cierre: la puja no debe costar más que con "cas"
+            return new Cas(new CierreSuave(10_000L, 10_000L, 100));
+        }
+        if ("cerrojo".equals(nombre)) {
+            return new Cerrojo();
+        }
+        throw new IllegalArgumentException("Motor desconocido: " + nombre);
+    }
+
+    /**
+     * El motor del servidor: oferta vigente inmutable con compareAndSet.
+     */
+    final class Cas implements MotorOfertas {
+
+        private final EstadoSubasta lote;
+
+        Cas(CierreSuave cierreSuave) throws IOException {
+            lote = Entorno.catalogoConSubastaAbierta(cierreSuave).getLote(Entorno.LOTE);
+        }
+
+        public int registrarOferta(long monto, String idCliente, String alias) {
+            return lote.registrarOferta(monto, idCliente, alias);
+        }
+    }
+
+    /**
+     * Referencia: el diseño anterior, con toda la oferta bajo un cerrojo.
+     */
+    final class Cerrojo implements MotorOfertas {
+
+        private final ReentrantLock cerrojo = new ReentrantLock();
+        private final int idSubasta = 1;
+        private final long incrementoMinimo = 1L;
+        private long ofertaMaxima;
+        private String idClienteGanador;
+        private String aliasGanador;
+
+        public int registrarOferta(long monto, String idCliente, String alias) {
+            cerrojo.lock();
+            try {
+                if (monto <= ofertaMaxima) {
+                    return EstadoSubasta.RECHAZO_MENOR_A_ACTUAL;
+                }
+                if (monto - ofertaMaxima < incrementoMinimo) {
+                    return EstadoSubasta.RECHAZO_INCREMENTO_INSUFICIENTE;
+                }
+                ofertaMaxima = monto;
+                idClienteGanador = idCliente;
+                aliasGanador = alias;
+                return idSubasta;
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package socket.conconexion.servidor;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Una línea de comando de principio a fin dentro de la sesión: análisis,
+ * ejecución y respuesta (incluida la línea CURRENT de STATUS) sobre un
+ * canal en memoria. No hay más clientes, así que NEW_BID no llega a nadie.
+ *
+ * pujaAceptada es el BID de régimen estacionario: con -prof gc, su
+ * gc.alloc.rate.norm son los bytes que asigna cada puja. Con conflacionMs
+ * 0 cada puja arma su NEW_BID; con ventana, solo la que se difunde.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocoloBenchmark {
+
+    private static final byte[] STATUS = bytes("STATUS A");
+    private static final byte[] STATUS_SIN_LOTE = bytes("status");
+    private static final byte[] PUJA_BAJA = bytes("BID A 0.01");
+    private static final byte[] DESCONOCIDO = bytes("PING");
+
+    @Param({"0", "50"})
+    long conflacionMs;
+
+    private ScheduledExecutorService programador;
+    private HiloServidorSubasta sesion;
+    private Entorno.Sumidero canal;
+
+    // "BID A " seguido de un monto creciente que se reescribe en cada puja
+    private final byte[] puja = new byte[32];
+    private int largoPuja;
+    private long monto = 100L;
+
+    @Setup
+    public void preparar() throws Exception {
+        Entorno.silenciarSalida();
+        CatalogoLotes catalogo = Entorno.catalogoConSubastaAbierta(CierreSuave.DESACTIVADO, conflacionMs);
+        GestorClientes gestor = new GestorClientes(Runnable::run, 256, ColaSalida.Politica.CONFLAR);
+        programador = Executors.newSingleThreadScheduledExecutor();
+        canal = new Entorno.Sumidero();
+        ClienteConectado cliente = gestor.registrarCliente(canal);
+        sesion = new HiloServidorSubasta(cliente, catalogo, gestor,
+                new DifusorPujas(gestor, programador, catalogo.getMontos()));
+        byte[] join = bytes("JOIN A postor");
+        sesion.procesarLinea(join, 0, join.length);
+        byte[] prefijo = bytes("BID A ");
+        System.arraycopy(prefijo, 0, puja, 0, prefijo.length);
+    }
+
+    @TearDown
+    public void terminar() {
+        programador.shutdownNow();
+        Entorno.restaurarSalida();
+    }
+
+    private static byte[] bytes(String linea) {
+        return linea.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Escribe el siguiente monto (en unidades mínimas, como "1234.56")
+     * detrás de "BID A ".
+     */
+    private void siguientePuja() {
+        monto++;
+        int pos = puja.length;
+        long resto = monto;
+        int decimales = 0;
+        do {
+            puja[--pos] = (byte) ('0' + resto % 10);
+            resto /= 10;
+            if (++decimales == 2) {
+                puja[--pos] = '.';
+            }
+        } while (resto > 0 || decimales < 3);
+        int cifras = puja.length - pos;
+        System.arraycopy(puja, pos, puja, 6, cifras);
+        largoPuja = 6 + cifras;
+    }
+
+    @Benchmark
+    public long pujaAceptada() {
+        siguientePuja();
+        sesion.procesarLinea(puja, 0, largoPuja);
+        return canal.caracteres;
+    }
+
+    @Benchmark
+    public long pujaRechazada() {
+        sesion.procesarLinea(PUJA_BAJA, 0, PUJA_BAJA.length);
+        return canal.caracteres;
+    }
+
+    @Benchmark
+    public long status() {
+        sesion.procesarLinea(STATUS, 0, STATUS.length);
+        return canal.caracteres;
+    }
+
+    @Benchmark
+    public long statusLoteActual() {
+        sesion.procesarLinea(STATUS_SIN_LOTE, 0, STATUS_SIN_LOTE.length);
+        return canal.caracteres;
+    }
+
+    @Benchmark
+    public long comandoDesconocido() {
+        sesion.procesarLinea(DESCONOCIDO, 0, DESCONOCIDO.length);
+        return canal.caracteres;
+    }
+}
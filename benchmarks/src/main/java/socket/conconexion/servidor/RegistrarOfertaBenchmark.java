@@ -0,0 +1,88 @@
+package socket.conconexion.servidor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Pujas concurrentes sobre un mismo lote con 1 a 64 hilos.
+ * Cada hilo oferta montos crecientes propios, así que se mezclan ofertas
+ * aceptadas y rechazadas como en una guerra de pujas real.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegistrarOfertaBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Lote {
+
+        @Param({"cas", "cas_suave", "cerrojo"})
+        String motor;
+
+        MotorOfertas ofertas;
+        final AtomicInteger hilos = new AtomicInteger();
+
+        @Setup
+        public void preparar() throws Exception {
+            ofertas = MotorOfertas.crear(motor);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Postor {
+
+        String idCliente;
+        long siguiente;
+
+        @Setup
+        public void preparar(Lote lote) {
+            int n = lote.hilos.incrementAndGet();
+            idCliente = "C" + n;
+            // Montos distintos por hilo que crecen al mismo ritmo
+            siguiente = n;
+        }
+    }
+
+    private static int pujar(Lote lote, Postor postor) {
+        postor.siguiente += 64;
+        return lote.ofertas.registrarOferta(postor.siguiente, postor.idCliente, "postor");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public int hilos01(Lote lote, Postor postor) {
+        return pujar(lote, postor);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public int hilos04(Lote lote, Postor postor) {
+        return pujar(lote, postor);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public int hilos16(Lote lote, Postor postor) {
+        return pujar(lote, postor);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public int hilos64(Lote lote, Postor postor) {
+        return pujar(lote, postor);
+    }
+}
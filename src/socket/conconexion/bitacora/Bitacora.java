@@ -0,0 +1,320 @@
+package socket.conconexion.bitacora;
+
+import java.io.PrintStream;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bitácora asíncrona de registros estructurados: cada registro lleva
+ * nivel, tipo de evento y, si vienen al caso, cliente, lote, subasta,
+ * monto y un texto libre. Se escriben en formato clave=valor (logfmt):
+ *
+ *   ts=2025-11-20T10:15:02.317Z nivel=INFO evento=subasta_iniciada lote=A subasta=7
+ *
+ * Quien registra no formatea ni escribe: reserva una ranura de un anillo
+ * preasignado con un compareAndSet, copia los campos y la publica. Un
+ * único hilo escritor recorre el anillo, formatea y vuelca por lotes en
+ * la salida. Si la salida es lenta y el anillo se llena, los registros
+ * nuevos se descartan (y se cuentan) en lugar de esperar: registrar
+ * nunca bloquea un hilo de sesión ni un broadcast.
+ *
+ * Los registros por debajo del nivel mínimo se descartan con una lectura.
+ * registrarMuestreado deja pasar uno de cada N (para eventos frecuentes,
+ * como cada broadcast) y lo marca con muestra=1/N.
+ */
+public class Bitacora {
+
+    public enum Nivel {
+        DEPURACION, INFO, AVISO, ERROR
+    }
+
+    // Valores de "sin dato" para los campos numéricos
+    public static final int SIN_SUBASTA = -1;
+    public static final long SIN_MONTO = Long.MIN_VALUE;
+
+    // Máximo de caracteres acumulados antes de volcar en la salida
+    private static final int VOLCADO = 16 * 1024;
+    // Cuánto duerme como mucho el escritor sin registros (para informar descartes)
+    private static final long ESPERA_MAXIMA_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /**
+     * Una ranura del anillo. secuencia es la del registro que contiene:
+     * mientras no coincide con la que espera el escritor, aún no se publicó.
+     */
+    private static final class Registro {
+        volatile long secuencia = -1L;
+        long instante;
+        Nivel nivel;
+        String evento;
+        String idCliente;
+        String lote;
+        int idSubasta;
+        long monto;
+        String detalle;
+        int muestreo;
+    }
+
+    private final Registro[] anillo;
+    private final int mascara;
+    // Siguiente secuencia a reservar
+    private final AtomicLong reservados = new AtomicLong();
+    // Siguiente secuencia a escribir; solo la avanza el escritor
+    private volatile long escritos;
+    private final LongAdder descartados = new LongAdder();
+
+    private volatile Nivel nivelMinimo;
+    // Uno de cada mascaraMuestreo + 1 en registrarMuestreado (2^n - 1)
+    private final int mascaraMuestreo;
+
+    private final PrintStream salida;
+    // Lo asigna iniciar antes de devolver la bitácora
+    private Thread escritor;
+    private volatile boolean durmiendo;
+    private volatile boolean cerrando;
+
+    // Solo del escritor: "aaaa-mm-ddThh:mm:ss" del último segundo formateado,
+    // para no crear nada por registro al escribir ts
+    private final StringBuilder textoSegundo = new StringBuilder(19);
+    private long segundoFormateado = Long.MIN_VALUE;
+
+    private Bitacora(PrintStream salida, int capacidad, Nivel nivelMinimo, int muestreo) {
+        int ranuras = Integer.highestOneBit(Math.max(2, capacidad - 1)) << 1;
+        this.anillo = new Registro[ranuras];
+        for (int i = 0; i < ranuras; i++) {
+            anillo[i] = new Registro();
+        }
+        this.mascara = ranuras - 1;
+        this.salida = salida;
+        this.nivelMinimo = nivelMinimo;
+        this.mascaraMuestreo = (muestreo <= 1) ? 0 : (Integer.highestOneBit(muestreo - 1) << 1) - 1;
+    }
+
+    /**
+     * Crea la bitácora y arranca su hilo escritor.
+     *
+     * @param capacidad registros que caben en el anillo (se redondea a potencia de 2)
+     * @param muestreo  registrarMuestreado deja pasar uno de cada muestreo
+     *                  (se redondea a potencia de 2; 1 = todos)
+     */
+    public static Bitacora iniciar(PrintStream salida, int capacidad, Nivel nivelMinimo, int muestreo) {
+        Bitacora bitacora = new Bitacora(salida, capacidad, nivelMinimo, muestreo);
+        Thread escritor = new Thread(bitacora::escribir, "bitacora");
+        escritor.setDaemon(true);
+        bitacora.escritor = escritor;
+        escritor.start();
+        return bitacora;
+    }
+
+    public boolean activo(Nivel nivel) {
+        return nivel.ordinal() >= nivelMinimo.ordinal();
+    }
+
+    public void setNivelMinimo(Nivel nivel) {
+        this.nivelMinimo = nivel;
+    }
+
+    /**
+     * Registros descartados porque el anillo estaba lleno.
+     */
+    public long getDescartados() {
+        return descartados.sum();
+    }
+
+    public void depuracion(String evento, String detalle) {
+        registrar(Nivel.DEPURACION, evento, null, null, SIN_SUBASTA, SIN_MONTO, detalle);
+    }
+
+    public void info(String evento, String detalle) {
+        registrar(Nivel.INFO, evento, null, null, SIN_SUBASTA, SIN_MONTO, detalle);
+    }
+
+    public void aviso(String evento, String detalle) {
+        registrar(Nivel.AVISO, evento, null, null, SIN_SUBASTA, SIN_MONTO, detalle);
+    }
+
+    public void error(String evento, String detalle) {
+        registrar(Nivel.ERROR, evento, null, null, SIN_SUBASTA, SIN_MONTO, detalle);
+    }
+
+    /**
+     * Registra un evento. idCliente, lote y detalle pueden ser null;
+     * idSubasta y monto (en unidades mínimas), SIN_SUBASTA y SIN_MONTO.
+     */
+    public void registrar(Nivel nivel, String evento, String idCliente, String lote,
+                          int idSubasta, long monto, String detalle) {
+        if (activo(nivel)) {
+            publicar(nivel, evento, idCliente, lote, idSubasta, monto, detalle, 1);
+        }
+    }
+
+    /**
+     * Como registrar, pero solo deja pasar uno de cada N (ver constructor).
+     */
+    public void registrarMuestreado(Nivel nivel, String evento, String idCliente, String lote,
+                                    int idSubasta, long monto, String detalle) {
+        if (activo(nivel) && (ThreadLocalRandom.current().nextInt() & mascaraMuestreo) == 0) {
+            publicar(nivel, evento, idCliente, lote, idSubasta, monto, detalle, mascaraMuestreo + 1);
+        }
+    }
+
+    private void publicar(Nivel nivel, String evento, String idCliente, String lote,
+                          int idSubasta, long monto, String detalle, int muestreo) {
+        long secuencia;
+        do {
+            secuencia = reservados.get();
+            if (secuencia - escritos >= anillo.length) {
+                descartados.increment();
+                return;
+            }
+        } while (!reservados.compareAndSet(secuencia, secuencia + 1));
+
+        Registro r = anillo[(int) (secuencia & mascara)];
+        r.instante = System.currentTimeMillis();
+        r.nivel = nivel;
+        r.evento = evento;
+        r.idCliente = idCliente;
+        r.lote = lote;
+        r.idSubasta = idSubasta;
+        r.monto = monto;
+        r.detalle = detalle;
+        r.muestreo = muestreo;
+        r.secuencia = secuencia;
+        if (durmiendo) {
+            LockSupport.unpark(escritor);
+        }
+    }
+
+    /**
+     * Escribe lo pendiente y detiene el escritor (espera como mucho un segundo).
+     */
+    public void cerrar() {
+        cerrando = true;
+        LockSupport.unpark(escritor);
+        try {
+            escritor.join(1000L);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Hilo escritor: formatea los registros publicados, en orden, y vuelca
+     * cuando se acumula bastante texto o no queda nada pendiente.
+     */
+    private void escribir() {
+        StringBuilder texto = new StringBuilder(VOLCADO + 1024);
+        long descartesInformados = 0L;
+        while (true) {
+            long siguiente = escritos;
+            Registro r = anillo[(int) (siguiente & mascara)];
+            if (r.secuencia == siguiente) {
+                formatear(r, texto);
+                r.evento = null;
+                r.idCliente = null;
+                r.lote = null;
+                r.detalle = null;
+                escritos = siguiente + 1;
+                if (texto.length() >= VOLCADO) {
+                    volcar(texto);
+                }
+                continue;
+            }
+
+            long descartes = descartados.sum();
+            if (descartes != descartesInformados) {
+                texto.append("ts=");
+                instante(System.currentTimeMillis(), texto);
+                texto.append(" nivel=AVISO evento=bitacora_descartes")
+                        .append(" descartados=").append(descartes - descartesInformados).append('\n');
+                descartesInformados = descartes;
+            }
+            volcar(texto);
+            if (cerrando && reservados.get() == siguiente) {
+                return;
+            }
+            durmiendo = true;
+            if (r.secuencia != siguiente && !cerrando) {
+                LockSupport.parkNanos(this, ESPERA_MAXIMA_NANOS);
+            }
+            durmiendo = false;
+        }
+    }
+
+    private void volcar(StringBuilder texto) {
+        if (texto.length() > 0) {
+            salida.append(texto);
+            salida.flush();
+            texto.setLength(0);
+        }
+    }
+
+    private void formatear(Registro r, StringBuilder destino) {
+        destino.append("ts=");
+        instante(r.instante, destino);
+        destino.append(" nivel=").append(r.nivel)
+                .append(" evento=").append(r.evento);
+        if (r.idCliente != null) {
+            destino.append(" cliente=").append(r.idCliente);
+        }
+        if (r.lote != null) {
+            destino.append(" lote=").append(r.lote);
+        }
+        if (r.idSubasta != SIN_SUBASTA) {
+            destino.append(" subasta=").append(r.idSubasta);
+        }
+        if (r.monto != SIN_MONTO) {
+            destino.append(" monto=").append(r.monto);
+        }
+        if (r.muestreo > 1) {
+            destino.append(" muestra=1/").append(r.muestreo);
+        }
+        if (r.detalle != null) {
+            destino.append(" detalle=\"");
+            for (int i = 0; i < r.detalle.length(); i++) {
+                char c = r.detalle.charAt(i);
+                if (c == '"' || c == '\\') {
+                    destino.append('\\');
+                }
+                destino.append(c == '\n' ? ' ' : c);
+            }
+            destino.append('"');
+        }
+        destino.append('\n');
+    }
+
+    /**
+     * El instante en UTC como aaaa-mm-ddThh:mm:ss.mmmZ (con los milisegundos
+     * siempre). La fecha y la hora se formatean una vez por segundo.
+     */
+    private void instante(long millis, StringBuilder destino) {
+        long segundo = Math.floorDiv(millis, 1000L);
+        if (segundo != segundoFormateado) {
+            LocalDateTime t = LocalDateTime.ofEpochSecond(segundo, 0, ZoneOffset.UTC);
+            textoSegundo.setLength(0);
+            textoSegundo.append(t.getYear()).append('-');
+            dosCifras(t.getMonthValue(), textoSegundo);
+            textoSegundo.append('-');
+            dosCifras(t.getDayOfMonth(), textoSegundo);
+            textoSegundo.append('T');
+            dosCifras(t.getHour(), textoSegundo);
+            textoSegundo.append(':');
+            dosCifras(t.getMinute(), textoSegundo);
+            textoSegundo.append(':');
+            dosCifras(t.getSecond(), textoSegundo);
+            segundoFormateado = segundo;
+        }
+        int ms = (int) Math.floorMod(millis, 1000L);
+        destino.append(textoSegundo).append('.')
+                .append((char) ('0' + ms / 100)).append((char) ('0' + ms / 10 % 10)).append((char) ('0' + ms % 10))
+                .append('Z');
+    }
+
+    private static void dosCifras(int valor, StringBuilder destino) {
+        destino.append((char) ('0' + valor / 10)).append((char) ('0' + valor % 10));
+    }
+}
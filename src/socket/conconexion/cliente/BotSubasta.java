@@ -0,0 +1,251 @@
+package socket.conconexion.cliente;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Un participante automático del generador de carga: una conexión propia
+ * (ClienteEchoAuxiliar2), un alias único y una estrategia de puja.
+ *
+ * Puja en lazo cerrado: envía un BID y no envía el siguiente hasta recibir
+ * su respuesta (BID_OK, BID_REJECT o ERROR), así la latencia medida es la
+ * del servidor y no la de una cola en el propio bot. El hilo de escucha
+ * mantiene la oferta vigente con los NEW_BID y CURRENT que llegan y mide
+ * cuánto tardó en llegar cada NEW_BID desde que su autor envió el BID.
+ */
+class BotSubasta implements ClienteEchoAuxiliar2.RespuestaHandler, Runnable {
+
+    // Como mucho se duerme esto de una vez, para notar el fin de la prueba
+    private static final long ESPERA_MAXIMA_MS = 250L;
+    // Tras esto sin respuesta el BID se da por perdido
+    private static final long TIEMPO_RESPUESTA_MS = 10_000L;
+
+    private final GeneradorCarga generador;
+    private final ConfiguracionCarga config;
+    private final EstrategiaPuja estrategia;
+    private final String alias;
+    private final Semaphore respuestaBid = new Semaphore(0);
+    private ClienteEchoAuxiliar2 auxiliar;
+
+    private volatile String idCliente;
+    private volatile boolean enCurso;
+    private volatile long ofertaVigente;
+    // System.nanoTime() del fin de la subasta; 0 si no se sabe
+    private volatile long finSubastaNanos;
+    // Cuánto antes del fin entra el francotirador en esta subasta
+    private volatile long entradaMs;
+    // System.nanoTime() del BID que espera respuesta; 0 si no hay ninguno
+    private volatile long pujaEnviadaEn;
+    private volatile String clavePuja;
+
+    BotSubasta(GeneradorCarga generador, ConfiguracionCarga config,
+               EstrategiaPuja estrategia, String alias) {
+        this.generador = generador;
+        this.config = config;
+        this.estrategia = estrategia;
+        this.alias = alias;
+        elegirEntrada();
+    }
+
+    /**
+     * Conecta desde la dirección de origen dada (null = cualquiera), empieza
+     * a escuchar con un hilo de la fábrica y se une al lote.
+     */
+    void conectar(ThreadFactory fabrica, InetAddress origen) throws IOException {
+        auxiliar = new ClienteEchoAuxiliar2(config.maquina, config.puerto, origen);
+        auxiliar.iniciarListener(this, fabrica);
+        auxiliar.enviarComando("JOIN " + config.lote + " " + alias);
+    }
+
+    /**
+     * Pide al servidor que cierre la conexión: el hilo de escucha termina
+     * al leer el fin del flujo, sin que nadie cierre el socket bajo él.
+     */
+    void despedirse() {
+        try {
+            auxiliar.enviarComando(ClienteEchoAuxiliar2.mensajeFin);
+        } catch (IOException e) {
+            // ya estaba cerrada
+        }
+    }
+
+    void cerrar() {
+        try {
+            auxiliar.hecho();
+        } catch (IOException e) {
+            // ya estaba cerrada
+        }
+    }
+
+    /**
+     * Lazo de pujas; termina cuando acaba la prueba o se pierde la conexión.
+     */
+    @Override
+    public void run() {
+        try {
+            while (generador.enMarcha()) {
+                if (!enCurso || idCliente == null) {
+                    Thread.sleep(ESPERA_MAXIMA_MS);
+                    continue;
+                }
+                long fin = finSubastaNanos;
+                long restanteMs = (fin == 0L) ? -1L : (fin - System.nanoTime()) / 1_000_000L;
+                if (!dormir(estrategia.esperaMs(config, restanteMs, entradaMs))) {
+                    return;
+                }
+                if (enCurso) {
+                    pujar();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            generador.conexionPerdida();
+        }
+    }
+
+    /**
+     * Duerme en tramos cortos. Devuelve false si la prueba terminó entretanto.
+     */
+    private boolean dormir(long ms) throws InterruptedException {
+        long hasta = System.nanoTime() + ms * 1_000_000L;
+        long restante;
+        while ((restante = (hasta - System.nanoTime()) / 1_000_000L) > 0L) {
+            if (!generador.enMarcha()) {
+                return false;
+            }
+            Thread.sleep(Math.min(restante, ESPERA_MAXIMA_MS));
+        }
+        return generador.enMarcha();
+    }
+
+    private void pujar() throws IOException, InterruptedException {
+        String monto = config.formatearMonto(estrategia.siguienteMonto(config, ofertaVigente));
+        String clave = idCliente + " " + monto;
+        respuestaBid.drainPermits();
+        long ahora = System.nanoTime();
+        clavePuja = clave;
+        generador.pujaEnviada(clave, ahora);
+        pujaEnviadaEn = ahora;
+        auxiliar.enviarComando("BID " + config.lote + " " + monto);
+        if (!respuestaBid.tryAcquire(TIEMPO_RESPUESTA_MS, TimeUnit.MILLISECONDS)) {
+            pujaEnviadaEn = 0L;
+            generador.pujaSinRespuesta(clave);
+        }
+    }
+
+    @Override
+    public void manejarRespuesta(String respuesta) {
+        long ahora = System.nanoTime();
+        String[] partes = respuesta.trim().split("\\s+");
+        try {
+            switch (partes[0]) {
+                case "NEW_BID":
+                    // NEW_BID <monto> <idCliente> <alias> <lote>
+                    if (partes.length >= 5 && config.lote.equals(partes[4])) {
+                        generador.difusionRecibida(partes[2] + " " + partes[1], ahora);
+                        subirOferta(config.parsearMonto(partes[1]));
+                    }
+                    break;
+                case "BID_OK":
+                    // BID_OK <monto> <idCliente> <lote>
+                    long enviada = pujaEnviadaEn;
+                    if (enviada != 0L) {
+                        generador.pujaConfirmada(ahora - enviada);
+                        subirOferta(config.parsearMonto(partes[1]));
+                        terminarPuja();
+                    }
+                    break;
+                case "BID_REJECT":
+                    if (pujaEnviadaEn != 0L) {
+                        generador.pujaRechazada(clavePuja);
+                        if (partes.length >= 2 && "SUBASTA_FINALIZADA".equals(partes[1])) {
+                            enCurso = false;
+                        } else {
+                            // La oferta que conocía ya no es la vigente
+                            pedirEstado();
+                        }
+                        terminarPuja();
+                    }
+                    break;
+                case "ERROR":
+                    if (pujaEnviadaEn != 0L) {
+                        generador.pujaConError(clavePuja);
+                        terminarPuja();
+                    }
+                    break;
+                case "WELCOME":
+                    // WELCOME <idCliente> <estado> <lote>
+                    if (idCliente == null) {
+                        generador.botUnido();
+                    }
+                    idCliente = partes[1];
+                    if (partes.length >= 3 && "EN_CURSO".equals(partes[2])) {
+                        pedirEstado();
+                    }
+                    break;
+                case "AUCTION_STARTED":
+                    // AUCTION_STARTED <idSubasta> <lote>
+                    if (partes.length >= 3 && config.lote.equals(partes[2])) {
+                        ofertaVigente = 0L;
+                        finSubastaNanos = 0L;
+                        elegirEntrada();
+                        enCurso = true;
+                        pedirEstado();
+                    }
+                    break;
+                case "CURRENT":
+                    // CURRENT <idSubasta> <oferta> <idGanador> <alias> <segRest> <estado> <lote>
+                    if (partes.length >= 8 && config.lote.equals(partes[7])) {
+                        subirOferta(config.parsearMonto(partes[2]));
+                        finSubastaNanos = ahora + Long.parseLong(partes[5]) * 1_000_000_000L;
+                        enCurso = "EN_CURSO".equals(partes[6]);
+                    }
+                    break;
+                case "AUCTION_EXTENDED":
+                    // AUCTION_EXTENDED <idSubasta> <segRest> <extensiones> <lote>
+                    if (partes.length >= 5 && config.lote.equals(partes[4])) {
+                        finSubastaNanos = ahora + Long.parseLong(partes[2]) * 1_000_000_000L;
+                    }
+                    break;
+                case "AUCTION_ENDED":
+                    // AUCTION_ENDED <idSubasta> <monto> <idGanador> <alias> <lote>
+                    if (partes.length >= 6 && config.lote.equals(partes[5])) {
+                        enCurso = false;
+                        finSubastaNanos = 0L;
+                        // Apuntarse a la siguiente subasta del lote
+                        auxiliar.enviarComando("JOIN " + config.lote + " " + alias);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (NumberFormatException | IOException e) {
+            // Línea que no se entiende o conexión cerrada: la ignora
+        }
+    }
+
+    private void subirOferta(long monto) {
+        // Los avisos pueden llegar desordenados respecto a STATUS: solo sube
+        if (monto > ofertaVigente) {
+            ofertaVigente = monto;
+        }
+    }
+
+    private void terminarPuja() {
+        pujaEnviadaEn = 0L;
+        respuestaBid.release();
+    }
+
+    private void pedirEstado() throws IOException {
+        auxiliar.enviarComando("STATUS " + config.lote);
+    }
+
+    private void elegirEntrada() {
+        entradaMs = ThreadLocalRandom.current().nextLong(config.ventanaSeg * 1000L + 1L);
+    }
+}
@@ -23,11 +23,17 @@ public class ClienteEcho2 {
             System.out.println("   CLIENTE DE SUBASTA (TCP Concurrente)");
             System.out.println("======================================");
             System.out.println("Comandos disponibles:");
-            System.out.println("  JOIN <alias>   -> Registrarse en la subasta");
-            System.out.println("  BID <monto>    -> Realizar una oferta");
-            System.out.println("  STATUS         -> Ver estado actual de la subasta");
-            System.out.println("  HISTORY        -> Ver historial de subastas finalizadas");
-            System.out.println("  QUIT o .       -> Salir del cliente");
+            System.out.println("  JOIN [lote] <alias> -> Registrarse en la subasta de un lote");
+            System.out.println("  BID [lote] <monto>  -> Realizar una oferta");
+            System.out.println("  STATUS [lote]       -> Ver estado actual de la subasta");
+            System.out.println("  HISTORY [lote]      -> Ver las últimas subastas finalizadas");
+            System.out.println("  HISTORY [lote] LAST <n> | <desde> <limite>");
+            System.out.println("                      -> Ver una página del historial");
+            System.out.println("  LOTS                -> Ver todos los lotes");
+            System.out.println("  SUBSCRIBE <lote|LOBBY>   -> Recibir los avisos de un lote (o los inicios/fines)");
+            System.out.println("  UNSUBSCRIBE <lote|LOBBY> -> Dejar de recibirlos");
+            System.out.println("  STATS               -> Ver las métricas (solo en la máquina del servidor)");
+            System.out.println("  QUIT o .            -> Salir del cliente");
             System.out.println("======================================");
             System.out.println();
 
@@ -113,12 +119,14 @@ public class ClienteEcho2 {
         try {
             switch (cmd) {
                 case "WELCOME": {
-                    // WELCOME <idCliente> <estado>
+                    // WELCOME <idCliente> <estado> [lote]
                     if (partes.length >= 3) {
                         String id = partes[1];
                         String estado = partes[2];
+                        String lote = (partes.length >= 4) ? partes[3] : "-";
                         System.out.println();
                         System.out.println("[Servidor] Bienvenido. ID: " + id +
+                                " | Lote: " + lote +
                                 " | Estado actual de la subasta: " + estado);
                     } else {
                         System.out.println();
@@ -127,7 +135,7 @@ public class ClienteEcho2 {
                     break;
                 }
                 case "CURRENT": {
-                    // CURRENT <idSubasta> <oferta> <idGanador> <aliasGanador> <segRest> <estado>
+                    // CURRENT <idSubasta> <oferta> <idGanador> <aliasGanador> <segRest> <estado> [lote]
                     if (partes.length >= 7) {
                         String idSubasta = partes[1];
                         String oferta = partes[2];
@@ -137,6 +145,9 @@ public class ClienteEcho2 {
                         String estado = partes[6];
                         System.out.println();
                         System.out.println("[Estado actual]");
+                        if (partes.length >= 8) {
+                            System.out.println("  Lote: " + partes[7]);
+                        }
                         System.out.println("  Subasta: " + idSubasta);
                         System.out.println("  Oferta máxima: " + oferta);
                         System.out.println("  Ganador actual: " + aliasGanador +
@@ -150,13 +161,14 @@ public class ClienteEcho2 {
                     break;
                 }
                 case "NEW_BID": {
-                    // NEW_BID <monto> <idCliente> <alias>
+                    // NEW_BID <monto> <idCliente> <alias> [lote]
                     if (partes.length >= 4) {
                         String monto = partes[1];
                         String id = partes[2];
                         String alias = partes[3];
                         System.out.println();
-                        System.out.println("[Nueva oferta]");
+                        System.out.println("[Nueva oferta" +
+                                ((partes.length >= 5) ? " en lote " + partes[4] : "") + "]");
                         System.out.println("  " + alias + " (" + id + ") ha ofertado " + monto);
                     } else {
                         System.out.println();
@@ -184,6 +196,10 @@ public class ClienteEcho2 {
                     System.out.println();
                     if ("MENOR_A_ACTUAL".equalsIgnoreCase(motivo)) {
                         System.out.println("[Oferta rechazada] El monto es menor o igual a la oferta actual.");
+                    } else if ("INCREMENTO_INSUFICIENTE".equalsIgnoreCase(motivo)) {
+                        String incremento = (partes.length >= 3) ? partes[2] : "?";
+                        System.out.println("[Oferta rechazada] Debe superar la oferta actual en al menos "
+                                + incremento + ".");
                     } else if ("SUBASTA_FINALIZADA".equalsIgnoreCase(motivo)) {
                         System.out.println("[Oferta rechazada] La subasta no está activa.");
                     } else {
@@ -192,12 +208,13 @@ public class ClienteEcho2 {
                     break;
                 }
                 case "AUCTION_STARTED": {
-                    // AUCTION_STARTED <idSubasta>
+                    // AUCTION_STARTED <idSubasta> [lote]
                     if (partes.length >= 2) {
                         String idSubasta = partes[1];
+                        String lote = (partes.length >= 3) ? " DEL LOTE " + partes[2] : "";
                         System.out.println();
                         System.out.println("======================================");
-                        System.out.println("  SUBASTA " + idSubasta + " INICIADA");
+                        System.out.println("  SUBASTA " + idSubasta + lote + " INICIADA");
                         System.out.println("======================================");
                     } else {
                         System.out.println();
@@ -206,15 +223,16 @@ public class ClienteEcho2 {
                     break;
                 }
                 case "AUCTION_ENDED": {
-                    // AUCTION_ENDED <idSubasta> <montoGanador> <idGanador> <aliasGanador>
+                    // AUCTION_ENDED <idSubasta> <montoGanador> <idGanador> <aliasGanador> [lote]
                     if (partes.length >= 5) {
                         String idSubasta = partes[1];
                         String monto = partes[2];
                         String id = partes[3];
                         String alias = partes[4];
+                        String lote = (partes.length >= 6) ? " DEL LOTE " + partes[5] : "";
                         System.out.println();
                         System.out.println("======================================");
-                        System.out.println("  SUBASTA " + idSubasta + " FINALIZADA");
+                        System.out.println("  SUBASTA " + idSubasta + lote + " FINALIZADA");
                         System.out.println("  Ganador: " + alias + " (" + id + ")");
                         System.out.println("  Oferta ganadora: " + monto);
                         System.out.println("======================================");
@@ -224,11 +242,35 @@ public class ClienteEcho2 {
                     }
                     break;
                 }
+                case "AUCTION_EXTENDED": {
+                    // AUCTION_EXTENDED <idSubasta> <segundosRestantes> <extensiones> [lote]
+                    if (partes.length >= 3) {
+                        String lote = (partes.length >= 5) ? " del lote " + partes[4] : "";
+                        System.out.println();
+                        System.out.println("[Servidor] Subasta " + partes[1] + lote
+                                + " prorrogada por una puja de último momento: quedan "
+                                + partes[2] + " segundos.");
+                    } else {
+                        System.out.println();
+                        System.out.println(resp);
+                    }
+                    break;
+                }
                 case "NEW_AUCTION_IN": {
-                    // NEW_AUCTION_IN <segundos>
+                    // NEW_AUCTION_IN <segundos> [lote]
                     String seg = (partes.length >= 2) ? partes[1] : "?";
+                    String lote = (partes.length >= 3) ? " del lote " + partes[2] : "";
+                    System.out.println();
+                    System.out.println("[Servidor] Nueva subasta" + lote + " disponible en " + seg + " segundos.");
+                    break;
+                }
+                case "SUBSCRIBED":
+                case "UNSUBSCRIBED": {
+                    // SUBSCRIBED <tema> / UNSUBSCRIBED <tema>
+                    String tema = (partes.length >= 2) ? partes[1] : "?";
                     System.out.println();
-                    System.out.println("[Servidor] Nueva subasta disponible en " + seg + " segundos.");
+                    System.out.println("[Servidor] " + (cmd.equals("SUBSCRIBED")
+                            ? "Suscrito a " : "Ya no recibirá avisos de ") + tema + ".");
                     break;
                 }
                 case "ERROR": {
@@ -2,6 +2,7 @@ package socket.conconexion.cliente;
 
 import java.io.*;
 import java.net.*;
+import java.util.concurrent.ThreadFactory;
 
 import socket.conconexion.stream.MiSocketStream;
 
@@ -22,12 +23,21 @@ public class ClienteEchoAuxiliar2 {
      */
     public ClienteEchoAuxiliar2(String nombreMaquina, String numPuerto)
             throws IOException {
+        this(nombreMaquina, numPuerto, null);
+    }
+
+    /**
+     * Crea el socket saliendo desde la dirección local indicada (null =
+     * la que elija el sistema). Cada dirección de origen tiene su propio
+     * rango de puertos efímeros.
+     */
+    public ClienteEchoAuxiliar2(String nombreMaquina, String numPuerto, InetAddress origen)
+            throws IOException {
         this.maquinaServidora = InetAddress.getByName(nombreMaquina);
         this.puertoServidor = Integer.parseInt(numPuerto);
         // Conecta al servidor usando el wrapper de stream
         this.miSocket = new MiSocketStream(
-                this.maquinaServidora.getHostAddress(),
-                this.puertoServidor);
+                new Socket(this.maquinaServidora, this.puertoServidor, origen, 0));
     }
 
     /**
@@ -52,7 +62,16 @@ public class ClienteEchoAuxiliar2 {
      * lo que envíe el servidor y lo pasa a un manejador de respuestas.
      */
     public void iniciarListener(RespuestaHandler handler) {
-        Thread t = new Thread(new Runnable() {
+        iniciarListener(handler, null);
+    }
+
+    /**
+     * Igual que iniciarListener(handler), pero crea el hilo con la fábrica
+     * indicada (por ejemplo, hilos virtuales cuando hay miles de conexiones,
+     * como en el generador de carga). Con fábrica null usa un hilo daemon normal.
+     */
+    public void iniciarListener(RespuestaHandler handler, ThreadFactory fabrica) {
+        Runnable escucha = new Runnable() {
             @Override
             public void run() {
                 try {
@@ -64,7 +83,12 @@ public class ClienteEchoAuxiliar2 {
                     // El socket se cerró: terminar hilo silenciosamente
                 }
             }
-        });
+        };
+        if (fabrica != null) {
+            fabrica.newThread(escucha).start();
+            return;
+        }
+        Thread t = new Thread(escucha);
         t.setDaemon(true);
         t.start();
     }
@@ -0,0 +1,124 @@
+package socket.conconexion.cliente;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Parámetros del generador de carga, leídos de las propiedades del sistema
+ * (ver GeneradorCarga). También convierte los montos entre texto y
+ * unidades mínimas, con los mismos decimales que usa el servidor.
+ */
+final class ConfiguracionCarga {
+
+    final String maquina;
+    final String puerto;
+    final int bots;
+    final String lote;
+    // null = repartir las estrategias entre los bots
+    final EstrategiaPuja estrategia;
+    final long duracionSeg;
+    final int conexionesPorSeg;
+    final long pausaMs;
+    final int decimales;
+    final long factor;
+    final long incremento;
+    final int salto;
+    final long ventanaSeg;
+    final long intervaloSeg;
+    final String csv;
+    // Direcciones locales de las que salen las conexiones, por turnos; null = cualquiera
+    final InetAddress[] origenes;
+
+    ConfiguracionCarga(String maquina, String puerto) throws UnknownHostException {
+        this.maquina = maquina;
+        this.puerto = puerto;
+        this.bots = Integer.getInteger("carga.bots", 1000);
+        this.lote = System.getProperty("carga.lote", "GENERAL");
+        String textoEstrategia = System.getProperty("carga.estrategia", "MIXTA");
+        this.estrategia = "MIXTA".equalsIgnoreCase(textoEstrategia)
+                ? null : EstrategiaPuja.desdeTexto(textoEstrategia);
+        this.duracionSeg = Long.getLong("carga.duracionSeg", 60L);
+        this.conexionesPorSeg = Integer.getInteger("carga.conexionesPorSeg", 500);
+        this.pausaMs = Long.getLong("carga.pausaMs", 1000L);
+        this.decimales = Integer.getInteger("carga.decimales", 2);
+        long f = 1L;
+        for (int i = 0; i < decimales; i++) {
+            f *= 10L;
+        }
+        this.factor = f;
+        this.incremento = parsearMonto(System.getProperty("carga.incremento", "1"));
+        this.salto = Integer.getInteger("carga.salto", 10);
+        this.ventanaSeg = Long.getLong("carga.ventanaSeg", 3L);
+        this.intervaloSeg = Math.max(1L, Long.getLong("carga.intervaloSeg", 5L));
+        this.csv = System.getProperty("carga.csv", "carga.csv");
+        String textoOrigenes = System.getProperty("carga.origenes", "").trim();
+        if (textoOrigenes.length() == 0) {
+            this.origenes = null;
+        } else {
+            String[] nombres = textoOrigenes.split(",");
+            this.origenes = new InetAddress[nombres.length];
+            for (int i = 0; i < nombres.length; i++) {
+                origenes[i] = InetAddress.getByName(nombres[i].trim());
+            }
+        }
+        if (bots <= 0 || conexionesPorSeg <= 0 || pausaMs <= 0L || incremento <= 0L) {
+            throw new IllegalArgumentException(
+                    "carga.bots, carga.conexionesPorSeg, carga.pausaMs y carga.incremento deben ser positivos");
+        }
+    }
+
+    /**
+     * Estrategia del bot número n: la configurada o, en modo mixto, por turnos.
+     */
+    EstrategiaPuja estrategiaDe(int n) {
+        if (estrategia != null) {
+            return estrategia;
+        }
+        EstrategiaPuja[] todas = EstrategiaPuja.values();
+        return todas[n % todas.length];
+    }
+
+    /**
+     * Dirección de origen de la conexión número n, o null si no se eligió.
+     */
+    InetAddress origenDe(int n) {
+        return (origenes == null) ? null : origenes[n % origenes.length];
+    }
+
+    /**
+     * Texto del protocolo ("12.50") a unidades mínimas.
+     */
+    long parsearMonto(String texto) {
+        texto = texto.trim();
+        int punto = texto.indexOf('.');
+        if (punto < 0) {
+            return Long.parseLong(texto) * factor;
+        }
+        String decimalesTexto = texto.substring(punto + 1);
+        if (decimalesTexto.length() > decimales) {
+            throw new NumberFormatException("Demasiados decimales: " + texto);
+        }
+        long fraccion = (decimalesTexto.length() == 0) ? 0L : Long.parseLong(decimalesTexto);
+        for (int i = decimalesTexto.length(); i < decimales; i++) {
+            fraccion *= 10L;
+        }
+        long entero = (punto == 0) ? 0L : Long.parseLong(texto.substring(0, punto));
+        return entero * factor + fraccion;
+    }
+
+    /**
+     * Unidades mínimas a texto con todos los decimales, como los escribe el servidor.
+     */
+    String formatearMonto(long unidades) {
+        if (decimales == 0) {
+            return Long.toString(unidades);
+        }
+        StringBuilder sb = new StringBuilder(24);
+        sb.append(unidades / factor).append('.');
+        String fraccion = Long.toString(unidades % factor);
+        for (int i = fraccion.length(); i < decimales; i++) {
+            sb.append('0');
+        }
+        return sb.append(fraccion).toString();
+    }
+}
@@ -0,0 +1,58 @@
+package socket.conconexion.cliente;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Cómo puja cada bot del generador de carga.
+ *
+ * ALEATORIA:      espera un tiempo al azar (0 a 2 pausas) y sube la oferta
+ *                 vigente entre 1 y "salto" incrementos.
+ * INCREMENTAL:    cada pausa sube la oferta vigente un solo incremento.
+ * FRANCOTIRADOR:  no puja hasta los últimos segundos de la subasta (un
+ *                 momento al azar dentro de la ventana) y entonces puja
+ *                 con un incremento cada décima de pausa.
+ */
+enum EstrategiaPuja {
+    ALEATORIA,
+    INCREMENTAL,
+    FRANCOTIRADOR;
+
+    static EstrategiaPuja desdeTexto(String texto) {
+        return valueOf(texto.trim().toUpperCase());
+    }
+
+    /**
+     * Milisegundos que el bot espera antes de su siguiente puja.
+     * restanteMs es lo que falta para el fin de la subasta (negativo si no
+     * se sabe) y entradaMs, el momento antes del fin que el francotirador
+     * eligió al azar dentro de su ventana para esta subasta.
+     */
+    long esperaMs(ConfiguracionCarga config, long restanteMs, long entradaMs) {
+        switch (this) {
+            case ALEATORIA:
+                return ThreadLocalRandom.current().nextLong(2L * config.pausaMs + 1L);
+            case INCREMENTAL:
+                return config.pausaMs;
+            default:
+                if (restanteMs < 0L) {
+                    // Aún no sabe cuándo termina: volver a mirar pronto
+                    return 100L;
+                }
+                if (restanteMs > entradaMs) {
+                    return restanteMs - entradaMs;
+                }
+                return Math.max(1L, config.pausaMs / 10L);
+        }
+    }
+
+    /**
+     * Monto (en unidades mínimas) de la siguiente puja sobre la oferta vigente.
+     */
+    long siguienteMonto(ConfiguracionCarga config, long ofertaVigente) {
+        if (this == ALEATORIA) {
+            int saltos = 1 + ThreadLocalRandom.current().nextInt(Math.max(1, config.salto));
+            return ofertaVigente + saltos * config.incremento;
+        }
+        return ofertaVigente + config.incremento;
+    }
+}
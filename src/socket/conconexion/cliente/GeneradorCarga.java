@@ -0,0 +1,321 @@
+package socket.conconexion.cliente;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import socket.conconexion.metricas.HistogramaLatencias;
+
+/**
+ * Generador de carga sin consola para el servidor de subasta: abre miles
+ * de conexiones (un BotSubasta por conexión, con hilos virtuales), cada
+ * bot se une al lote con un alias único y puja según su estrategia.
+ *
+ * Mide:
+ *  - latencia BID -> BID_OK de cada puja (lo que espera quien puja);
+ *  - latencia BID -> NEW_BID de difusión: desde que el autor envió la puja
+ *    hasta que cada uno de los demás bots recibe el aviso;
+ *  - pujas, confirmaciones, rechazos y avisos por segundo.
+ * Cada intervalo escribe una línea en la salida estándar y una fila en el
+ * CSV (latencias en microsegundos); al terminar, una fila "total".
+ *
+ * Uso: java socket.conconexion.cliente.GeneradorCarga [máquina] [puerto]
+ *
+ * Opciones (propiedades del sistema):
+ *  -Dcarga.bots=N               conexiones a abrir (1000)
+ *  -Dcarga.lote=id              lote en el que pujan todos los bots (GENERAL)
+ *  -Dcarga.estrategia=ALEATORIA|INCREMENTAL|FRANCOTIRADOR|MIXTA
+ *                               estrategia de los bots; MIXTA las reparte por turnos (MIXTA)
+ *  -Dcarga.duracionSeg=N        duración de la prueba, rampa incluida (60)
+ *  -Dcarga.conexionesPorSeg=N   ritmo de apertura de conexiones (500)
+ *  -Dcarga.pausaMs=N            pausa media entre pujas de un bot (1000)
+ *  -Dcarga.incremento=X         cuánto sube cada puja sobre la vigente (1)
+ *  -Dcarga.salto=N              máximo de incrementos de una puja ALEATORIA (10)
+ *  -Dcarga.ventanaSeg=N         últimos segundos en los que puja el FRANCOTIRADOR (3)
+ *  -Dcarga.decimales=N          decimales de los montos; igual que en el servidor (2)
+ *  -Dcarga.intervaloSeg=N       cada cuánto se informa (5)
+ *  -Dcarga.csv=fichero          CSV del informe (carga.csv)
+ *  -Dcarga.origenes=ip,ip,...   direcciones locales de las que salen las conexiones,
+ *                               por turnos (las elige el sistema)
+ *
+ * Con decenas de miles de bots contra la propia máquina hacen falta
+ * varias direcciones de origen (cada una da unos 28.000 puertos efímeros,
+ * por ejemplo 127.0.0.1,127.0.0.2) y un límite de descriptores abiertos
+ * por encima del número de bots, tanto aquí como en el servidor (ver
+ * README, PRUEBA DE 50.000 CONEXIONES). Al terminar la rampa se informa
+ * de cuántos bots se conectaron y cuántos recibieron WELCOME.
+ *
+ * Sale con código 0 solo si los N bots recibieron WELCOME y hubo al menos
+ * un BID_OK; si no, dice qué faltó y sale con código 1.
+ *
+ * El servidor debe admitir el incremento elegido (subasta.incrementoMinimo)
+ * y, para medir a plena carga, conviene que la subasta del lote esté en
+ * curso durante toda la prueba (una duración de lote larga).
+ */
+public class GeneradorCarga {
+
+    // Las claves de pujas sin aviso (rechazadas sin respuesta, conflación) se olvidan tras esto
+    private static final long OLVIDAR_PUJA_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    // Tiempo para que el servidor cierre las conexiones antes de cerrarlas aquí
+    private static final long ESPERA_DESPEDIDA_MS = 1000L;
+
+    private static final String CABECERA_CSV = "segundo,bots,pujas,bid_ok,rechazos,errores,sin_respuesta,new_bid,"
+            + "pujas_s,bid_ok_s,new_bid_s,"
+            + "bid_ok_p50_us,bid_ok_p99_us,bid_ok_p999_us,bid_ok_max_us,"
+            + "difusion_p50_us,difusion_p99_us,difusion_p999_us,difusion_max_us";
+
+    private final ConfiguracionCarga config;
+    private volatile boolean enMarcha = true;
+
+    // "idCliente monto" de cada BID enviado -> System.nanoTime() del envío
+    private final ConcurrentHashMap<String, Long> pujasEnVuelo = new ConcurrentHashMap<>();
+
+    private final LongAdder conectados = new LongAdder();
+    private final LongAdder conexionesFallidas = new LongAdder();
+    private final LongAdder unidos = new LongAdder();
+    private final LongAdder pujas = new LongAdder();
+    private final LongAdder confirmadas = new LongAdder();
+    private final LongAdder rechazadas = new LongAdder();
+    private final LongAdder errores = new LongAdder();
+    private final LongAdder sinRespuesta = new LongAdder();
+    private final LongAdder difusiones = new LongAdder();
+
+    // Se registran en los del intervalo; el informe los vacía y los suma al total
+    private final HistogramaLatencias latenciaConfirmacion = new HistogramaLatencias();
+    private final HistogramaLatencias latenciaDifusion = new HistogramaLatencias();
+    private final HistogramaLatencias totalConfirmacion = new HistogramaLatencias();
+    private final HistogramaLatencias totalDifusion = new HistogramaLatencias();
+
+    // Valores de los contadores en el informe anterior
+    private long pujasAntes;
+    private long confirmadasAntes;
+    private long difusionesAntes;
+    private long informeAnterior;
+
+    GeneradorCarga(ConfiguracionCarga config) {
+        this.config = config;
+    }
+
+    public static void main(String[] args) {
+        String maquina = (args.length >= 1) ? args[0] : "localhost";
+        String puerto = (args.length >= 2) ? args[1] : ClienteEcho2.PUERTO_POR_DEFECTO;
+        try {
+            System.exit(new GeneradorCarga(new ConfiguracionCarga(maquina, puerto)).ejecutar() ? 0 : 1);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    boolean enMarcha() {
+        return enMarcha;
+    }
+
+    void botUnido() {
+        unidos.increment();
+    }
+
+    void pujaEnviada(String clave, long enviadaEn) {
+        pujas.increment();
+        pujasEnVuelo.put(clave, enviadaEn);
+    }
+
+    void pujaConfirmada(long nanos) {
+        confirmadas.increment();
+        latenciaConfirmacion.registrar(nanos);
+    }
+
+    void pujaRechazada(String clave) {
+        rechazadas.increment();
+        pujasEnVuelo.remove(clave);
+    }
+
+    void pujaConError(String clave) {
+        errores.increment();
+        pujasEnVuelo.remove(clave);
+    }
+
+    void pujaSinRespuesta(String clave) {
+        sinRespuesta.increment();
+        pujasEnVuelo.remove(clave);
+    }
+
+    void difusionRecibida(String clave, long recibidaEn) {
+        difusiones.increment();
+        Long enviadaEn = pujasEnVuelo.get(clave);
+        if (enviadaEn != null) {
+            latenciaDifusion.registrar(recibidaEn - enviadaEn);
+        }
+    }
+
+    void conexionPerdida() {
+        conectados.decrement();
+    }
+
+    /**
+     * Hace la prueba; true si todos los bots se unieron y hubo algún BID_OK.
+     */
+    boolean ejecutar() throws IOException, InterruptedException {
+        System.out.println("Generador de carga: " + config.bots + " bots contra "
+                + config.maquina + ":" + config.puerto + ", lote " + config.lote
+                + ", estrategia " + ((config.estrategia == null) ? "MIXTA" : config.estrategia)
+                + ", " + config.duracionSeg + " s");
+
+        ThreadFactory hilos = Thread.ofVirtual().name("bot-", 0).factory();
+        // Sufijo de los alias para no repetir los de una prueba anterior
+        String sufijo = Long.toString(System.currentTimeMillis() % 1_000_000L, Character.MAX_RADIX);
+        List<BotSubasta> bots = new ArrayList<>(config.bots);
+
+        try (PrintWriter csv = new PrintWriter(new BufferedWriter(new FileWriter(config.csv)))) {
+            csv.println(CABECERA_CSV);
+            long inicio = System.nanoTime();
+            long fin = inicio + TimeUnit.SECONDS.toNanos(config.duracionSeg);
+            informeAnterior = inicio;
+
+            ScheduledExecutorService programador = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "informe-carga");
+                t.setDaemon(true);
+                return t;
+            });
+            programador.scheduleAtFixedRate(() -> informar(csv, inicio),
+                    config.intervaloSeg, config.intervaloSeg, TimeUnit.SECONDS);
+
+            // Rampa: abre las conexiones al ritmo pedido
+            for (int i = 0; i < config.bots && System.nanoTime() < fin; i++) {
+                long turno = inicio + i * 1_000_000_000L / config.conexionesPorSeg;
+                long espera = turno - System.nanoTime();
+                if (espera > 0L) {
+                    TimeUnit.NANOSECONDS.sleep(espera);
+                }
+                BotSubasta bot = new BotSubasta(this, config, config.estrategiaDe(i), "bot" + i + "-" + sufijo);
+                try {
+                    bot.conectar(hilos, config.origenDe(i));
+                } catch (IOException ex) {
+                    conexionesFallidas.increment();
+                    continue;
+                }
+                conectados.increment();
+                bots.add(bot);
+                hilos.newThread(bot).start();
+            }
+            System.out.println("Conectados " + conectados.sum() + " bots ("
+                    + conexionesFallidas.sum() + " conexiones fallidas), "
+                    + unidos.sum() + " unidos al lote");
+
+            long resto = fin - System.nanoTime();
+            if (resto > 0L) {
+                TimeUnit.NANOSECONDS.sleep(resto);
+            }
+            enMarcha = false;
+            programador.shutdown();
+            programador.awaitTermination(10, TimeUnit.SECONDS);
+            for (BotSubasta bot : bots) {
+                bot.despedirse();
+            }
+            TimeUnit.MILLISECONDS.sleep(ESPERA_DESPEDIDA_MS);
+            for (BotSubasta bot : bots) {
+                bot.cerrar();
+            }
+            informar(csv, inicio);
+            informarTotal(csv, inicio);
+        }
+        System.out.println("Informe CSV en " + config.csv);
+
+        boolean bien = true;
+        if (unidos.sum() < config.bots) {
+            System.out.println("FALLIDA: " + unidos.sum() + " de " + config.bots + " bots recibieron WELCOME ("
+                    + conexionesFallidas.sum() + " conexiones fallidas)");
+            bien = false;
+        }
+        if (confirmadas.sum() == 0L) {
+            System.out.println("FALLIDA: ninguna puja recibió BID_OK");
+            bien = false;
+        }
+        if (bien) {
+            System.out.println("CARGA OK: " + config.bots + " bots unidos, " + confirmadas.sum() + " BID_OK");
+        }
+        return bien;
+    }
+
+    /**
+     * Línea y fila CSV del intervalo desde el informe anterior.
+     */
+    private synchronized void informar(PrintWriter csv, long inicio) {
+        long ahora = System.nanoTime();
+        double segundos = Math.max(1e-9, (ahora - informeAnterior) / 1e9);
+        informeAnterior = ahora;
+
+        HistogramaLatencias confirmacion = latenciaConfirmacion.extraer();
+        HistogramaLatencias difusion = latenciaDifusion.extraer();
+        totalConfirmacion.sumar(confirmacion);
+        totalDifusion.sumar(difusion);
+
+        long p = pujas.sum();
+        long c = confirmadas.sum();
+        long d = difusiones.sum();
+        String segundo = Long.toString(TimeUnit.NANOSECONDS.toSeconds(ahora - inicio));
+        escribir(csv, segundo, p - pujasAntes, c - confirmadasAntes, d - difusionesAntes,
+                segundos, confirmacion, difusion, false);
+        pujasAntes = p;
+        confirmadasAntes = c;
+        difusionesAntes = d;
+
+        // Pujas cuyo aviso nunca llegará (la conflación se quedó con otra)
+        pujasEnVuelo.values().removeIf(enviadaEn -> ahora - enviadaEn > OLVIDAR_PUJA_NANOS);
+    }
+
+    private synchronized void informarTotal(PrintWriter csv, long inicio) {
+        double segundos = Math.max(1e-9, (System.nanoTime() - inicio) / 1e9);
+        System.out.println("----- Total -----");
+        escribir(csv, "total", pujas.sum(), confirmadas.sum(), difusiones.sum(),
+                segundos, totalConfirmacion, totalDifusion, true);
+    }
+
+    private void escribir(PrintWriter csv, String segundo, long p, long c, long d, double segundos,
+                          HistogramaLatencias confirmacion, HistogramaLatencias difusion, boolean total) {
+        csv.println(String.format(Locale.ROOT, "%s,%d,%d,%d,%d,%d,%d,%d,%.1f,%.1f,%.1f,%d,%d,%d,%d,%d,%d,%d,%d",
+                segundo, conectados.sum(), p, c,
+                rechazadas.sum(), errores.sum(), sinRespuesta.sum(), d,
+                p / segundos, c / segundos, d / segundos,
+                micros(confirmacion.percentil(50)), micros(confirmacion.percentil(99)),
+                micros(confirmacion.percentil(99.9)), micros(confirmacion.getMaximo()),
+                micros(difusion.percentil(50)), micros(difusion.percentil(99)),
+                micros(difusion.percentil(99.9)), micros(difusion.getMaximo())));
+        csv.flush();
+
+        System.out.println(String.format(Locale.ROOT,
+                "[%6s s] bots %d  pujas/s %.1f  BID_OK/s %.1f  NEW_BID/s %.1f%s",
+                segundo, conectados.sum(), p / segundos, c / segundos, d / segundos,
+                total ? String.format(Locale.ROOT, "  unidos %d  rechazos %d  errores %d  sin respuesta %d",
+                        unidos.sum(), rechazadas.sum(), errores.sum(), sinRespuesta.sum()) : ""));
+        System.out.println(String.format(Locale.ROOT,
+                "           BID->BID_OK  p50 %.2f ms  p99 %.2f ms  p99.9 %.2f ms  máx %.2f ms  (%d)",
+                millis(confirmacion.percentil(50)), millis(confirmacion.percentil(99)),
+                millis(confirmacion.percentil(99.9)), millis(confirmacion.getMaximo()),
+                confirmacion.getTotal()));
+        System.out.println(String.format(Locale.ROOT,
+                "           BID->NEW_BID p50 %.2f ms  p99 %.2f ms  p99.9 %.2f ms  máx %.2f ms  (%d)",
+                millis(difusion.percentil(50)), millis(difusion.percentil(99)),
+                millis(difusion.percentil(99.9)), millis(difusion.getMaximo()),
+                difusion.getTotal()));
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
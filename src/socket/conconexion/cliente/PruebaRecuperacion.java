@@ -0,0 +1,345 @@
+package socket.conconexion.cliente;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prueba de recuperación tras una caída: arranca un servidor con diario,
+ * puja contra él, lo mata con SIGKILL en plena subasta, lo vuelve a
+ * arrancar sobre el mismo directorio y comprueba que el estado
+ * reconstruido coincide con el que había.
+ *
+ * Dos lotes:
+ *  - RAPIDO: subastas cortas. Se puja hasta que alguna termina y luego se
+ *    deja quieto (sin participantes no empieza otra), así su CURRENT y su
+ *    HISTORY antes de la caída deben salir idénticos después.
+ *  - LENTO: una subasta larga en la que se sigue pujando en lazo cerrado
+ *    mientras se mata el servidor. Tras la caída la oferta vigente debe
+ *    ser de la misma subasta, no menor que la última puja confirmada con
+ *    BID_OK ni mayor que la última enviada.
+ * Por el camino se toman instantáneas, así se recupera de instantánea más
+ * cola del diario.
+ *
+ * Uso: java -cp <clases> socket.conconexion.cliente.PruebaRecuperacion
+ * El servidor se arranca con el mismo classpath y el mismo java.
+ *
+ * Opciones (propiedades del sistema):
+ *  -Drecuperacion.puerto=N       puerto del servidor de prueba (8017)
+ *  -Drecuperacion.directorio=dir directorio del diario (uno temporal nuevo)
+ *  -Drecuperacion.pujasSeg=N     segundos pujando en LENTO antes de matarlo (5)
+ *  -Drecuperacion.modo=hilos|virtual|nio
+ *                                subasta.modo del servidor (hilos)
+ *
+ * Termina con código 0 si el estado coincide y 1 si no; los registros de
+ * los dos arranques quedan en el directorio.
+ */
+public class PruebaRecuperacion {
+
+    private static final String LOTE_RAPIDO = "RAPIDO";
+    private static final String LOTE_LENTO = "LENTO";
+    private static final long ESPERA_ARRANQUE_MS = 15_000L;
+
+    private final int puerto;
+    private final Path directorio;
+    private final long pujasSeg;
+    private final String modo;
+
+    PruebaRecuperacion(int puerto, Path directorio, long pujasSeg, String modo) {
+        this.puerto = puerto;
+        this.directorio = directorio;
+        this.pujasSeg = pujasSeg;
+        this.modo = modo;
+    }
+
+    public static void main(String[] args) {
+        try {
+            String dir = System.getProperty("recuperacion.directorio");
+            Path directorio = (dir == null) ? Files.createTempDirectory("recuperacion") : Paths.get(dir);
+            PruebaRecuperacion prueba = new PruebaRecuperacion(
+                    Integer.getInteger("recuperacion.puerto", 8017), directorio,
+                    Long.getLong("recuperacion.pujasSeg", 5L),
+                    System.getProperty("recuperacion.modo", "hilos"));
+            System.exit(prueba.ejecutar() ? 0 : 1);
+        } catch (Exception ex) {
+            ex.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    boolean ejecutar() throws Exception {
+        System.out.println("Prueba de recuperación en " + directorio);
+        Process servidor = arrancar(1);
+        Pujador lento;
+        List<String> antes;
+        try {
+            // RAPIDO: pujar hasta que termine una subasta y dejarlo quieto
+            Pujador rapido = new Pujador(LOTE_RAPIDO, "rapido");
+            rapido.pujarHastaFin();
+            rapido.cerrar();
+
+            // LENTO: pujar sin parar mientras se mata el servidor
+            lento = new Pujador(LOTE_LENTO, "lento");
+            Thread hilo = new Thread(lento::pujarSinFin, "pujador-lento");
+            hilo.setDaemon(true);
+            hilo.start();
+            TimeUnit.SECONDS.sleep(pujasSeg);
+
+            antes = consultar(LOTE_RAPIDO);
+            servidor.destroyForcibly();
+            servidor.waitFor();
+            hilo.join(TimeUnit.SECONDS.toMillis(5));
+        } finally {
+            servidor.destroyForcibly();
+        }
+        System.out.println("Servidor matado con " + lento.confirmadas + " pujas confirmadas en LENTO"
+                + " (última confirmada " + lento.ultimaConfirmada + ", última enviada "
+                + lento.ultimaEnviada + ")");
+
+        servidor = arrancar(2);
+        try {
+            List<String> despues = consultar(LOTE_RAPIDO);
+            boolean bien = comparar(antes, despues);
+            bien &= comprobarLento(lento);
+            System.out.println(bien ? "RECUPERACION OK" : "RECUPERACION FALLIDA");
+            return bien;
+        } finally {
+            servidor.destroy();
+            servidor.waitFor();
+        }
+    }
+
+    /**
+     * Arranca el servidor sobre el directorio y espera a que acepte conexiones.
+     */
+    private Process arrancar(int vez) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        List<String> comando = new ArrayList<String>();
+        comando.add(java);
+        comando.add("-cp");
+        comando.add(System.getProperty("java.class.path"));
+        comando.add("-Dsubasta.modo=" + modo);
+        comando.add("-Dsubasta.diario=" + directorio);
+        comando.add("-Dsubasta.instantanea.intervaloSeg=1");
+        // id:duraciónSeg:cooldownSeg:mínimoParticipantes
+        comando.add("-Dsubasta.lotes=" + LOTE_RAPIDO + ":2:1:1," + LOTE_LENTO + ":600:1:1");
+        comando.add("socket.conconexion.servidor.ServidorEcho3");
+        comando.add(Integer.toString(puerto));
+        File registro = directorio.resolve("servidor-" + vez + ".log").toFile();
+        Process proceso = new ProcessBuilder(comando).redirectErrorStream(true)
+                .redirectOutput(registro).start();
+        long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ESPERA_ARRANQUE_MS);
+        while (true) {
+            try {
+                new Socket("127.0.0.1", puerto).close();
+                return proceso;
+            } catch (IOException ex) {
+                if (!proceso.isAlive() || System.nanoTime() > limite) {
+                    proceso.destroyForcibly();
+                    throw new IOException("El servidor no arrancó; ver " + registro);
+                }
+                TimeUnit.MILLISECONDS.sleep(100);
+            }
+        }
+    }
+
+    /**
+     * LOTS (la línea CURRENT del lote, sin los segundos restantes) y su
+     * HISTORY completo.
+     */
+    private List<String> consultar(String idLote) throws IOException {
+        try (Conexion c = new Conexion()) {
+            // Sin LOBBY, lo único que llega son las respuestas
+            c.enviar("UNSUBSCRIBE LOBBY");
+            c.esperar("UNSUBSCRIBED");
+            List<String> lineas = new ArrayList<String>();
+            // Detrás de LOTS otro UNSUBSCRIBE marca el final (hay también GENERAL)
+            c.enviar("LOTS");
+            c.enviar("UNSUBSCRIBE LOBBY");
+            String linea;
+            while (!(linea = c.leer()).startsWith("UNSUBSCRIBED")) {
+                String[] campos = linea.split(" ");
+                if (campos[0].equals("CURRENT") && campos[campos.length - 1].equals(idLote)) {
+                    // CURRENT <idSubasta> <oferta> <idGanador> <alias> <segRest> <estado> <lote>
+                    campos[5] = "*";
+                    lineas.add(String.join(" ", campos));
+                }
+            }
+            c.enviar("HISTORY " + idLote + " 0 100");
+            String cabecera = c.leer();
+            lineas.add(cabecera);
+            if (cabecera.startsWith("HISTORY_PAGE")) {
+                int n = Integer.parseInt(cabecera.split(" ")[3]);
+                for (int i = 0; i < 5 * n; i++) {
+                    lineas.add(c.leer());
+                }
+            }
+            return lineas;
+        }
+    }
+
+    private static boolean comparar(List<String> antes, List<String> despues) {
+        if (antes.equals(despues)) {
+            System.out.println("RAPIDO: CURRENT e HISTORY coinciden (" + antes.size() + " líneas)");
+            return true;
+        }
+        System.out.println("RAPIDO: el estado recuperado no coincide");
+        System.out.println("  antes:   " + antes);
+        System.out.println("  después: " + despues);
+        return false;
+    }
+
+    private boolean comprobarLento(Pujador lento) throws IOException {
+        String linea;
+        try (Conexion c = new Conexion()) {
+            c.enviar("UNSUBSCRIBE LOBBY");
+            c.esperar("UNSUBSCRIBED");
+            c.enviar("STATUS " + LOTE_LENTO);
+            linea = c.esperar("CURRENT");
+        }
+        String[] campos = linea.split(" ");
+        BigDecimal oferta = new BigDecimal(campos[2]);
+        boolean bien = campos[1].equals(lento.idSubasta)
+                && oferta.compareTo(BigDecimal.valueOf(lento.ultimaConfirmada)) >= 0
+                && oferta.compareTo(BigDecimal.valueOf(lento.ultimaEnviada)) <= 0;
+        System.out.println("LENTO: recuperado " + linea + (bien ? "" : "  <- fuera de rango"));
+        return bien;
+    }
+
+    /**
+     * Conexión de texto con el servidor.
+     */
+    private final class Conexion implements AutoCloseable {
+        private final Socket socket;
+        private final BufferedReader entrada;
+        private final OutputStream salida;
+
+        Conexion() throws IOException {
+            socket = new Socket("127.0.0.1", puerto);
+            socket.setSoTimeout(10_000);
+            entrada = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            salida = socket.getOutputStream();
+        }
+
+        void enviar(String comando) throws IOException {
+            salida.write((comando + "\n").getBytes(StandardCharsets.UTF_8));
+            salida.flush();
+        }
+
+        String leer() throws IOException {
+            String linea = entrada.readLine();
+            if (linea == null) {
+                throw new IOException("El servidor cerró la conexión");
+            }
+            return linea;
+        }
+
+        /**
+         * Lee hasta una línea que empiece por prefijo (los avisos se saltan).
+         */
+        String esperar(String prefijo) throws IOException {
+            while (true) {
+                String linea = leer();
+                if (linea.startsWith(prefijo)) {
+                    return linea;
+                }
+            }
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    /**
+     * Un participante que puja en lazo cerrado: cada BID espera su respuesta.
+     */
+    private final class Pujador {
+        private final String idLote;
+        private final String alias;
+        private final Conexion conexion;
+        private long siguiente = 1L;
+        volatile long ultimaEnviada;
+        volatile long ultimaConfirmada;
+        volatile long confirmadas;
+        volatile String idSubasta;
+
+        Pujador(String idLote, String alias) throws IOException {
+            this.idLote = idLote;
+            this.alias = alias;
+            this.conexion = new Conexion();
+            unirse();
+        }
+
+        private void unirse() throws IOException {
+            conexion.enviar("JOIN " + idLote + " " + alias);
+            conexion.esperar("WELCOME");
+        }
+
+        /**
+         * Envía la siguiente puja y devuelve la respuesta.
+         */
+        private String pujar() throws IOException {
+            ultimaEnviada = siguiente;
+            conexion.enviar("BID " + siguiente++);
+            while (true) {
+                String linea = conexion.leer();
+                if (linea.startsWith("BID_OK")) {
+                    ultimaConfirmada = ultimaEnviada;
+                    confirmadas++;
+                    return linea;
+                }
+                if (linea.startsWith("BID_REJECT") || linea.startsWith("ERROR")) {
+                    return linea;
+                }
+            }
+        }
+
+        /**
+         * Puja hasta que termina una subasta con alguna puja aceptada.
+         */
+        void pujarHastaFin() throws IOException, InterruptedException {
+            while (true) {
+                String respuesta = pujar();
+                if (respuesta.startsWith("BID_REJECT SUBASTA_FINALIZADA")) {
+                    if (confirmadas > 0) {
+                        return;
+                    }
+                    // Aún no empezó: esperar al inicio
+                    TimeUnit.MILLISECONDS.sleep(100);
+                }
+            }
+        }
+
+        void pujarSinFin() {
+            try {
+                while (true) {
+                    String respuesta = pujar();
+                    if (respuesta.startsWith("BID_OK") && idSubasta == null) {
+                        conexion.enviar("STATUS " + idLote);
+                        idSubasta = conexion.esperar("CURRENT").split(" ")[1];
+                    } else if (respuesta.startsWith("BID_REJECT SUBASTA_FINALIZADA")) {
+                        TimeUnit.MILLISECONDS.sleep(100);
+                    }
+                }
+            } catch (Exception ex) {
+                // El servidor murió: la última enviada quedó sin respuesta
+            }
+        }
+
+        void cerrar() throws IOException {
+            conexion.close();
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package socket.conconexion.metricas;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histograma de latencias (u otros valores no negativos) con cubetas
+ * log-lineales, al estilo de HdrHistogram: hasta 127 cada valor tiene su
+ * cubeta y a partir de ahí cada potencia de 2 se divide en 64 cubetas,
+ * así el error relativo de un percentil es menor al 1,6 % para cualquier
+ * magnitud, con un arreglo fijo de ~30 KB por franja.
+ *
+ * Registrar no toma cerrojos ni crea objetos (unos incrementos atómicos).
+ * Para que muchos hilos puedan registrar a la vez sin pelearse por las
+ * mismas líneas de caché, las cuentas se reparten en franjas según el hilo
+ * (como LongAdder) y las consultas las suman. Las consultas leen las
+ * cubetas sin detener a quien registra: con registros en curso el
+ * resultado es aproximado, pero nunca inconsistente.
+ */
+public class HistogramaLatencias {
+
+    // Bits de precisión por potencia de 2 (64 cubetas)
+    private static final int BITS_SUBCUBETA = 6;
+    private static final int SUBCUBETAS = 1 << BITS_SUBCUBETA;
+    // Valores con cubeta propia: 0..127
+    private static final int LINEALES = 2 * SUBCUBETAS;
+    private static final int CUBETAS = LINEALES + (63 - BITS_SUBCUBETA) * SUBCUBETAS;
+    // Tras las cubetas, cada franja guarda su número de registros y su suma
+    private static final int TOTAL = CUBETAS;
+    private static final int SUMA = CUBETAS + 1;
+
+    // Franjas por defecto: núcleos redondeados a potencia de 2, como mucho 16
+    private static final int FRANJAS = Math.min(16,
+            Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)));
+
+    private final AtomicLongArray[] franjas;
+    private final int mascara;
+    private final AtomicLong maximo = new AtomicLong();
+
+    public HistogramaLatencias() {
+        this(FRANJAS);
+    }
+
+    private HistogramaLatencias(int numeroFranjas) {
+        franjas = new AtomicLongArray[numeroFranjas];
+        for (int i = 0; i < numeroFranjas; i++) {
+            franjas[i] = new AtomicLongArray(CUBETAS + 2);
+        }
+        mascara = numeroFranjas - 1;
+    }
+
+    /**
+     * Registra un valor. Los negativos cuentan como 0.
+     */
+    public void registrar(long valor) {
+        if (valor < 0L) {
+            valor = 0L;
+        }
+        AtomicLongArray franja = franjas[(int) Thread.currentThread().threadId() & mascara];
+        franja.incrementAndGet(indice(valor));
+        franja.incrementAndGet(TOTAL);
+        franja.addAndGet(SUMA, valor);
+        long max;
+        while (valor > (max = maximo.get()) && !maximo.compareAndSet(max, valor)) {
+            // reintentar
+        }
+    }
+
+    static int indice(long valor) {
+        if (valor < LINEALES) {
+            return (int) valor;
+        }
+        // Desplazamiento que deja el valor en [64, 128)
+        int exponente = 63 - Long.numberOfLeadingZeros(valor) - BITS_SUBCUBETA;
+        int sub = (int) (valor >>> exponente) - SUBCUBETAS;
+        return LINEALES + (exponente - 1) * SUBCUBETAS + sub;
+    }
+
+    /**
+     * Mayor valor que cae en la cubeta (los percentiles se redondean hacia arriba).
+     */
+    static long limiteSuperior(int indice) {
+        if (indice < LINEALES) {
+            return indice;
+        }
+        int exponente = (indice - LINEALES) / SUBCUBETAS + 1;
+        long sub = (indice - LINEALES) % SUBCUBETAS + SUBCUBETAS;
+        return ((sub + 1) << exponente) - 1;
+    }
+
+    private long sumarPosicion(int posicion) {
+        long n = 0L;
+        for (AtomicLongArray franja : franjas) {
+            n += franja.get(posicion);
+        }
+        return n;
+    }
+
+    public long getTotal() {
+        return sumarPosicion(TOTAL);
+    }
+
+    /**
+     * Suma de todos los valores registrados.
+     */
+    public long getSuma() {
+        return sumarPosicion(SUMA);
+    }
+
+    public long getMaximo() {
+        return maximo.get();
+    }
+
+    public double getMedia() {
+        long n = getTotal();
+        return (n == 0L) ? 0.0 : (double) getSuma() / n;
+    }
+
+    /**
+     * Valor por debajo del cual queda el porcentaje indicado de los registros
+     * (p entre 0 y 100, por ejemplo 99.9). 0 si no hay registros.
+     */
+    public long percentil(double p) {
+        long[] cuentas = new long[CUBETAS];
+        long n = 0L;
+        for (int i = 0; i < CUBETAS; i++) {
+            cuentas[i] = sumarPosicion(i);
+            n += cuentas[i];
+        }
+        if (n == 0L) {
+            return 0L;
+        }
+        long objetivo = (long) Math.ceil(n * (p / 100.0));
+        if (objetivo < 1L) {
+            objetivo = 1L;
+        }
+        long acumulado = 0L;
+        for (int i = 0; i < CUBETAS; i++) {
+            acumulado += cuentas[i];
+            if (acumulado >= objetivo) {
+                return Math.min(limiteSuperior(i), maximo.get());
+            }
+        }
+        return maximo.get();
+    }
+
+    /**
+     * Suma al histograma los registros de otro.
+     */
+    public void sumar(HistogramaLatencias otro) {
+        AtomicLongArray destino = franjas[0];
+        for (int i = 0; i < CUBETAS + 2; i++) {
+            long c = otro.sumarPosicion(i);
+            if (c != 0L) {
+                destino.addAndGet(i, c);
+            }
+        }
+        long max;
+        long otroMax = otro.maximo.get();
+        while (otroMax > (max = maximo.get()) && !maximo.compareAndSet(max, otroMax)) {
+            // reintentar
+        }
+    }
+
+    /**
+     * Devuelve un histograma con lo registrado hasta ahora y deja este vacío,
+     * para medir por intervalos sin detener a quien registra.
+     */
+    public HistogramaLatencias extraer() {
+        HistogramaLatencias copia = new HistogramaLatencias(1);
+        AtomicLongArray destino = copia.franjas[0];
+        for (AtomicLongArray franja : franjas) {
+            for (int i = 0; i < CUBETAS + 2; i++) {
+                long c = franja.getAndSet(i, 0L);
+                if (c != 0L) {
+                    destino.addAndGet(i, c);
+                }
+            }
+        }
+        copia.maximo.set(maximo.getAndSet(0L));
+        return copia;
+    }
+}
@@ -0,0 +1,200 @@
+package socket.conconexion.metricas;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Conjunto de métricas con nombre de un proceso: contadores (LongAdder),
+ * indicadores (un valor que se calcula al consultarlo) e histogramas de
+ * tiempos en nanosegundos.
+ *
+ * Quien mide solo toca el LongAdder o el HistogramaLatencias que recibió
+ * al registrar la métrica; el registro no interviene en el camino caliente.
+ * Todo el trabajo (tasas, percentiles, texto) se hace al consultar o en
+ * muestrear(), que alguien debe llamar una vez por segundo:
+ *  - la tasa por segundo de cada contador es la del último segundo;
+ *  - los percentiles de un histograma son los de los últimos
+ *    VENTANA_SEGUNDOS a 2 * VENTANA_SEGUNDOS segundos (ventana que rota),
+ *    mientras que su número de registros y su suma son acumulados.
+ *
+ * Los nombres siguen las convenciones de Prometheus: minúsculas con '_',
+ * los contadores terminan en _total y los histogramas se exportan en
+ * segundos como "summary" con los cuantiles 0.5, 0.99 y 0.999.
+ */
+public class RegistroMetricas {
+
+    // Cada cuántas llamadas a muestrear() rota la ventana de los histogramas
+    static final int VENTANA_SEGUNDOS = 10;
+
+    private static final double[] CUANTILES = {0.5, 0.99, 0.999};
+
+    private abstract static class Metrica {
+        final String nombre;
+        final String ayuda;
+
+        Metrica(String nombre, String ayuda) {
+            this.nombre = nombre;
+            this.ayuda = ayuda;
+        }
+    }
+
+    private static final class Contador extends Metrica {
+        final LongAdder valor = new LongAdder();
+        volatile long anterior;
+        volatile long porSegundo;
+
+        Contador(String nombre, String ayuda) {
+            super(nombre, ayuda);
+        }
+    }
+
+    private static final class Indicador extends Metrica {
+        final LongSupplier valor;
+
+        Indicador(String nombre, String ayuda, LongSupplier valor) {
+            super(nombre, ayuda);
+            this.valor = valor;
+        }
+    }
+
+    private static final class Tiempos extends Metrica {
+        // Donde se registra
+        final HistogramaLatencias vivo = new HistogramaLatencias();
+        // Ventana anterior y acumulado de todo lo ya rotado
+        volatile HistogramaLatencias anterior = new HistogramaLatencias();
+        final HistogramaLatencias acumulado = new HistogramaLatencias();
+
+        Tiempos(String nombre, String ayuda) {
+            super(nombre, ayuda);
+        }
+
+        void rotar() {
+            HistogramaLatencias ventana = vivo.extraer();
+            acumulado.sumar(ventana);
+            anterior = ventana;
+        }
+
+        /**
+         * Ventana anterior más lo que lleva la actual.
+         */
+        HistogramaLatencias reciente() {
+            HistogramaLatencias reciente = new HistogramaLatencias();
+            reciente.sumar(anterior);
+            reciente.sumar(vivo);
+            return reciente;
+        }
+    }
+
+    private final List<Metrica> metricas = new CopyOnWriteArrayList<Metrica>();
+    private int segundos;
+
+    /**
+     * Registra un contador y devuelve el LongAdder que lo incrementa.
+     */
+    public LongAdder contador(String nombre, String ayuda) {
+        Contador c = new Contador(nombre, ayuda);
+        metricas.add(c);
+        return c.valor;
+    }
+
+    /**
+     * Registra un valor que se calcula cada vez que se consulta.
+     */
+    public void indicador(String nombre, String ayuda, LongSupplier valor) {
+        metricas.add(new Indicador(nombre, ayuda, valor));
+    }
+
+    /**
+     * Registra un histograma de tiempos y devuelve el histograma en el que
+     * se anotan las duraciones, en nanosegundos.
+     */
+    public HistogramaLatencias tiempos(String nombre, String ayuda) {
+        Tiempos t = new Tiempos(nombre, ayuda);
+        metricas.add(t);
+        return t.vivo;
+    }
+
+    /**
+     * Calcula las tasas del último segundo y rota las ventanas de los
+     * histogramas cuando toca. Debe llamarse una vez por segundo.
+     */
+    public synchronized void muestrear() {
+        boolean rotar = (++segundos % VENTANA_SEGUNDOS) == 0;
+        for (Metrica m : metricas) {
+            if (m instanceof Contador) {
+                Contador c = (Contador) m;
+                long valor = c.valor.sum();
+                c.porSegundo = valor - c.anterior;
+                c.anterior = valor;
+            } else if (rotar && m instanceof Tiempos) {
+                ((Tiempos) m).rotar();
+            }
+        }
+    }
+
+    /**
+     * Escribe todas las métricas en el formato de texto de Prometheus.
+     */
+    public void escribirPrometheus(StringBuilder destino) {
+        for (Metrica m : metricas) {
+            destino.append("# HELP ").append(m.nombre).append(' ').append(m.ayuda).append('\n');
+            if (m instanceof Contador) {
+                destino.append("# TYPE ").append(m.nombre).append(" counter\n");
+                destino.append(m.nombre).append(' ').append(((Contador) m).valor.sum()).append('\n');
+            } else if (m instanceof Indicador) {
+                destino.append("# TYPE ").append(m.nombre).append(" gauge\n");
+                destino.append(m.nombre).append(' ').append(((Indicador) m).valor.getAsLong()).append('\n');
+            } else {
+                Tiempos t = (Tiempos) m;
+                HistogramaLatencias reciente = t.reciente();
+                destino.append("# TYPE ").append(m.nombre).append(" summary\n");
+                for (double q : CUANTILES) {
+                    destino.append(m.nombre).append("{quantile=\"").append(q).append("\"} ")
+                            .append(segundos(reciente.percentil(q * 100.0))).append('\n');
+                }
+                destino.append(m.nombre).append("_sum ")
+                        .append(segundos(t.acumulado.getSuma() + t.vivo.getSuma())).append('\n');
+                destino.append(m.nombre).append("_count ")
+                        .append(t.acumulado.getTotal() + t.vivo.getTotal()).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Una línea legible por métrica, para el comando STATS:
+     *   contador:   nombre valor tasa/s
+     *   indicador:  nombre valor
+     *   tiempos:    nombre registros p50 p99 p99.9 máx (en microsegundos)
+     */
+    public List<String> lineasTexto() {
+        List<String> lineas = new ArrayList<String>(metricas.size());
+        for (Metrica m : metricas) {
+            if (m instanceof Contador) {
+                Contador c = (Contador) m;
+                lineas.add(m.nombre + " " + c.valor.sum() + " " + c.porSegundo + "/s");
+            } else if (m instanceof Indicador) {
+                lineas.add(m.nombre + " " + ((Indicador) m).valor.getAsLong());
+            } else {
+                Tiempos t = (Tiempos) m;
+                HistogramaLatencias reciente = t.reciente();
+                lineas.add(String.format(Locale.ROOT, "%s %d p50=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus",
+                        m.nombre, t.acumulado.getTotal() + t.vivo.getTotal(),
+                        micros(reciente.percentil(50)), micros(reciente.percentil(99)),
+                        micros(reciente.percentil(99.9)), micros(reciente.getMaximo())));
+            }
+        }
+        return lineas;
+    }
+
+    private static String segundos(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1e3;
+    }
+}
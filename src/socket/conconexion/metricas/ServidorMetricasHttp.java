@@ -0,0 +1,76 @@
+package socket.conconexion.metricas;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Pequeño servidor HTTP (el del JDK, com.sun.net.httpserver) que publica
+ * un RegistroMetricas en el formato de texto de Prometheus en /metrics.
+ * Atiende con un único hilo daemon: está pensado para un recolector que
+ * consulta cada pocos segundos, no para tráfico de usuarios.
+ */
+public class ServidorMetricasHttp {
+
+    private static final String TIPO_PROMETHEUS = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer servidor;
+    private final ExecutorService hilo;
+
+    private ServidorMetricasHttp(HttpServer servidor, ExecutorService hilo) {
+        this.servidor = servidor;
+        this.hilo = hilo;
+    }
+
+    /**
+     * Arranca el servidor en la dirección indicada (por ejemplo 127.0.0.1
+     * para que solo se consulte desde la propia máquina).
+     */
+    public static ServidorMetricasHttp iniciar(String direccion, int puerto, RegistroMetricas registro)
+            throws IOException {
+        HttpServer servidor = HttpServer.create(new InetSocketAddress(direccion, puerto), 0);
+        servidor.createContext("/metrics", intercambio -> responder(intercambio, registro));
+        ExecutorService hilo = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metricas-http");
+            t.setDaemon(true);
+            return t;
+        });
+        servidor.setExecutor(hilo);
+        servidor.start();
+        return new ServidorMetricasHttp(servidor, hilo);
+    }
+
+    private static void responder(HttpExchange intercambio, RegistroMetricas registro) throws IOException {
+        try {
+            if (!"GET".equals(intercambio.getRequestMethod())) {
+                intercambio.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder texto = new StringBuilder(4096);
+            registro.escribirPrometheus(texto);
+            byte[] cuerpo = texto.toString().getBytes(StandardCharsets.UTF_8);
+            intercambio.getResponseHeaders().set("Content-Type", TIPO_PROMETHEUS);
+            intercambio.sendResponseHeaders(200, cuerpo.length);
+            try (OutputStream salida = intercambio.getResponseBody()) {
+                salida.write(cuerpo);
+            }
+        } finally {
+            intercambio.close();
+        }
+    }
+
+    public int getPuerto() {
+        return servidor.getAddress().getPort();
+    }
+
+    public void detener() {
+        servidor.stop(0);
+        hilo.shutdownNow();
+    }
+}
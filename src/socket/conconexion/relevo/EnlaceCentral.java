@@ -0,0 +1,268 @@
+package socket.conconexion.relevo;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import socket.conconexion.stream.MiSocketStream;
+
+/**
+ * Una de las conexiones del relevo con el servidor central (ver
+ * socket.conconexion.servidor.EnlaceRelevo para el protocolo). Lleva sus
+ * propias sesiones y sabe a qué temas está suscrita cada una: el servidor
+ * envía cada aviso una vez por enlace, y aquí se reparte solo entre las
+ * sesiones de este enlace.
+ *
+ * Su hilo lee lo que llega del servidor y solo encola en las colas de
+ * salida de las sesiones: nunca espera a un cliente, así que un cliente
+ * lento no frena al enlace ni al servidor.
+ *
+ * Si la conexión se pierde, sus sesiones se cierran y se vuelve a
+ * conectar cada ESPERA_RECONEXION_MS; mientras tanto los clientes nuevos
+ * van por los demás enlaces.
+ */
+class EnlaceCentral implements Runnable {
+
+    private static final long ESPERA_RECONEXION_MS = 1000L;
+
+    private final String maquina;
+    private final int puerto;
+    // Se presenta al servidor al conectar (línea A), o null
+    private final String secreto;
+    // Conexión actual, o null mientras no la hay
+    private volatile MiSocketStream conexion;
+
+    private final ConcurrentHashMap<Integer, SesionRelevada> sesiones =
+            new ConcurrentHashMap<Integer, SesionRelevada>();
+    // Sesiones suscritas a cada tema
+    private final ConcurrentHashMap<String, Set<SesionRelevada>> suscritas =
+            new ConcurrentHashMap<String, Set<SesionRelevada>>();
+
+    EnlaceCentral(String maquina, int puerto, String secreto) {
+        this.maquina = maquina;
+        this.puerto = puerto;
+        this.secreto = secreto;
+    }
+
+    MiSocketStream getConexion() {
+        return conexion;
+    }
+
+    /**
+     * Abre la sesión en el servidor por la conexión actual. Devuelve false
+     * si el enlace está caído (o cayó mientras se abría).
+     */
+    boolean abrir(SesionRelevada sesion, String origen) {
+        if (sesion.conexion != conexion) {
+            return false;
+        }
+        sesiones.put(sesion.numero, sesion);
+        sesion.conexion.enviaMensaje("O " + sesion.numero + " " + origen);
+        // Si la conexión cayó antes del put, perdido no la vio
+        return sesion.conexion == conexion;
+    }
+
+    /**
+     * El cliente se fue: da de baja la sesión y se lo dice al servidor.
+     */
+    void cerrar(SesionRelevada sesion) {
+        if (quitar(sesion)) {
+            sesion.conexion.enviaMensaje("C " + sesion.numero);
+            sesion.cerrarCanal();
+        }
+    }
+
+    /**
+     * Quita la sesión de los índices. Devuelve false si ya estaba cerrada.
+     */
+    private boolean quitar(SesionRelevada sesion) {
+        if (!sesion.marcarCerrada()) {
+            return false;
+        }
+        sesiones.remove(sesion.numero, sesion);
+        for (String tema : sesion.temas) {
+            Set<SesionRelevada> conjunto = suscritas.get(tema);
+            if (conjunto != null) {
+                conjunto.remove(sesion);
+            }
+        }
+        return true;
+    }
+
+    public void run() {
+        // Mientras el servidor no responde, el fallo se registra una vez
+        boolean fallando = false;
+        while (true) {
+            MiSocketStream flujo = null;
+            try {
+                Socket socket = new Socket(maquina, puerto);
+                socket.setTcpNoDelay(true);
+                flujo = new MiSocketStream(socket);
+                if (secreto != null) {
+                    flujo.enviaMensaje("A " + secreto);
+                }
+                conexion = flujo;
+                fallando = false;
+                RelevoSubasta.BITACORA.info("enlace_conectado", maquina + ":" + puerto);
+                while (true) {
+                    int largo = flujo.recibeLinea();
+                    if (largo < 0) {
+                        break;
+                    }
+                    procesarLinea(new String(flujo.getLinea(), 0, largo, StandardCharsets.UTF_8));
+                }
+            } catch (Exception ex) {
+                if (flujo != null || !fallando) {
+                    RelevoSubasta.BITACORA.aviso("enlace_error", maquina + ":" + puerto + ": " + ex);
+                }
+                fallando = flujo == null;
+            } finally {
+                if (flujo != null) {
+                    conexion = null;
+                    perdido(flujo);
+                    try {
+                        flujo.close();
+                    } catch (IOException ex) {
+                        // ignorar
+                    }
+                }
+            }
+            try {
+                Thread.sleep(ESPERA_RECONEXION_MS);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    private void procesarLinea(String linea) throws IOException {
+        if (linea.length() < 3 || linea.charAt(1) != ' ') {
+            throw new IOException("Línea del servidor mal formada: " + linea);
+        }
+        int fin = linea.indexOf(' ', 2);
+        String campo = (fin < 0) ? linea.substring(2) : linea.substring(2, fin);
+        String resto = (fin < 0) ? "" : linea.substring(fin + 1);
+        switch (linea.charAt(0)) {
+            case 'R':
+                SesionRelevada sesion = sesiones.get(Integer.parseInt(campo));
+                if (sesion != null) {
+                    entregar(sesion, resto);
+                }
+                break;
+            case 'P':
+                // P <temas> <excluida> <línea>
+                int finExcluida = resto.indexOf(' ');
+                if (finExcluida < 0) {
+                    throw new IOException("Aviso mal formado: " + linea);
+                }
+                publicar(campo, Integer.parseInt(resto.substring(0, finExcluida)),
+                        resto.substring(finExcluida + 1));
+                break;
+            case 'S':
+                suscribir(Integer.parseInt(campo), resto);
+                break;
+            case 'U':
+                desuscribir(Integer.parseInt(campo), resto);
+                break;
+            case 'C':
+                cerradaPorServidor(Integer.parseInt(campo));
+                break;
+            default:
+                throw new IOException("Tipo de línea del servidor desconocido: " + linea);
+        }
+    }
+
+    /**
+     * Reparte un aviso entre las sesiones suscritas al primer tema y, si hay
+     * un segundo (LOBBY), a las de este que no estén en el primero: cada
+     * sesión lo recibe una vez, igual que en el servidor.
+     */
+    private void publicar(String temas, int excluida, String mensaje) {
+        if ("*".equals(temas)) {
+            for (SesionRelevada sesion : sesiones.values()) {
+                if (sesion.numero != excluida) {
+                    entregar(sesion, mensaje);
+                }
+            }
+            return;
+        }
+        int coma = temas.indexOf(',');
+        String primero = (coma < 0) ? temas : temas.substring(0, coma);
+        Set<SesionRelevada> conjunto = suscritas.get(primero);
+        if (conjunto != null) {
+            for (SesionRelevada sesion : conjunto) {
+                if (sesion.numero != excluida) {
+                    entregar(sesion, mensaje);
+                }
+            }
+        }
+        if (coma < 0) {
+            return;
+        }
+        conjunto = suscritas.get(temas.substring(coma + 1));
+        if (conjunto != null) {
+            for (SesionRelevada sesion : conjunto) {
+                if (sesion.numero != excluida && !sesion.temas.contains(primero)) {
+                    entregar(sesion, mensaje);
+                }
+            }
+        }
+    }
+
+    private void entregar(SesionRelevada sesion, String mensaje) {
+        if (!sesion.cola.encolar(mensaje)) {
+            // Política DESCONECTAR: su hilo verá el socket cerrado y avisará al servidor
+            RelevoSubasta.BITACORA.aviso("cliente_lento_desconectado", "sesion " + sesion.numero);
+            sesion.cerrarCanal();
+        }
+    }
+
+    private void suscribir(int numero, String tema) {
+        SesionRelevada sesion = sesiones.get(numero);
+        if (sesion == null) {
+            return;
+        }
+        sesion.temas.add(tema);
+        Set<SesionRelevada> conjunto = suscritas.computeIfAbsent(tema, t -> ConcurrentHashMap.newKeySet());
+        conjunto.add(sesion);
+        if (sesion.isCerrada()) {
+            // Se cerró mientras tanto: quitar pudo no ver este tema
+            conjunto.remove(sesion);
+        }
+    }
+
+    private void desuscribir(int numero, String tema) {
+        SesionRelevada sesion = sesiones.get(numero);
+        if (sesion == null) {
+            return;
+        }
+        sesion.temas.remove(tema);
+        Set<SesionRelevada> conjunto = suscritas.get(tema);
+        if (conjunto != null) {
+            conjunto.remove(sesion);
+        }
+    }
+
+    /**
+     * El servidor terminó la sesión (QUIT): se cierra al escribir lo pendiente.
+     */
+    private void cerradaPorServidor(int numero) {
+        SesionRelevada sesion = sesiones.get(numero);
+        if (sesion != null && quitar(sesion)) {
+            sesion.cola.cerrarAlVaciar();
+        }
+    }
+
+    /**
+     * Se perdió la conexión: sus sesiones ya no existen en el servidor.
+     */
+    private void perdido(MiSocketStream flujo) {
+        for (SesionRelevada sesion : sesiones.values()) {
+            if (sesion.conexion == flujo && quitar(sesion)) {
+                sesion.cola.encolar("ERROR Conexión con el servidor perdida");
+                sesion.cola.cerrarAlVaciar();
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package socket.conconexion.relevo;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import socket.conconexion.bitacora.Bitacora;
+import socket.conconexion.servidor.ColaSalida;
+import socket.conconexion.stream.MiSocketStream;
+
+/**
+ * Relevo de borde del servidor de subasta: atiende a los clientes de una
+ * región con el mismo protocolo de líneas que el servidor y los lleva al
+ * servidor central por unas pocas conexiones (enlaces), cada una con las
+ * sesiones de muchos clientes (ver EnlaceCentral y, en el servidor,
+ * EnlaceRelevo).
+ *
+ * Los comandos se reenvían etiquetados con el número de sesión y las
+ * respuestas vuelven a la sesión que los envió. Un aviso (NEW_BID,
+ * AUCTION_XXX) llega una sola vez por enlace con sus temas, y aquí se
+ * reparte entre las sesiones suscritas según las suscripciones que el
+ * servidor va anunciando. Así el servidor mantiene pocas conexiones y
+ * escribe cada aviso una vez por enlace, no una por cliente.
+ *
+ * Cada cliente tiene un hilo virtual que lee sus líneas y una ColaSalida
+ * acotada con las respuestas y los avisos: un cliente lento solo llena su
+ * cola (y sufre la política elegida); nunca frena al enlace.
+ *
+ * Uso: java socket.conconexion.relevo.RelevoSubasta [puerto] [máquina del servidor] [puerto de relevos]
+ * (por defecto 8007, localhost y 9200; el servidor debe arrancar con
+ * -Dsubasta.relevo.puerto)
+ *
+ * Opciones (propiedades del sistema):
+ *  -Drelevo.enlaces=N           conexiones con el servidor; las sesiones se reparten
+ *                               entre ellas por turnos (2)
+ *  -Drelevo.secreto=texto       secreto que se presenta al servidor en cada enlace
+ *                               (el de subasta.relevo.secreto; sin valor, ninguno)
+ *  -Drelevo.salida.capacidad=N  mensajes que puede acumular un cliente (256)
+ *  -Drelevo.salida.politica=DESCARTAR_ANTIGUO|CONFLAR|DESCONECTAR
+ *                               qué hacer cuando un cliente lento llena su cola (CONFLAR)
+ *  -Drelevo.bitacora.nivel=DEPURACION|INFO|AVISO|ERROR
+ *                               nivel mínimo de la bitácora (INFO)
+ */
+public class RelevoSubasta {
+
+    static final Bitacora BITACORA = Bitacora.iniciar(System.out, 8192,
+            Bitacora.Nivel.valueOf(System.getProperty("relevo.bitacora.nivel", "INFO").toUpperCase()), 16);
+
+    // Línea más larga que se acepta de un cliente: con la etiqueta de sesión
+    // (y aunque no sea UTF-8 válido) debe caber en una línea del enlace
+    static final int MAX_LINEA_CLIENTE = (MiSocketStream.MAX_LINEA - 32) / 3;
+
+    private final EnlaceCentral[] enlaces;
+    private final AtomicInteger contadorSesiones = new AtomicInteger(0);
+
+    private final ExecutorService escritores = Executors.newVirtualThreadPerTaskExecutor();
+    private final int capacidadCola;
+    private final ColaSalida.Politica politica;
+
+    public RelevoSubasta(String maquina, int puerto, String secreto, int numEnlaces,
+                         int capacidadCola, ColaSalida.Politica politica) {
+        this.enlaces = new EnlaceCentral[numEnlaces];
+        for (int i = 0; i < numEnlaces; i++) {
+            enlaces[i] = new EnlaceCentral(maquina, puerto, secreto);
+        }
+        this.capacidadCola = capacidadCola;
+        this.politica = politica;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int puerto = (args.length > 0) ? Integer.parseInt(args[0]) : 8007;
+        String maquina = (args.length > 1) ? args[1] : "localhost";
+        int puertoCentral = (args.length > 2) ? Integer.parseInt(args[2]) : 9200;
+
+        RelevoSubasta relevo = new RelevoSubasta(maquina, puertoCentral,
+                System.getProperty("relevo.secreto"),
+                Integer.getInteger("relevo.enlaces", 2),
+                Integer.getInteger("relevo.salida.capacidad", 256),
+                ColaSalida.Politica.valueOf(
+                        System.getProperty("relevo.salida.politica", "CONFLAR").toUpperCase()));
+        relevo.ejecutar(puerto);
+    }
+
+    /**
+     * Conecta los enlaces y acepta clientes indefinidamente.
+     */
+    public void ejecutar(int puerto) throws IOException {
+        for (int i = 0; i < enlaces.length; i++) {
+            Thread hilo = new Thread(enlaces[i], "enlace-" + i);
+            hilo.setDaemon(true);
+            hilo.start();
+        }
+        try (ServerSocket socketServidor = new ServerSocket(puerto)) {
+            System.out.println("Relevo de subasta en el puerto " + puerto + " ("
+                    + enlaces.length + " enlaces con el servidor)");
+            while (true) {
+                Socket socket = socketServidor.accept();
+                Thread.ofVirtual().start(() -> atender(socket));
+            }
+        }
+    }
+
+    /**
+     * Sesión de un cliente: la abre en un enlace y le reenvía sus líneas
+     * hasta que se desconecte.
+     */
+    private void atender(Socket socket) {
+        MiSocketStream canal;
+        try {
+            canal = new MiSocketStream(socket);
+        } catch (IOException ex) {
+            return;
+        }
+        int numero = contadorSesiones.incrementAndGet();
+        EnlaceCentral enlace = elegirEnlace(numero);
+        MiSocketStream conexion = (enlace == null) ? null : enlace.getConexion();
+        if (conexion == null) {
+            canal.enviaMensaje("ERROR Servidor no disponible, inténtelo más tarde");
+            try {
+                canal.close();
+            } catch (IOException ex) {
+                // ignorar
+            }
+            return;
+        }
+        SesionRelevada sesion = new SesionRelevada(numero, canal,
+                new ColaSalida(canal, capacidadCola, politica, escritores), conexion);
+        try {
+            if (!enlace.abrir(sesion, socket.getInetAddress().getHostAddress() + " " + socket.getPort())) {
+                return;
+            }
+            StringBuilder linea = new StringBuilder(128);
+            while (true) {
+                int largo = canal.recibeLinea();
+                if (largo < 0) {
+                    break;
+                }
+                if (largo > MAX_LINEA_CLIENTE) {
+                    throw new IOException("Línea de más de " + MAX_LINEA_CLIENTE + " bytes");
+                }
+                linea.setLength(0);
+                linea.append("L ").append(numero).append(' ')
+                        .append(new String(canal.getLinea(), 0, largo, StandardCharsets.UTF_8));
+                conexion.agregaMensaje(linea);
+                if (!canal.hayLineaPendiente()) {
+                    conexion.vacia();
+                }
+            }
+        } catch (IOException ex) {
+            // Se cerró el socket del cliente (o lo cerró el relevo)
+        } finally {
+            // Si la cerró el servidor o cayó el enlace, no hace nada
+            enlace.cerrar(sesion);
+        }
+    }
+
+    /**
+     * Enlace para la sesión: por turnos, saltando los desconectados.
+     */
+    private EnlaceCentral elegirEnlace(int numero) {
+        for (int i = 0; i < enlaces.length; i++) {
+            EnlaceCentral enlace = enlaces[(numero + i) % enlaces.length];
+            if (enlace.getConexion() != null) {
+                return enlace;
+            }
+        }
+        return null;
+    }
+}
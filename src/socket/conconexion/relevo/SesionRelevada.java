@@ -0,0 +1,51 @@
+package socket.conconexion.relevo;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import socket.conconexion.servidor.ColaSalida;
+import socket.conconexion.stream.MiSocketStream;
+
+/**
+ * Un cliente conectado al relevo. Su número lo identifica ante el
+ * servidor en la conexión del enlace por la que va.
+ */
+final class SesionRelevada {
+
+    final int numero;
+    final MiSocketStream canal;
+    // Respuestas y avisos pendientes de escribir al cliente
+    final ColaSalida cola;
+    // Conexión del enlace por la que va la sesión
+    final MiSocketStream conexion;
+    // Temas a los que el servidor dice que está suscrita
+    final Set<String> temas = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean cerrada = new AtomicBoolean(false);
+
+    SesionRelevada(int numero, MiSocketStream canal, ColaSalida cola, MiSocketStream conexion) {
+        this.numero = numero;
+        this.canal = canal;
+        this.cola = cola;
+        this.conexion = conexion;
+    }
+
+    /**
+     * Marca la sesión como cerrada. Devuelve false si ya lo estaba.
+     */
+    boolean marcarCerrada() {
+        return cerrada.compareAndSet(false, true);
+    }
+
+    boolean isCerrada() {
+        return cerrada.get();
+    }
+
+    void cerrarCanal() {
+        try {
+            canal.close();
+        } catch (IOException ex) {
+            // ignorar
+        }
+    }
+}
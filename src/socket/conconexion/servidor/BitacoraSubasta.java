@@ -0,0 +1,45 @@
+package socket.conconexion.servidor;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import socket.conconexion.bitacora.Bitacora;
+
+/**
+ * Bitácora del servidor de subasta. Es estática por lo mismo que
+ * MetricasSubasta: registrar un evento en el camino de una sesión o de un
+ * broadcast es solo copiar unos campos en el anillo de la bitácora.
+ *
+ * Se configura con propiedades del sistema (ver ServidorEcho3):
+ * subasta.bitacora.nivel, .muestreo, .capacidad y .fichero.
+ */
+final class BitacoraSubasta {
+
+    static final Bitacora BITACORA = Bitacora.iniciar(
+            salida(System.getProperty("subasta.bitacora.fichero", "")),
+            Integer.getInteger("subasta.bitacora.capacidad", 8192),
+            Bitacora.Nivel.valueOf(System.getProperty("subasta.bitacora.nivel", "INFO").toUpperCase()),
+            Integer.getInteger("subasta.bitacora.muestreo", 16));
+
+    static {
+        // Lo que quede en el anillo se escribe también al terminar con Ctrl+C o kill
+        Runtime.getRuntime().addShutdownHook(new Thread(BITACORA::cerrar, "bitacora-cierre"));
+    }
+
+    private BitacoraSubasta() {
+    }
+
+    private static PrintStream salida(String fichero) {
+        if (fichero.length() == 0) {
+            return System.out;
+        }
+        try {
+            return new PrintStream(new FileOutputStream(fichero, true), false, StandardCharsets.UTF_8);
+        } catch (FileNotFoundException ex) {
+            System.out.println("No se pudo abrir la bitácora " + fichero + " (" + ex
+                    + "); se escribe en la salida estándar.");
+            return System.out;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package socket.conconexion.servidor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static socket.conconexion.servidor.BitacoraSubasta.BITACORA;
+
+/**
+ * Bucle de eventos de E/S no bloqueante. Atiende muchas conexiones con
+ * un solo hilo usando un Selector:
+ *  - Registra las conexiones nuevas que le pasa el aceptador
+ *  - Lee líneas y las entrega a la sesión de cada cliente
+ *  - Escribe los mensajes pendientes, incluidos los encolados desde otros hilos
+ *    (y deja de leer de una conexión mientras tiene demasiado pendiente)
+ */
+class BucleEventosNio implements Runnable {
+
+    private static final int TAM_BUFFER_LECTURA = 16 * 1024;
+    private static final int TAM_BUFFER_ESCRITURA = 8 * 1024;
+    // Buffers pendientes que se pasan como mucho a una escritura agrupada
+    private static final int TAM_GRUPO_ESCRITURA = 64;
+
+    private final Selector selector;
+    private final CatalogoLotes catalogo;
+    private final GestorClientes gestorClientes;
+    private final DifusorPujas difusorPujas;
+
+    // Buffer de lectura compartido por todas las conexiones del bucle
+    private final ByteBuffer bufferLectura = ByteBuffer.allocate(TAM_BUFFER_LECTURA);
+    // Buffer donde se acumulan las respuestas de una conexión hasta su vacia()
+    private final ByteBuffer bufferEscritura = ByteBuffer.allocate(TAM_BUFFER_ESCRITURA);
+    // Conexión cuyas respuestas hay ahora en bufferEscritura, o null
+    private ConexionNio acumulando;
+    private final ByteBuffer[] grupoEscritura = new ByteBuffer[TAM_GRUPO_ESCRITURA];
+
+    private final ConcurrentLinkedQueue<SocketChannel> nuevas = new ConcurrentLinkedQueue<SocketChannel>();
+    private final ConcurrentLinkedQueue<ConexionNio> conEscritura = new ConcurrentLinkedQueue<ConexionNio>();
+    private final ConcurrentLinkedQueue<ConexionNio> porCerrar = new ConcurrentLinkedQueue<ConexionNio>();
+    private final AtomicBoolean despertado = new AtomicBoolean(false);
+
+    private Thread hilo;
+
+    BucleEventosNio(CatalogoLotes catalogo, GestorClientes gestorClientes,
+                    DifusorPujas difusorPujas) throws IOException {
+        this.selector = Selector.open();
+        this.catalogo = catalogo;
+        this.gestorClientes = gestorClientes;
+        this.difusorPujas = difusorPujas;
+    }
+
+    /**
+     * Entrega una conexión recién aceptada a este bucle.
+     */
+    void registrar(SocketChannel canal) {
+        nuevas.add(canal);
+        despertar();
+    }
+
+    /**
+     * Pide escribir lo pendiente de una conexión. Desde el propio bucle se
+     * escribe al terminar la vuelta actual; desde otro hilo se despierta al bucle.
+     */
+    void solicitarEscritura(ConexionNio conexion) {
+        conEscritura.add(conexion);
+        if (Thread.currentThread() != hilo) {
+            despertar();
+        }
+    }
+
+    boolean enHiloBucle() {
+        return Thread.currentThread() == hilo;
+    }
+
+    /**
+     * Buffer de escritura del bucle para acumular respuestas de la conexión.
+     * Si tenía respuestas de otra, antes se escriben. Solo puede usarlo el
+     * hilo del bucle.
+     */
+    ByteBuffer acumularPara(ConexionNio conexion) {
+        if (acumulando != conexion) {
+            if (acumulando != null) {
+                acumulando.vacia();
+            }
+            acumulando = conexion;
+        }
+        return bufferEscritura;
+    }
+
+    /**
+     * Buffer de escritura si contiene respuestas de la conexión; si no, null.
+     */
+    ByteBuffer getAcumulado(ConexionNio conexion) {
+        return (enHiloBucle() && acumulando == conexion) ? bufferEscritura : null;
+    }
+
+    void liberarAcumulado() {
+        bufferEscritura.clear();
+        acumulando = null;
+    }
+
+    /**
+     * Arreglo reutilizable para las escrituras agrupadas. Solo el hilo del bucle.
+     */
+    ByteBuffer[] getGrupoEscritura() {
+        return grupoEscritura;
+    }
+
+    void programarCierre(ConexionNio conexion) {
+        porCerrar.add(conexion);
+        if (Thread.currentThread() != hilo) {
+            despertar();
+        }
+    }
+
+    private void despertar() {
+        if (despertado.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    public void run() {
+        hilo = Thread.currentThread();
+        while (!hilo.isInterrupted()) {
+            try {
+                selector.select();
+                despertado.set(false);
+
+                registrarNuevas();
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey clave = it.next();
+                    it.remove();
+                    ConexionNio conexion = (ConexionNio) clave.attachment();
+                    if (!clave.isValid()) {
+                        cerrar(conexion);
+                        continue;
+                    }
+                    if (clave.isReadable()) {
+                        leer(conexion);
+                    }
+                    if (clave.isValid() && clave.isWritable()) {
+                        escribir(conexion);
+                    }
+                }
+
+                ConexionNio conexion = acumulando;
+                if (conexion != null) {
+                    conexion.vacia();
+                }
+                while ((conexion = conEscritura.poll()) != null) {
+                    escribir(conexion);
+                }
+                while ((conexion = porCerrar.poll()) != null) {
+                    cerrar(conexion);
+                }
+            } catch (Exception ex) {
+                BITACORA.error("bucle_excepcion", ex.toString());
+            }
+        }
+    }
+
+    private void registrarNuevas() {
+        SocketChannel canal;
+        while ((canal = nuevas.poll()) != null) {
+            ConexionNio conexion = new ConexionNio(canal, this);
+            try {
+                canal.configureBlocking(false);
+                conexion.setClave(canal.register(selector, SelectionKey.OP_READ, conexion));
+            } catch (IOException ex) {
+                BITACORA.aviso("conexion_no_registrada", conexion + ": " + ex);
+                try {
+                    canal.close();
+                } catch (IOException e) {
+                    // ignorar
+                }
+                continue;
+            }
+            ClienteConectado cliente = gestorClientes.registrarCliente(conexion, conexion);
+            conexion.setSesion(new HiloServidorSubasta(cliente, catalogo, gestorClientes, difusorPujas));
+        }
+    }
+
+    private void leer(ConexionNio conexion) {
+        try {
+            bufferLectura.clear();
+            int leidos = conexion.getCanal().read(bufferLectura);
+            if (leidos < 0) {
+                cerrar(conexion);
+                return;
+            }
+            bufferLectura.flip();
+            boolean seguir = conexion.consumir(bufferLectura);
+            // Fin de la tanda leída: las respuestas a todas sus líneas salen juntas
+            conexion.vacia();
+            if (!seguir) {
+                cerrar(conexion);
+            }
+        } catch (IOException ex) {
+            cerrar(conexion);
+        }
+    }
+
+    private void escribir(ConexionNio conexion) {
+        SelectionKey clave = conexion.getClave();
+        if (conexion.isCerrada() || clave == null || !clave.isValid()) {
+            return;
+        }
+        try {
+            boolean vacio = conexion.escribirPendientes();
+            if (vacio) {
+                // El socket está libre: pasar la cola de salida y seguir escribiendo
+                Runnable tareaSalida = conexion.tomarTareaSalida();
+                if (tareaSalida != null) {
+                    tareaSalida.run();
+                    vacio = conexion.escribirPendientes();
+                }
+            }
+            // Con demasiado pendiente no se leen más comandos hasta escribirlo
+            int interes = conexion.isSaturada() ? 0 : SelectionKey.OP_READ;
+            if (!vacio) {
+                interes |= SelectionKey.OP_WRITE;
+            }
+            clave.interestOps(interes);
+        } catch (IOException ex) {
+            cerrar(conexion);
+        }
+    }
+
+    private void cerrar(ConexionNio conexion) {
+        try {
+            conexion.close();
+        } catch (IOException ex) {
+            // ignorar
+        }
+        HiloServidorSubasta sesion = conexion.getSesion();
+        if (sesion != null) {
+            sesion.cerrarSesion();
+        }
+    }
+}
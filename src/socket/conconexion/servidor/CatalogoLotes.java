@@ -0,0 +1,180 @@
+package socket.conconexion.servidor;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Catálogo de lotes que se subastan en paralelo.
+ * Cada lote es un EstadoSubasta independiente (duración, cooldown y mínimo
+ * de participantes propios), de modo que las pujas de lotes distintos
+ * nunca compiten por el mismo estado.
+ *
+ * Además del mapa por id se mantiene un arreglo copia-en-escritura con los
+ * lotes, para buscar un lote por los bytes de un comando sin crear un String.
+ *
+ * En un clúster, el catálogo lleva además el nodo (ver NodoCluster) al
+ * que las sesiones preguntan si sus lotes los ordena este servidor o el líder.
+ */
+public class CatalogoLotes {
+
+    private final ConcurrentHashMap<String, EstadoSubasta> lotes =
+            new ConcurrentHashMap<String, EstadoSubasta>();
+    private final String idLotePorDefecto;
+    private final DiarioSubastas diario;
+    private final Montos montos;
+    // Directorio con un fichero de historial por lote
+    private final Path directorioHistorial;
+    // Los mismos lotes que el mapa; se reemplaza entero al crear uno
+    private volatile EstadoSubasta[] indice = new EstadoSubasta[0];
+    private final ReentrantLock cerrojo = new ReentrantLock();
+    // null si el servidor no forma parte de un clúster
+    private volatile NodoCluster nodo;
+
+    public CatalogoLotes(String idLotePorDefecto, DiarioSubastas diario, Montos montos,
+                         Path directorioHistorial) throws IOException {
+        this.idLotePorDefecto = idLotePorDefecto;
+        this.diario = diario;
+        this.montos = montos;
+        this.directorioHistorial = directorioHistorial;
+        Files.createDirectories(directorioHistorial);
+    }
+
+    /**
+     * Da de alta un lote. Si ya existía uno con ese id, se devuelve el existente.
+     * El incremento mínimo va en unidades mínimas de la moneda. El id no puede
+     * ser el del tema LOBBY.
+     */
+    public EstadoSubasta crearLote(String idLote, long duracionSubastaMillis,
+                                   long cooldownMillis, int minParticipantes,
+                                   long conflacionMillis, long incrementoMinimo,
+                                   CierreSuave cierreSuave) throws IOException {
+        if (GestorClientes.TEMA_LOBBY.equals(idLote)) {
+            throw new IllegalArgumentException("El id de lote " + idLote + " está reservado");
+        }
+        EstadoSubasta previo = lotes.get(idLote);
+        if (previo != null) {
+            return previo;
+        }
+        HistorialSubastas historial = HistorialSubastas.abrir(
+                directorioHistorial.resolve("historial-" + idLote + ".dat"), montos);
+        EstadoSubasta nuevo = new EstadoSubasta(
+                idLote, duracionSubastaMillis, cooldownMillis, minParticipantes,
+                conflacionMillis, incrementoMinimo, cierreSuave, diario, historial);
+        previo = lotes.putIfAbsent(idLote, nuevo);
+        if (previo != null) {
+            return previo;
+        }
+        cerrojo.lock();
+        try {
+            EstadoSubasta[] nuevoIndice = new EstadoSubasta[indice.length + 1];
+            System.arraycopy(indice, 0, nuevoIndice, 0, indice.length);
+            nuevoIndice[indice.length] = nuevo;
+            indice = nuevoIndice;
+        } finally {
+            cerrojo.unlock();
+        }
+        System.out.println("Lote " + idLote + " creado: subastas de "
+                + (duracionSubastaMillis / 1000L) + " s, cooldown "
+                + (cooldownMillis / 1000L) + " s, mínimo " + minParticipantes + " participantes"
+                + ", conflación de pujas " + conflacionMillis + " ms"
+                + ", incremento mínimo " + montos.formatear(incrementoMinimo) + ", " + cierreSuave + ".");
+        return nuevo;
+    }
+
+    /**
+     * Crea los lotes descritos como
+     * "id:duracionSeg:cooldownSeg:minParticipantes:conflacionMs:incremento:
+     * ventanaCierreSeg:extensionSeg:maxExtensiones", separados por comas
+     * (el incremento, en unidades de la moneda: "0.50"; los tres últimos,
+     * el cierre suave). Los campos omitidos toman los valores por defecto.
+     */
+    public void crearLotes(String especificacion, long duracionPorDefecto,
+                           long cooldownPorDefecto, int minPorDefecto,
+                           long conflacionPorDefecto, long incrementoPorDefecto,
+                           CierreSuave cierrePorDefecto) throws IOException {
+        for (String lote : especificacion.split(",")) {
+            lote = lote.trim();
+            if (lote.length() == 0) {
+                continue;
+            }
+            String[] campos = lote.split(":");
+            long duracion = (campos.length > 1) ? Long.parseLong(campos[1]) * 1000L : duracionPorDefecto;
+            long cooldown = (campos.length > 2) ? Long.parseLong(campos[2]) * 1000L : cooldownPorDefecto;
+            int min = (campos.length > 3) ? Integer.parseInt(campos[3]) : minPorDefecto;
+            long conflacion = (campos.length > 4) ? Long.parseLong(campos[4]) : conflacionPorDefecto;
+            long incremento = (campos.length > 5) ? montos.parsear(campos[5]) : incrementoPorDefecto;
+            CierreSuave cierre = CierreSuave.parsear(campos, 6, cierrePorDefecto);
+            crearLote(campos[0], duracion, cooldown, min, conflacion, incremento, cierre);
+        }
+    }
+
+    public EstadoSubasta getLote(String idLote) {
+        return lotes.get(idLote);
+    }
+
+    /**
+     * Busca un lote por su id escrito en ASCII en datos[desde, hasta).
+     * Los lotes son pocos, así que se recorren comparando byte a byte.
+     */
+    public EstadoSubasta getLote(byte[] datos, int desde, int hasta) {
+        EstadoSubasta[] lotesActuales = indice;
+        int largo = hasta - desde;
+        for (EstadoSubasta lote : lotesActuales) {
+            String id = lote.getIdLote();
+            if (id.length() != largo) {
+                continue;
+            }
+            int i = 0;
+            while (i < largo && id.charAt(i) == datos[desde + i]) {
+                i++;
+            }
+            if (i == largo) {
+                return lote;
+            }
+        }
+        return null;
+    }
+
+    public Montos getMontos() {
+        return montos;
+    }
+
+    /**
+     * Nodo del clúster al que pertenece este servidor, o null si va solo.
+     */
+    public NodoCluster getNodo() {
+        return nodo;
+    }
+
+    void setNodo(NodoCluster nodo) {
+        this.nodo = nodo;
+    }
+
+    public String getIdLotePorDefecto() {
+        return idLotePorDefecto;
+    }
+
+    public EstadoSubasta getLotePorDefecto() {
+        return lotes.get(idLotePorDefecto);
+    }
+
+    public Collection<EstadoSubasta> getLotes() {
+        return lotes.values();
+    }
+
+    /**
+     * Ids de todos los lotes, en orden alfabético.
+     */
+    public List<String> getIdsLotes() {
+        List<String> ids = new ArrayList<String>(lotes.keySet());
+        Collections.sort(ids);
+        return ids;
+    }
+}
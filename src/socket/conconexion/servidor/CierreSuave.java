@@ -0,0 +1,74 @@
+package socket.conconexion.servidor;
+
+/**
+ * Configuración del cierre suave (anti-francotirador) de un lote: una puja
+ * aceptada cuando a la subasta le quedan menos de ventanaMillis la alarga
+ * hasta extensionMillis después de esa puja, como mucho maxExtensiones
+ * veces por subasta. Con ventanaMillis == 0 el cierre es fijo.
+ */
+public final class CierreSuave {
+
+    public static final CierreSuave DESACTIVADO = new CierreSuave(0L, 0L, 0);
+
+    private final long ventanaMillis;
+    private final long extensionMillis;
+    private final int maxExtensiones;
+
+    public CierreSuave(long ventanaMillis, long extensionMillis, int maxExtensiones) {
+        if (ventanaMillis < 0L || extensionMillis < 0L || maxExtensiones < 0) {
+            throw new IllegalArgumentException("Cierre suave con valores negativos");
+        }
+        this.ventanaMillis = ventanaMillis;
+        this.extensionMillis = extensionMillis;
+        this.maxExtensiones = maxExtensiones;
+    }
+
+    /**
+     * Lee "ventanaSeg:extensionSeg:maxExtensiones" a partir del campo indicado
+     * (los campos que falten toman los valores de porDefecto).
+     */
+    static CierreSuave parsear(String[] campos, int desde, CierreSuave porDefecto) {
+        long ventana = (campos.length > desde)
+                ? Long.parseLong(campos[desde]) * 1000L : porDefecto.ventanaMillis;
+        long extension = (campos.length > desde + 1)
+                ? Long.parseLong(campos[desde + 1]) * 1000L : porDefecto.extensionMillis;
+        int max = (campos.length > desde + 2)
+                ? Integer.parseInt(campos[desde + 2]) : porDefecto.maxExtensiones;
+        return new CierreSuave(ventana, extension, max);
+    }
+
+    /**
+     * "ventanaSeg:extensionSeg:maxExtensiones"; null o vacío = desactivado.
+     */
+    public static CierreSuave parsear(String texto) {
+        if (texto == null || texto.trim().length() == 0) {
+            return DESACTIVADO;
+        }
+        return parsear(texto.trim().split(":"), 0, DESACTIVADO);
+    }
+
+    public boolean isActivo() {
+        return ventanaMillis > 0L && extensionMillis > 0L && maxExtensiones > 0;
+    }
+
+    public long getVentanaMillis() {
+        return ventanaMillis;
+    }
+
+    public long getExtensionMillis() {
+        return extensionMillis;
+    }
+
+    public int getMaxExtensiones() {
+        return maxExtensiones;
+    }
+
+    @Override
+    public String toString() {
+        if (!isActivo()) {
+            return "cierre fijo";
+        }
+        return "cierre suave (pujas en los últimos " + (ventanaMillis / 1000L) + " s alargan "
+                + (extensionMillis / 1000L) + " s, hasta " + maxExtensiones + " veces)";
+    }
+}
@@ -1,7 +1,9 @@
 package socket.conconexion.servidor;
 
 import java.net.InetAddress;
-import socket.conconexion.stream.MiSocketStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import socket.conconexion.stream.CanalMensajes;
 
 /**
  * Representa un cliente conectado al servidor de subasta.
@@ -9,17 +11,61 @@ import socket.conconexion.stream.MiSocketStream;
 public class ClienteConectado {
 
     private final String idCliente;
-    private String alias;
+    private volatile String alias;
     private final String ip;
     private final int puerto;
-    private final MiSocketStream socket;
+    private final CanalMensajes socket;
+    // Mensajes de broadcast pendientes de escribir a este cliente
+    private final ColaSalida colaSalida;
+    // Si llegó a través de un relevo: el enlace y su número de sesión en él
+    private final EnlaceRelevo enlace;
+    private final int sesionRelevo;
 
-    // Para controlar en qué subasta se ha registrado el cliente
-    private int ultimaSubastaRegistrada = 0;
+    // Para controlar en qué subasta de cada lote se ha registrado el cliente
+    private final ConcurrentHashMap<String, Integer> ultimaSubastaPorLote =
+            new ConcurrentHashMap<String, Integer>();
 
-    public ClienteConectado(String idCliente, MiSocketStream socket) {
+    // Temas a los que está suscrito (ver GestorClientes.suscribir)
+    private final Set<String> temas = ConcurrentHashMap.newKeySet();
+
+    public ClienteConectado(String idCliente, CanalMensajes socket, ColaSalida colaSalida) {
         this.idCliente = idCliente;
         this.socket = socket;
+        this.colaSalida = colaSalida;
+        this.enlace = null;
+        this.sesionRelevo = 0;
+
+        InetAddress addr = socket.getInetAddress();
+        this.ip = (addr != null) ? addr.getHostAddress() : "desconocida";
+        this.puerto = socket.getPort();
+    }
+
+    /**
+     * Cliente de otro nodo del clúster que hizo JOIN en una réplica: el
+     * líder solo lo usa para contarlo como participante (ver NodoCluster).
+     * No tiene canal ni cola de salida.
+     */
+    ClienteConectado(String idCliente) {
+        this.idCliente = idCliente;
+        this.socket = null;
+        this.colaSalida = null;
+        this.enlace = null;
+        this.sesionRelevo = 0;
+        this.ip = "remota";
+        this.puerto = 0;
+    }
+
+    /**
+     * Cliente conectado a un relevo (ver EnlaceRelevo). No tiene cola de
+     * salida propia: los avisos de sus temas van una vez por enlace y el
+     * relevo los reparte entre sus sesiones.
+     */
+    ClienteConectado(String idCliente, CanalMensajes socket, EnlaceRelevo enlace, int sesionRelevo) {
+        this.idCliente = idCliente;
+        this.socket = socket;
+        this.colaSalida = null;
+        this.enlace = enlace;
+        this.sesionRelevo = sesionRelevo;
 
         InetAddress addr = socket.getInetAddress();
         this.ip = (addr != null) ? addr.getHostAddress() : "desconocida";
@@ -46,15 +92,53 @@ public class ClienteConectado {
         return puerto;
     }
 
-    public MiSocketStream getSocket() {
+    public CanalMensajes getSocket() {
         return socket;
     }
 
-    public int getUltimaSubastaRegistrada() {
-        return ultimaSubastaRegistrada;
+    public ColaSalida getColaSalida() {
+        return colaSalida;
+    }
+
+    /**
+     * Enlace del relevo por el que llegó, o null si se conectó directamente.
+     */
+    EnlaceRelevo getEnlace() {
+        return enlace;
+    }
+
+    int getSesionRelevo() {
+        return sesionRelevo;
+    }
+
+    public int getUltimaSubastaRegistrada(String idLote) {
+        Integer id = ultimaSubastaPorLote.get(idLote);
+        return (id != null) ? id.intValue() : 0;
+    }
+
+    public void setUltimaSubastaRegistrada(String idLote, int idSubasta) {
+        ultimaSubastaPorLote.put(idLote, idSubasta);
+    }
+
+    /**
+     * Anota la suscripción al tema. Devuelve false si ya estaba suscrito.
+     */
+    boolean agregarTema(String tema) {
+        return temas.add(tema);
+    }
+
+    /**
+     * Quita la suscripción al tema. Devuelve false si no estaba suscrito.
+     */
+    boolean quitarTema(String tema) {
+        return temas.remove(tema);
+    }
+
+    public boolean estaSuscrito(String tema) {
+        return temas.contains(tema);
     }
 
-    public void setUltimaSubastaRegistrada(int idSubasta) {
-        this.ultimaSubastaRegistrada = idSubasta;
+    public Set<String> getTemas() {
+        return temas;
     }
 }
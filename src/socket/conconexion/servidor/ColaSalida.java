@@ -0,0 +1,214 @@
+package socket.conconexion.servidor;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import socket.conconexion.stream.CanalMensajes;
+
+import static socket.conconexion.servidor.BitacoraSubasta.BITACORA;
+
+/**
+ * Cola acotada de mensajes de salida de un cliente.
+ * Quien publica solo encola (nunca toca la red); un escritor del ejecutor
+ * compartido vacía la cola sobre el canal mientras tenga mensajes.
+ * Si el cliente no consume a tiempo y la cola se llena, se aplica la
+ * política configurada.
+ */
+public class ColaSalida implements Runnable {
+
+    /**
+     * Qué hacer cuando la cola de un cliente lento está llena.
+     */
+    public enum Politica {
+        // Se descarta el mensaje más antiguo de la cola
+        DESCARTAR_ANTIGUO,
+        // Un NEW_BID reemplaza al NEW_BID pendiente del mismo lote; si no lo hay, se descarta el más antiguo
+        CONFLAR,
+        // Se desconecta al cliente
+        DESCONECTAR
+    }
+
+    private final CanalMensajes canal;
+    private final int capacidad;
+    private final Politica politica;
+    private final Executor escritor;
+
+    private final ArrayDeque<String> mensajes = new ArrayDeque<String>();
+    private final ReentrantLock cerrojo = new ReentrantLock();
+    private boolean programada = false;
+    private int descartados = 0;
+    // Cerrar el canal en cuanto se escriba lo pendiente (ver cerrarAlVaciar)
+    private boolean cerrarAlVaciar = false;
+
+    public ColaSalida(CanalMensajes canal, int capacidad, Politica politica, Executor escritor) {
+        this.canal = canal;
+        this.capacidad = capacidad;
+        this.politica = politica;
+        this.escritor = escritor;
+    }
+
+    /**
+     * Encola un mensaje para el cliente sin bloquear en la red.
+     * Devuelve false si la política pide desconectar al cliente.
+     */
+    public boolean encolar(String mensaje) {
+        boolean programar = false;
+        cerrojo.lock();
+        try {
+            if (mensajes.size() >= capacidad) {
+                if (politica == Politica.DESCONECTAR) {
+                    mensajes.clear();
+                    return false;
+                }
+                if (politica != Politica.CONFLAR || !reemplazarPendiente(mensaje)) {
+                    mensajes.poll();
+                }
+                descartados++;
+            }
+            mensajes.add(mensaje);
+            if (!programada) {
+                programada = true;
+                programar = true;
+            }
+        } finally {
+            cerrojo.unlock();
+        }
+        if (programar) {
+            escritor.execute(this);
+        }
+        return true;
+    }
+
+    /**
+     * Quita de la cola el mensaje pendiente que el nuevo deja obsoleto.
+     */
+    private boolean reemplazarPendiente(String mensaje) {
+        String clave = claveConflacion(mensaje);
+        if (clave == null) {
+            return false;
+        }
+        Iterator<String> it = mensajes.descendingIterator();
+        while (it.hasNext()) {
+            if (clave.equals(claveConflacion(it.next()))) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Mensajes con la misma clave se sustituyen entre sí: el NEW_BID de un
+     * lote deja obsoleto al anterior del mismo lote (último campo).
+     */
+    private static String claveConflacion(String mensaje) {
+        if (mensaje.startsWith("NEW_BID ")) {
+            return "NEW_BID" + mensaje.substring(mensaje.lastIndexOf(' '));
+        }
+        return null;
+    }
+
+    /**
+     * Escribe los mensajes pendientes en el canal hasta vaciar la cola.
+     * Se agregan al canal sin vaciarlo y se vacía una vez al final, de modo
+     * que una ráfaga de avisos sale en tan pocas escrituras como quepan.
+     */
+    public void run() {
+        while (true) {
+            String mensaje;
+            cerrojo.lock();
+            try {
+                mensaje = mensajes.poll();
+            } finally {
+                cerrojo.unlock();
+            }
+            try {
+                if (mensaje != null) {
+                    canal.agregaMensaje(mensaje);
+                    continue;
+                }
+                canal.vacia();
+            } catch (Exception ex) {
+                BITACORA.aviso("envio_fallido", canal.getInetAddress() + ":" + canal.getPort()
+                        + " se cerrará: " + ex);
+                cerrojo.lock();
+                try {
+                    mensajes.clear();
+                    programada = false;
+                } finally {
+                    cerrojo.unlock();
+                }
+                cerrarCanal();
+                return;
+            }
+            // Lo encolado mientras se vaciaba el canal se escribe en otra vuelta
+            boolean cerrar;
+            cerrojo.lock();
+            try {
+                if (!mensajes.isEmpty()) {
+                    continue;
+                }
+                programada = false;
+                cerrar = cerrarAlVaciar;
+            } finally {
+                cerrojo.unlock();
+            }
+            if (cerrar) {
+                cerrarCanal();
+            }
+            return;
+        }
+    }
+
+    /**
+     * Cierra el canal cuando termine de escribirse lo que ya está en la
+     * cola (en el acto si no hay nada pendiente). Lo que se encole después
+     * puede no llegar a escribirse.
+     */
+    public void cerrarAlVaciar() {
+        boolean cerrarYa;
+        cerrojo.lock();
+        try {
+            cerrarAlVaciar = true;
+            cerrarYa = !programada;
+        } finally {
+            cerrojo.unlock();
+        }
+        if (cerrarYa) {
+            cerrarCanal();
+        }
+    }
+
+    private void cerrarCanal() {
+        try {
+            canal.close();
+        } catch (Exception ex) {
+            // ignorar
+        }
+    }
+
+    /**
+     * Mensajes que esperan ser escritos.
+     */
+    public int getPendientes() {
+        cerrojo.lock();
+        try {
+            return mensajes.size();
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Mensajes descartados o conflados por ir el cliente atrasado.
+     */
+    public int getDescartados() {
+        cerrojo.lock();
+        try {
+            return descartados;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+}
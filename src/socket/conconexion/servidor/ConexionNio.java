@@ -0,0 +1,344 @@
+package socket.conconexion.servidor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import socket.conconexion.stream.CanalMensajes;
+import socket.conconexion.stream.CodificacionUtf8;
+
+/**
+ * Conexión no bloqueante atendida por un BucleEventosNio.
+ * No reserva buffers propios mientras está inactiva: la lectura usa el
+ * buffer compartido del bucle y solo se guardan los bytes de una línea
+ * incompleta y los mensajes pendientes de escribir.
+ *
+ * También es el escritor de su propia cola de salida: la cola solo se
+ * vacía cuando el socket terminó de escribir lo anterior, así un cliente
+ * lento llena su cola acotada en vez de acumular bytes sin límite aquí.
+ *
+ * Las líneas se entregan a la sesión como bytes, sin decodificarlas. Las
+ * respuestas agregadas desde el propio bucle con el socket libre se
+ * acumulan en el buffer de escritura del bucle y se escriben juntas en
+ * vacia(), que el bucle llama al terminar cada lectura; solo lo que no cabe
+ * en el socket se copia a un buffer propio. Los mensajes pendientes se
+ * escriben con escrituras agrupadas (varios buffers por llamada).
+ *
+ * Si las respuestas pendientes pasan de MAX_PENDIENTE (un cliente que
+ * encadena comandos sin leer), el bucle deja de leer de la conexión hasta
+ * que se escriban: así lo pendiente no crece más allá de lo que produce
+ * una lectura.
+ */
+class ConexionNio implements CanalMensajes, Executor {
+
+    // Longitud máxima de una línea de comando; si se supera se cierra la conexión
+    static final int MAX_LINEA = 8192;
+    // Bytes pendientes de escribir a partir de los cuales no se lee más
+    static final int MAX_PENDIENTE = 64 * 1024;
+
+    private final SocketChannel canal;
+    private final BucleEventosNio bucle;
+    private final InetAddress direccion;
+    private final int puerto;
+
+    private SelectionKey clave;
+    private HiloServidorSubasta sesion;
+
+    // Bytes de la última línea recibida a medias (solo los toca el bucle)
+    private byte[] lineaParcial;
+    private int largoParcial;
+
+    // Mensajes codificados pendientes de escribir (protegido por this)
+    private final ArrayDeque<ByteBuffer> pendientes = new ArrayDeque<ByteBuffer>();
+    private long bytesPendientes;
+    private final AtomicBoolean cerrada = new AtomicBoolean(false);
+    // Tarea que vacía la cola de salida, a la espera de que el socket se libere
+    private Runnable tareaSalida;
+
+    ConexionNio(SocketChannel canal, BucleEventosNio bucle) {
+        this.canal = canal;
+        this.bucle = bucle;
+        Socket s = canal.socket();
+        this.direccion = s.getInetAddress();
+        this.puerto = s.getPort();
+    }
+
+    void setClave(SelectionKey clave) {
+        this.clave = clave;
+    }
+
+    SelectionKey getClave() {
+        return clave;
+    }
+
+    void setSesion(HiloServidorSubasta sesion) {
+        this.sesion = sesion;
+    }
+
+    HiloServidorSubasta getSesion() {
+        return sesion;
+    }
+
+    SocketChannel getCanal() {
+        return canal;
+    }
+
+    boolean isCerrada() {
+        return cerrada.get();
+    }
+
+    /**
+     * Encola el mensaje para su envío. Nunca bloquea: si se llama desde otro
+     * hilo, el bucle de la conexión se encarga de escribirlo.
+     */
+    public void enviaMensaje(String mensaje) {
+        enviaMensaje((CharSequence) mensaje);
+    }
+
+    public void enviaMensaje(CharSequence mensaje) {
+        agregaMensaje(mensaje);
+        vacia();
+    }
+
+    /**
+     * Desde el bucle, con el socket libre, codifica el mensaje a continuación
+     * de lo ya acumulado en el buffer de escritura del bucle. Si no, lo copia
+     * a la cola de pendientes; vacia() pide al bucle que la escriba.
+     */
+    public void agregaMensaje(CharSequence mensaje) {
+        if (cerrada.get()) {
+            return;
+        }
+        int largo = CodificacionUtf8.longitud(mensaje) + 1;
+        synchronized (this) {
+            if (bucle.enHiloBucle()) {
+                ByteBuffer buf = bucle.getAcumulado(this);
+                if (buf != null && largo > buf.remaining()) {
+                    try {
+                        escribirAcumulado(buf);
+                    } catch (IOException ex) {
+                        cerrarSinExcepcion();
+                        return;
+                    }
+                    buf = null;
+                }
+                // Lo acumulado va delante de los pendientes: solo se empieza
+                // a acumular si no hay pendientes
+                if (buf == null && pendientes.isEmpty()) {
+                    buf = bucle.acumularPara(this);
+                    if (largo > buf.capacity()) {
+                        bucle.liberarAcumulado();
+                        buf = null;
+                    }
+                }
+                if (buf != null) {
+                    int fin = CodificacionUtf8.codificar(mensaje, buf.array(), buf.position());
+                    buf.array()[fin++] = '\n';
+                    buf.position(fin);
+                    return;
+                }
+            }
+            byte[] bytes = new byte[largo];
+            int fin = CodificacionUtf8.codificar(mensaje, bytes, 0);
+            bytes[fin] = '\n';
+            pendientes.add(ByteBuffer.wrap(bytes));
+            bytesPendientes += largo;
+        }
+    }
+
+    /**
+     * Escribe lo acumulado en el buffer del bucle y, si quedan pendientes,
+     * pide al bucle que los escriba cuando el socket lo admita.
+     */
+    public void vacia() {
+        boolean quedan;
+        synchronized (this) {
+            ByteBuffer buf = bucle.getAcumulado(this);
+            if (buf != null) {
+                try {
+                    escribirAcumulado(buf);
+                } catch (IOException ex) {
+                    cerrarSinExcepcion();
+                    return;
+                }
+            }
+            quedan = !pendientes.isEmpty();
+        }
+        if (quedan) {
+            bucle.solicitarEscritura(this);
+        }
+    }
+
+    /**
+     * Escribe lo que esta conexión acumuló en el buffer del bucle y lo
+     * libera. Lo que el socket no admite pasa al frente de los pendientes.
+     */
+    private void escribirAcumulado(ByteBuffer buf) throws IOException {
+        buf.flip();
+        try {
+            if (pendientes.isEmpty() && buf.hasRemaining()) {
+                canal.write(buf);
+            }
+            if (buf.hasRemaining()) {
+                ByteBuffer resto = ByteBuffer.allocate(buf.remaining());
+                resto.put(buf).flip();
+                pendientes.addFirst(resto);
+                bytesPendientes += resto.remaining();
+            }
+        } finally {
+            bucle.liberarAcumulado();
+        }
+    }
+
+    private void cerrarSinExcepcion() {
+        try {
+            close();
+        } catch (IOException ex) {
+            // ignorar
+        }
+    }
+
+    /**
+     * Programa el vaciado de la cola de salida en el bucle de la conexión.
+     */
+    public void execute(Runnable tarea) {
+        synchronized (this) {
+            tareaSalida = tarea;
+        }
+        bucle.solicitarEscritura(this);
+    }
+
+    /**
+     * Toma la tarea de vaciado de la cola de salida, si hay una pendiente.
+     */
+    synchronized Runnable tomarTareaSalida() {
+        Runnable tarea = tareaSalida;
+        tareaSalida = null;
+        return tarea;
+    }
+
+    /**
+     * Separa en líneas los bytes recién leídos en el buffer del bucle.
+     * Devuelve false si la sesión terminó (QUIT o línea demasiado larga).
+     */
+    boolean consumir(ByteBuffer buffer) {
+        byte[] datos = buffer.array();
+        int inicio = buffer.position();
+        int fin = buffer.limit();
+        for (int i = inicio; i < fin; i++) {
+            if (datos[i] != '\n') {
+                continue;
+            }
+            boolean seguir;
+            if (largoParcial > 0) {
+                acumular(datos, inicio, i - inicio);
+                seguir = sesion.procesarLinea(lineaParcial, 0, largoParcial);
+                lineaParcial = null;
+                largoParcial = 0;
+            } else {
+                seguir = sesion.procesarLinea(datos, inicio, i - inicio);
+            }
+            inicio = i + 1;
+            if (!seguir) {
+                return false;
+            }
+        }
+        if (inicio < fin) {
+            if (largoParcial + (fin - inicio) > MAX_LINEA) {
+                return false;
+            }
+            acumular(datos, inicio, fin - inicio);
+        }
+        return true;
+    }
+
+    private void acumular(byte[] datos, int desde, int largo) {
+        if (lineaParcial == null) {
+            lineaParcial = new byte[Math.max(64, largo)];
+        } else if (largoParcial + largo > lineaParcial.length) {
+            byte[] nuevo = new byte[Math.max(lineaParcial.length * 2, largoParcial + largo)];
+            System.arraycopy(lineaParcial, 0, nuevo, 0, largoParcial);
+            lineaParcial = nuevo;
+        }
+        System.arraycopy(datos, desde, lineaParcial, largoParcial, largo);
+        largoParcial += largo;
+    }
+
+    /**
+     * Escribe lo pendiente sin bloquear, varios buffers por llamada.
+     * Devuelve true si quedó todo escrito. Solo la llama el hilo del bucle.
+     */
+    boolean escribirPendientes() throws IOException {
+        synchronized (this) {
+            ByteBuffer acumulado = bucle.getAcumulado(this);
+            if (acumulado != null) {
+                escribirAcumulado(acumulado);
+            }
+            ByteBuffer[] grupo = bucle.getGrupoEscritura();
+            while (!pendientes.isEmpty()) {
+                int n = 0;
+                long total = 0L;
+                for (ByteBuffer buf : pendientes) {
+                    grupo[n++] = buf;
+                    total += buf.remaining();
+                    if (n == grupo.length) {
+                        break;
+                    }
+                }
+                long escritos = canal.write(grupo, 0, n);
+                bytesPendientes -= escritos;
+                Arrays.fill(grupo, 0, n, null);
+                ByteBuffer buf;
+                while ((buf = pendientes.peek()) != null && !buf.hasRemaining()) {
+                    pendientes.poll();
+                }
+                if (escritos < total) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Si hay tanto pendiente de escribir que no conviene leer más comandos.
+     */
+    synchronized boolean isSaturada() {
+        return bytesPendientes > MAX_PENDIENTE;
+    }
+
+    public InetAddress getInetAddress() {
+        return direccion;
+    }
+
+    public int getPort() {
+        return puerto;
+    }
+
+    /**
+     * Cierra el canal. La baja de la sesión la hace siempre el bucle,
+     * aunque el cierre venga de otro hilo (por ejemplo, un broadcast fallido).
+     */
+    public void close() throws IOException {
+        if (!cerrada.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            canal.close();
+        } finally {
+            bucle.programarCierre(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new InetSocketAddress(direccion, puerto).toString();
+    }
+}
@@ -0,0 +1,140 @@
+package socket.conconexion.servidor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import socket.conconexion.bitacora.Bitacora;
+
+import static socket.conconexion.servidor.BitacoraSubasta.BITACORA;
+
+/**
+ * Admisión de conexiones en el bucle de aceptación: decide, antes de
+ * registrar al cliente y de darle hilo, si el servidor puede atenderlo.
+ * Si no, se le responde "BUSY <segundos>" y se cierra la conexión, lo que
+ * no cuesta más que una escritura.
+ *
+ *  - maxSesiones: tope de sesiones abiertas (contando las que llegan por
+ *    relevos).
+ *  - reserva: de esas, las últimas solo se dan a IPs desde las que se
+ *    hizo JOIN a una subasta que aún no ha terminado (ver
+ *    GestorClientes.esParticipante). Así, en la avalancha de conexiones de
+ *    un inicio de subasta, quien ya está apuntado y se reconecta entra
+ *    antes que los curiosos.
+ *  - maxPorIp: tope de conexiones directas abiertas desde una misma IP.
+ *
+ * Los segundos de BUSY van al azar entre reintentoSeg y 2 * reintentoSeg - 1
+ * para que los rechazados no vuelvan todos a la vez. Los recuentos se leen
+ * del gestor sin reservar nada: en modo NIO el registro llega un poco
+ * después de aceptar, así que una ráfaga puede pasar el tope por unas pocas
+ * conexiones.
+ */
+final class ControlAdmision {
+
+    static final ControlAdmision SIN_LIMITES = new ControlAdmision(0, 0, 0, 1, null);
+
+    private final int maxSesiones;
+    private final int reserva;
+    private final int maxPorIp;
+    private final int reintentoSeg;
+    private final GestorClientes gestorClientes;
+
+    /**
+     * @param maxSesiones  tope de sesiones (0 = sin tope)
+     * @param reserva      sesiones del tope reservadas a participantes
+     * @param maxPorIp     tope de conexiones por IP (0 = sin tope)
+     * @param reintentoSeg espera mínima que se pide en BUSY
+     */
+    ControlAdmision(int maxSesiones, int reserva, int maxPorIp, int reintentoSeg,
+                    GestorClientes gestorClientes) {
+        if (maxSesiones < 0 || reserva < 0 || maxPorIp < 0 || reintentoSeg < 1
+                || (maxSesiones > 0 && reserva >= maxSesiones)) {
+            throw new IllegalArgumentException("Límites de admisión no válidos");
+        }
+        this.maxSesiones = maxSesiones;
+        this.reserva = reserva;
+        this.maxPorIp = maxPorIp;
+        this.reintentoSeg = reintentoSeg;
+        this.gestorClientes = gestorClientes;
+    }
+
+    /**
+     * Lee los límites de las propiedades del sistema (ver ServidorEcho3).
+     */
+    static ControlAdmision desdePropiedades(GestorClientes gestorClientes) {
+        int maxSesiones = Integer.getInteger("subasta.admision.maxSesiones", 0);
+        int reserva = Integer.getInteger("subasta.admision.reserva", maxSesiones / 10);
+        int maxPorIp = Integer.getInteger("subasta.admision.maxPorIp", 0);
+        if (maxSesiones == 0 && maxPorIp == 0) {
+            return SIN_LIMITES;
+        }
+        return new ControlAdmision(maxSesiones, reserva, maxPorIp,
+                Integer.getInteger("subasta.admision.reintentoSeg", 5), gestorClientes);
+    }
+
+    /**
+     * Cola de conexiones pendientes de aceptar que se pide al sistema.
+     */
+    static int backlog() {
+        return Integer.getInteger("subasta.admision.backlog", 50);
+    }
+
+    boolean isActivo() {
+        return maxSesiones > 0 || maxPorIp > 0;
+    }
+
+    /**
+     * Si la conexión recién aceptada no se admite, le envía BUSY, la cierra
+     * y devuelve true. Funciona igual con el socket de un SocketChannel
+     * bloqueante.
+     */
+    boolean rechazar(Socket socket) {
+        byte[] ocupado = rechazo(socket.getInetAddress());
+        if (ocupado == null) {
+            return false;
+        }
+        try {
+            // Cabe de sobra en el buffer del socket: no espera al cliente
+            socket.getOutputStream().write(ocupado);
+        } catch (IOException ex) {
+            // ignorar: se cierra igual
+        }
+        try {
+            socket.close();
+        } catch (IOException ex) {
+            // ignorar
+        }
+        return true;
+    }
+
+    /**
+     * Devuelve null si la conexión se admite; si no, la línea BUSY con su
+     * salto de línea.
+     */
+    private byte[] rechazo(InetAddress direccion) {
+        if (!isActivo()) {
+            return null;
+        }
+        String ip = (direccion != null) ? direccion.getHostAddress() : "desconocida";
+        String motivo = null;
+        if (maxPorIp > 0 && gestorClientes.getConexionesDesde(ip) >= maxPorIp) {
+            motivo = "conexiones_por_ip";
+        } else if (maxSesiones > 0) {
+            int sesiones = gestorClientes.getNumeroClientes();
+            if (sesiones >= maxSesiones) {
+                motivo = "sesiones";
+            } else if (sesiones >= maxSesiones - reserva && !gestorClientes.esParticipante(ip)) {
+                motivo = "reserva_participantes";
+            }
+        }
+        if (motivo == null) {
+            return null;
+        }
+        MetricasSubasta.CONEXIONES_RECHAZADAS.increment();
+        BITACORA.registrarMuestreado(Bitacora.Nivel.AVISO, "conexion_rechazada", null, null,
+                Bitacora.SIN_SUBASTA, Bitacora.SIN_MONTO, ip + " " + motivo);
+        int segundos = reintentoSeg + ThreadLocalRandom.current().nextInt(reintentoSeg);
+        return ("BUSY " + segundos + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,60 @@
+package socket.conconexion.servidor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cubo de tokens: admite de media porSegundo operaciones por segundo con
+ * ráfagas de hasta rafaga seguidas. Se lleva como un solo instante (el de
+ * llegada teórica de la siguiente operación, algoritmo GCRA) en lugar de
+ * un contador que rellenar: tomar un token es una lectura y un
+ * compareAndSet, sin cerrojos ni hilos que repongan tokens.
+ *
+ * Los instantes son de System.nanoTime() y se comparan por diferencia.
+ */
+final class CuboTokens {
+
+    // Nanosegundos que "cuesta" cada token
+    private final long intervalo;
+    // Cuánto puede adelantarse la llegada teórica a ahora (ráfaga - 1 tokens)
+    private final long tolerancia;
+    private final AtomicLong llegadaTeorica;
+
+    CuboTokens(double porSegundo, int rafaga, long ahora) {
+        this.intervalo = Math.max(1L, (long) (1_000_000_000L / porSegundo));
+        this.tolerancia = intervalo * (Math.max(1, rafaga) - 1L);
+        // Empieza lleno
+        this.llegadaTeorica = new AtomicLong(ahora);
+    }
+
+    /**
+     * Toma un token si lo hay. Devuelve false si se superó el límite.
+     */
+    boolean tomar(long ahora) {
+        while (true) {
+            long teorica = llegadaTeorica.get();
+            long base = (teorica - ahora > 0L) ? teorica : ahora;
+            if (base - ahora > tolerancia) {
+                return false;
+            }
+            if (llegadaTeorica.compareAndSet(teorica, base + intervalo)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Devuelve un token tomado con tomar, para un comando que al final no
+     * se admitió. Nunca deja el cubo por encima de la ráfaga: tomar no
+     * cuenta una llegada teórica anterior a ahora.
+     */
+    void devolver() {
+        llegadaTeorica.addAndGet(-intervalo);
+    }
+
+    /**
+     * Si el cubo lleva lleno desde hace más de margen nanosegundos.
+     */
+    boolean lleno(long ahora, long margen) {
+        return ahora - llegadaTeorica.get() > margen;
+    }
+}
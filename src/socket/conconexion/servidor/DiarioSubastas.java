@@ -0,0 +1,605 @@
+package socket.conconexion.servidor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Diario binario de solo escritura con los eventos de las subastas:
+ * inicio, puja aceptada, extensión del cierre suave y fin (con el resultado).
+ *
+ * Cada registro es: largo (int) + contenido + CRC32 del contenido (int).
+ * Las escrituras se agrupan: un único hilo escribe todo lo acumulado y
+ * hace un solo fsync por grupo, así la durabilidad no cuesta un fsync por
+ * puja. Quien anota recibe un CompletableFuture que se completa cuando
+ * su registro ya está en disco.
+ *
+ * El diario se guarda en segmentos numerados (diario-000001.wal, ...) dentro
+ * de un directorio. Al tomar una instantánea se rota a un segmento nuevo y
+ * los anteriores se pueden borrar, así la recuperación solo reproduce la cola.
+ * Si una escritura o un fsync fallan, el final del segmento queda en duda:
+ * se recorta hasta el último grupo que llegó a disco y se sigue en un
+ * segmento nuevo (ver abandonarSegmento), porque la reproducción de un
+ * segmento se detiene en el primer registro corrupto.
+ *
+ * En un clúster (ver NodoCluster) cada registro se entrega además, en el
+ * mismo orden y una vez en disco, a la copia que lo envía a las réplicas;
+ * las réplicas lo aplican con aplicar, igual que al reproducir el diario.
+ * Un registro cuya escritura falla no llega a las réplicas.
+ *
+ * Los montos se guardan como long en unidades mínimas.
+ */
+public class DiarioSubastas implements Runnable {
+
+    static final byte INICIO = 1;
+    static final byte PUJA = 4;
+    static final byte FIN = 5;
+    static final byte EXTENSION = 6;
+
+    /**
+     * Avisos de los registros que aplicar reflejó en el estado (no de los
+     * que ya estaban reflejados). Los usa una réplica para anunciar a sus
+     * clientes lo que decidió el líder.
+     */
+    interface OyenteRegistros {
+        void inicio(EstadoSubasta lote, int idSubasta);
+
+        void puja(EstadoSubasta lote, int idSubasta, long monto, String idCliente, String alias);
+
+        void extension(EstadoSubasta lote);
+
+        void fin(EstadoSubasta lote, EstadoSubasta.ResumenSubasta resumen);
+    }
+
+    private static final String PREFIJO_SEGMENTO = "diario-";
+    private static final String SUFIJO_SEGMENTO = ".wal";
+
+    private static final CompletableFuture<Void> COMPLETADO = CompletableFuture.completedFuture(null);
+
+    // Marca en la cola de escritura: cerrar el segmento actual y abrir el siguiente
+    private static final ByteBuffer ROTAR = ByteBuffer.allocate(0);
+
+    private final Path directorio;
+    private final long intervaloFsyncMillis;
+    private final boolean habilitado;
+    private FileChannel canal;
+    private volatile int segmentoActual;
+    // Bytes del segmento actual que ya están en disco (solo el hilo escritor)
+    private long finDurable;
+    // Fallo tras el que no se pudo abrir otro segmento: se rechaza todo
+    private volatile IOException averia;
+
+    private final ReentrantLock cerrojo = new ReentrantLock();
+    private final Condition hayPendientes = cerrojo.newCondition();
+    private List<ByteBuffer> registros = new ArrayList<ByteBuffer>();
+    private List<CompletableFuture<Void>> esperas = new ArrayList<CompletableFuture<Void>>();
+    // Destino de una copia de cada registro (ver setCopiaRegistros)
+    private volatile Consumer<byte[]> copia;
+
+    private DiarioSubastas(Path directorio, FileChannel canal, int segmento, long intervaloFsyncMillis) {
+        this.directorio = directorio;
+        this.canal = canal;
+        this.habilitado = (canal != null);
+        this.segmentoActual = segmento;
+        this.intervaloFsyncMillis = intervaloFsyncMillis;
+    }
+
+    /**
+     * Diario que no guarda nada: todas las anotaciones están "en disco" al momento.
+     */
+    public static DiarioSubastas deshabilitado() {
+        return new DiarioSubastas(null, null, 0, 0L);
+    }
+
+    /**
+     * Abre el diario en el directorio indicado, en un segmento nuevo posterior
+     * a todos los existentes, y arranca el hilo de escritura.
+     *
+     * @param intervaloFsyncMillis cuánto espera el escritor, desde el primer
+     *        registro pendiente, para agrupar más registros en el mismo fsync.
+     *        0 = sincronizar en cuanto haya algo (solo se agrupa lo que llega
+     *        mientras dura el fsync anterior).
+     */
+    public static DiarioSubastas abrir(Path directorio, long intervaloFsyncMillis) throws IOException {
+        Files.createDirectories(directorio);
+        List<Integer> existentes = listarSegmentos(directorio);
+        int segmento = existentes.isEmpty() ? 1 : existentes.get(existentes.size() - 1) + 1;
+        DiarioSubastas diario = new DiarioSubastas(directorio,
+                abrirSegmento(directorio, segmento), segmento, intervaloFsyncMillis);
+        Thread hilo = new Thread(diario, "diario-subastas");
+        hilo.setDaemon(true);
+        hilo.start();
+        System.out.println("Diario de subastas en " + directorio + ", segmento " + segmento
+                + " (fsync agrupado cada " + intervaloFsyncMillis + " ms)");
+        return diario;
+    }
+
+    private static FileChannel abrirSegmento(Path directorio, int segmento) throws IOException {
+        return FileChannel.open(rutaSegmento(directorio, segmento), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    static Path rutaSegmento(Path directorio, int segmento) {
+        return directorio.resolve(String.format("%s%06d%s", PREFIJO_SEGMENTO, segmento, SUFIJO_SEGMENTO));
+    }
+
+    /**
+     * Números de los segmentos presentes en el directorio, en orden.
+     */
+    static List<Integer> listarSegmentos(Path directorio) throws IOException {
+        List<Integer> segmentos = new ArrayList<Integer>();
+        if (!Files.isDirectory(directorio)) {
+            return segmentos;
+        }
+        try (DirectoryStream<Path> ficheros =
+                     Files.newDirectoryStream(directorio, PREFIJO_SEGMENTO + "*" + SUFIJO_SEGMENTO)) {
+            for (Path f : ficheros) {
+                String nombre = f.getFileName().toString();
+                try {
+                    segmentos.add(Integer.valueOf(nombre.substring(
+                            PREFIJO_SEGMENTO.length(), nombre.length() - SUFIJO_SEGMENTO.length())));
+                } catch (NumberFormatException ex) {
+                    // no es un segmento
+                }
+            }
+        }
+        Collections.sort(segmentos);
+        return segmentos;
+    }
+
+    public boolean isHabilitado() {
+        return habilitado;
+    }
+
+    public Path getDirectorio() {
+        return directorio;
+    }
+
+    public int getSegmentoActual() {
+        return segmentoActual;
+    }
+
+    /**
+     * Entrega a copia el contenido de cada registro que se anote a partir de
+     * ahora, en el orden de escritura: desde el hilo escritor en cuanto el
+     * registro está en disco, o al anotarlo, bajo el cerrojo del diario, si
+     * el diario está deshabilitado. Debe ser breve: el líder solo encola el
+     * registro para sus réplicas.
+     */
+    void setCopiaRegistros(Consumer<byte[]> copia) {
+        this.copia = copia;
+    }
+
+    public CompletableFuture<Void> registrarInicio(String idLote, int idSubasta, long tiempoFin) {
+        if (!habilitado && copia == null) {
+            return COMPLETADO;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = cabecera(bytes, INICIO, idLote, idSubasta);
+            out.writeLong(tiempoFin);
+            return anotar(bytes);
+        } catch (IOException ex) {
+            return fallido(ex);
+        }
+    }
+
+    /**
+     * Anota una puja y, si la puja alargó la subasta (tiempoFin > 0), antes
+     * la extensión: las dos van en el mismo grupo, así que llegan a disco o
+     * fallan juntas.
+     *
+     * @param espera futuro que completar cuando sea durable (con el diario
+     *               habilitado), o null para crear uno
+     */
+    public CompletableFuture<Void> registrarPuja(String idLote, int idSubasta, long monto,
+                                                 String idCliente, String alias,
+                                                 long tiempoFin, int extensiones,
+                                                 CompletableFuture<Void> espera) {
+        if (!habilitado && copia == null) {
+            return COMPLETADO;
+        }
+        try {
+            ByteArrayOutputStream extension = (tiempoFin > 0L)
+                    ? contenidoExtension(idLote, idSubasta, tiempoFin, extensiones) : null;
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+            DataOutputStream out = cabecera(bytes, PUJA, idLote, idSubasta);
+            out.writeLong(monto);
+            out.writeUTF(idCliente);
+            out.writeUTF(alias);
+            return anotar(extension, bytes, espera);
+        } catch (IOException ex) {
+            return fallido(ex, espera);
+        }
+    }
+
+    public CompletableFuture<Void> registrarExtension(String idLote, int idSubasta, long tiempoFin,
+                                                      int extensiones) {
+        if (!habilitado && copia == null) {
+            return COMPLETADO;
+        }
+        try {
+            return anotar(contenidoExtension(idLote, idSubasta, tiempoFin, extensiones));
+        } catch (IOException ex) {
+            return fallido(ex);
+        }
+    }
+
+    private static ByteArrayOutputStream contenidoExtension(String idLote, int idSubasta, long tiempoFin,
+                                                            int extensiones) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = cabecera(bytes, EXTENSION, idLote, idSubasta);
+        out.writeLong(tiempoFin);
+        out.writeInt(extensiones);
+        return bytes;
+    }
+
+    public CompletableFuture<Void> registrarFin(String idLote, EstadoSubasta.ResumenSubasta resumen) {
+        if (!habilitado && copia == null) {
+            return COMPLETADO;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(96);
+            DataOutputStream out = cabecera(bytes, FIN, idLote, resumen.getId());
+            out.writeLong(resumen.getOfertaMaxima());
+            out.writeUTF(resumen.getIdGanador() != null ? resumen.getIdGanador() : "");
+            out.writeUTF(resumen.getAliasGanador() != null ? resumen.getAliasGanador() : "");
+            return anotar(bytes);
+        } catch (IOException ex) {
+            return fallido(ex);
+        }
+    }
+
+    /**
+     * Cierra el segmento actual detrás de todo lo ya anotado y abre el siguiente.
+     * El futuro devuelve el número del segmento nuevo: todo registro anotado
+     * antes de llamar a rotar está en segmentos anteriores y ya es durable.
+     */
+    public CompletableFuture<Integer> rotar() {
+        if (!habilitado) {
+            return CompletableFuture.completedFuture(Integer.valueOf(0));
+        }
+        CompletableFuture<Void> espera = new CompletableFuture<Void>();
+        cerrojo.lock();
+        try {
+            registros.add(ROTAR);
+            esperas.add(espera);
+            hayPendientes.signal();
+        } finally {
+            cerrojo.unlock();
+        }
+        return espera.thenApply(v -> Integer.valueOf(segmentoActual));
+    }
+
+    private static DataOutputStream cabecera(ByteArrayOutputStream bytes, byte tipo,
+                                             String idLote, int idSubasta) throws IOException {
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(tipo);
+        out.writeLong(System.currentTimeMillis());
+        out.writeUTF(idLote);
+        out.writeInt(idSubasta);
+        return out;
+    }
+
+    private static CompletableFuture<Void> fallido(IOException ex) {
+        return fallido(ex, null);
+    }
+
+    private static CompletableFuture<Void> fallido(IOException ex, CompletableFuture<Void> espera) {
+        CompletableFuture<Void> f = (espera != null) ? espera : new CompletableFuture<Void>();
+        f.completeExceptionally(ex);
+        return f;
+    }
+
+    private CompletableFuture<Void> anotar(ByteArrayOutputStream contenido) {
+        return anotar(null, contenido, null);
+    }
+
+    /**
+     * Enmarca el contenido (y antes previo, si no es null) y lo deja en el
+     * grupo pendiente de escribir.
+     */
+    private CompletableFuture<Void> anotar(ByteArrayOutputStream previo, ByteArrayOutputStream contenido,
+                                           CompletableFuture<Void> espera) {
+        IOException fallo = averia;
+        if (fallo != null) {
+            return fallido(fallo, espera);
+        }
+        byte[] datosPrevio = (previo == null) ? null : previo.toByteArray();
+        byte[] datos = contenido.toByteArray();
+        if (!habilitado) {
+            cerrojo.lock();
+            try {
+                if (datosPrevio != null) {
+                    copia.accept(datosPrevio);
+                }
+                copia.accept(datos);
+            } finally {
+                cerrojo.unlock();
+            }
+            return COMPLETADO;
+        }
+        ByteBuffer registroPrevio = (datosPrevio == null) ? null : enmarcar(datosPrevio);
+        ByteBuffer registro = enmarcar(datos);
+
+        if (espera == null) {
+            espera = new CompletableFuture<Void>();
+        }
+        cerrojo.lock();
+        try {
+            if (registroPrevio != null) {
+                // Nadie espera por él: llega a disco con el registro que lo sigue
+                registros.add(registroPrevio);
+                esperas.add(COMPLETADO);
+            }
+            registros.add(registro);
+            esperas.add(espera);
+            hayPendientes.signal();
+        } finally {
+            cerrojo.unlock();
+        }
+        return espera;
+    }
+
+    /**
+     * largo + contenido + CRC32, listo para escribir.
+     */
+    private static ByteBuffer enmarcar(byte[] datos) {
+        CRC32 crc = new CRC32();
+        crc.update(datos, 0, datos.length);
+        ByteBuffer registro = ByteBuffer.allocate(4 + datos.length + 4);
+        registro.putInt(datos.length).put(datos).putInt((int) crc.getValue());
+        registro.flip();
+        return registro;
+    }
+
+    /**
+     * Hilo escritor: toma todo lo pendiente, lo escribe y hace un solo fsync
+     * (uno por segmento si en medio hay una rotación).
+     */
+    public void run() {
+        while (true) {
+            List<ByteBuffer> grupo;
+            List<CompletableFuture<Void>> avisar;
+            cerrojo.lock();
+            try {
+                while (registros.isEmpty()) {
+                    hayPendientes.await();
+                }
+                if (intervaloFsyncMillis > 0L) {
+                    // Ventana de agrupación: dejar que lleguen más registros
+                    long restante = TimeUnit.MILLISECONDS.toNanos(intervaloFsyncMillis);
+                    while (restante > 0L) {
+                        restante = hayPendientes.awaitNanos(restante);
+                    }
+                }
+                grupo = registros;
+                avisar = esperas;
+                registros = new ArrayList<ByteBuffer>();
+                esperas = new ArrayList<CompletableFuture<Void>>();
+            } catch (InterruptedException e) {
+                System.out.println("Diario de subastas interrumpido: " + e);
+                return;
+            } finally {
+                cerrojo.unlock();
+            }
+
+            int desde = 0;
+            for (int i = 0; i <= grupo.size(); i++) {
+                if (i < grupo.size() && grupo.get(i) != ROTAR) {
+                    continue;
+                }
+                escribirGrupo(grupo.subList(desde, i), avisar.subList(desde, i));
+                if (i < grupo.size()) {
+                    rotarSegmento(avisar.get(i));
+                }
+                desde = i + 1;
+            }
+        }
+    }
+
+    private void escribirGrupo(List<ByteBuffer> grupo, List<CompletableFuture<Void>> avisar) {
+        if (grupo.isEmpty()) {
+            return;
+        }
+        if (averia != null) {
+            for (CompletableFuture<Void> f : avisar) {
+                f.completeExceptionally(averia);
+            }
+            return;
+        }
+        try {
+            ByteBuffer[] buffers = grupo.toArray(new ByteBuffer[grupo.size()]);
+            long total = 0L;
+            for (ByteBuffer b : buffers) {
+                total += b.remaining();
+            }
+            long largoGrupo = total;
+            while (total > 0L) {
+                total -= canal.write(buffers);
+            }
+            canal.force(false);
+            finDurable += largoGrupo;
+            for (CompletableFuture<Void> f : avisar) {
+                f.complete(null);
+            }
+            // Después de avisar: a una réplica que se anote ahora, o le llega
+            // el registro por aquí, o su instantánea ya lo ve como durable
+            Consumer<byte[]> c = copia;
+            if (c != null) {
+                for (ByteBuffer b : buffers) {
+                    c.accept(Arrays.copyOfRange(b.array(), 4, b.capacity() - 4));
+                }
+            }
+        } catch (IOException ex) {
+            System.out.println("Error escribiendo el diario de subastas: " + ex);
+            for (CompletableFuture<Void> f : avisar) {
+                f.completeExceptionally(ex);
+            }
+            abandonarSegmento();
+        }
+    }
+
+    /**
+     * Tras un fallo de escritura no se sabe qué quedó al final del segmento
+     * (quizá un registro a medias, donde la reproducción se detendría, y
+     * todo lo escrito detrás se perdería al recuperar). Se recorta hasta el
+     * último grupo durable y se sigue en un segmento nuevo. Si no se puede
+     * abrir, el diario queda averiado y rechaza todo lo que se anote.
+     */
+    private void abandonarSegmento() {
+        try {
+            canal.truncate(finDurable);
+            canal.force(false);
+        } catch (IOException ex) {
+            // Se deja como está: la reproducción se detendrá en el registro cortado
+            System.out.println("No se pudo recortar el segmento " + segmentoActual + " del diario: " + ex);
+        }
+        try {
+            canal.close();
+        } catch (IOException ex) {
+            // ignorar
+        }
+        try {
+            canal = abrirSegmento(directorio, segmentoActual + 1);
+            segmentoActual++;
+            finDurable = 0L;
+            System.out.println("Diario de subastas: se sigue en el segmento " + segmentoActual);
+        } catch (IOException ex) {
+            averia = ex;
+            System.out.println("Diario de subastas averiado, se rechazarán las pujas: " + ex);
+        }
+    }
+
+    private void rotarSegmento(CompletableFuture<Void> espera) {
+        if (averia != null) {
+            espera.completeExceptionally(averia);
+            return;
+        }
+        try {
+            FileChannel nuevo = abrirSegmento(directorio, segmentoActual + 1);
+            canal.close();
+            canal = nuevo;
+            segmentoActual++;
+            finDurable = 0L;
+            espera.complete(null);
+        } catch (IOException ex) {
+            System.out.println("Error rotando el diario de subastas: " + ex);
+            espera.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Reproduce sobre los lotes del catálogo los segmentos en [desde, hasta].
+     * Un registro incompleto o corrupto (escritura cortada por la caída)
+     * termina la lectura de su segmento. Devuelve los registros aplicados.
+     */
+    static int reproducir(Path directorio, int desde, int hasta, CatalogoLotes catalogo) throws IOException {
+        int aplicados = 0;
+        for (Integer segmento : listarSegmentos(directorio)) {
+            if (segmento < desde || segmento > hasta) {
+                continue;
+            }
+            byte[] contenido = Files.readAllBytes(rutaSegmento(directorio, segmento));
+            ByteBuffer buf = ByteBuffer.wrap(contenido);
+            while (buf.remaining() >= 4) {
+                int largo = buf.getInt();
+                if (largo <= 0 || buf.remaining() < largo + 4) {
+                    System.out.println("Segmento " + segmento + " del diario termina en un registro incompleto.");
+                    break;
+                }
+                int inicio = buf.position();
+                buf.position(inicio + largo);
+                int crcLeido = buf.getInt();
+                CRC32 crc = new CRC32();
+                crc.update(contenido, inicio, largo);
+                if ((int) crc.getValue() != crcLeido) {
+                    System.out.println("Segmento " + segmento + " del diario tiene un registro corrupto.");
+                    break;
+                }
+                if (aplicar(new DataInputStream(new ByteArrayInputStream(contenido, inicio, largo)),
+                        catalogo, null)) {
+                    aplicados++;
+                }
+            }
+        }
+        return aplicados;
+    }
+
+    /**
+     * Aplica un registro (su contenido, sin largo ni CRC) a los lotes del
+     * catálogo. Devuelve false si no es de un tipo conocido o de un lote que
+     * exista. Si hay oyente, se le avisa de lo que el registro cambió.
+     */
+    static boolean aplicar(DataInputStream in, CatalogoLotes catalogo, OyenteRegistros oyente)
+            throws IOException {
+        byte tipo = in.readByte();
+        long instante = in.readLong();
+        String idLote = in.readUTF();
+        int idSubasta = in.readInt();
+        EstadoSubasta lote = catalogo.getLote(idLote);
+        if (lote == null) {
+            System.out.println("Registro del diario para un lote que ya no existe: " + idLote);
+            return false;
+        }
+        if (tipo == INICIO) {
+            if (lote.aplicarInicio(idSubasta, in.readLong()) && oyente != null) {
+                oyente.inicio(lote, idSubasta);
+            }
+        } else if (tipo == PUJA) {
+            long monto = in.readLong();
+            String idCliente = in.readUTF();
+            String alias = in.readUTF();
+            if (lote.aplicarPuja(idSubasta, monto, idCliente, alias) && oyente != null) {
+                oyente.puja(lote, idSubasta, monto, idCliente, alias);
+            }
+        } else if (tipo == EXTENSION) {
+            if (lote.aplicarExtension(idSubasta, in.readLong(), in.readInt()) && oyente != null) {
+                oyente.extension(lote);
+            }
+        } else if (tipo == FIN) {
+            long monto = in.readLong();
+            String idGanador = in.readUTF();
+            String aliasGanador = in.readUTF();
+            EstadoSubasta.ResumenSubasta resumen = new EstadoSubasta.ResumenSubasta(idSubasta, monto,
+                    idGanador.length() > 0 ? idGanador : null,
+                    aliasGanador.length() > 0 ? aliasGanador : null);
+            if (lote.aplicarFin(idSubasta, resumen.getOfertaMaxima(), resumen.getIdGanador(),
+                    resumen.getAliasGanador(), instante) && oyente != null) {
+                oyente.fin(lote, resumen);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Borra los segmentos anteriores al indicado (ya cubiertos por una instantánea).
+     */
+    static void borrarSegmentosAnteriores(Path directorio, int segmento) throws IOException {
+        for (Integer s : listarSegmentos(directorio)) {
+            if (s < segmento) {
+                Files.deleteIfExists(rutaSegmento(directorio, s));
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package socket.conconexion.servidor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Difunde los NEW_BID de cada lote agrupándolos en ventanas de conflación.
+ * Dentro de una ventana solo se difunde la puja aceptada de mayor monto:
+ * las demás ya quedaron superadas. Con intervalo 0 cada puja se difunde
+ * al momento, como antes. Los NEW_BID solo llegan a los suscritos al lote.
+ * El texto del NEW_BID se arma solo para la puja que se difunde: las que
+ * se quedan en la ventana no crean nada.
+ *
+ * Las pujas se confirman cuando el diario las hace durables, a veces desde
+ * el hilo del diario, así que pueden llegar aquí en otro orden que el de
+ * aceptación: una puja que llega por debajo de lo ya difundido en su
+ * subasta se descarta. Una vez cerrada la subasta (ver cerrar) tampoco se
+ * difunde nada suyo, de modo que ningún NEW_BID sale tras AUCTION_ENDED.
+ */
+public class DifusorPujas {
+
+    /**
+     * Puja pendiente de difundir y cliente que la hizo (ya recibió su BID_OK).
+     * Cada ventana reutiliza la suya, con su cerrojo tomado.
+     */
+    private static final class PujaPendiente {
+        private boolean hay;
+        private int idSubasta;
+        private long monto;
+        private String idCliente;
+        private String alias;
+        private ClienteConectado autor;
+
+        void poner(int idSubasta, long monto, String idCliente, String alias, ClienteConectado autor) {
+            this.hay = true;
+            this.idSubasta = idSubasta;
+            this.monto = monto;
+            this.idCliente = idCliente;
+            this.alias = alias;
+            this.autor = autor;
+        }
+
+        void quitar() {
+            hay = false;
+            idCliente = null;
+            alias = null;
+            autor = null;
+        }
+    }
+
+    /**
+     * Ventana de conflación de un lote. Todo su estado lo protege cerrojo,
+     * que también ordena los envíos con el cierre de la subasta.
+     */
+    private final class Ventana implements Runnable {
+        private final EstadoSubasta lote;
+        private final ReentrantLock cerrojo = new ReentrantLock();
+        private final PujaPendiente pendiente = new PujaPendiente();
+        private boolean programada;
+        // Última subasta cerrada del lote: lo suyo ya no se difunde
+        private int subastaCerrada = -1;
+        // Subasta y monto del último NEW_BID difundido
+        private int subastaDifundida = -1;
+        private long montoDifundido;
+
+        Ventana(EstadoSubasta lote) {
+            this.lote = lote;
+        }
+
+        public void run() {
+            cerrojo.lock();
+            try {
+                programada = false;
+                enviarPendiente();
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+
+        /**
+         * Si una puja ya no se debe difundir: su subasta se cerró o ya se
+         * difundió una igual o mayor. Con el cerrojo tomado.
+         */
+        boolean descartable(int idSubasta, long monto) {
+            return idSubasta <= subastaCerrada || idSubasta < subastaDifundida
+                    || (idSubasta == subastaDifundida && monto <= montoDifundido);
+        }
+
+        /**
+         * Difunde la puja y la anota como la última. Con el cerrojo tomado.
+         */
+        void difundir(int idSubasta, long monto, String mensaje, ClienteConectado autor) {
+            gestorClientes.publicarExcept(lote.getIdLote(), mensaje, autor);
+            subastaDifundida = idSubasta;
+            montoDifundido = monto;
+        }
+
+        /**
+         * Con el cerrojo tomado.
+         */
+        void enviarPendiente() {
+            PujaPendiente p = pendiente;
+            if (p.hay && !descartable(p.idSubasta, p.monto)) {
+                difundir(p.idSubasta, p.monto, HiloServidorSubasta.avisoNuevaPuja(
+                        montos, p.monto, p.idCliente, p.alias, lote), p.autor);
+            }
+            p.quitar();
+        }
+    }
+
+    private final GestorClientes gestorClientes;
+    private final ScheduledExecutorService programador;
+    private final Montos montos;
+    private final ConcurrentHashMap<String, Ventana> ventanas = new ConcurrentHashMap<String, Ventana>();
+
+    public DifusorPujas(GestorClientes gestorClientes, ScheduledExecutorService programador, Montos montos) {
+        this.gestorClientes = gestorClientes;
+        this.programador = programador;
+        this.montos = montos;
+    }
+
+    private Ventana ventana(EstadoSubasta lote) {
+        Ventana ventana = ventanas.get(lote.getIdLote());
+        if (ventana == null) {
+            ventana = ventanas.computeIfAbsent(lote.getIdLote(), id -> new Ventana(lote));
+        }
+        return ventana;
+    }
+
+    /**
+     * Publica el NEW_BID de una puja aceptada en la subasta idSubasta del
+     * lote, hecha por idCliente con ese alias.
+     */
+    public void publicar(EstadoSubasta lote, int idSubasta, long monto, String idCliente, String alias,
+                         ClienteConectado autor) {
+        long intervalo = lote.getConflacionMillis();
+        Ventana ventana = ventana(lote);
+        ventana.cerrojo.lock();
+        try {
+            if (ventana.descartable(idSubasta, monto)) {
+                return;
+            }
+            if (intervalo <= 0L) {
+                ventana.difundir(idSubasta, monto,
+                        HiloServidorSubasta.avisoNuevaPuja(montos, monto, idCliente, alias, lote), autor);
+                return;
+            }
+            PujaPendiente actual = ventana.pendiente;
+            if (!actual.hay || actual.idSubasta < idSubasta
+                    || (actual.idSubasta == idSubasta && actual.monto < monto)) {
+                actual.poner(idSubasta, monto, idCliente, alias, autor);
+            }
+            if (!ventana.programada) {
+                ventana.programada = true;
+                programador.schedule(ventana, intervalo, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            ventana.cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Cierra la subasta del resumen antes de anunciar su fin: difunde la
+     * puja pendiente y, si el último NEW_BID no es el de la oferta ganadora
+     * (que aún esperaba al diario), difunde avisoGanador. Después ya no se
+     * difunde nada de esa subasta, así la oferta ganadora es lo último que
+     * llega antes de AUCTION_ENDED.
+     *
+     * @param avisoGanador NEW_BID de la oferta ganadora, o null si no hubo
+     */
+    public void cerrar(EstadoSubasta lote, EstadoSubasta.ResumenSubasta resumen, String avisoGanador) {
+        Ventana ventana = ventana(lote);
+        ventana.cerrojo.lock();
+        try {
+            ventana.enviarPendiente();
+            int id = resumen.getId();
+            if (avisoGanador != null && !ventana.descartable(id, resumen.getOfertaMaxima())) {
+                ventana.difundir(id, resumen.getOfertaMaxima(), avisoGanador,
+                        gestorClientes.getCliente(resumen.getIdGanador()));
+            }
+            ventana.subastaCerrada = Math.max(ventana.subastaCerrada, id);
+        } finally {
+            ventana.cerrojo.unlock();
+        }
+    }
+}
@@ -0,0 +1,381 @@
+package socket.conconexion.servidor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+import socket.conconexion.bitacora.Bitacora;
+import socket.conconexion.stream.CanalMensajes;
+import socket.conconexion.stream.MiSocketStream;
+
+import static socket.conconexion.servidor.BitacoraSubasta.BITACORA;
+
+/**
+ * Conexión con un relevo (socket.conconexion.relevo.RelevoSubasta): por
+ * ella llegan, multiplexadas, las sesiones de muchos clientes que el
+ * relevo atiende cerca de ellos. Cada sesión se numera en el relevo y
+ * aquí es un cliente más, con su HiloServidorSubasta alimentado por
+ * procesarLinea como en modo NIO.
+ *
+ * Protocolo por líneas (sesion es el número que le dio el relevo, > 0):
+ *  relevo -> servidor
+ *   A <secreto>                primera línea, si el servidor pide secreto
+ *   O <sesion> <ip> <puerto>   se conectó un cliente
+ *   L <sesion> <línea>         línea del cliente
+ *   C <sesion>                 el cliente se desconectó
+ *  servidor -> relevo
+ *   R <sesion> <línea>         respuesta para una sesión
+ *   P <temas> <excluida> <línea>
+ *                              aviso para las sesiones suscritas a alguno de
+ *                              los temas (separados por comas; * = todas),
+ *                              salvo la excluida (0 = ninguna)
+ *   S <sesion> <tema>          la sesión se suscribió al tema
+ *   U <sesion> <tema>          la sesión dejó el tema
+ *   C <sesion>                 el servidor cerró la sesión
+ *
+ * Un broadcast cuesta una línea P por enlace, no una por cliente: el
+ * enlace está en el grupo de un tema mientras alguna de sus sesiones esté
+ * suscrita (ver GestorClientes), y el relevo reparte el aviso según las S y
+ * U que recibió. Las P pasan por una cola de salida propia del enlace, así
+ * que difundir nunca espera a la red; las respuestas se agregan al socket
+ * y se vacían al terminar cada tanda de entrada, como en una sesión normal.
+ * Un solo hilo lee el enlace y atiende todas sus sesiones. Lo que se
+ * responde desde otro hilo (una puja que confirma el diario o el líder del
+ * cluster) va por una segunda cola, que no pierde líneas: si el relevo no
+ * la consume a tiempo se corta el enlace.
+ */
+class EnlaceRelevo implements Runnable {
+
+    // Avisos que puede acumular un relevo atrasado antes de perder los más antiguos
+    static final int CAPACIDAD_COLA = 65536;
+
+    private final MiSocketStream flujo;
+    private final ColaSalida colaAvisos;
+    private final ColaSalida colaRespuestas;
+    private final CatalogoLotes catalogo;
+    private final GestorClientes gestorClientes;
+    private final DifusorPujas difusorPujas;
+    private final String nombre;
+    // Secreto que debe presentar el relevo, o null si no se pide
+    private final byte[] secreto;
+
+    // Sesiones abiertas por número (solo las toca el hilo del enlace)
+    private final HashMap<Integer, CanalSesion> sesiones = new HashMap<Integer, CanalSesion>();
+    // Sesiones suscritas a cada tema; se modifica con el cerrojo tomado
+    private final ConcurrentHashMap<String, Integer> suscritas = new ConcurrentHashMap<String, Integer>();
+    private final ReentrantLock cerrojo = new ReentrantLock();
+    // Hilo que lee el enlace: solo él escribe directamente en el socket
+    private volatile Thread hiloEnlace;
+
+    // Línea de salida en construcción (R, S, U y C salen de varios hilos)
+    private static final ThreadLocal<StringBuilder> LINEA = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(128);
+        }
+    };
+
+    EnlaceRelevo(MiSocketStream flujo, Executor escritor, byte[] secreto,
+                 CatalogoLotes catalogo, GestorClientes gestorClientes, DifusorPujas difusorPujas) {
+        this.flujo = flujo;
+        this.secreto = secreto;
+        this.colaAvisos = new ColaSalida(flujo, CAPACIDAD_COLA, ColaSalida.Politica.DESCARTAR_ANTIGUO, escritor);
+        this.colaRespuestas = new ColaSalida(flujo, CAPACIDAD_COLA, ColaSalida.Politica.DESCONECTAR, escritor);
+        this.catalogo = catalogo;
+        this.gestorClientes = gestorClientes;
+        this.difusorPujas = difusorPujas;
+        this.nombre = flujo.getInetAddress().getHostAddress() + ":" + flujo.getPort();
+    }
+
+    public void run() {
+        hiloEnlace = Thread.currentThread();
+        try {
+            if (!autenticar()) {
+                BITACORA.aviso("relevo_rechazado", nombre + ": secreto incorrecto");
+                flujo.close();
+                return;
+            }
+        } catch (IOException ex) {
+            BITACORA.aviso("relevo_rechazado", nombre + ": " + ex);
+            try {
+                flujo.close();
+            } catch (IOException ex2) {
+                // ignorar
+            }
+            return;
+        }
+        gestorClientes.agregarEnlace(this);
+        BITACORA.info("relevo_conectado", nombre);
+        try {
+            while (true) {
+                int largo = flujo.recibeLinea();
+                if (largo < 0) {
+                    break;
+                }
+                procesarLinea(flujo.getLinea(), largo);
+                if (!flujo.hayLineaPendiente()) {
+                    // Fin de la tanda: enviar lo respondido a todas las sesiones
+                    flujo.vacia();
+                }
+            }
+        } catch (Exception ex) {
+            BITACORA.aviso("relevo_excepcion", nombre + ": " + ex);
+        } finally {
+            cerrar();
+        }
+    }
+
+    /**
+     * Lee la línea A del relevo si se pide secreto. Devuelve false si no
+     * llegó o no coincide.
+     */
+    private boolean autenticar() throws IOException {
+        if (secreto == null) {
+            return true;
+        }
+        int largo = flujo.recibeLinea();
+        byte[] datos = flujo.getLinea();
+        if (largo < 2 || datos[0] != 'A' || datos[1] != ' ') {
+            return false;
+        }
+        return MessageDigest.isEqual(secreto, Arrays.copyOfRange(datos, 2, largo));
+    }
+
+    private void procesarLinea(byte[] datos, int largo) throws IOException {
+        if (largo < 3 || datos[1] != ' ') {
+            throw new IOException("Línea de relevo mal formada");
+        }
+        int pos = 2;
+        int sesion = 0;
+        while (pos < largo && datos[pos] != ' ') {
+            int digito = datos[pos++] - '0';
+            if (digito < 0 || digito > 9) {
+                throw new IOException("Número de sesión mal formado");
+            }
+            sesion = sesion * 10 + digito;
+        }
+        int resto = Math.min(pos + 1, largo);
+        switch (datos[0]) {
+            case 'L':
+                CanalSesion canal = sesiones.get(sesion);
+                if (canal != null && !canal.sesion.procesarLinea(datos, resto, largo - resto)) {
+                    cerrarSesion(sesion, true);
+                }
+                break;
+            case 'O':
+                abrirSesion(sesion, new String(datos, resto, largo - resto, StandardCharsets.UTF_8));
+                break;
+            case 'C':
+                cerrarSesion(sesion, false);
+                break;
+            default:
+                throw new IOException("Tipo de línea de relevo desconocido: " + (char) datos[0]);
+        }
+    }
+
+    private void abrirSesion(int sesion, String origen) {
+        if (sesion <= 0 || sesiones.containsKey(sesion)) {
+            return;
+        }
+        int espacio = origen.indexOf(' ');
+        InetAddress ip = null;
+        int puerto = 0;
+        try {
+            // Siempre es una IP literal: no consulta el DNS
+            ip = InetAddress.getByName((espacio < 0) ? origen : origen.substring(0, espacio));
+            puerto = (espacio < 0) ? 0 : Integer.parseInt(origen.substring(espacio + 1));
+        } catch (Exception ex) {
+            // Origen desconocido: la sesión sigue sin IP (STATS no se le admite)
+        }
+        CanalSesion canal = new CanalSesion(sesion, ip, puerto);
+        ClienteConectado cliente = gestorClientes.registrarSesionRelevo(canal, this, sesion);
+        canal.sesion = new HiloServidorSubasta(cliente, catalogo, gestorClientes, difusorPujas);
+        sesiones.put(sesion, canal);
+    }
+
+    /**
+     * @param avisar true si la cierra el servidor (QUIT) y hay que
+     *               decírselo al relevo
+     */
+    private void cerrarSesion(int sesion, boolean avisar) {
+        CanalSesion canal = sesiones.remove(sesion);
+        if (canal != null) {
+            canal.avisarCierre = avisar;
+            canal.sesion.cerrarSesion();
+        }
+    }
+
+    /**
+     * El relevo se fue: sus sesiones terminan como si cada cliente se
+     * hubiera desconectado.
+     */
+    private void cerrar() {
+        gestorClientes.quitarEnlace(this);
+        for (CanalSesion canal : new ArrayList<CanalSesion>(sesiones.values())) {
+            cerrarSesion(canal.numero, false);
+        }
+        try {
+            flujo.close();
+        } catch (IOException ex) {
+            // ignorar
+        }
+        BITACORA.registrar(Bitacora.Nivel.INFO, "relevo_desconectado", null, null,
+                Bitacora.SIN_SUBASTA, Bitacora.SIN_MONTO, nombre);
+    }
+
+    /**
+     * Anota una sesión más suscrita al tema. Devuelve true si es la
+     * primera (el enlace entra en el grupo del tema).
+     */
+    boolean sumarSuscrita(String tema) {
+        cerrojo.lock();
+        try {
+            Integer n = suscritas.get(tema);
+            suscritas.put(tema, (n == null) ? 1 : n + 1);
+            return n == null;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Anota una sesión menos suscrita al tema. Devuelve true si era la
+     * última (el enlace sale del grupo del tema).
+     */
+    boolean restarSuscrita(String tema) {
+        cerrojo.lock();
+        try {
+            Integer n = suscritas.get(tema);
+            if (n == null) {
+                return false;
+            }
+            if (n.intValue() > 1) {
+                suscritas.put(tema, n - 1);
+                return false;
+            }
+            suscritas.remove(tema);
+            return true;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Si alguna sesión del enlace está suscrita al tema.
+     */
+    boolean estaSuscrito(String tema) {
+        return suscritas.containsKey(tema);
+    }
+
+    void avisarSuscripcion(int sesion, String tema, boolean suscrita) {
+        StringBuilder linea = LINEA.get();
+        linea.setLength(0);
+        linea.append(suscrita ? "S " : "U ").append(sesion).append(' ').append(tema);
+        enviar(linea);
+    }
+
+    /**
+     * Agrega una línea R, S, U o C. Desde el hilo del enlace va directa al
+     * socket, que se vacía al final de la tanda; desde cualquier otro hilo
+     * se encola, para no escribir nunca en la red desde el diario ni desde
+     * el cluster.
+     */
+    private void enviar(StringBuilder linea) {
+        if (Thread.currentThread() == hiloEnlace) {
+            flujo.agregaMensaje(linea);
+        } else if (!colaRespuestas.encolar(linea.toString())) {
+            BITACORA.aviso("relevo_atrasado", nombre + " no consume sus respuestas: se cierra");
+            try {
+                flujo.close();
+            } catch (IOException ex) {
+                // ignorar
+            }
+        }
+    }
+
+    /**
+     * Línea P de un aviso para los suscritos al tema (a todos si es null) y,
+     * con lobby, también a los de LOBBY.
+     */
+    static String lineaPublicacion(String tema, boolean lobby, int excluida, String mensaje) {
+        String temas = (tema == null) ? "*" : lobby ? tema + "," + GestorClientes.TEMA_LOBBY : tema;
+        return "P " + temas + " " + excluida + " " + mensaje;
+    }
+
+    /**
+     * Encola una línea P sin esperar a la red.
+     */
+    void publicar(String linea) {
+        colaAvisos.encolar(linea);
+    }
+
+    @Override
+    public String toString() {
+        return nombre;
+    }
+
+    /**
+     * Canal de una sesión: sus respuestas salen por el enlace como líneas R.
+     */
+    private final class CanalSesion implements CanalMensajes {
+        final int numero;
+        private final InetAddress ip;
+        private final int puerto;
+        HiloServidorSubasta sesion;
+        // Si al cerrarla hay que enviar C al relevo (no cuando el cierre vino de él)
+        boolean avisarCierre;
+
+        CanalSesion(int numero, InetAddress ip, int puerto) {
+            this.numero = numero;
+            this.ip = ip;
+            this.puerto = puerto;
+        }
+
+        public void enviaMensaje(String mensaje) {
+            agregaMensaje(mensaje);
+            vacia();
+        }
+
+        @Override
+        public void agregaMensaje(CharSequence mensaje) {
+            StringBuilder linea = LINEA.get();
+            linea.setLength(0);
+            linea.append("R ").append(numero).append(' ').append(mensaje);
+            enviar(linea);
+        }
+
+        /**
+         * Fuera del hilo del enlace no hace nada: la cola de respuestas se
+         * vacía sola.
+         */
+        @Override
+        public void vacia() {
+            if (Thread.currentThread() == hiloEnlace) {
+                flujo.vacia();
+            }
+        }
+
+        public InetAddress getInetAddress() {
+            return ip;
+        }
+
+        public int getPort() {
+            return puerto;
+        }
+
+        public void close() {
+            if (avisarCierre) {
+                StringBuilder linea = LINEA.get();
+                linea.setLength(0);
+                linea.append("C ").append(numero);
+                enviar(linea);
+            }
+        }
+    }
+}
@@ -1,28 +1,90 @@
 package socket.conconexion.servidor;
 
-import java.util.ArrayList;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import socket.conconexion.bitacora.Bitacora;
+
+import static socket.conconexion.servidor.BitacoraSubasta.BITACORA;
 
 /**
- * Mantiene el estado global de las subastas.
+ * Mantiene el estado de las subastas de un lote.
  * Gestiona:
  *  - Subasta actual (id, oferta, ganador)
  *  - Cooldown entre subastas
  *  - Número mínimo de participantes
- *  - Historial de subastas finalizadas
+ *  - Historial de subastas finalizadas (en un fichero mapeado, ver HistorialSubastas)
+ *
+ * La oferta vigente (id de subasta, monto, ganador, fin y fin del
+ * cooldown) vive en un objeto inmutable que se reemplaza con
+ * compareAndSet: las pujas y las consultas no toman ningún cerrojo, y una
+ * consulta ve todos los campos de un mismo momento con una sola lectura.
+ * El ReentrantLock solo ordena las transiciones de inicio/fin de subasta y
+ * el registro de participantes.
+ *
+ * La línea CURRENT de STATUS se formatea una vez por versión de la oferta
+ * vigente y segundo restante (ver getLineaCurrent): con muchos clientes
+ * consultando, todos reciben el mismo String.
+ *
+ * Las transiciones se anotan en el diario de subastas: el inicio se anota
+ * antes de abrir la subasta a pujas, y cada puja aceptada la anota quien
+ * la hizo (anotarPuja) antes de confirmarla. Tras una caída, el estado se
+ * reconstruye con leerInstantanea y los métodos aplicarXxx, que son
+ * idempotentes: reproducir un registro ya reflejado no cambia nada. Las
+ * réplicas de un clúster siguen al líder con esos mismos métodos (ver
+ * NodoCluster) y se ponen al día del historial con escribirHistorialDesde.
+ *
+ * Los montos son long en unidades mínimas de la moneda (ver Montos). Una
+ * oferta debe superar la vigente en al menos el incremento mínimo del lote;
+ * la primera, ser de al menos ese incremento.
+ *
+ * Con cierre suave (ver CierreSuave), la puja aceptada cerca del final
+ * alarga la subasta en el mismo compareAndSet que la publica: el fin viaja
+ * en la oferta vigente, así que getSegundosRestantes y el cierre lo ven
+ * siempre junto con la oferta que lo movió. El temporizador no se
+ * reprograma en cada puja: al vencer el fin original ve que se movió y
+ * espera al nuevo. Tampoco se lee el reloj en cada puja: el temporizador
+ * abre la ventana de cierre (abrirVentanaCierre) cuando empieza, y solo
+ * desde entonces las pujas miran la hora.
+ *
+ * Una puja se publica antes de llegar al diario. Mientras no es durable,
+ * su oferta vigente recuerda la que reemplazó (anterior); si la escritura
+ * falla, la oferta vuelve a la última que no falló, con su fin (ver
+ * alAnotar). El cierre espera a que la oferta ganadora sea durable, y las
+ * instantáneas solo guardan ofertas durables: una puja que no llegó al
+ * diario nunca gana ni se recupera.
  */
 public class EstadoSubasta {
 
+    // Motivos de rechazo que devuelve registrarOferta
+    public static final int RECHAZO_MENOR_A_ACTUAL = -1;
+    public static final int RECHAZO_INCREMENTO_INSUFICIENTE = -2;
+    public static final int RECHAZO_SUBASTA_CERRADA = -3;
+
+    // Textos de estado (ver getEstadoTexto); getLineaCurrent los compara por referencia
+    private static final String EN_CURSO = "EN_CURSO";
+    private static final String COOLDOWN = "COOLDOWN";
+    private static final String ESPERANDO_PARA_INICIAR = "ESPERANDO_PARA_INICIAR";
+
+    // Resúmenes que se leen de una vez al poner al día el historial de una réplica
+    private static final int MAX_PAGINA_REPLICA = 512;
+
     /**
      * Estructura para guardar el resumen de cada subasta finalizada.
      */
     public static class ResumenSubasta {
         private final int id;
-        private final double ofertaMaxima;
+        private final long ofertaMaxima;
         private final String idGanador;
         private final String aliasGanador;
 
-        public ResumenSubasta(int id, double ofertaMaxima, String idGanador, String aliasGanador) {
+        public ResumenSubasta(int id, long ofertaMaxima, String idGanador, String aliasGanador) {
             this.id = id;
             this.ofertaMaxima = ofertaMaxima;
             this.idGanador = idGanador;
@@ -33,7 +95,7 @@ public class EstadoSubasta {
             return id;
         }
 
-        public double getOfertaMaxima() {
+        public long getOfertaMaxima() {
             return ofertaMaxima;
         }
 
@@ -46,51 +108,214 @@ public class EstadoSubasta {
         }
     }
 
-    private double ofertaMaxima;
-    private String idClienteGanador;
-    private String aliasGanador;
+    /**
+     * Oferta vigente de la subasta actual. Nunca se modifica: cada puja
+     * aceptada, inicio o cierre publica una instancia nueva. Solo guarda
+     * aparte la última línea CURRENT formateada a partir de ella y, para una
+     * puja aún no durable, cómo va su anotación en el diario.
+     */
+    private static final class OfertaVigente {
+        private final int idSubasta;
+        private final long monto;
+        private final String idCliente;
+        private final String alias;
+        private final long tiempoFin;
+        // Veces que el cierre suave alargó esta subasta
+        private final int extensiones;
+        private final boolean abierta;
+        // Instante (ms) en que termina el cooldown tras la última subasta, o 0
+        private final long finCooldown;
+        // Si esta puja alargó la subasta (su extensión se anota con ella)
+        private final boolean alargada;
+        // Anotación de esta puja en el diario, o null si no hay que esperarla
+        private final CompletableFuture<Void> anotacion;
+        // Oferta que esta puja reemplazó, mientras la puja no sea durable
+        private volatile OfertaVigente anterior;
+        // Su anotación falló: no cuenta (ver alAnotar)
+        private volatile boolean fallida;
+        // Sin volatile: LineaCurrent es inmutable, y perder una carrera solo
+        // hace que otro hilo la vuelva a formatear
+        private LineaCurrent lineaCurrent;
+
+        OfertaVigente(int idSubasta, long monto, String idCliente, String alias,
+                      long tiempoFin, int extensiones, boolean abierta, long finCooldown) {
+            this(idSubasta, monto, idCliente, alias, tiempoFin, extensiones, abierta, finCooldown,
+                    false, null, null);
+        }
+
+        private OfertaVigente(int idSubasta, long monto, String idCliente, String alias,
+                              long tiempoFin, int extensiones, boolean abierta, long finCooldown,
+                              boolean alargada, CompletableFuture<Void> anotacion, OfertaVigente anterior) {
+            this.idSubasta = idSubasta;
+            this.monto = monto;
+            this.idCliente = idCliente;
+            this.alias = alias;
+            this.tiempoFin = tiempoFin;
+            this.extensiones = extensiones;
+            this.abierta = abierta;
+            this.finCooldown = finCooldown;
+            this.alargada = alargada;
+            this.anotacion = anotacion;
+            this.anterior = anterior;
+        }
+
+        /**
+         * Puja ya durable (reproducida o replicada).
+         */
+        OfertaVigente conPuja(long nuevoMonto, String nuevoIdCliente, String nuevoAlias) {
+            return new OfertaVigente(idSubasta, nuevoMonto, nuevoIdCliente, nuevoAlias,
+                    tiempoFin, extensiones, true, finCooldown);
+        }
 
-    private int idSubastaActual;
+        /**
+         * Puja que se anotará en el diario; nuevoFin distinto de tiempoFin si
+         * la alarga. Con anotacion, es durable cuando esta se complete.
+         */
+        OfertaVigente conPuja(long nuevoMonto, String nuevoIdCliente, String nuevoAlias,
+                              long nuevoFin, CompletableFuture<Void> anotacion) {
+            boolean alarga = nuevoFin != tiempoFin;
+            return new OfertaVigente(idSubasta, nuevoMonto, nuevoIdCliente, nuevoAlias,
+                    nuevoFin, alarga ? extensiones + 1 : extensiones, true, finCooldown,
+                    alarga, anotacion, (anotacion != null) ? this : null);
+        }
+
+        OfertaVigente cerrada(long nuevoFinCooldown) {
+            return new OfertaVigente(idSubasta, monto, idCliente, alias, tiempoFin, extensiones,
+                    false, nuevoFinCooldown);
+        }
+
+        long segundosRestantes(long ahora) {
+            if (abierta && tiempoFin > 0L) {
+                long diff = tiempoFin - ahora;
+                return (diff > 0L) ? (diff / 1000L) : 0L;
+            }
+            if (!abierta && finCooldown > 0L && ahora < finCooldown) {
+                return (finCooldown - ahora) / 1000L;
+            }
+            return 0L;
+        }
+
+        String estadoTexto(long ahora) {
+            if (abierta) {
+                return EN_CURSO;
+            }
+            if (finCooldown > 0L && ahora < finCooldown) {
+                return COOLDOWN;
+            }
+            return ESPERANDO_PARA_INICIAR;
+        }
+    }
+
+    /**
+     * Línea CURRENT ya formateada y lo único que puede cambiar en ella sin
+     * que cambie la oferta vigente: los segundos restantes y el estado.
+     */
+    private static final class LineaCurrent {
+        private final long segundosRestantes;
+        private final String estado;
+        private final String texto;
+
+        LineaCurrent(long segundosRestantes, String estado, String texto) {
+            this.segundosRestantes = segundosRestantes;
+            this.estado = estado;
+            this.texto = texto;
+        }
+    }
+
+    private final AtomicReference<OfertaVigente> ofertaVigente =
+            new AtomicReference<OfertaVigente>(new OfertaVigente(0, 0L, null, null, 0L, 0, false, 0L));
+
+    private final String idLote;
     private int idSiguienteSubasta;
 
     private final long duracionSubastaMillis;
     private final long cooldownMillis;
+    // Ventana de conflación de los NEW_BID de este lote (0 = difundir cada puja)
+    private final long conflacionMillis;
+    // Lo mínimo que una oferta debe superar a la vigente, en unidades mínimas
+    private final long incrementoMinimo;
+    private final CierreSuave cierreSuave;
+    // Subasta cuya ventana de cierre suave ya empezó (ver abrirVentanaCierre)
+    private volatile int ventanaCierreAbierta;
 
-    private long tiempoFinSubasta;
-    private long tiempoFinCooldown;
+    private final int minParticipantes;
+    private volatile int participantesPreparados; // clientes que hicieron JOIN para la próxima subasta
 
-    private boolean subastaEnCurso;
+    private final HistorialSubastas historial;
 
-    private final int minParticipantes;
-    private int participantesPreparados; // clientes que hicieron JOIN para la próxima subasta
+    private final ReentrantLock cerrojo = new ReentrantLock();
+
+    private final DiarioSubastas diario;
+    // Última puja que registrarOferta aceptó en cada hilo, para anotarPuja
+    private final ThreadLocal<OfertaVigente> ultimaAceptada = new ThreadLocal<OfertaVigente>();
 
-    private final List<ResumenSubasta> historial = new ArrayList<ResumenSubasta>();
+    // Ver setAvisoParticipantes y setAvisoExtension
+    private volatile Runnable avisoParticipantes;
+    private volatile Runnable avisoExtension;
 
-    public EstadoSubasta(long duracionSubastaMillis, long cooldownMillis, int minParticipantes) {
+    public EstadoSubasta(String idLote, long duracionSubastaMillis, long cooldownMillis,
+                         int minParticipantes, long conflacionMillis, long incrementoMinimo,
+                         CierreSuave cierreSuave, DiarioSubastas diario, HistorialSubastas historial) {
+        this.idLote = idLote;
+        this.diario = diario;
+        this.historial = historial;
         this.duracionSubastaMillis = duracionSubastaMillis;
         this.cooldownMillis = cooldownMillis;
+        this.conflacionMillis = conflacionMillis;
+        this.incrementoMinimo = incrementoMinimo;
+        this.cierreSuave = cierreSuave;
         this.minParticipantes = minParticipantes;
-        this.idSubastaActual = 0;
         this.idSiguienteSubasta = 1;
-        this.subastaEnCurso = false;
-        this.tiempoFinSubasta = 0L;
-        this.tiempoFinCooldown = 0L;
         this.participantesPreparados = 0;
-        this.ofertaMaxima = 0.0;
     }
 
     /**
      * Registra que un cliente se apunta para la siguiente subasta.
      * Cada cliente cuenta solo una vez por subasta.
      */
-    public synchronized void registrarParticipanteParaSiguienteSubasta(ClienteConectado cliente) {
-        if (cliente.getUltimaSubastaRegistrada() < idSiguienteSubasta) {
-            cliente.setUltimaSubastaRegistrada(idSiguienteSubasta);
-            participantesPreparados++;
-            System.out.println("Cliente " + cliente.getIdCliente()
-                    + " registrado para subasta " + idSiguienteSubasta +
-                    ". Total participantes listos: " + participantesPreparados);
+    public void registrarParticipanteParaSiguienteSubasta(ClienteConectado cliente) {
+        boolean suficientes = false;
+        int idSubasta = Bitacora.SIN_SUBASTA;
+        int listos = 0;
+        bloquear();
+        try {
+            if (cliente.getUltimaSubastaRegistrada(idLote) < idSiguienteSubasta) {
+                cliente.setUltimaSubastaRegistrada(idLote, idSiguienteSubasta);
+                participantesPreparados++;
+                suficientes = participantesPreparados >= minParticipantes;
+                idSubasta = idSiguienteSubasta;
+                listos = participantesPreparados;
+            }
+        } finally {
+            cerrojo.unlock();
         }
+        if (idSubasta != Bitacora.SIN_SUBASTA && BITACORA.activo(Bitacora.Nivel.INFO)) {
+            BITACORA.registrar(Bitacora.Nivel.INFO, "participante_registrado", cliente.getIdCliente(),
+                    idLote, idSubasta, Bitacora.SIN_MONTO, "listos=" + listos);
+        }
+        Runnable aviso = avisoParticipantes;
+        if (suficientes && aviso != null) {
+            aviso.run();
+        }
+    }
+
+    /**
+     * Tarea que se ejecuta (fuera del cerrojo) cada vez que un JOIN deja al
+     * lote con participantes suficientes: el temporizador la usa para iniciar
+     * la subasta en ese momento en lugar de esperar a su siguiente revisión.
+     */
+    void setAvisoParticipantes(Runnable aviso) {
+        this.avisoParticipantes = aviso;
+    }
+
+    /**
+     * Tarea que se ejecuta (en el hilo de la puja) cada vez que el cierre
+     * suave alarga la subasta en curso, o (en el hilo del diario) cuando el
+     * fin vuelve atrás al deshacerse una puja. Debe ser breve: el
+     * temporizador solo encola el anuncio del nuevo fin.
+     */
+    void setAvisoExtension(Runnable aviso) {
+        this.avisoExtension = aviso;
     }
 
     /**
@@ -99,78 +324,196 @@ public class EstadoSubasta {
      * - El cooldown ha terminado (o nunca ha habido)
      * - Hay al menos minParticipantes registrados para la siguiente subasta
      */
-    public synchronized boolean condicionesParaIniciar() {
-        long ahora = System.currentTimeMillis();
-        boolean cooldownTerminado = (tiempoFinCooldown == 0L) || (ahora >= tiempoFinCooldown);
-        return !subastaEnCurso && cooldownTerminado && participantesPreparados >= minParticipantes;
+    public boolean condicionesParaIniciar() {
+        OfertaVigente actual = ofertaVigente.get();
+        boolean cooldownTerminado = (actual.finCooldown == 0L)
+                || (System.currentTimeMillis() >= actual.finCooldown);
+        return !actual.abierta && cooldownTerminado
+                && participantesPreparados >= minParticipantes;
     }
 
     /**
      * Inicia una nueva subasta si las condiciones se cumplen.
      * Devuelve el id de la subasta o -1 si no se inició.
      */
-    public synchronized int iniciarSubasta() {
-        if (!condicionesParaIniciar()) {
-            return -1;
+    public int iniciarSubasta() {
+        bloquear();
+        try {
+            if (!condicionesParaIniciar()) {
+                return -1;
+            }
+            int id = idSiguienteSubasta;
+            idSiguienteSubasta++;
+
+            long tiempoFin = System.currentTimeMillis() + duracionSubastaMillis;
+            // Anotado antes de abrir: ninguna puja de esta subasta queda antes que su inicio
+            diario.registrarInicio(idLote, id, tiempoFin);
+            ofertaVigente.set(new OfertaVigente(id, 0L, null, null, tiempoFin, 0, true,
+                    ofertaVigente.get().finCooldown));
+
+            BITACORA.registrar(Bitacora.Nivel.INFO, "subasta_iniciada", null, idLote, id,
+                    Bitacora.SIN_MONTO, null);
+            return id;
+        } finally {
+            cerrojo.unlock();
         }
-        subastaEnCurso = true;
-        idSubastaActual = idSiguienteSubasta;
-        idSiguienteSubasta++;
+    }
 
-        ofertaMaxima = 0.0;
-        idClienteGanador = null;
-        aliasGanador = null;
+    /**
+     * Finaliza la subasta actual, inicia el cooldown y guarda el resumen.
+     * El cierre es un compareAndSet sobre la oferta vigente: toda puja que
+     * llegó antes queda en el resumen y ninguna se acepta después.
+     */
+    public ResumenSubasta finalizarSubasta() {
+        bloquear();
+        try {
+            long ahora = System.currentTimeMillis();
+            OfertaVigente actual;
+            do {
+                actual = ofertaVigente.get();
+                if (!actual.abierta) {
+                    return null;
+                }
+            } while (!ofertaVigente.compareAndSet(actual, actual.cerrada(ahora + cooldownMillis)));
+
+            // La ganadora es la última puja que llegó al diario
+            OfertaVigente ganadora = esperarDurable(actual);
+            if (ganadora != actual) {
+                ofertaVigente.set(ganadora.cerrada(ahora + cooldownMillis));
+                BITACORA.registrar(Bitacora.Nivel.AVISO, "puja_revertida", actual.idCliente, idLote,
+                        actual.idSubasta, actual.monto, "no llegó al diario antes del cierre");
+                actual = ganadora;
+            }
+            ResumenSubasta resumen = new ResumenSubasta(
+                    actual.idSubasta, actual.monto, actual.idCliente, actual.alias);
+            diario.registrarFin(idLote, resumen);
+            guardarEnHistorial(resumen, ahora);
+
+            participantesPreparados = 0; // Para la próxima subasta
+            BITACORA.registrar(Bitacora.Nivel.INFO, "subasta_finalizada", actual.idCliente, idLote,
+                    actual.idSubasta, actual.monto, null);
+            return resumen;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
 
-        tiempoFinSubasta = System.currentTimeMillis() + duracionSubastaMillis;
+    /**
+     * La oferta, o la última anterior a ella, cuya puja llegó al diario;
+     * espera a las que aún se están escribiendo.
+     */
+    private static OfertaVigente esperarDurable(OfertaVigente oferta) {
+        while (true) {
+            OfertaVigente anterior = oferta.anterior;
+            if (anterior == null) {
+                return oferta;
+            }
+            try {
+                oferta.anotacion.join();
+                return oferta;
+            } catch (CompletionException | CancellationException ex) {
+                oferta = anterior;
+            }
+        }
+    }
 
-        System.out.println(">>> Subasta " + idSubastaActual + " iniciada.");
-        return idSubastaActual;
+    /**
+     * La oferta, o la última anterior a ella, cuya puja ya es durable (sin
+     * esperar a las pendientes).
+     */
+    private static OfertaVigente durable(OfertaVigente oferta) {
+        OfertaVigente anterior;
+        while ((anterior = oferta.anterior) != null) {
+            oferta = anterior;
+        }
+        return oferta;
     }
 
     /**
-     * Finaliza la subasta actual, inicia el cooldown y guarda el resumen.
+     * Toma el cerrojo del lote y, si estaba ocupado, anota cuánto se esperó.
+     * Sin competencia solo cuesta el tryLock.
      */
-    public synchronized ResumenSubasta finalizarSubasta() {
-        if (!subastaEnCurso) {
-            return null;
+    private void bloquear() {
+        if (cerrojo.tryLock()) {
+            return;
         }
-        subastaEnCurso = false;
-        tiempoFinCooldown = System.currentTimeMillis() + cooldownMillis;
+        long inicio = System.nanoTime();
+        cerrojo.lock();
+        MetricasSubasta.ESPERA_CERROJO.registrar(System.nanoTime() - inicio);
+    }
 
-        ResumenSubasta resumen = new ResumenSubasta(
-                idSubastaActual, ofertaMaxima, idClienteGanador, aliasGanador);
-        historial.add(resumen);
+    public String getIdLote() {
+        return idLote;
+    }
+
+    public boolean isSubastaEnCurso() {
+        return ofertaVigente.get().abierta;
+    }
 
-        participantesPreparados = 0; // Para la próxima subasta
-        System.out.println(">>> Subasta " + idSubastaActual + " finalizada.");
-        return resumen;
+    public long getOfertaMaxima() {
+        return ofertaVigente.get().monto;
     }
 
-    public synchronized boolean isSubastaEnCurso() {
-        return subastaEnCurso;
+    public String getIdClienteGanador() {
+        return ofertaVigente.get().idCliente;
     }
 
-    public synchronized double getOfertaMaxima() {
-        return ofertaMaxima;
+    public String getAliasGanador() {
+        return ofertaVigente.get().alias;
     }
 
-    public synchronized String getIdClienteGanador() {
-        return idClienteGanador;
+    public int getIdSubastaActual() {
+        return ofertaVigente.get().idSubasta;
     }
 
-    public synchronized String getAliasGanador() {
-        return aliasGanador;
+    /**
+     * Si la subasta con ese id aún no ha terminado (no ha empezado o está
+     * en curso).
+     */
+    boolean subastaPendiente(int idSubasta) {
+        OfertaVigente actual = ofertaVigente.get();
+        return actual.idSubasta < idSubasta || (actual.idSubasta == idSubasta && actual.abierta);
     }
 
-    public synchronized int getIdSubastaActual() {
-        return idSubastaActual;
+    /**
+     * Instante (ms) en que termina la subasta en curso, o 0 si no hay ninguna.
+     */
+    public long getTiempoFinSubasta() {
+        OfertaVigente actual = ofertaVigente.get();
+        return actual.abierta ? actual.tiempoFin : 0L;
+    }
+
+    /**
+     * Instante (ms) en que termina el cooldown actual, o 0 si nunca hubo.
+     */
+    public long getTiempoFinCooldown() {
+        return ofertaVigente.get().finCooldown;
     }
 
-    public synchronized long getDuracionSubastaMillis() {
+    public long getDuracionSubastaMillis() {
         return duracionSubastaMillis;
     }
 
-    public synchronized long getCooldownSeconds() {
+    public long getConflacionMillis() {
+        return conflacionMillis;
+    }
+
+    public long getIncrementoMinimo() {
+        return incrementoMinimo;
+    }
+
+    public CierreSuave getCierreSuave() {
+        return cierreSuave;
+    }
+
+    /**
+     * Veces que el cierre suave alargó la subasta en curso (o la última).
+     */
+    public int getExtensiones() {
+        return ofertaVigente.get().extensiones;
+    }
+
+    public long getCooldownSeconds() {
         return cooldownMillis / 1000L;
     }
 
@@ -180,17 +523,8 @@ public class EstadoSubasta {
      *  - Si no hay subasta y está en cooldown: hasta el fin del cooldown.
      *  - En otros casos: 0.
      */
-    public synchronized long getSegundosRestantes() {
-        long ahora = System.currentTimeMillis();
-        if (subastaEnCurso && tiempoFinSubasta > 0L) {
-            long diff = tiempoFinSubasta - ahora;
-            return (diff > 0L) ? (diff / 1000L) : 0L;
-        }
-        if (!subastaEnCurso && tiempoFinCooldown > 0L && ahora < tiempoFinCooldown) {
-            long diff = tiempoFinCooldown - ahora;
-            return (diff > 0L) ? (diff / 1000L) : 0L;
-        }
-        return 0L;
+    public long getSegundosRestantes() {
+        return ofertaVigente.get().segundosRestantes(System.currentTimeMillis());
     }
 
     /**
@@ -199,37 +533,401 @@ public class EstadoSubasta {
      *  - COOLDOWN
      *  - ESPERANDO_PARA_INICIAR
      */
-    public synchronized String getEstadoTexto() {
+    public String getEstadoTexto() {
+        return ofertaVigente.get().estadoTexto(System.currentTimeMillis());
+    }
+
+    /**
+     * Línea de estado para STATUS y LOTS:
+     * CURRENT <idSubasta> <oferta> <idGanador> <aliasGanador> <segRest> <estado> <lote>
+     * Todos los campos salen de una misma lectura de la oferta vigente y de
+     * una lectura del reloj. La línea se guarda en esa versión de la oferta:
+     * mientras no llegue otra puja, ni cambien los segundos restantes o el
+     * estado, todas las consultas devuelven el mismo String sin formatear.
+     */
+    public String getLineaCurrent(Montos montos) {
+        OfertaVigente actual = ofertaVigente.get();
         long ahora = System.currentTimeMillis();
-        if (subastaEnCurso) {
-            return "EN_CURSO";
+        long segRest = actual.segundosRestantes(ahora);
+        String estado = actual.estadoTexto(ahora);
+        LineaCurrent linea = actual.lineaCurrent;
+        if (linea != null && linea.segundosRestantes == segRest && linea.estado == estado) {
+            return linea.texto;
         }
-        if (tiempoFinCooldown > 0L && ahora < tiempoFinCooldown) {
-            return "COOLDOWN";
-        }
-        return "ESPERANDO_PARA_INICIAR";
+        StringBuilder texto = new StringBuilder(64);
+        texto.append("CURRENT ").append(actual.idSubasta).append(' ');
+        montos.formatear(actual.monto, texto);
+        texto.append(' ').append((actual.idCliente == null) ? "SIN_GANADOR" : actual.idCliente)
+                .append(' ').append((actual.alias == null) ? "-" : actual.alias)
+                .append(' ').append(segRest).append(' ').append(estado).append(' ').append(idLote);
+        linea = new LineaCurrent(segRest, estado, texto.toString());
+        actual.lineaCurrent = linea;
+        return linea.texto;
     }
 
     /**
      * Intenta registrar una oferta. Solo tiene efecto si la subasta está en curso.
+     * No toma cerrojos: una oferta que no supera la vigente se rechaza con una
+     * sola lectura, y una que la supera se publica con compareAndSet
+     * (reintentando si otra puja o el cierre se adelantaron).
+     * Si la puja alarga la subasta (cierre suave), el nuevo fin se publica en
+     * ese mismo compareAndSet y se anota en el diario junto con la puja.
+     * Una oferta aceptada debe anotarse después, en el mismo hilo, con
+     * anotarPuja.
+     * Devuelve el id de la subasta en la que la oferta quedó como máxima,
+     * o uno de los RECHAZO_XXX (negativos) si se rechazó.
      */
-    public synchronized boolean registrarOferta(double monto, String idCliente, String alias) {
-        if (!subastaEnCurso) {
-            return false;
+    public int registrarOferta(long monto, String idCliente, String alias) {
+        CompletableFuture<Void> anotacion = null;
+        while (true) {
+            OfertaVigente actual = ofertaVigente.get();
+            if (!actual.abierta) {
+                return RECHAZO_SUBASTA_CERRADA;
+            }
+            if (monto <= actual.monto) {
+                return RECHAZO_MENOR_A_ACTUAL;
+            }
+            if (monto - actual.monto < incrementoMinimo) {
+                return RECHAZO_INCREMENTO_INSUFICIENTE;
+            }
+            if (anotacion == null && diario.isHabilitado()) {
+                anotacion = new CompletableFuture<Void>();
+            }
+            OfertaVigente nueva = actual.conPuja(monto, idCliente, alias, finExtendido(actual), anotacion);
+            if (ofertaVigente.compareAndSet(actual, nueva)) {
+                ultimaAceptada.set(nueva);
+                if (nueva.alargada) {
+                    anunciarExtension();
+                }
+                return actual.idSubasta;
+            }
+            MetricasSubasta.REINTENTOS_PUJA.increment();
         }
-        if (monto > ofertaMaxima) {
-            ofertaMaxima = monto;
-            idClienteGanador = idCliente;
-            aliasGanador = alias;
+    }
+
+    /**
+     * Fin que tendría la subasta si ahora se aceptara una puja sobre la
+     * oferta indicada: el mismo, o ahora + extensión si la puja cae en la
+     * ventana de cierre y quedan extensiones. Solo lee el reloj una vez
+     * abierta la ventana de cierre de esta subasta.
+     */
+    private long finExtendido(OfertaVigente actual) {
+        if (ventanaCierreAbierta != actual.idSubasta
+                || actual.extensiones >= cierreSuave.getMaxExtensiones()) {
+            return actual.tiempoFin;
+        }
+        long ahora = System.currentTimeMillis();
+        if (actual.tiempoFin - ahora >= cierreSuave.getVentanaMillis()) {
+            return actual.tiempoFin;
+        }
+        return Math.max(actual.tiempoFin, ahora + cierreSuave.getExtensionMillis());
+    }
+
+    /**
+     * Marca que empezó la ventana de cierre suave de la subasta indicada; lo
+     * llama el temporizador en ventanaMillis antes del fin (tras una
+     * extensión la ventana ya queda abierta hasta el cierre). Sin cierre
+     * suave no hace nada.
+     */
+    void abrirVentanaCierre(int idSubasta) {
+        if (cierreSuave.isActivo()) {
+            ventanaCierreAbierta = idSubasta;
+        }
+    }
+
+    private void anunciarExtension() {
+        MetricasSubasta.EXTENSIONES_CIERRE.increment();
+        avisarCambioFin();
+    }
+
+    private void avisarCambioFin() {
+        Runnable aviso = avisoExtension;
+        if (aviso != null) {
+            aviso.run();
+        }
+    }
+
+    /**
+     * Anota en el diario una puja que registrarOferta acaba de aceptar en
+     * este hilo (con su extensión, si alargó la subasta). El futuro se
+     * completa cuando la puja es durable; hasta entonces no debe
+     * confirmarse al cliente. Si falla, la puja ya se deshizo (ver alAnotar).
+     */
+    public CompletableFuture<Void> anotarPuja(int idSubasta, long monto, String idCliente, String alias) {
+        OfertaVigente puja = ultimaAceptada.get();
+        if (puja == null || puja.idSubasta != idSubasta || puja.monto != monto) {
+            return diario.registrarPuja(idLote, idSubasta, monto, idCliente, alias, 0L, 0, null);
+        }
+        ultimaAceptada.set(null);
+        CompletableFuture<Void> anotacion = diario.registrarPuja(idLote, idSubasta, monto, idCliente, alias,
+                puja.alargada ? puja.tiempoFin : 0L, puja.extensiones, puja.anotacion);
+        if (puja.anotacion == null) {
+            return anotacion;
+        }
+        return anotacion.whenComplete((r, ex) -> alAnotar(puja, ex));
+    }
+
+    /**
+     * La anotación de la puja terminó. Si fue bien, la puja es durable y ya
+     * no hace falta recordar lo que reemplazó. Si falló, la oferta vigente
+     * vuelve a la última que no falló, con el fin que tenía: ninguna puja
+     * se mide ya contra la fallida y, si la había alargado, la subasta
+     * termina cuando debía. Si una puja válida ya la superó, la oferta se
+     * queda, pero el fin que heredó se anota de nuevo. Una subasta ya
+     * cerrada la deshace finalizarSubasta.
+     */
+    private void alAnotar(OfertaVigente puja, Throwable error) {
+        if (error == null) {
+            puja.anterior = null;
+            return;
+        }
+        puja.fallida = true;
+        while (true) {
+            OfertaVigente actual = ofertaVigente.get();
+            if (!actual.abierta || actual.idSubasta != puja.idSubasta) {
+                return;
+            }
+            OfertaVigente destino = actual;
+            while (destino.fallida) {
+                destino = destino.anterior;
+            }
+            if (destino == actual) {
+                if (puja.alargada && actual.tiempoFin >= puja.tiempoFin) {
+                    diario.registrarExtension(idLote, actual.idSubasta, actual.tiempoFin, actual.extensiones);
+                }
+                return;
+            }
+            if (ofertaVigente.compareAndSet(actual, destino)) {
+                BITACORA.registrar(Bitacora.Nivel.AVISO, "puja_revertida", actual.idCliente, idLote,
+                        actual.idSubasta, actual.monto, "no llegó al diario");
+                if (destino.tiempoFin != actual.tiempoFin) {
+                    avisarCambioFin();
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reproduce el inicio de una subasta leído del diario.
+     * Devuelve false si ya estaba reflejado.
+     */
+    boolean aplicarInicio(int idSubasta, long tiempoFin) {
+        bloquear();
+        try {
+            if (idSubasta < idSiguienteSubasta) {
+                return false;
+            }
+            ofertaVigente.set(new OfertaVigente(idSubasta, 0L, null, null, tiempoFin, 0, true,
+                    ofertaVigente.get().finCooldown));
+            idSiguienteSubasta = idSubasta + 1;
+            participantesPreparados = 0;
+            return true;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Reproduce una puja aceptada leída del diario.
+     * Devuelve false si ya estaba reflejada o la superó otra.
+     */
+    boolean aplicarPuja(int idSubasta, long monto, String idCliente, String alias) {
+        while (true) {
+            OfertaVigente actual = ofertaVigente.get();
+            if (!actual.abierta || actual.idSubasta != idSubasta || monto <= actual.monto) {
+                return false;
+            }
+            if (ofertaVigente.compareAndSet(actual, actual.conPuja(monto, idCliente, alias))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reproduce una extensión del cierre suave leída del diario.
+     * Devuelve false si ya estaba reflejada.
+     */
+    boolean aplicarExtension(int idSubasta, long tiempoFin, int extensiones) {
+        while (true) {
+            OfertaVigente actual = ofertaVigente.get();
+            if (!actual.abierta || actual.idSubasta != idSubasta || tiempoFin <= actual.tiempoFin) {
+                return false;
+            }
+            OfertaVigente nueva = new OfertaVigente(idSubasta, actual.monto, actual.idCliente,
+                    actual.alias, tiempoFin, Math.max(extensiones, actual.extensiones), true,
+                    actual.finCooldown);
+            if (ofertaVigente.compareAndSet(actual, nueva)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reproduce el fin de una subasta leído del diario, con su resultado.
+     * Devuelve false si ya estaba reflejado.
+     */
+    boolean aplicarFin(int idSubasta, long monto, String idCliente, String alias, long instante) {
+        bloquear();
+        try {
+            OfertaVigente actual = ofertaVigente.get();
+            if (!actual.abierta || actual.idSubasta != idSubasta) {
+                return false;
+            }
+            ofertaVigente.set(new OfertaVigente(idSubasta, monto, idCliente, alias,
+                    actual.tiempoFin, actual.extensiones, false, instante + cooldownMillis));
+            guardarEnHistorial(new ResumenSubasta(idSubasta, monto, idCliente, alias), instante);
+            participantesPreparados = 0;
             return true;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Versión del formato de escribirInstantanea. Sube cada vez que cambian
+     * sus campos; quien guarda o envía instantáneas la pone en su cabecera y
+     * se la pasa a leerInstantanea.
+     */
+    static final int VERSION_INSTANTANEA = 1;
+
+    /**
+     * Escribe el estado del lote para una instantánea. Solo bloquea los
+     * inicios, cierres y registros de participantes, nunca las pujas.
+     */
+    void escribirInstantanea(DataOutputStream out) throws IOException {
+        bloquear();
+        try {
+            // Una puja pendiente llega detrás, en el diario o a la réplica
+            OfertaVigente actual = durable(ofertaVigente.get());
+            out.writeInt(idSiguienteSubasta);
+            out.writeLong(actual.finCooldown);
+            out.writeInt(actual.idSubasta);
+            out.writeLong(actual.monto);
+            escribirTexto(out, actual.idCliente);
+            escribirTexto(out, actual.alias);
+            out.writeLong(actual.tiempoFin);
+            out.writeBoolean(actual.abierta);
+            out.writeInt(actual.extensiones);
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Restaura el estado del lote desde una instantánea. Los participantes
+     * preparados no se restauran: sus conexiones se perdieron con la caída.
+     *
+     * @param version versión del formato, leída de la cabecera
+     */
+    void leerInstantanea(DataInputStream in, int version) throws IOException {
+        if (version != VERSION_INSTANTANEA) {
+            throw new IOException("Versión de instantánea no soportada: " + version);
+        }
+        bloquear();
+        try {
+            idSiguienteSubasta = in.readInt();
+            long finCooldown = in.readLong();
+            int idSubasta = in.readInt();
+            long monto = in.readLong();
+            String idCliente = leerTexto(in);
+            String alias = leerTexto(in);
+            long tiempoFin = in.readLong();
+            boolean abierta = in.readBoolean();
+            int extensiones = in.readInt();
+            ofertaVigente.set(new OfertaVigente(idSubasta, monto, idCliente, alias,
+                    tiempoFin, extensiones, abierta, finCooldown));
+            participantesPreparados = 0;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    private static void escribirTexto(DataOutputStream out, String texto) throws IOException {
+        out.writeBoolean(texto != null);
+        if (texto != null) {
+            out.writeUTF(texto);
+        }
+    }
+
+    private static String leerTexto(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Guarda el resumen en el historial salvo que ya estuviera (al reproducir
+     * el diario tras una caída, el fichero de historial puede ir por delante).
+     */
+    private void guardarEnHistorial(ResumenSubasta resumen, long instanteFin) {
+        if (resumen.getId() <= historial.getUltimoId()) {
+            return;
+        }
+        try {
+            historial.agregar(resumen, instanteFin);
+        } catch (IOException ex) {
+            BITACORA.registrar(Bitacora.Nivel.ERROR, "historial_no_guardado", null, idLote,
+                    resumen.getId(), Bitacora.SIN_MONTO, ex.toString());
+        }
+    }
+
+    /**
+     * Id de la última subasta guardada en el historial (0 si no hay ninguna).
+     */
+    int getUltimoIdHistorial() {
+        return historial.getUltimoId();
+    }
+
+    /**
+     * Escribe los resúmenes del historial posteriores a la subasta
+     * despuesDe, con su instante de fin, para poner al día una réplica
+     * (ver leerHistorialReplicado).
+     */
+    void escribirHistorialDesde(int despuesDe, DataOutputStream out) throws IOException {
+        long total = historial.getTotal();
+        long desde = historial.buscarPosterior(despuesDe);
+        out.writeInt((int) (total - desde));
+        for (long i = desde; i < total; i += MAX_PAGINA_REPLICA) {
+            List<ResumenSubasta> pagina = historial.leer(i, MAX_PAGINA_REPLICA);
+            for (int j = 0; j < pagina.size(); j++) {
+                ResumenSubasta r = pagina.get(j);
+                out.writeInt(r.getId());
+                out.writeLong(r.getOfertaMaxima());
+                escribirTexto(out, r.getIdGanador());
+                escribirTexto(out, r.getAliasGanador());
+                out.writeLong(historial.leerInstanteFin(i + j));
+            }
         }
-        return false;
     }
 
     /**
-     * Devuelve una copia del historial de subastas finalizadas.
+     * Añade al historial los resúmenes que escribió escribirHistorialDesde
+     * en el líder; los que ya estaban se saltan.
+     */
+    void leerHistorialReplicado(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        bloquear();
+        try {
+            for (int i = 0; i < n; i++) {
+                ResumenSubasta r = new ResumenSubasta(in.readInt(), in.readLong(), leerTexto(in), leerTexto(in));
+                guardarEnHistorial(r, in.readLong());
+            }
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Número de subastas finalizadas del lote.
+     */
+    public long getTotalHistorial() {
+        return historial.getTotal();
+    }
+
+    /**
+     * Devuelve una página del historial de subastas finalizadas
+     * (desde 0 = la más antigua), sin copiar el resto.
      */
-    public synchronized List<ResumenSubasta> getHistorial() {
-        return new ArrayList<ResumenSubasta>(historial);
+    public List<ResumenSubasta> leerHistorial(long desde, int limite) throws IOException {
+        return historial.leer(desde, limite);
     }
 }
@@ -1,88 +1,567 @@
 package socket.conconexion.servidor;
 
-import socket.conconexion.stream.MiSocketStream;
+import socket.conconexion.bitacora.Bitacora;
+import socket.conconexion.stream.CanalMensajes;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static socket.conconexion.servidor.BitacoraSubasta.BITACORA;
 
 /**
- * Gestiona la lista de clientes conectados y permite
- * hacer broadcast de mensajes a todos ellos.
+ * Gestiona los clientes conectados y permite hacer broadcast de mensajes
+ * a todos ellos, o publicarlos solo a los suscritos a un tema, a través de
+ * la cola de salida de cada cliente.
+ *
+ * Los clientes se indexan por id y por alias en mapas concurrentes, así
+ * que registrar, dar de baja y buscar cuestan O(1). Para difundir se
+ * reparten además en grupos de FRANJAS arreglos inmutables (copia en
+ * escritura): una difusión recorre las franjas sin tomar ningún cerrojo, y
+ * una alta o baja solo copia el arreglo de su franja. Las conexiones que
+ * entran y salen durante una subasta nunca frenan la difusión; un cliente
+ * que se registra mientras un broadcast está en curso puede recibirlo o no.
+ * Los cerrojos de las franjas son ReentrantLock para no fijar el hilo
+ * portador de las sesiones que corren en hilos virtuales.
+ *
+ * Temas: cada lote es un tema con su propio grupo de suscritos (JOIN
+ * suscribe al lote; SUBSCRIBE y UNSUBSCRIBE lo hacen a mano), y LOBBY
+ * reúne a quien solo quiere saber cuándo empieza y termina cada subasta.
+ * Todo cliente entra suscrito a LOBBY. Publicar en un tema cuesta lo que
+ * sus suscritos, no lo que el total de conexiones.
+ *
+ * Relevos: los clientes que llegan por un relevo (ver EnlaceRelevo) no
+ * están en los grupos uno a uno. Cada grupo guarda además los enlaces que
+ * tienen al menos una sesión suscrita, y un aviso sale una sola vez por
+ * enlace; el relevo lo reparte entre sus sesiones. Las suscripciones de
+ * las sesiones de un enlace solo cambian desde el hilo de ese enlace.
+ *
+ * Para la admisión de conexiones (ver ControlAdmision) lleva además
+ * cuántas conexiones directas hay abiertas desde cada IP y, de cada IP, la
+ * última subasta en la que un cliente hizo JOIN.
+ *
+ * Nada se registra en la bitácora con un cerrojo tomado, y cada broadcast
+ * se registra como muestra (uno de cada subasta.bitacora.muestreo).
  */
 public class GestorClientes {
 
-    private final List<ClienteConectado> clientes = new ArrayList<ClienteConectado>();
+    /**
+     * Tema con los avisos de inicio y fin de todas las subastas. No puede
+     * haber un lote con este id (ver CatalogoLotes.crearLote).
+     */
+    public static final String TEMA_LOBBY = "LOBBY";
+
+    // Potencia de 2: la franja de un cliente sale del hash de su id
+    private static final int FRANJAS = 16;
+    private static final ClienteConectado[] NINGUNO = new ClienteConectado[0];
+    private static final EnlaceRelevo[] SIN_ENLACES = new EnlaceRelevo[0];
+
+    /**
+     * Parte de los clientes, en un arreglo que nunca se modifica: cada alta
+     * o baja publica uno nuevo.
+     */
+    private static final class Franja {
+        final ReentrantLock cerrojo = new ReentrantLock();
+        volatile ClienteConectado[] miembros = NINGUNO;
+
+        void agregar(ClienteConectado cliente) {
+            cerrojo.lock();
+            try {
+                ClienteConectado[] actuales = miembros;
+                ClienteConectado[] nuevos = Arrays.copyOf(actuales, actuales.length + 1);
+                nuevos[actuales.length] = cliente;
+                miembros = nuevos;
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+
+        void quitar(ClienteConectado cliente) {
+            cerrojo.lock();
+            try {
+                ClienteConectado[] actuales = miembros;
+                for (int i = 0; i < actuales.length; i++) {
+                    if (actuales[i] == cliente) {
+                        ClienteConectado[] nuevos = new ClienteConectado[actuales.length - 1];
+                        System.arraycopy(actuales, 0, nuevos, 0, i);
+                        System.arraycopy(actuales, i + 1, nuevos, i, actuales.length - i - 1);
+                        miembros = nuevos;
+                        return;
+                    }
+                }
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+    }
+
+    /**
+     * Conjunto de clientes repartido en FRANJAS franjas según su id.
+     */
+    private static final class Grupo {
+        final Franja[] franjas = new Franja[FRANJAS];
+        // Enlaces de relevo con alguna sesión en el grupo (copia en escritura)
+        final ReentrantLock cerrojo = new ReentrantLock();
+        volatile EnlaceRelevo[] enlaces = SIN_ENLACES;
+
+        Grupo() {
+            for (int i = 0; i < FRANJAS; i++) {
+                franjas[i] = new Franja();
+            }
+        }
+
+        private Franja franja(String idCliente) {
+            int h = idCliente.hashCode();
+            return franjas[(h ^ (h >>> 16)) & (FRANJAS - 1)];
+        }
+
+        void agregar(ClienteConectado cliente) {
+            franja(cliente.getIdCliente()).agregar(cliente);
+        }
+
+        void quitar(ClienteConectado cliente) {
+            franja(cliente.getIdCliente()).quitar(cliente);
+        }
+
+        void agregarEnlace(EnlaceRelevo enlace) {
+            cerrojo.lock();
+            try {
+                EnlaceRelevo[] actuales = enlaces;
+                EnlaceRelevo[] nuevos = Arrays.copyOf(actuales, actuales.length + 1);
+                nuevos[actuales.length] = enlace;
+                enlaces = nuevos;
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+
+        void quitarEnlace(EnlaceRelevo enlace) {
+            cerrojo.lock();
+            try {
+                EnlaceRelevo[] actuales = enlaces;
+                for (int i = 0; i < actuales.length; i++) {
+                    if (actuales[i] == enlace) {
+                        EnlaceRelevo[] nuevos = new EnlaceRelevo[actuales.length - 1];
+                        System.arraycopy(actuales, 0, nuevos, 0, i);
+                        System.arraycopy(actuales, i + 1, nuevos, i, actuales.length - i - 1);
+                        enlaces = nuevos;
+                        return;
+                    }
+                }
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<String, ClienteConectado> porId =
+            new ConcurrentHashMap<String, ClienteConectado>();
+    // Último cliente que tomó cada alias
+    private final ConcurrentHashMap<String, ClienteConectado> porAlias =
+            new ConcurrentHashMap<String, ClienteConectado>();
+    private final Grupo conectados = new Grupo();
+    // Suscritos de cada tema; los grupos se crean con la primera suscripción
+    private final ConcurrentHashMap<String, Grupo> temas = new ConcurrentHashMap<String, Grupo>();
     private final AtomicInteger contadorClientes = new AtomicInteger(0);
+    // Conexiones directas abiertas desde cada IP
+    private final ConcurrentHashMap<String, Integer> conexionesPorIp =
+            new ConcurrentHashMap<String, Integer>();
+    // Lote y subasta del último JOIN hecho desde cada IP
+    private final ConcurrentHashMap<String, Participacion> participaciones =
+            new ConcurrentHashMap<String, Participacion>();
+
+    private static final class Participacion {
+        final EstadoSubasta lote;
+        final int idSubasta;
+
+        Participacion(EstadoSubasta lote, int idSubasta) {
+            this.lote = lote;
+            this.idSubasta = idSubasta;
+        }
+    }
+
+    // Configuración de las colas de salida de cada cliente
+    private final Executor escritores;
+    private final int capacidadCola;
+    private final ColaSalida.Politica politica;
+    // Se añade a los ids para que no coincidan con los de otros nodos del clúster
+    private final String sufijoIds;
+    // Límites de ritmo de los comandos de cada cliente
+    private volatile LimitadorComandos limitador = LimitadorComandos.SIN_LIMITES;
+
+    /**
+     * @param escritores ejecutor que vacía las colas de salida
+     * @param capacidadCola mensajes que puede acumular un cliente atrasado
+     * @param politica qué hacer cuando la cola de un cliente se llena
+     */
+    public GestorClientes(Executor escritores, int capacidadCola, ColaSalida.Politica politica) {
+        this(escritores, capacidadCola, politica, "");
+    }
+
+    /**
+     * @param sufijoIds se añade a los ids de los clientes (en un clúster,
+     *                  "-N" y el id del nodo: C1-N2, C2-N2, ...)
+     */
+    public GestorClientes(Executor escritores, int capacidadCola, ColaSalida.Politica politica,
+                          String sufijoIds) {
+        this.escritores = escritores;
+        this.capacidadCola = capacidadCola;
+        this.politica = politica;
+        this.sufijoIds = sufijoIds;
+    }
+
+    /**
+     * Límites de ritmo de las sesiones que se creen a partir de ahora.
+     */
+    void setLimitador(LimitadorComandos limitador) {
+        this.limitador = limitador;
+    }
+
+    LimitadorComandos getLimitador() {
+        return limitador;
+    }
 
     /**
      * Registra un nuevo cliente conectado creando un identificador C1, C2, etc.
      */
-    public synchronized ClienteConectado registrarCliente(MiSocketStream socket) {
-        String id = "C" + contadorClientes.incrementAndGet();
-        ClienteConectado cliente = new ClienteConectado(id, socket);
-        clientes.add(cliente);
-        System.out.println("Cliente registrado: " + id +
-                " desde " + cliente.getIp() + ":" + cliente.getPuerto());
+    public ClienteConectado registrarCliente(CanalMensajes socket) {
+        return registrarCliente(socket, escritores);
+    }
+
+    /**
+     * Registra un cliente cuya cola de salida vacía un escritor propio
+     * (por ejemplo, el bucle de eventos de una conexión NIO).
+     */
+    public ClienteConectado registrarCliente(CanalMensajes socket, Executor escritor) {
+        String id = "C" + contadorClientes.incrementAndGet() + sufijoIds;
+        ColaSalida cola = new ColaSalida(socket, capacidadCola, politica, escritor);
+        ClienteConectado cliente = new ClienteConectado(id, socket, cola);
+        porId.put(id, cliente);
+        conexionesPorIp.merge(cliente.getIp(), 1, Integer::sum);
+        conectados.agregar(cliente);
+        suscribir(cliente, TEMA_LOBBY);
+        if (BITACORA.activo(Bitacora.Nivel.INFO)) {
+            BITACORA.registrar(Bitacora.Nivel.INFO, "cliente_registrado", id, null,
+                    Bitacora.SIN_SUBASTA, Bitacora.SIN_MONTO,
+                    "desde " + cliente.getIp() + ":" + cliente.getPuerto());
+        }
+        return cliente;
+    }
+
+    /**
+     * Registra la sesión de un cliente que llegó por un relevo. Recibe los
+     * avisos a través del enlace, así que no tiene cola de salida propia.
+     */
+    ClienteConectado registrarSesionRelevo(CanalMensajes canal, EnlaceRelevo enlace, int sesion) {
+        String id = "C" + contadorClientes.incrementAndGet() + sufijoIds;
+        ClienteConectado cliente = new ClienteConectado(id, canal, enlace, sesion);
+        porId.put(id, cliente);
+        suscribir(cliente, TEMA_LOBBY);
+        if (BITACORA.activo(Bitacora.Nivel.INFO)) {
+            BITACORA.registrar(Bitacora.Nivel.INFO, "cliente_registrado", id, null,
+                    Bitacora.SIN_SUBASTA, Bitacora.SIN_MONTO,
+                    "desde " + cliente.getIp() + " por el relevo " + enlace);
+        }
         return cliente;
     }
 
     /**
-     * Elimina un cliente de la lista de conectados.
+     * Añade el enlace de un relevo a los que reciben los broadcasts a todos.
      */
-    public synchronized void eliminarCliente(ClienteConectado cliente) {
-        clientes.remove(cliente);
-        System.out.println("Cliente eliminado: " + cliente.getIdCliente());
+    void agregarEnlace(EnlaceRelevo enlace) {
+        conectados.agregarEnlace(enlace);
+    }
+
+    void quitarEnlace(EnlaceRelevo enlace) {
+        conectados.quitarEnlace(enlace);
     }
 
     /**
-     * Envía el mensaje a todos los clientes conectados.
+     * Elimina un cliente de los conectados. Solo tiene efecto la primera vez.
      */
-    public synchronized void broadcast(String mensaje) {
-        System.out.println("Broadcast: " + mensaje);
-        Iterator<ClienteConectado> it = clientes.iterator();
-        while (it.hasNext()) {
-            ClienteConectado c = it.next();
-            MiSocketStream s = c.getSocket();
-            try {
-                s.enviaMensaje(mensaje);
-            } catch (Exception ex) {
-                System.out.println("Error enviando a " + c.getIdCliente() +
-                        ". Se eliminará el cliente. Excepción: " + ex);
-                try {
-                    s.close();
-                } catch (Exception e2) {
-                    // ignorar
-                }
-                it.remove();
+    public void eliminarCliente(ClienteConectado cliente) {
+        if (!porId.remove(cliente.getIdCliente(), cliente)) {
+            return;
+        }
+        EnlaceRelevo enlace = cliente.getEnlace();
+        if (enlace == null) {
+            conectados.quitar(cliente);
+            restarConexion(cliente.getIp());
+        }
+        for (String tema : cliente.getTemas()) {
+            Grupo grupo = temas.get(tema);
+            if (grupo == null) {
+                continue;
+            }
+            if (enlace == null) {
+                grupo.quitar(cliente);
+            } else if (enlace.restarSuscrita(tema)) {
+                grupo.quitarEnlace(enlace);
             }
         }
+        String alias = cliente.getAlias();
+        if (alias != null) {
+            porAlias.remove(alias, cliente);
+        }
+        BITACORA.registrar(Bitacora.Nivel.INFO, "cliente_eliminado", cliente.getIdCliente(), null,
+                Bitacora.SIN_SUBASTA, Bitacora.SIN_MONTO, null);
+    }
+
+    private void restarConexion(String ip) {
+        conexionesPorIp.computeIfPresent(ip, (k, n) -> (n.intValue() <= 1) ? null : n - 1);
+    }
+
+    /**
+     * Conexiones directas abiertas ahora desde la IP.
+     */
+    int getConexionesDesde(String ip) {
+        Integer n = conexionesPorIp.get(ip);
+        return (n == null) ? 0 : n.intValue();
+    }
+
+    /**
+     * Anota que desde la IP del cliente se hizo JOIN a la subasta idSubasta
+     * del lote (la siguiente o la que está en curso).
+     */
+    void anotarParticipacion(ClienteConectado cliente, EstadoSubasta lote, int idSubasta) {
+        if (cliente.getEnlace() == null) {
+            participaciones.put(cliente.getIp(), new Participacion(lote, idSubasta));
+        }
+    }
+
+    /**
+     * Si desde la IP se hizo JOIN a una subasta que aún no ha terminado.
+     */
+    boolean esParticipante(String ip) {
+        Participacion p = participaciones.get(ip);
+        return p != null && p.lote.subastaPendiente(p.idSubasta);
+    }
+
+    /**
+     * Olvida las participaciones en subastas que ya terminaron.
+     */
+    void purgarParticipaciones() {
+        participaciones.values().removeIf(p -> !p.lote.subastaPendiente(p.idSubasta));
+    }
+
+    /**
+     * Da al cliente el alias indicado y lo indexa por él. Si otro cliente ya
+     * usaba ese alias, la búsqueda por alias pasa a devolver este.
+     */
+    public void asignarAlias(ClienteConectado cliente, String alias) {
+        String anterior = cliente.getAlias();
+        cliente.setAlias(alias);
+        if (anterior != null && !anterior.equals(alias)) {
+            porAlias.remove(anterior, cliente);
+        }
+        porAlias.put(alias, cliente);
+        if (!porId.containsKey(cliente.getIdCliente())) {
+            // Se dio de baja mientras tanto
+            porAlias.remove(alias, cliente);
+        }
+    }
+
+    /**
+     * Suscribe al cliente al tema (un id de lote o TEMA_LOBBY). Quien llama
+     * comprueba que el tema existe. Suscribirse otra vez no cambia nada.
+     */
+    public void suscribir(ClienteConectado cliente, String tema) {
+        if (!cliente.agregarTema(tema)) {
+            return;
+        }
+        Grupo grupo = temas.computeIfAbsent(tema, t -> new Grupo());
+        EnlaceRelevo enlace = cliente.getEnlace();
+        if (enlace != null) {
+            // El relevo anota la suscripción antes de recibir avisos del tema
+            enlace.avisarSuscripcion(cliente.getSesionRelevo(), tema, true);
+            if (enlace.sumarSuscrita(tema)) {
+                grupo.agregarEnlace(enlace);
+            }
+            return;
+        }
+        grupo.agregar(cliente);
+        if (!porId.containsKey(cliente.getIdCliente())) {
+            // Se dio de baja mientras tanto
+            grupo.quitar(cliente);
+        }
+    }
+
+    /**
+     * Quita la suscripción del cliente al tema, si la tenía.
+     */
+    public void desuscribir(ClienteConectado cliente, String tema) {
+        if (!cliente.quitarTema(tema)) {
+            return;
+        }
+        Grupo grupo = temas.get(tema);
+        EnlaceRelevo enlace = cliente.getEnlace();
+        if (enlace != null) {
+            enlace.avisarSuscripcion(cliente.getSesionRelevo(), tema, false);
+            if (enlace.restarSuscrita(tema) && grupo != null) {
+                grupo.quitarEnlace(enlace);
+            }
+        } else if (grupo != null) {
+            grupo.quitar(cliente);
+        }
+    }
+
+    /**
+     * Cliente conectado con ese id, o null.
+     */
+    public ClienteConectado getCliente(String idCliente) {
+        return porId.get(idCliente);
+    }
+
+    /**
+     * Último cliente conectado que tomó ese alias, o null.
+     */
+    public ClienteConectado buscarPorAlias(String alias) {
+        return porAlias.get(alias);
+    }
+
+    public int getNumeroClientes() {
+        return porId.size();
+    }
+
+    /**
+     * Mensajes pendientes en la cola de salida más llena (para las métricas).
+     */
+    public long getMaximoPendientes() {
+        long maximo = 0L;
+        for (Franja f : conectados.franjas) {
+            for (ClienteConectado c : f.miembros) {
+                maximo = Math.max(maximo, c.getColaSalida().getPendientes());
+            }
+        }
+        return maximo;
+    }
+
+    /**
+     * Mensajes pendientes en todas las colas de salida (para las métricas).
+     */
+    public long getTotalPendientes() {
+        long total = 0L;
+        for (Franja f : conectados.franjas) {
+            for (ClienteConectado c : f.miembros) {
+                total += c.getColaSalida().getPendientes();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Envía el mensaje a todos los clientes conectados.
+     */
+    public void broadcast(String mensaje) {
+        broadcastExcept(mensaje, null);
     }
 
     /**
      * Envía el mensaje a todos los clientes EXCEPTO al indicado.
      */
-    public synchronized void broadcastExcept(String mensaje, ClienteConectado excluir) {
-        System.out.println("Broadcast (excepto " + excluir.getIdCliente() + "): " + mensaje);
-        Iterator<ClienteConectado> it = clientes.iterator();
-        while (it.hasNext()) {
-            ClienteConectado c = it.next();
-            if (c == excluir) {
+    public void broadcastExcept(String mensaje, ClienteConectado excluir) {
+        difundir(mensaje, excluir, null, conectados, null);
+    }
+
+    /**
+     * Envía el mensaje a los suscritos al tema.
+     */
+    public void publicar(String tema, String mensaje) {
+        publicarExcept(tema, mensaje, null);
+    }
+
+    /**
+     * Envía el mensaje a los suscritos al tema EXCEPTO al indicado.
+     */
+    public void publicarExcept(String tema, String mensaje, ClienteConectado excluir) {
+        Grupo grupo = temas.get(tema);
+        if (grupo != null) {
+            difundir(mensaje, excluir, tema, grupo, null);
+        }
+    }
+
+    /**
+     * Envía el mensaje a los suscritos al tema y a los de LOBBY; quien está
+     * en ambos lo recibe una vez.
+     */
+    public void publicarConLobby(String tema, String mensaje) {
+        difundir(mensaje, null, tema, temas.get(tema), temas.get(TEMA_LOBBY));
+    }
+
+    /**
+     * Encola el mensaje a los clientes del grupo y a los del grupo extra que
+     * no estén suscritos al tema (ya lo recibieron con el primero).
+     * Recorre las franjas sin cerrojos y solo encola en la cola de salida
+     * de cada cliente: nunca espera a una alta, a una baja ni a la red.
+     * A cada enlace de relevo le encola una línea con los temas, para que
+     * el relevo aplique la misma regla entre sus sesiones.
+     */
+    private void difundir(String mensaje, ClienteConectado excluir, String tema,
+                          Grupo grupo, Grupo extra) {
+        BITACORA.registrarMuestreado(Bitacora.Nivel.INFO, "difusion",
+                (excluir == null) ? null : excluir.getIdCliente(), tema,
+                Bitacora.SIN_SUBASTA, Bitacora.SIN_MONTO, mensaje);
+        List<ClienteConectado> lentos = null;
+        int encolados = 0;
+        // Medir cuesta dos System.nanoTime(): solo se mide una muestra de los broadcasts
+        boolean medir = (ThreadLocalRandom.current().nextInt() & MetricasSubasta.MUESTREO) == 0;
+        long inicio = medir ? System.nanoTime() : 0L;
+        for (int g = 0; g < 2; g++) {
+            Grupo actual = (g == 0) ? grupo : extra;
+            if (actual == null) {
                 continue;
             }
-            MiSocketStream s = c.getSocket();
-            try {
-                s.enviaMensaje(mensaje);
-            } catch (Exception ex) {
-                System.out.println("Error enviando a " + c.getIdCliente() +
-                        ". Se eliminará el cliente. Excepción: " + ex);
+            for (Franja f : actual.franjas) {
+                for (ClienteConectado c : f.miembros) {
+                    if (c == excluir || (g == 1 && c.estaSuscrito(tema))) {
+                        continue;
+                    }
+                    if (c.getColaSalida().encolar(mensaje)) {
+                        encolados++;
+                    } else {
+                        if (lentos == null) {
+                            lentos = new ArrayList<ClienteConectado>();
+                        }
+                        lentos.add(c);
+                    }
+                }
+            }
+            String linea = null;
+            for (EnlaceRelevo e : actual.enlaces) {
+                if (g == 1 && e.estaSuscrito(tema)) {
+                    continue;
+                }
+                if (excluir != null && excluir.getEnlace() == e) {
+                    e.publicar(EnlaceRelevo.lineaPublicacion(
+                            tema, extra != null, excluir.getSesionRelevo(), mensaje));
+                } else {
+                    if (linea == null) {
+                        linea = EnlaceRelevo.lineaPublicacion(tema, extra != null, 0, mensaje);
+                    }
+                    e.publicar(linea);
+                }
+                encolados++;
+            }
+        }
+        if (medir) {
+            MetricasSubasta.DIFUSION.registrar(System.nanoTime() - inicio);
+        }
+        MetricasSubasta.MENSAJES_DIFUNDIDOS.add(encolados);
+        if (lentos != null) {
+            for (ClienteConectado c : lentos) {
+                eliminarCliente(c);
+                BITACORA.registrar(Bitacora.Nivel.AVISO, "cliente_lento_desconectado", c.getIdCliente(),
+                        null, Bitacora.SIN_SUBASTA, Bitacora.SIN_MONTO, "no consume sus mensajes");
                 try {
-                    s.close();
+                    c.getSocket().close();
                 } catch (Exception e2) {
                     // ignorar
                 }
-                it.remove();
             }
         }
     }
@@ -1,169 +1,580 @@
 package socket.conconexion.servidor;
 
+import java.net.InetAddress;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import socket.conconexion.bitacora.Bitacora;
+import socket.conconexion.stream.CanalMensajes;
+import socket.conconexion.stream.CodificacionUtf8;
 import socket.conconexion.stream.MiSocketStream;
 
+import static socket.conconexion.servidor.BitacoraSubasta.BITACORA;
+
 /**
  * Hilo que maneja la sesión de un cliente en el contexto de la subasta.
  * Interpreta comandos:
- *  - JOIN <alias>
- *  - BID <monto>
- *  - STATUS
- *  - HISTORY
+ *  - JOIN [lote] <alias>   (alias de hasta 63 bytes en UTF-8)
+ *  - BID [lote] <monto>
+ *  - STATUS [lote]
+ *  - HISTORY [lote] [LAST n | desde limite]
+ *  - LOTS
+ *  - SUBSCRIBE <lote|LOBBY> / UNSUBSCRIBE <lote|LOBBY>
+ *  - STATS (métricas del servidor; solo desde la propia máquina)
  *  - QUIT o "."
+ * Si se omite el lote se usa el último en el que el cliente hizo JOIN
+ * (o el lote por defecto si aún no ha hecho ninguno). Los avisos de un
+ * lote (NEW_BID, AUCTION_XXX) solo llegan a quien está suscrito a él: JOIN
+ * suscribe al lote, y LOBBY recibe los inicios y fines de todos.
+ *
+ * En una réplica de un clúster (ver NodoCluster) STATUS, HISTORY y LOTS
+ * se responden con el estado replicado; BID lo decide el líder, y JOIN
+ * cuenta al participante también en el líder.
+ *
+ * Si se construye sin flujo de entrada, la sesión no lee por sí misma:
+ * la alimenta un bucle de eventos (modo NIO) mediante procesarLinea.
+ *
+ * Las líneas llegan como bytes y las separa un LectorComando reutilizable;
+ * BID arma la respuesta en un StringBuilder por hilo y STATUS devuelve la
+ * línea CURRENT que el lote ya tiene formateada (EstadoSubasta.getLineaCurrent),
+ * de modo que ni una puja normal ni una consulta generan basura.
+ *
+ * Antes de atender un comando se comprueban los límites de ritmo (ver
+ * LimitadorComandos); si no caben se responde ERROR RATE_LIMITED sin
+ * tocar el lote.
+ *
+ * Las respuestas se agregan al canal sin vaciarlo: quien entrega las
+ * líneas vacía la salida al terminar cada tanda de entrada (run cuando no
+ * queda otra línea ya leída; el bucle NIO tras cada lectura). Así una
+ * respuesta de varias líneas, como HISTORY, o las respuestas a varios
+ * comandos que llegaron juntos salen en una sola escritura.
  */
 class HiloServidorSubasta implements Runnable {
 
     static final String mensajeFin = ".";
+    // Tamaño de página de HISTORY cuando no se indica rango, y máximo admitido
+    static final int PAGINA_HISTORIAL = 20;
+    static final int MAX_PAGINA_HISTORIAL = 500;
+    private final MiSocketStream flujoEntrada;
     private final ClienteConectado cliente;
-    private final EstadoSubasta estadoSubasta;
+    private final CatalogoLotes catalogo;
     private final GestorClientes gestorClientes;
+    private final DifusorPujas difusorPujas;
+    private boolean cerrada = false;
+    // Lote en el que el cliente hizo JOIN por última vez
+    private EstadoSubasta loteActual;
+    private final LectorComando lector = new LectorComando();
+    private final LimitadorComandos limitador;
+    // Cubos de tokens de esta conexión por clase de comando (null sin límites)
+    private final CuboTokens[] cubos;
+    // Comandos atendidos, para medir el tiempo de uno de cada pocos
+    private int comandos;
 
-    HiloServidorSubasta(ClienteConectado cliente,
-                        EstadoSubasta estadoSubasta,
-                        GestorClientes gestorClientes) {
+    // Respuesta en construcción. Es por hilo y no por sesión porque en modo
+    // NIO la confirmación de una puja puede llegar desde el hilo del diario
+    // mientras el bucle ya procesa la siguiente línea de la misma sesión.
+    private static final ThreadLocal<StringBuilder> RESPUESTA = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(128);
+        }
+    };
+
+    HiloServidorSubasta(MiSocketStream flujoEntrada,
+                        ClienteConectado cliente,
+                        CatalogoLotes catalogo,
+                        GestorClientes gestorClientes,
+                        DifusorPujas difusorPujas) {
+        this.flujoEntrada = flujoEntrada;
         this.cliente = cliente;
-        this.estadoSubasta = estadoSubasta;
+        this.catalogo = catalogo;
         this.gestorClientes = gestorClientes;
+        this.difusorPujas = difusorPujas;
+        this.loteActual = catalogo.getLotePorDefecto();
+        this.limitador = gestorClientes.getLimitador();
+        this.cubos = limitador.isActivo() ? limitador.crearCubosConexion() : null;
+    }
+
+    HiloServidorSubasta(ClienteConectado cliente,
+                        CatalogoLotes catalogo,
+                        GestorClientes gestorClientes,
+                        DifusorPujas difusorPujas) {
+        this(null, cliente, catalogo, gestorClientes, difusorPujas);
     }
 
     public void run() {
-        MiSocketStream miSocketDatos = cliente.getSocket();
         try {
             boolean hecho = false;
             while (!hecho) {
-                String mensaje = miSocketDatos.recibeMensaje();
-                if (mensaje == null) {
+                int largo = flujoEntrada.recibeLinea();
+                if (largo < 0) {
                     hecho = true;
                     break;
                 }
-
-                mensaje = mensaje.trim();
-                if (mensaje.length() == 0) {
-                    continue;
+                hecho = !procesarLinea(flujoEntrada.getLinea(), 0, largo);
+                if (!hecho && !flujoEntrada.hayLineaPendiente()) {
+                    // Fin de la tanda: antes de esperar al cliente, enviar lo respondido
+                    flujoEntrada.vacia();
                 }
-
-                if (mensaje.equals(mensajeFin) || mensaje.equalsIgnoreCase("QUIT")) {
-                    hecho = true;
-                    break;
-                }
-
-                procesarComando(mensaje, miSocketDatos);
             }
         } catch (Exception ex) {
-            System.out.println("Excepción capturada en hilo de subasta: " + ex);
+            BITACORA.registrar(Bitacora.Nivel.AVISO, "sesion_excepcion", cliente.getIdCliente(), null,
+                    Bitacora.SIN_SUBASTA, Bitacora.SIN_MONTO, ex.toString());
         } finally {
-            try {
-                miSocketDatos.close();
-            } catch (Exception e) {
-                // ignorar
-            }
-            gestorClientes.eliminarCliente(cliente);
-            System.out.println("Cliente " + cliente.getIdCliente() + " desconectado.");
+            cerrarSesion();
+        }
+    }
+
+    /**
+     * Procesa una línea recibida del cliente, datos[desde, desde + largo),
+     * sin el salto de línea. Los bytes solo se usan durante la llamada.
+     * Devuelve false si el cliente pidió terminar la sesión.
+     */
+    boolean procesarLinea(byte[] datos, int desde, int largo) {
+        lector.reiniciar(datos, desde, largo);
+        if (!lector.siguiente()) {
+            return true;
+        }
+
+        if (!lector.hayMas() && (lector.es(mensajeFin) || lector.es("QUIT"))) {
+            return false;
+        }
+
+        if ((++comandos & MetricasSubasta.MUESTREO) != 0) {
+            procesarComando(cliente.getSocket());
+            return true;
+        }
+        long inicio = System.nanoTime();
+        procesarComando(cliente.getSocket());
+        MetricasSubasta.COMANDO.registrar(System.nanoTime() - inicio);
+        return true;
+    }
+
+    /**
+     * Cierra el canal y da de baja al cliente. Solo tiene efecto la primera vez.
+     */
+    void cerrarSesion() {
+        if (cerrada) {
+            return;
+        }
+        cerrada = true;
+        try {
+            cliente.getSocket().vacia();
+            cliente.getSocket().close();
+        } catch (Exception e) {
+            // ignorar
+        }
+        // La baja queda en la bitácora como cliente_eliminado
+        gestorClientes.eliminarCliente(cliente);
+        NodoCluster nodo = catalogo.getNodo();
+        if (nodo != null && cliente.getAlias() != null) {
+            nodo.reenviarBaja(cliente);
         }
     }
 
-    private void procesarComando(String linea, MiSocketStream socket) {
+    /**
+     * Despacha el comando cuya primera palabra tiene ahora el lector.
+     * Los comandos poco frecuentes reciben sus argumentos como String;
+     * BID y STATUS los leen directamente del lector.
+     */
+    private void procesarComando(CanalMensajes socket) {
+        if (cubos != null && !admitido()) {
+            socket.agregaMensaje("ERROR RATE_LIMITED");
+            return;
+        }
         try {
-            String[] partes = linea.split("\\s+", 2);
-            String comando = partes[0].toUpperCase();
-            String argumentos = (partes.length > 1) ? partes[1].trim() : "";
-
-            if ("JOIN".equals(comando)) {
-                manejarJoin(argumentos, socket);
-            } else if ("BID".equals(comando)) {
-                manejarBid(argumentos, socket);
-            } else if ("STATUS".equals(comando)) {
+            if (lector.es("BID")) {
+                manejarBid(socket);
+            } else if (lector.es("STATUS")) {
                 manejarStatus(socket);
-            } else if ("HISTORY".equals(comando)) {
-                manejarHistory(socket);
+            } else if (lector.es("JOIN")) {
+                manejarJoin(argumentos(), socket);
+            } else if (lector.es("HISTORY")) {
+                manejarHistory(argumentos(), socket);
+            } else if (lector.es("LOTS")) {
+                manejarLots(socket);
+            } else if (lector.es("SUBSCRIBE")) {
+                manejarSuscripcion(argumentos(), true, socket);
+            } else if (lector.es("UNSUBSCRIBE")) {
+                manejarSuscripcion(argumentos(), false, socket);
+            } else if (lector.es("STATS")) {
+                manejarStats(socket);
             } else {
-                socket.enviaMensaje("ERROR Comando no reconocido");
+                socket.agregaMensaje("ERROR Comando no reconocido");
             }
         } catch (Exception ex) {
             try {
-                socket.enviaMensaje("ERROR Excepción procesando comando: " + ex.getMessage());
+                socket.agregaMensaje("ERROR Excepción procesando comando: " + ex.getMessage());
             } catch (Exception e2) {
                 // ignorar
             }
         }
     }
 
-    private void manejarJoin(String alias, MiSocketStream socket) throws Exception {
-        if (alias == null || alias.length() == 0) {
-            socket.enviaMensaje("ERROR Debe indicar un alias");
+    /**
+     * Si el comando cabe en los límites de ritmo de su clase.
+     */
+    private boolean admitido() {
+        LimitadorComandos.Clase clase = lector.es("BID") ? LimitadorComandos.Clase.PUJA
+                : lector.es("STATUS") ? LimitadorComandos.Clase.CONSULTA
+                : LimitadorComandos.Clase.OTRO;
+        return limitador.admitir(cubos, cliente.getAlias(), clase);
+    }
+
+    /**
+     * Resto de la línea tras la palabra del comando, como String.
+     */
+    private String argumentos() {
+        return lector.siguiente() ? lector.resto() : "";
+    }
+
+    /**
+     * Lote cuyo id es la palabra actual del lector. Devuelve null (tras
+     * avisar al cliente) si el lote no existe.
+     */
+    private EstadoSubasta resolverLote(CanalMensajes socket) {
+        EstadoSubasta lote = catalogo.getLote(
+                lector.getDatos(), lector.getInicioPalabra(), lector.getFinPalabra());
+        if (lote == null) {
+            // Ids con caracteres no ASCII, o un lote que no existe
+            lote = resolverLote(lector.texto(), socket);
+        }
+        return lote;
+    }
+
+    /**
+     * Lote indicado por el cliente, o el lote actual si no indicó ninguno.
+     * Devuelve null (tras avisar al cliente) si el lote no existe.
+     */
+    private EstadoSubasta resolverLote(String idLote, CanalMensajes socket) {
+        if (idLote == null || idLote.length() == 0) {
+            return loteActual;
+        }
+        EstadoSubasta lote = catalogo.getLote(idLote);
+        if (lote == null) {
+            socket.agregaMensaje("ERROR Lote desconocido: " + idLote);
+        }
+        return lote;
+    }
+
+    private void manejarJoin(String argumentos, CanalMensajes socket) throws Exception {
+        if (argumentos == null || argumentos.length() == 0) {
+            socket.agregaMensaje("ERROR Debe indicar un alias");
             return;
         }
-        cliente.setAlias(alias);
-        estadoSubasta.registrarParticipanteParaSiguienteSubasta(cliente);
-        String estadoTexto = estadoSubasta.getEstadoTexto();
-        socket.enviaMensaje("WELCOME " + cliente.getIdCliente() + " " + estadoTexto);
-        System.out.println("Cliente " + cliente.getIdCliente() + " usa alias: " + alias);
+        // JOIN <lote> <alias> si el primer token es un lote; si no, JOIN <alias>
+        EstadoSubasta lote = loteActual;
+        String alias = argumentos;
+        String[] partes = argumentos.split("\\s+", 2);
+        if (partes.length == 2 && catalogo.getLote(partes[0]) != null) {
+            lote = catalogo.getLote(partes[0]);
+            alias = partes[1].trim();
+        }
+        // El historial guarda el alias del ganador en un campo de tamaño fijo
+        if (CodificacionUtf8.longitud(alias) > HistorialSubastas.MAX_ALIAS) {
+            socket.agregaMensaje("ERROR Alias demasiado largo (máximo "
+                    + HistorialSubastas.MAX_ALIAS + " bytes en UTF-8)");
+            return;
+        }
+        gestorClientes.asignarAlias(cliente, alias);
+        loteActual = lote;
+        // Suscrito antes de contar como participante: no se pierde el AUCTION_STARTED
+        gestorClientes.suscribir(cliente, lote.getIdLote());
+        lote.registrarParticipanteParaSiguienteSubasta(cliente);
+        // Si el servidor se satura, desde esta IP se podrá reconectar antes de esa subasta
+        gestorClientes.anotarParticipacion(cliente, lote, cliente.getUltimaSubastaRegistrada(lote.getIdLote()));
+        NodoCluster nodo = catalogo.getNodo();
+        if (nodo != null) {
+            nodo.reenviarParticipante(lote, cliente);
+        }
+        String estadoTexto = lote.getEstadoTexto();
+        socket.agregaMensaje("WELCOME " + cliente.getIdCliente() + " " + estadoTexto + " " + lote.getIdLote());
+        BITACORA.registrar(Bitacora.Nivel.INFO, "alias", cliente.getIdCliente(), lote.getIdLote(),
+                Bitacora.SIN_SUBASTA, Bitacora.SIN_MONTO, alias);
     }
 
-    private void manejarBid(String argMonto, MiSocketStream socket) throws Exception {
-        if (!estadoSubasta.isSubastaEnCurso()) {
-            socket.enviaMensaje("BID_REJECT SUBASTA_FINALIZADA");
+    private void manejarBid(CanalMensajes socket) throws Exception {
+        // BID <lote> <monto> o BID <monto>
+        EstadoSubasta lote = loteActual;
+        boolean hayMonto = lector.siguiente();
+        if (hayMonto && lector.hayMas()) {
+            lote = resolverLote(socket);
+            if (lote == null) {
+                return;
+            }
+            lector.siguiente();
+        }
+        if (!lote.isSubastaEnCurso()) {
+            MetricasSubasta.PUJAS_RECHAZADAS.increment();
+            socket.agregaMensaje("BID_REJECT SUBASTA_FINALIZADA");
             return;
         }
         if (cliente.getAlias() == null || cliente.getAlias().length() == 0) {
-            socket.enviaMensaje("ERROR Debe hacer JOIN antes de ofertar");
+            socket.agregaMensaje("ERROR Debe hacer JOIN antes de ofertar");
             return;
         }
-        if (argMonto == null || argMonto.length() == 0) {
-            socket.enviaMensaje("ERROR Debe indicar el monto de la oferta");
+        if (!hayMonto) {
+            socket.agregaMensaje("ERROR Debe indicar el monto de la oferta");
             return;
         }
-        double monto;
+        long monto;
         try {
-            monto = Double.parseDouble(argMonto);
+            if (lector.hayMas()) {
+                throw new NumberFormatException();
+            }
+            monto = catalogo.getMontos().parsear(
+                    lector.getDatos(), lector.getInicioPalabra(), lector.getFinPalabra());
         } catch (NumberFormatException nfe) {
-            socket.enviaMensaje("ERROR Monto inválido");
+            socket.agregaMensaje("ERROR Monto inválido");
+            return;
+        }
+
+        NodoCluster nodo = catalogo.getNodo();
+        if (nodo != null && !nodo.esLider()) {
+            reenviarPuja(nodo, lote, monto, socket);
             return;
         }
 
-        boolean esNuevaMaxima = estadoSubasta.registrarOferta(
+        int idSubasta = lote.registrarOferta(
                 monto, cliente.getIdCliente(), cliente.getAlias());
+        if (rechazada(lote, idSubasta, socket)) {
+            return;
+        }
 
-        if (esNuevaMaxima) {
-            socket.enviaMensaje("BID_OK " + monto + " " + cliente.getIdCliente());
-            String msgBroadcast = "NEW_BID " + monto + " " +
-                    cliente.getIdCliente() + " " + cliente.getAlias();
-            gestorClientes.broadcastExcept(msgBroadcast, cliente);
+        // La puja solo se confirma cuando el diario la hizo durable
+        CompletableFuture<Void> durable = lote.anotarPuja(
+                idSubasta, monto, cliente.getIdCliente(), cliente.getAlias());
+        if (flujoEntrada != null || durable.isDone()) {
+            // Sesión con hilo propio (o puja ya durable): confirmar aquí
+            try {
+                durable.join();
+            } catch (CompletionException ex) {
+                confirmarPuja(lote, idSubasta, monto, socket, ex, true);
+                return;
+            }
+            confirmarPuja(lote, idSubasta, monto, socket, null, true);
         } else {
-            socket.enviaMensaje("BID_REJECT MENOR_A_ACTUAL");
+            // Bucle de eventos o relevo: no bloquear, confirmar desde el escritor
+            // del diario (sus canales solo encolan, no escriben en la red)
+            final EstadoSubasta loteOferta = lote;
+            final int subastaOferta = idSubasta;
+            final long montoAceptado = monto;
+            durable.whenComplete((r, ex) -> {
+                confirmarPuja(loteOferta, subastaOferta, montoAceptado, socket, ex, true);
+                socket.vacia();
+            });
         }
     }
 
-    private void manejarStatus(MiSocketStream socket) throws Exception {
-        double oferta = estadoSubasta.getOfertaMaxima();
-        String idGanador = estadoSubasta.getIdClienteGanador();
-        String aliasGanador = estadoSubasta.getAliasGanador();
-        long segRest = estadoSubasta.getSegundosRestantes();
-        String estadoTexto = estadoSubasta.getEstadoTexto();
-        int idSubasta = estadoSubasta.getIdSubastaActual();
+    /**
+     * Responde a una oferta rechazada (idSubasta es un RECHAZO_XXX).
+     * Devuelve false si la oferta se aceptó.
+     */
+    private boolean rechazada(EstadoSubasta lote, int idSubasta, CanalMensajes socket) {
+        if (idSubasta >= 0) {
+            return false;
+        }
+        MetricasSubasta.PUJAS_RECHAZADAS.increment();
+        if (idSubasta == EstadoSubasta.RECHAZO_SUBASTA_CERRADA) {
+            socket.agregaMensaje("BID_REJECT SUBASTA_FINALIZADA");
+        } else if (idSubasta == EstadoSubasta.RECHAZO_INCREMENTO_INSUFICIENTE) {
+            StringBuilder respuesta = respuesta();
+            respuesta.append("BID_REJECT INCREMENTO_INSUFICIENTE ");
+            catalogo.getMontos().formatear(lote.getIncrementoMinimo(), respuesta);
+            socket.agregaMensaje(respuesta);
+        } else {
+            socket.agregaMensaje("BID_REJECT MENOR_A_ACTUAL");
+        }
+        return true;
+    }
 
-        if (idGanador == null) {
-            idGanador = "SIN_GANADOR";
+    /**
+     * Réplica: la oferta la ordena el líder, que responde lo mismo que
+     * registrarOferta una vez anotada. El NEW_BID llega después con el
+     * registro replicado, así que aquí no se difunde.
+     */
+    private void reenviarPuja(NodoCluster nodo, EstadoSubasta lote, long monto, CanalMensajes socket) {
+        CompletableFuture<Integer> resultado = nodo.reenviarPuja(
+                lote, monto, cliente.getIdCliente(), cliente.getAlias());
+        if (flujoEntrada != null) {
+            int idSubasta;
+            try {
+                idSubasta = resultado.join().intValue();
+            } catch (CompletionException ex) {
+                confirmarPuja(lote, -1, monto, socket, ex, false);
+                return;
+            }
+            if (!rechazada(lote, idSubasta, socket)) {
+                confirmarPuja(lote, idSubasta, monto, socket, null, false);
+            }
+        } else {
+            // Bucle de eventos o relevo: confirmar desde el hilo que recibe la
+            // respuesta del líder (sus canales solo encolan)
+            resultado.whenComplete((idSubasta, ex) -> {
+                if (ex != null) {
+                    confirmarPuja(lote, -1, monto, socket, ex, false);
+                } else if (!rechazada(lote, idSubasta.intValue(), socket)) {
+                    confirmarPuja(lote, idSubasta.intValue(), monto, socket, null, false);
+                }
+                socket.vacia();
+            });
         }
-        if (aliasGanador == null) {
-            aliasGanador = "-";
+    }
+
+    private void confirmarPuja(EstadoSubasta lote, int idSubasta, long monto, CanalMensajes socket,
+                               Throwable error, boolean difundir) {
+        if (error != null) {
+            BITACORA.registrar(Bitacora.Nivel.ERROR, "puja_no_anotada", cliente.getIdCliente(),
+                    lote.getIdLote(), Bitacora.SIN_SUBASTA, monto, error.toString());
+            socket.agregaMensaje("ERROR Oferta no registrada, inténtelo de nuevo");
+            return;
+        }
+        MetricasSubasta.PUJAS_ACEPTADAS.increment();
+        StringBuilder respuesta = respuesta();
+        respuesta.append("BID_OK ");
+        catalogo.getMontos().formatear(monto, respuesta);
+        respuesta.append(' ').append(cliente.getIdCliente()).append(' ').append(lote.getIdLote());
+        socket.agregaMensaje(respuesta);
+
+        if (difundir) {
+            difusorPujas.publicar(lote, idSubasta, monto, cliente.getIdCliente(), cliente.getAlias(), cliente);
         }
+    }
 
-        // CURRENT <idSubasta> <oferta> <idGanador> <aliasGanador> <segRest> <estado>
-        String respuesta = "CURRENT " + idSubasta + " " + oferta + " " +
-                idGanador + " " + aliasGanador + " " +
-                segRest + " " + estadoTexto;
-        socket.enviaMensaje(respuesta);
+    /**
+     * NEW_BID <monto> <idCliente> <alias> <lote>. El aviso se comparte entre
+     * todas las colas de salida: este sí es un String.
+     */
+    static String avisoNuevaPuja(Montos montos, long monto, String idCliente, String alias,
+                                 EstadoSubasta lote) {
+        StringBuilder respuesta = respuesta();
+        respuesta.append("NEW_BID ");
+        montos.formatear(monto, respuesta);
+        respuesta.append(' ').append(idCliente).append(' ').append(alias)
+                .append(' ').append(lote.getIdLote());
+        return respuesta.toString();
     }
 
-    private void manejarHistory(MiSocketStream socket) throws Exception {
-        List<EstadoSubasta.ResumenSubasta> hist = estadoSubasta.getHistorial();
-        if (hist.isEmpty()) {
-            socket.enviaMensaje("No hay subastas finalizadas aún.");
+    private void manejarStatus(CanalMensajes socket) throws Exception {
+        EstadoSubasta lote = loteActual;
+        if (lector.siguiente()) {
+            lote = resolverLote(socket);
+            if (lote == null) {
+                return;
+            }
+        }
+        socket.agregaMensaje(lote.getLineaCurrent(catalogo.getMontos()));
+    }
+
+    /**
+     * StringBuilder de respuesta del hilo actual, vacío.
+     */
+    private static StringBuilder respuesta() {
+        StringBuilder respuesta = RESPUESTA.get();
+        respuesta.setLength(0);
+        return respuesta;
+    }
+
+    /**
+     * STATS: una línea STAT por métrica tras la cabecera "STATS <n>".
+     * Es un comando de administración: solo se atiende por loopback, y
+     * nunca a una sesión de relevo (su IP es la que dice el relevo).
+     */
+    private void manejarStats(CanalMensajes socket) throws Exception {
+        InetAddress origen = socket.getInetAddress();
+        if (origen == null || !origen.isLoopbackAddress() || cliente.getEnlace() != null) {
+            socket.agregaMensaje("ERROR STATS solo se admite desde la máquina del servidor");
+            return;
+        }
+        List<String> lineas = MetricasSubasta.REGISTRO.lineasTexto();
+        socket.agregaMensaje("STATS " + lineas.size());
+        for (String linea : lineas) {
+            socket.agregaMensaje("STAT " + linea);
+        }
+    }
+
+    private void manejarLots(CanalMensajes socket) throws Exception {
+        for (String idLote : catalogo.getIdsLotes()) {
+            socket.agregaMensaje(catalogo.getLote(idLote).getLineaCurrent(catalogo.getMontos()));
+        }
+    }
+
+    /**
+     * SUBSCRIBE <lote|LOBBY> y UNSUBSCRIBE <lote|LOBBY>. Responde
+     * SUBSCRIBED <tema> o UNSUBSCRIBED <tema>, aunque ya lo estuviera.
+     */
+    private void manejarSuscripcion(String tema, boolean alta, CanalMensajes socket) {
+        String comando = alta ? "SUBSCRIBE" : "UNSUBSCRIBE";
+        if (tema.length() == 0 || tema.indexOf(' ') >= 0) {
+            socket.agregaMensaje("ERROR Uso: " + comando + " <lote|" + GestorClientes.TEMA_LOBBY + ">");
+            return;
+        }
+        if (!tema.equals(GestorClientes.TEMA_LOBBY) && catalogo.getLote(tema) == null) {
+            socket.agregaMensaje("ERROR Tema desconocido: " + tema);
+            return;
+        }
+        if (alta) {
+            gestorClientes.suscribir(cliente, tema);
+        } else {
+            gestorClientes.desuscribir(cliente, tema);
+        }
+        socket.agregaMensaje(comando + "D " + tema);
+    }
+
+    /**
+     * HISTORY [lote] [LAST n | desde limite]
+     * Sin rango devuelve las últimas subastas del lote (LAST por defecto).
+     * Sólo se lee del fichero de historial la página pedida.
+     */
+    private void manejarHistory(String argumentos, CanalMensajes socket) throws Exception {
+        String[] tokens = (argumentos.length() == 0) ? new String[0] : argumentos.split("\\s+");
+        // Con un número impar de argumentos el primero es el lote
+        String idLote = "";
+        int inicio = 0;
+        if (tokens.length % 2 == 1) {
+            idLote = tokens[0];
+            inicio = 1;
+        }
+        if (tokens.length > 3) {
+            socket.agregaMensaje("ERROR Uso: HISTORY [lote] [LAST n | desde limite]");
+            return;
+        }
+        EstadoSubasta lote = resolverLote(idLote, socket);
+        if (lote == null) {
+            return;
+        }
+        long total = lote.getTotalHistorial();
+        long desde;
+        int limite;
+        try {
+            if (inicio == tokens.length) {
+                limite = PAGINA_HISTORIAL;
+                desde = Math.max(0, total - limite);
+            } else if ("LAST".equalsIgnoreCase(tokens[inicio])) {
+                limite = Integer.parseInt(tokens[inicio + 1]);
+                desde = Math.max(0, total - limite);
+            } else {
+                desde = Long.parseLong(tokens[inicio]);
+                limite = Integer.parseInt(tokens[inicio + 1]);
+            }
+        } catch (NumberFormatException ex) {
+            socket.agregaMensaje("ERROR Uso: HISTORY [lote] [LAST n | desde limite]");
+            return;
+        }
+        if (desde < 0 || limite < 0) {
+            socket.agregaMensaje("ERROR Uso: HISTORY [lote] [LAST n | desde limite]");
+            return;
+        }
+        limite = Math.min(limite, MAX_PAGINA_HISTORIAL);
+
+        if (total == 0) {
+            socket.agregaMensaje("No hay subastas finalizadas aún.");
             return;
         }
-        for (EstadoSubasta.ResumenSubasta r : hist) {
+        List<EstadoSubasta.ResumenSubasta> pagina = lote.leerHistorial(desde, limite);
+        socket.agregaMensaje("HISTORY_PAGE " + lote.getIdLote() + " " + desde + " "
+                + pagina.size() + " " + total);
+        for (EstadoSubasta.ResumenSubasta r : pagina) {
             String idGan = r.getIdGanador();
             String aliasGan = r.getAliasGanador();
             if (idGan == null) {
@@ -172,12 +583,12 @@ class HiloServidorSubasta implements Runnable {
             if (aliasGan == null) {
                 aliasGan = "-";
             }
-            String montoStr = String.valueOf(r.getOfertaMaxima());
-            socket.enviaMensaje("======================================");
-            socket.enviaMensaje("  SUBASTA " + r.getId() + " FINALIZADA");
-            socket.enviaMensaje("  Ganador: " + aliasGan + " ( " + idGan + " )");
-            socket.enviaMensaje("  Oferta ganadora: " + montoStr);
-            socket.enviaMensaje("======================================");
+            String montoStr = catalogo.getMontos().formatear(r.getOfertaMaxima());
+            socket.agregaMensaje("======================================");
+            socket.agregaMensaje("  SUBASTA " + r.getId() + " DEL LOTE " + lote.getIdLote() + " FINALIZADA");
+            socket.agregaMensaje("  Ganador: " + aliasGan + " ( " + idGan + " )");
+            socket.agregaMensaje("  Oferta ganadora: " + montoStr);
+            socket.agregaMensaje("======================================");
         }
     }
 }
@@ -0,0 +1,215 @@
+package socket.conconexion.servidor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Historial de subastas finalizadas de un lote, en un fichero de registros
+ * de ancho fijo accedido mediante MappedByteBuffer.
+ *
+ * El heap no crece con el historial: los registros viven en el fichero
+ * mapeado y una página se lee directamente por posición, sin copiar el
+ * resto. Escribe un solo hilo a la vez (el cierre de subastas del lote,
+ * bajo su cerrojo); las lecturas son concurrentes y solo ven registros
+ * completos porque el total se publica después de escribirlos.
+ *
+ * Formato: cabecera de 64 bytes (magia, tamaño de registro, total,
+ * decimales de los montos) y registros de 128 bytes:
+ *   id (int) | oferta (long, unidades mínimas) | instante fin (long) |
+ *   idGanador (1 byte largo + 23 bytes UTF-8) | alias (1 byte largo + 63 bytes UTF-8)
+ * Un texto más largo se corta sin partir un carácter.
+ */
+public class HistorialSubastas {
+
+    private static final int MAGIA = 0x48495332; // "HIS2"
+    private static final int TAM_CABECERA = 64;
+    static final int TAM_REGISTRO = 128;
+    private static final int MAX_ID_GANADOR = 23;
+    // Bytes UTF-8 que caben de un alias; JOIN no admite alias más largos
+    static final int MAX_ALIAS = 63;
+    // Registros por región mapeada (1 MB por región)
+    private static final int REGISTROS_POR_REGION = 8192;
+
+    private final FileChannel canal;
+    private final MappedByteBuffer cabecera;
+    private final List<MappedByteBuffer> regiones = new CopyOnWriteArrayList<MappedByteBuffer>();
+    private final ReentrantLock cerrojoRegiones = new ReentrantLock();
+    private volatile long total;
+    private int ultimoId;
+
+    private HistorialSubastas(FileChannel canal, int decimales) throws IOException {
+        this.canal = canal;
+        this.cabecera = canal.map(FileChannel.MapMode.READ_WRITE, 0, TAM_CABECERA);
+        if (cabecera.getInt(0) == 0) {
+            cabecera.putInt(0, MAGIA);
+            cabecera.putInt(4, TAM_REGISTRO);
+            cabecera.putLong(8, 0L);
+            cabecera.putInt(16, decimales);
+            cabecera.force();
+        } else if (cabecera.getInt(0) != MAGIA || cabecera.getInt(4) != TAM_REGISTRO) {
+            throw new IOException("El fichero no es un historial de subastas válido");
+        } else if (cabecera.getInt(16) != decimales) {
+            throw new IOException("El historial tiene montos con " + cabecera.getInt(16)
+                    + " decimales y el servidor usa " + decimales);
+        }
+        this.total = cabecera.getLong(8);
+        if (total > 0L) {
+            ultimoId = region(total - 1).getInt(desplazamiento(total - 1));
+        }
+    }
+
+    /**
+     * Abre (o crea) el fichero de historial.
+     */
+    public static HistorialSubastas abrir(Path ruta, Montos montos) throws IOException {
+        FileChannel canal = FileChannel.open(ruta, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new HistorialSubastas(canal, montos.getDecimales());
+    }
+
+    /**
+     * Número de subastas finalizadas guardadas.
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * Id de la última subasta guardada (0 si no hay ninguna).
+     */
+    public int getUltimoId() {
+        return ultimoId;
+    }
+
+    /**
+     * Añade el resumen de una subasta finalizada y lo fuerza a disco.
+     * Solo debe llamarlo un hilo a la vez.
+     */
+    public void agregar(EstadoSubasta.ResumenSubasta resumen, long instanteFin) throws IOException {
+        long n = total;
+        escribirRegistro(n, resumen, instanteFin);
+        region(n).force(desplazamiento(n), TAM_REGISTRO);
+
+        cabecera.putLong(8, n + 1);
+        cabecera.force();
+        ultimoId = resumen.getId();
+        total = n + 1;
+    }
+
+    /**
+     * Lee como mucho 'limite' resúmenes a partir de la posición 'desde'
+     * (0 = la subasta más antigua). Coste proporcional a la página.
+     */
+    public List<EstadoSubasta.ResumenSubasta> leer(long desde, int limite) throws IOException {
+        long n = total;
+        List<EstadoSubasta.ResumenSubasta> pagina = new ArrayList<EstadoSubasta.ResumenSubasta>();
+        for (long i = Math.max(0L, desde); i < n && pagina.size() < limite; i++) {
+            MappedByteBuffer region = region(i);
+            int pos = desplazamiento(i);
+            pagina.add(new EstadoSubasta.ResumenSubasta(
+                    region.getInt(pos),
+                    region.getLong(pos + 4),
+                    leerTexto(region, pos + 20),
+                    leerTexto(region, pos + 44)));
+        }
+        return pagina;
+    }
+
+    /**
+     * Posición del primer resumen con id mayor que el indicado (getTotal
+     * si no hay ninguno). Los ids crecen con la posición: búsqueda binaria.
+     */
+    public long buscarPosterior(int id) throws IOException {
+        long bajo = 0L;
+        long alto = total;
+        while (bajo < alto) {
+            long medio = (bajo + alto) >>> 1;
+            if (region(medio).getInt(desplazamiento(medio)) <= id) {
+                bajo = medio + 1;
+            } else {
+                alto = medio;
+            }
+        }
+        return bajo;
+    }
+
+    /**
+     * Instante de fin (ms) de la subasta guardada en la posición indicada.
+     */
+    public long leerInstanteFin(long indice) throws IOException {
+        return region(indice).getLong(desplazamiento(indice) + 12);
+    }
+
+    /**
+     * Escribe el registro en la posición indicada, sin forzarlo a disco.
+     */
+    private void escribirRegistro(long indice, EstadoSubasta.ResumenSubasta resumen,
+                                  long instanteFin) throws IOException {
+        MappedByteBuffer region = region(indice);
+        int pos = desplazamiento(indice);
+        region.putInt(pos, resumen.getId());
+        region.putLong(pos + 4, resumen.getOfertaMaxima());
+        region.putLong(pos + 12, instanteFin);
+        escribirTexto(region, pos + 20, resumen.getIdGanador(), MAX_ID_GANADOR);
+        escribirTexto(region, pos + 44, resumen.getAliasGanador(), MAX_ALIAS);
+    }
+
+    private MappedByteBuffer region(long indice) throws IOException {
+        int r = (int) (indice / REGISTROS_POR_REGION);
+        if (r < regiones.size()) {
+            return regiones.get(r);
+        }
+        cerrojoRegiones.lock();
+        try {
+            long tamRegion = (long) REGISTROS_POR_REGION * TAM_REGISTRO;
+            while (regiones.size() <= r) {
+                long inicio = TAM_CABECERA + regiones.size() * tamRegion;
+                regiones.add(canal.map(FileChannel.MapMode.READ_WRITE, inicio, tamRegion));
+            }
+            return regiones.get(r);
+        } finally {
+            cerrojoRegiones.unlock();
+        }
+    }
+
+    private static int desplazamiento(long indice) {
+        return (int) (indice % REGISTROS_POR_REGION) * TAM_REGISTRO;
+    }
+
+    private static void escribirTexto(MappedByteBuffer region, int pos, String texto, int max) {
+        if (texto == null) {
+            region.put(pos, (byte) 0xFF);
+            return;
+        }
+        byte[] bytes = texto.getBytes(StandardCharsets.UTF_8);
+        int largo = bytes.length;
+        if (largo > max) {
+            // Sin cortar un carácter: se retrocede hasta el primer byte del que no cabe
+            largo = max;
+            while (largo > 0 && (bytes[largo] & 0xC0) == 0x80) {
+                largo--;
+            }
+        }
+        region.put(pos, (byte) largo);
+        region.put(pos + 1, bytes, 0, largo);
+    }
+
+    private static String leerTexto(ByteBuffer region, int pos) {
+        int largo = region.get(pos) & 0xFF;
+        if (largo == 0xFF) {
+            return null;
+        }
+        byte[] bytes = new byte[largo];
+        region.get(pos + 1, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,144 @@
+package socket.conconexion.servidor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.zip.CRC32;
+
+/**
+ * Instantáneas periódicas del estado de todos los lotes, junto al diario.
+ *
+ * Para tomar una, primero se rota el diario: todo lo anotado antes ya está
+ * reflejado en memoria y queda en segmentos anteriores. Luego se copia el
+ * estado de cada lote (sin detener las pujas) y se guarda con un renombrado
+ * atómico. Los segmentos anteriores ya no hacen falta y se borran, así la
+ * recuperación solo reproduce la cola del diario posterior a la instantánea.
+ *
+ * Formato: magia, versión del estado de los lotes (ver
+ * EstadoSubasta.VERSION_INSTANTANEA), decimales de los montos, instante,
+ * primer segmento del diario por reproducir y, por lote, su id y su estado
+ * con el largo delante; al final, el CRC32 de todo lo anterior.
+ */
+public class InstantaneasSubastas implements Runnable {
+
+    private static final String NOMBRE = "instantanea.bin";
+    private static final int MAGIA = 0x53554249; // "SUBI"
+
+    private final DiarioSubastas diario;
+    private final CatalogoLotes catalogo;
+
+    public InstantaneasSubastas(DiarioSubastas diario, CatalogoLotes catalogo) {
+        this.diario = diario;
+        this.catalogo = catalogo;
+    }
+
+    public void run() {
+        try {
+            tomar();
+        } catch (Exception ex) {
+            System.out.println("No se pudo tomar la instantánea de las subastas: " + ex);
+        }
+    }
+
+    /**
+     * Toma una instantánea y descarta los segmentos del diario que cubre.
+     */
+    public void tomar() throws IOException {
+        long inicio = System.currentTimeMillis();
+        int segmento = diario.rotar().join();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIA);
+        out.writeInt(EstadoSubasta.VERSION_INSTANTANEA);
+        out.writeInt(catalogo.getMontos().getDecimales());
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(segmento);
+        out.writeInt(catalogo.getIdsLotes().size());
+        for (String idLote : catalogo.getIdsLotes()) {
+            ByteArrayOutputStream datosLote = new ByteArrayOutputStream(256);
+            catalogo.getLote(idLote).escribirInstantanea(new DataOutputStream(datosLote));
+            out.writeUTF(idLote);
+            out.writeInt(datosLote.size());
+            datosLote.writeTo(out);
+        }
+        out.flush();
+        byte[] contenido = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(contenido, 0, contenido.length);
+
+        Path directorio = diario.getDirectorio();
+        Path temporal = directorio.resolve(NOMBRE + ".tmp");
+        try (FileChannel f = FileChannel.open(temporal, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.allocate(contenido.length + 4);
+            buf.put(contenido).putInt((int) crc.getValue());
+            buf.flip();
+            while (buf.hasRemaining()) {
+                f.write(buf);
+            }
+            f.force(true);
+        }
+        Files.move(temporal, directorio.resolve(NOMBRE),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        DiarioSubastas.borrarSegmentosAnteriores(directorio, segmento);
+        System.out.println("Instantánea de subastas tomada (diario desde el segmento " + segmento
+                + ", " + (System.currentTimeMillis() - inicio) + " ms)");
+    }
+
+    /**
+     * Reconstruye los lotes del catálogo: carga la última instantánea (si hay)
+     * y reproduce los segmentos del diario posteriores, hasta el indicado.
+     */
+    public static void recuperar(Path directorio, int hastaSegmento, CatalogoLotes catalogo) throws IOException {
+        int desde = 1;
+        Path ruta = directorio.resolve(NOMBRE);
+        if (Files.exists(ruta)) {
+            byte[] datos = Files.readAllBytes(ruta);
+            CRC32 crc = new CRC32();
+            crc.update(datos, 0, datos.length - 4);
+            int crcLeido = ByteBuffer.wrap(datos, datos.length - 4, 4).getInt();
+            if ((int) crc.getValue() != crcLeido) {
+                throw new IOException("La instantánea " + ruta + " está corrupta");
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(datos, 0, datos.length - 4));
+            if (in.readInt() != MAGIA) {
+                throw new IOException("El fichero " + ruta + " no es una instantánea de subastas");
+            }
+            int version = in.readInt();
+            int decimales = in.readInt();
+            if (decimales != catalogo.getMontos().getDecimales()) {
+                throw new IOException("La instantánea " + ruta + " tiene montos con " + decimales
+                        + " decimales y el servidor usa " + catalogo.getMontos().getDecimales());
+            }
+            long instante = in.readLong();
+            desde = in.readInt();
+            int lotes = in.readInt();
+            for (int i = 0; i < lotes; i++) {
+                String idLote = in.readUTF();
+                byte[] datosLote = new byte[in.readInt()];
+                in.readFully(datosLote);
+                EstadoSubasta lote = catalogo.getLote(idLote);
+                if (lote == null) {
+                    System.out.println("La instantánea contiene un lote que ya no existe: " + idLote);
+                    continue;
+                }
+                lote.leerInstantanea(new DataInputStream(new ByteArrayInputStream(datosLote)), version);
+            }
+            System.out.println("Instantánea de " + new Date(instante) + " cargada ("
+                    + lotes + " lotes).");
+        }
+        int aplicados = DiarioSubastas.reproducir(directorio, desde, hastaSegmento, catalogo);
+        System.out.println("Diario reproducido desde el segmento " + desde + ": "
+                + aplicados + " registros.");
+    }
+}
@@ -0,0 +1,124 @@
+package socket.conconexion.servidor;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Separa en palabras una línea de comando recibida como bytes, sin
+ * expresiones regulares ni Strings intermedios. Cada sesión tiene el suyo
+ * y lo reutiliza en todas las líneas.
+ *
+ * Uso:
+ *   lector.reiniciar(datos, desde, largo);
+ *   while (lector.siguiente()) { ... lector.es("BID") ... }
+ *
+ * Solo crean objetos texto() y resto(), que se usan fuera del camino de
+ * una puja normal. Los montos los interpreta Montos sobre los mismos bytes.
+ */
+class LectorComando {
+
+    private byte[] datos;
+    private int fin;
+    private int cursor;
+
+    // Palabra actual: datos[inicioPalabra, finPalabra)
+    private int inicioPalabra;
+    private int finPalabra;
+
+    /**
+     * Prepara el lector para una nueva línea (sin el salto de línea).
+     */
+    void reiniciar(byte[] datos, int desde, int largo) {
+        this.datos = datos;
+        this.cursor = desde;
+        this.fin = desde + largo;
+        this.inicioPalabra = desde;
+        this.finPalabra = desde;
+    }
+
+    /**
+     * Avanza a la siguiente palabra. Devuelve false si no quedan más.
+     */
+    boolean siguiente() {
+        while (cursor < fin && esEspacio(datos[cursor])) {
+            cursor++;
+        }
+        if (cursor == fin) {
+            inicioPalabra = fin;
+            finPalabra = fin;
+            return false;
+        }
+        inicioPalabra = cursor;
+        while (cursor < fin && !esEspacio(datos[cursor])) {
+            cursor++;
+        }
+        finPalabra = cursor;
+        return true;
+    }
+
+    private static boolean esEspacio(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '\f' || b == 0x0B;
+    }
+
+    /**
+     * true si quedan palabras después de la actual.
+     */
+    boolean hayMas() {
+        int i = cursor;
+        while (i < fin && esEspacio(datos[i])) {
+            i++;
+        }
+        return i < fin;
+    }
+
+    int getInicioPalabra() {
+        return inicioPalabra;
+    }
+
+    int getFinPalabra() {
+        return finPalabra;
+    }
+
+    byte[] getDatos() {
+        return datos;
+    }
+
+    /**
+     * Compara la palabra actual con una en mayúsculas, sin distinguir
+     * mayúsculas de minúsculas (solo ASCII, que es lo que usan los comandos).
+     */
+    boolean es(String palabraMayusculas) {
+        int largo = finPalabra - inicioPalabra;
+        if (largo != palabraMayusculas.length()) {
+            return false;
+        }
+        for (int i = 0; i < largo; i++) {
+            int b = datos[inicioPalabra + i];
+            if (b >= 'a' && b <= 'z') {
+                b -= 'a' - 'A';
+            }
+            if (b != palabraMayusculas.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * La palabra actual como String.
+     */
+    String texto() {
+        return new String(datos, inicioPalabra, finPalabra - inicioPalabra, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Lo que queda de la línea desde la palabra actual (incluida), sin los
+     * espacios del final. Cadena vacía si no hay palabra actual.
+     */
+    String resto() {
+        int hasta = fin;
+        while (hasta > inicioPalabra && esEspacio(datos[hasta - 1])) {
+            hasta--;
+        }
+        return new String(datos, inicioPalabra, hasta - inicioPalabra, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,217 @@
+package socket.conconexion.servidor;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Límites de ritmo de los comandos, con cubos de tokens (ver CuboTokens)
+ * por clase de comando: BID, STATUS y el resto.
+ *  - Por conexión: cada sesión tiene sus cubos (ver crearCubosConexion).
+ *  - Por alias: los comparten todas las conexiones con el mismo alias,
+ *    así abrir más conexiones no da más pujas.
+ *  - Admisión global de pujas: un único cubo para todas las BID del
+ *    servidor; en un pico rechaza lo que sobra en lugar de hacerlo esperar
+ *    por el cerrojo del lote y por su broadcast.
+ * Lo que no cabe se responde con ERROR RATE_LIMITED antes de tocar el
+ * lote (ver HiloServidorSubasta.procesarComando). Las clases sin límite
+ * configurado no cuestan nada.
+ *
+ * Se configura con propiedades del sistema "porSegundo:rafaga" (ver
+ * ServidorEcho3): subasta.limite.{bid,status,otros},
+ * subasta.limite.alias.{bid,status,otros} y subasta.limite.pujasGlobal.
+ */
+final class LimitadorComandos {
+
+    enum Clase {
+        PUJA("bid"), CONSULTA("status"), OTRO("otros");
+
+        private final String propiedad;
+
+        Clase(String propiedad) {
+            this.propiedad = propiedad;
+        }
+    }
+
+    static final LimitadorComandos SIN_LIMITES =
+            new LimitadorComandos(new Tasa[Clase.values().length], new Tasa[Clase.values().length], null);
+
+    // Los cubos de alias que llevan este tiempo llenos se olvidan (ver purgar)
+    private static final long OLVIDO_ALIAS_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    /**
+     * Ritmo medio y ráfaga de un cubo.
+     */
+    static final class Tasa {
+        final double porSegundo;
+        final int rafaga;
+
+        Tasa(double porSegundo, int rafaga) {
+            if (porSegundo <= 0.0 || rafaga < 1) {
+                throw new IllegalArgumentException("Límite de ritmo no válido: " + porSegundo + ":" + rafaga);
+            }
+            this.porSegundo = porSegundo;
+            this.rafaga = rafaga;
+        }
+
+        /**
+         * "porSegundo:rafaga" (ráfaga por defecto, un segundo de ritmo);
+         * null o vacío = sin límite.
+         */
+        static Tasa parsear(String texto) {
+            if (texto == null || texto.trim().length() == 0) {
+                return null;
+            }
+            String[] campos = texto.trim().split(":");
+            double porSegundo = Double.parseDouble(campos[0]);
+            int rafaga = (campos.length > 1)
+                    ? Integer.parseInt(campos[1]) : (int) Math.max(1L, Math.round(porSegundo));
+            return new Tasa(porSegundo, rafaga);
+        }
+
+        CuboTokens crear(long ahora) {
+            return new CuboTokens(porSegundo, rafaga, ahora);
+        }
+    }
+
+    // Por clase (ordinal); null = sin límite
+    private final Tasa[] porConexion;
+    private final Tasa[] porAlias;
+    private final CuboTokens pujasGlobal;
+    private final boolean activo;
+    private final boolean conAlias;
+
+    private final ConcurrentHashMap<String, CuboTokens[]> cubosAlias =
+            new ConcurrentHashMap<String, CuboTokens[]>();
+
+    LimitadorComandos(Tasa[] porConexion, Tasa[] porAlias, Tasa pujasGlobal) {
+        this.porConexion = porConexion;
+        this.porAlias = porAlias;
+        this.pujasGlobal = (pujasGlobal == null) ? null : pujasGlobal.crear(System.nanoTime());
+        boolean alias = false;
+        boolean alguno = pujasGlobal != null;
+        for (int i = 0; i < porConexion.length; i++) {
+            alias |= porAlias[i] != null;
+            alguno |= porConexion[i] != null || porAlias[i] != null;
+        }
+        this.conAlias = alias;
+        this.activo = alguno;
+    }
+
+    /**
+     * Lee los límites de las propiedades del sistema.
+     */
+    static LimitadorComandos desdePropiedades() {
+        Clase[] clases = Clase.values();
+        Tasa[] porConexion = new Tasa[clases.length];
+        Tasa[] porAlias = new Tasa[clases.length];
+        for (Clase clase : clases) {
+            porConexion[clase.ordinal()] = Tasa.parsear(System.getProperty("subasta.limite." + clase.propiedad));
+            porAlias[clase.ordinal()] = Tasa.parsear(
+                    System.getProperty("subasta.limite.alias." + clase.propiedad));
+        }
+        return new LimitadorComandos(porConexion, porAlias,
+                Tasa.parsear(System.getProperty("subasta.limite.pujasGlobal")));
+    }
+
+    /**
+     * Si hay algún límite configurado.
+     */
+    boolean isActivo() {
+        return activo;
+    }
+
+    /**
+     * Si hay límites por alias (y por tanto cubos que purgar).
+     */
+    boolean isConAlias() {
+        return conAlias;
+    }
+
+    /**
+     * Cubos de una conexión nueva, por clase (null donde no hay límite).
+     */
+    CuboTokens[] crearCubosConexion() {
+        long ahora = System.nanoTime();
+        CuboTokens[] cubos = new CuboTokens[porConexion.length];
+        for (int i = 0; i < cubos.length; i++) {
+            if (porConexion[i] != null) {
+                cubos[i] = porConexion[i].crear(ahora);
+            }
+        }
+        return cubos;
+    }
+
+    /**
+     * Toma un token de cada cubo que aplica al comando: el de la conexión,
+     * el del alias (si lo tiene) y, para BID, el global. Devuelve false en
+     * cuanto uno está vacío, y entonces devuelve los tokens ya tomados: un
+     * comando rechazado no gasta el límite de nadie.
+     */
+    boolean admitir(CuboTokens[] cubosConexion, String alias, Clase clase) {
+        long ahora = System.nanoTime();
+        int i = clase.ordinal();
+        CuboTokens cubo = cubosConexion[i];
+        if (cubo != null && !cubo.tomar(ahora)) {
+            return limitado();
+        }
+        CuboTokens cuboAlias = null;
+        if (alias != null && porAlias[i] != null) {
+            CuboTokens[] cubos = cubosAlias.get(alias);
+            if (cubos == null) {
+                cubos = cubosAlias.computeIfAbsent(alias, a -> crearCubosAlias(ahora));
+            }
+            if (!cubos[i].tomar(ahora)) {
+                return limitado(cubo, null);
+            }
+            cuboAlias = cubos[i];
+        }
+        if (clase == Clase.PUJA && pujasGlobal != null && !pujasGlobal.tomar(ahora)) {
+            return limitado(cubo, cuboAlias);
+        }
+        return true;
+    }
+
+    /**
+     * Rechazo tras haber tomado ya tokens de los cubos dados (null si no).
+     */
+    private static boolean limitado(CuboTokens tomado1, CuboTokens tomado2) {
+        if (tomado1 != null) {
+            tomado1.devolver();
+        }
+        if (tomado2 != null) {
+            tomado2.devolver();
+        }
+        return limitado();
+    }
+
+    private static boolean limitado() {
+        MetricasSubasta.COMANDOS_LIMITADOS.increment();
+        return false;
+    }
+
+    private CuboTokens[] crearCubosAlias(long ahora) {
+        CuboTokens[] cubos = new CuboTokens[porAlias.length];
+        for (int i = 0; i < cubos.length; i++) {
+            if (porAlias[i] != null) {
+                cubos[i] = porAlias[i].crear(ahora);
+            }
+        }
+        return cubos;
+    }
+
+    /**
+     * Olvida los alias cuyos cubos llevan un rato llenos: volverían a
+     * crearse llenos, así que no cambia lo que se admite.
+     */
+    void purgar() {
+        long ahora = System.nanoTime();
+        cubosAlias.values().removeIf(cubos -> {
+            for (CuboTokens cubo : cubos) {
+                if (cubo != null && !cubo.lleno(ahora, OLVIDO_ALIAS_NANOS)) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+}
@@ -0,0 +1,80 @@
+package socket.conconexion.servidor;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+import socket.conconexion.metricas.HistogramaLatencias;
+import socket.conconexion.metricas.RegistroMetricas;
+
+/**
+ * Métricas del servidor de subasta. Son estáticas para que medir en el
+ * camino de una puja sea solo un LongAdder o un histograma por franjas,
+ * sin pasar un objeto más por todos los constructores.
+ *
+ * Se consultan con el comando STATS (solo desde la propia máquina) y, si
+ * se arranca con -Dsubasta.metricas.puerto, en /metrics en formato Prometheus.
+ */
+final class MetricasSubasta {
+
+    static final RegistroMetricas REGISTRO = new RegistroMetricas();
+
+    static final LongAdder PUJAS_ACEPTADAS = REGISTRO.contador(
+            "subasta_pujas_aceptadas_total", "Pujas confirmadas con BID_OK.");
+    static final LongAdder PUJAS_RECHAZADAS = REGISTRO.contador(
+            "subasta_pujas_rechazadas_total", "Pujas respondidas con BID_REJECT.");
+    static final LongAdder REINTENTOS_PUJA = REGISTRO.contador(
+            "subasta_pujas_reintentos_total",
+            "Veces que otra puja se adelantó al compareAndSet de la oferta vigente.");
+    static final LongAdder EXTENSIONES_CIERRE = REGISTRO.contador(
+            "subasta_extensiones_cierre_total", "Subastas alargadas por una puja en la ventana de cierre suave.");
+    static final LongAdder COMANDOS_LIMITADOS = REGISTRO.contador(
+            "subasta_comandos_limitados_total", "Comandos respondidos con ERROR RATE_LIMITED.");
+    static final LongAdder CONEXIONES_RECHAZADAS = REGISTRO.contador(
+            "subasta_conexiones_rechazadas_total", "Conexiones rechazadas con BUSY al aceptarlas.");
+    static final LongAdder MENSAJES_DIFUNDIDOS = REGISTRO.contador(
+            "subasta_mensajes_difundidos_total", "Mensajes de broadcast encolados a clientes.");
+
+    static final HistogramaLatencias DIFUSION = REGISTRO.tiempos(
+            "subasta_difusion_segundos",
+            "Tiempo en encolar un broadcast a todos los clientes (muestra de 1 de cada 16).");
+    static final HistogramaLatencias COMANDO = REGISTRO.tiempos(
+            "subasta_comando_segundos",
+            "Tiempo en interpretar y atender un comando (muestra de 1 de cada 16).");
+    static final HistogramaLatencias ESPERA_CERROJO = REGISTRO.tiempos(
+            "subasta_espera_cerrojo_segundos",
+            "Esperas por el cerrojo de un lote cuando estaba ocupado.");
+
+    // Los tiempos de comandos y broadcasts se miden en uno de cada MUESTREO + 1
+    // (debe ser 2^n - 1): System.nanoTime() cuesta decenas de ns
+    static final int MUESTREO = 15;
+
+    static {
+        REGISTRO.indicador("subasta_bitacora_descartados",
+                "Registros de la bitácora descartados por tener el anillo lleno.",
+                BitacoraSubasta.BITACORA::getDescartados);
+        // Solo hilos de plataforma: los virtuales no cuentan aquí, así que en
+        // modo virtual lo que importa es que no crezca con los clientes
+        ThreadMXBean hilos = ManagementFactory.getThreadMXBean();
+        REGISTRO.indicador("subasta_hilos_vivos", "Hilos de plataforma vivos en el servidor.",
+                hilos::getThreadCount);
+        REGISTRO.indicador("subasta_hilos_maximo", "Máximo de hilos de plataforma vivos a la vez.",
+                hilos::getPeakThreadCount);
+    }
+
+    private MetricasSubasta() {
+    }
+
+    /**
+     * Registra los indicadores que se calculan a partir de los clientes conectados.
+     */
+    static void vigilarClientes(GestorClientes gestorClientes) {
+        REGISTRO.indicador("subasta_clientes_conectados", "Clientes conectados.",
+                gestorClientes::getNumeroClientes);
+        REGISTRO.indicador("subasta_cola_salida_maxima",
+                "Mensajes pendientes en la cola de salida más llena.",
+                gestorClientes::getMaximoPendientes);
+        REGISTRO.indicador("subasta_cola_salida_pendientes",
+                "Mensajes pendientes en todas las colas de salida.",
+                gestorClientes::getTotalPendientes);
+    }
+}
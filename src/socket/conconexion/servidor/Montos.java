@@ -0,0 +1,123 @@
+package socket.conconexion.servidor;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Montos en punto fijo: el servidor guarda y compara las ofertas como un
+ * long de unidades mínimas de la moneda (con 2 decimales, 12.50 es 1250).
+ *
+ * Convierte entre ese long y el texto del protocolo sin pasar por double:
+ * parsear no crea objetos y formatear escribe las cifras directamente en
+ * un StringBuilder, siempre con todos los decimales ("12.50", "7.00").
+ */
+public final class Montos {
+
+    // Máximo de decimales: 10^18 cabe en un long
+    static final int MAX_DECIMALES = 18;
+
+    private final int decimales;
+    private final long factor;
+
+    public Montos(int decimales) {
+        if (decimales < 0 || decimales > MAX_DECIMALES) {
+            throw new IllegalArgumentException("Decimales fuera de rango: " + decimales);
+        }
+        this.decimales = decimales;
+        long f = 1L;
+        for (int i = 0; i < decimales; i++) {
+            f *= 10L;
+        }
+        this.factor = f;
+    }
+
+    public int getDecimales() {
+        return decimales;
+    }
+
+    /**
+     * Unidades mínimas en una unidad de la moneda (10^decimales).
+     */
+    public long getFactor() {
+        return factor;
+    }
+
+    /**
+     * Interpreta datos[desde, hasta) como un monto positivo o cero:
+     * [+]cifras[.cifras], con como mucho getDecimales() decimales.
+     *
+     * @throws NumberFormatException si no es un monto válido o no cabe en un long
+     */
+    public long parsear(byte[] datos, int desde, int hasta) {
+        int i = desde;
+        if (i < hasta && datos[i] == '+') {
+            i++;
+        }
+        long unidades = 0L;
+        int decimalesLeidos = 0;
+        boolean enDecimales = false;
+        boolean hayCifras = false;
+        for (; i < hasta; i++) {
+            byte b = datos[i];
+            if (b >= '0' && b <= '9') {
+                if (enDecimales && ++decimalesLeidos > decimales) {
+                    throw new NumberFormatException("Demasiados decimales");
+                }
+                if (unidades > (Long.MAX_VALUE - (b - '0')) / 10L) {
+                    throw new NumberFormatException("Monto demasiado grande");
+                }
+                unidades = unidades * 10L + (b - '0');
+                hayCifras = true;
+            } else if (b == '.' && !enDecimales) {
+                enDecimales = true;
+            } else {
+                throw new NumberFormatException("Carácter no válido en un monto");
+            }
+        }
+        if (!hayCifras) {
+            throw new NumberFormatException("Monto vacío");
+        }
+        for (; decimalesLeidos < decimales; decimalesLeidos++) {
+            if (unidades > Long.MAX_VALUE / 10L) {
+                throw new NumberFormatException("Monto demasiado grande");
+            }
+            unidades *= 10L;
+        }
+        return unidades;
+    }
+
+    /**
+     * Versión para textos de configuración.
+     */
+    public long parsear(String texto) {
+        byte[] bytes = texto.trim().getBytes(StandardCharsets.US_ASCII);
+        return parsear(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Añade el monto al destino con todos sus decimales, sin crear objetos.
+     */
+    public void formatear(long unidades, StringBuilder destino) {
+        if (unidades < 0L) {
+            destino.append('-');
+            // Long.MIN_VALUE no es un monto válido; el resto se niega sin desbordar
+            unidades = -unidades;
+        }
+        if (decimales == 0) {
+            destino.append(unidades);
+            return;
+        }
+        destino.append(unidades / factor).append('.');
+        long fraccion = unidades % factor;
+        // Ceros a la izquierda de la parte decimal
+        for (long f = factor / 10L; f > fraccion && f > 1L; f /= 10L) {
+            destino.append('0');
+        }
+        destino.append(fraccion);
+    }
+
+    public String formatear(long unidades) {
+        StringBuilder sb = new StringBuilder(24);
+        formatear(unidades, sb);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,826 @@
+package socket.conconexion.servidor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import socket.conconexion.bitacora.Bitacora;
+
+import static socket.conconexion.servidor.BitacoraSubasta.BITACORA;
+
+/**
+ * Nodo de un clúster de servidores de subasta: un líder y sus réplicas,
+ * todos con los mismos lotes y cada uno con sus propios clientes.
+ *
+ * Solo el líder cambia el estado de los lotes: su TemporizadorSubasta
+ * inicia y cierra las subastas y él ordena todas las pujas. Cada registro
+ * que anota en su DiarioSubastas (inicio, puja, extensión y fin) se envía,
+ * en el orden del diario, a las réplicas, que lo aplican con los mismos
+ * métodos idempotentes con que se reproduce el diario tras una caída y
+ * anuncian a sus clientes lo que cambió (ver TemporizadorSubasta).
+ *
+ * Una réplica responde STATUS, HISTORY y LOTS con su estado. Reenvía al
+ * líder cada BID, y responde al cliente cuando el líder devuelve el
+ * resultado, y cada JOIN, para que el participante cuente en el líder.
+ *
+ * Entre nodos hay una conexión TCP por réplica, que abre la réplica, con
+ * tramas de tipo (byte) + largo (int) + contenido:
+ *   réplica -> líder: HOLA (id del nodo, último id del historial de cada
+ *                     lote), PUJA, PARTICIPANTE, BAJA
+ *   líder -> réplica: INSTANTANEA (estado de los lotes y el historial que
+ *                     le falta), REGISTRO (del diario), RESULTADO, LATIDO
+ * Un nodo que no es líder responde a HOLA con NO_LIDER y cierra. Para
+ * saber quién manda, cualquier nodo responde a SONDEO con ESTADO (si es
+ * líder y el mandato de su líder).
+ *
+ * Elección: cada liderazgo tiene un mandato, mayor que todos los que vio
+ * el nodo que lo asume. Un nodo sin líder sondea a los demás y sigue al
+ * líder de mandato mayor. Si no hay ninguno y ningún nodo de id menor está
+ * vivo, pasa a serlo él. Así al arrancar manda el de id menor, un nodo que
+ * vuelve tras una caída sigue al líder que haya, y si el líder cae (la
+ * réplica deja de recibir sus latidos) lo sustituye el vivo de id menor.
+ * Un líder que estuvo parado y encuentra otro de mandato mayor renuncia.
+ * No hay quórum: en una partición de red cada lado elegiría su líder
+ * hasta que vuelvan a verse, y lo que decidió el lado que renuncia se pierde.
+ *
+ * La replicación es asíncrona: el líder confirma una puja cuando su diario
+ * la hizo durable, sin esperar a las réplicas; si cae justo después, esa
+ * puja puede no haber llegado al nuevo líder.
+ */
+public class NodoCluster {
+
+    // Tipos de trama
+    static final byte SONDEO = 'S';
+    static final byte ESTADO = 'E';
+    static final byte HOLA = 'H';
+    static final byte NO_LIDER = 'N';
+    static final byte INSTANTANEA = 'I';
+    static final byte REGISTRO = 'R';
+    static final byte LATIDO = 'L';
+    static final byte PUJA = 'B';
+    static final byte RESULTADO = 'P';
+    static final byte PARTICIPANTE = 'J';
+    static final byte BAJA = 'Q';
+
+    // Resultado de una puja reenviada que el líder no pudo anotar
+    private static final int RESULTADO_ERROR = Integer.MIN_VALUE;
+    // Tramas que pueden esperar a una réplica lenta antes de desconectarla
+    private static final int CAPACIDAD_COLA_REPLICA = 65536;
+    private static final int MAX_TRAMA = 256 * 1024 * 1024;
+    // Sin latidos durante tantos intervalos, el líder se da por caído
+    private static final int LATIDOS_PERDIDOS = 6;
+
+    private static final byte[] TRAMA_LATIDO = trama(LATIDO, new byte[0]);
+
+    private final int id;
+    private final TreeMap<Integer, InetSocketAddress> nodos;
+    private final long latidoMillis;
+    private final CatalogoLotes catalogo;
+    private final DifusorPujas difusorPujas;
+    private final TemporizadorSubasta temporizador;
+
+    private volatile boolean lider;
+    // Mandato del líder actual (el propio si este es el líder) y el mayor visto
+    private volatile long mandato;
+    private volatile long mandatoConocido;
+
+    // Solo en el líder: réplicas conectadas y participantes que hicieron JOIN en ellas
+    private final CopyOnWriteArrayList<Replica> replicas = new CopyOnWriteArrayList<Replica>();
+    private final ConcurrentHashMap<String, ClienteConectado> participantesRemotos =
+            new ConcurrentHashMap<String, ClienteConectado>();
+
+    // Solo en una réplica: conexión con el líder (null mientras no hay)
+    private volatile ConexionLider conexionLider;
+    private final AtomicLong siguientePeticion = new AtomicLong();
+
+    /**
+     * @param nodos "id@host:puerto,..." con todos los nodos, este incluido;
+     *              el puerto es el de la conexión entre nodos
+     * @param latidoMillis cada cuánto el líder da señales de vida a las réplicas
+     */
+    public NodoCluster(int id, String nodos, long latidoMillis, DiarioSubastas diario,
+                       CatalogoLotes catalogo, DifusorPujas difusorPujas,
+                       TemporizadorSubasta temporizador) {
+        this.id = id;
+        this.nodos = parsearNodos(nodos);
+        if (!this.nodos.containsKey(id)) {
+            throw new IllegalArgumentException("El nodo " + id + " no está en la lista del clúster: " + nodos);
+        }
+        this.latidoMillis = latidoMillis;
+        this.catalogo = catalogo;
+        this.difusorPujas = difusorPujas;
+        this.temporizador = temporizador;
+        diario.setCopiaRegistros(this::replicar);
+    }
+
+    /**
+     * Lee "id@host:puerto,..." (los ids, enteros distintos).
+     */
+    static TreeMap<Integer, InetSocketAddress> parsearNodos(String especificacion) {
+        TreeMap<Integer, InetSocketAddress> nodos = new TreeMap<Integer, InetSocketAddress>();
+        for (String nodo : especificacion.split(",")) {
+            nodo = nodo.trim();
+            if (nodo.length() == 0) {
+                continue;
+            }
+            int arroba = nodo.indexOf('@');
+            int dosPuntos = nodo.lastIndexOf(':');
+            if (arroba <= 0 || dosPuntos < arroba) {
+                throw new IllegalArgumentException("Nodo del clúster mal escrito (id@host:puerto): " + nodo);
+            }
+            Integer idNodo = Integer.valueOf(nodo.substring(0, arroba));
+            InetSocketAddress direccion = new InetSocketAddress(nodo.substring(arroba + 1, dosPuntos),
+                    Integer.parseInt(nodo.substring(dosPuntos + 1)));
+            if (nodos.put(idNodo, direccion) != null) {
+                throw new IllegalArgumentException("Nodo del clúster repetido: " + idNodo);
+            }
+        }
+        return nodos;
+    }
+
+    /**
+     * Escucha a los demás nodos y busca (o asume) el liderazgo. Hasta que
+     * haya líder las pujas de los clientes de este nodo fallan.
+     */
+    public void iniciar() throws IOException {
+        ServerSocket servidor = new ServerSocket();
+        servidor.bind(nodos.get(id));
+        catalogo.setNodo(this);
+        Thread escucha = new Thread(() -> escuchar(servidor), "cluster-escucha");
+        escucha.setDaemon(true);
+        escucha.start();
+        Thread eleccion = new Thread(this::elegir, "cluster-eleccion");
+        eleccion.setDaemon(true);
+        eleccion.start();
+        System.out.println("Nodo " + id + " del clúster (" + nodos.size() + " nodos) escuchando en "
+                + nodos.get(id));
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public boolean esLider() {
+        return lider;
+    }
+
+    // ---------------------------------------------------------------
+    // Elección
+
+    /**
+     * Hilo de elección. Sin ser líder: sondea a los demás nodos y sigue al
+     * líder de mandato mayor; si no hay ninguno y no queda vivo un nodo de
+     * id menor, asume el liderazgo con un mandato mayor que todos los vistos.
+     * Siendo líder: sondea de vez en cuando (a cada latido si no le queda
+     * ninguna réplica) y, si hay otro líder de mandato mayor, porque este
+     * estuvo parado o aislado y lo dieron por caído, renuncia y lo sigue.
+     */
+    private void elegir() {
+        try {
+            while (true) {
+                if (lider) {
+                    Thread.sleep(replicas.isEmpty() ? latidoMillis : latidoMillis * LATIDOS_PERDIDOS);
+                    if (hayOtroLider()) {
+                        renunciar();
+                    }
+                    continue;
+                }
+                int elegido = -1;
+                long mandatoElegido = -1L;
+                boolean menorVivo = false;
+                for (Map.Entry<Integer, InetSocketAddress> nodo : nodos.entrySet()) {
+                    int otro = nodo.getKey().intValue();
+                    Sondeo sondeo = (otro == id) ? null : sondear(nodo.getValue());
+                    if (sondeo == null) {
+                        continue;
+                    }
+                    mandatoConocido = Math.max(mandatoConocido, sondeo.mandato);
+                    if (sondeo.lider && sondeo.mandato > mandatoElegido) {
+                        elegido = otro;
+                        mandatoElegido = sondeo.mandato;
+                    } else if (!sondeo.lider && otro < id) {
+                        menorVivo = true;
+                    }
+                }
+                if (elegido >= 0) {
+                    seguir(elegido);
+                } else if (!menorVivo) {
+                    asumirLiderazgo();
+                } else {
+                    Thread.sleep(latidoMillis);
+                }
+            }
+        } catch (InterruptedException e) {
+            BITACORA.aviso("cluster_eleccion_interrumpida", "nodo=" + id);
+        }
+    }
+
+    /**
+     * Lo que un nodo responde a SONDEO: si es líder y el mandato de su líder.
+     */
+    private static final class Sondeo {
+        final boolean lider;
+        final long mandato;
+
+        Sondeo(boolean lider, long mandato) {
+            this.lider = lider;
+            this.mandato = mandato;
+        }
+    }
+
+    /**
+     * Pregunta a un nodo si es líder. Devuelve null si no responde a tiempo.
+     */
+    private Sondeo sondear(InetSocketAddress direccion) {
+        try (Socket socket = abrir(direccion)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            escribirTrama(out, SONDEO, new byte[0]);
+            out.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (in.readByte() != ESTADO) {
+                return null;
+            }
+            DataInputStream estado = new DataInputStream(new ByteArrayInputStream(leerContenido(in)));
+            return new Sondeo(estado.readBoolean(), estado.readLong());
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    private Socket abrir(InetSocketAddress direccion) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(direccion, (int) latidoMillis);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout((int) (latidoMillis * LATIDOS_PERDIDOS));
+            return socket;
+        } catch (IOException ex) {
+            socket.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * ¿Hay otro líder que deba prevalecer: de mandato mayor o, con el mismo
+     * (dos nodos aislados que se eligieron a la vez), de id menor?
+     */
+    private boolean hayOtroLider() {
+        for (Map.Entry<Integer, InetSocketAddress> nodo : nodos.entrySet()) {
+            int otro = nodo.getKey().intValue();
+            Sondeo sondeo = (otro == id) ? null : sondear(nodo.getValue());
+            if (sondeo != null && sondeo.lider
+                    && (sondeo.mandato > mandato || (sondeo.mandato == mandato && otro < id))) {
+                mandatoConocido = Math.max(mandatoConocido, sondeo.mandato);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void asumirLiderazgo() {
+        mandato = mandatoConocido + 1;
+        mandatoConocido = mandato;
+        lider = true;
+        System.out.println("Nodo " + id + ": líder del clúster (mandato " + mandato + ")");
+        BITACORA.aviso("cluster_lider", "nodo=" + id + " mandato=" + mandato);
+        temporizador.activar();
+    }
+
+    /**
+     * Deja de ser líder: detiene el temporizador y suelta a sus réplicas,
+     * que buscarán al otro líder. Su estado lo reemplaza la instantánea de
+     * ese líder al seguirlo.
+     */
+    private void renunciar() {
+        lider = false;
+        temporizador.desactivar();
+        for (Replica r : replicas) {
+            r.cerrar();
+        }
+        System.out.println("Nodo " + id + ": hay otro líder con un mandato mayor; deja de ser líder");
+        BITACORA.aviso("cluster_renuncia", "nodo=" + id + " mandato=" + mandato);
+    }
+
+    // ---------------------------------------------------------------
+    // Réplica
+
+    /**
+     * HOLA: id de este nodo y, por lote, el último id de su historial.
+     */
+    private byte[] hola() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(id);
+        out.writeInt(catalogo.getLotes().size());
+        for (EstadoSubasta lote : catalogo.getLotes()) {
+            out.writeUTF(lote.getIdLote());
+            out.writeInt(lote.getUltimoIdHistorial());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Se conecta como réplica al líder indicado: aplica su instantánea y
+     * luego, hasta perder la conexión, los registros que le llegan y los
+     * resultados de las pujas reenviadas. Al volver, el hilo de elección
+     * busca líder otra vez.
+     */
+    private void seguir(int idLider) {
+        ConexionLider conexion = null;
+        try (Socket socket = abrir(nodos.get(idLider))) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            escribirTrama(out, HOLA, hola());
+            out.flush();
+            if (in.readByte() != INSTANTANEA) {
+                // Dejó de ser líder entre el sondeo y el HOLA
+                return;
+            }
+            aplicarInstantanea(leerContenido(in));
+            conexion = new ConexionLider(out);
+            conexionLider = conexion;
+            System.out.println("Nodo " + id + ": réplica del líder " + idLider + " (mandato " + mandato + ")");
+            BITACORA.info("cluster_replica", "nodo=" + id + " lider=" + idLider + " mandato=" + mandato);
+            while (true) {
+                byte tipo = in.readByte();
+                byte[] contenido = leerContenido(in);
+                if (tipo == REGISTRO) {
+                    DiarioSubastas.aplicar(new DataInputStream(new ByteArrayInputStream(contenido)),
+                            catalogo, temporizador);
+                } else if (tipo == RESULTADO) {
+                    DataInputStream datos = new DataInputStream(new ByteArrayInputStream(contenido));
+                    conexion.responder(datos.readLong(), datos.readInt());
+                }
+                // LATIDO: solo renueva el plazo de lectura
+            }
+        } catch (IOException ex) {
+            System.out.println("Nodo " + id + ": conexión con el líder " + idLider + " perdida (" + ex + ")");
+            BITACORA.aviso("cluster_lider_perdido", "nodo=" + id + " lider=" + idLider + " " + ex);
+        } finally {
+            if (conexion != null) {
+                conexionLider = null;
+                conexion.cerrar();
+            }
+        }
+    }
+
+    private void aplicarInstantanea(byte[] contenido) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(contenido));
+        long mandatoLider = in.readLong();
+        int version = in.readInt();
+        int decimales = in.readInt();
+        if (decimales != catalogo.getMontos().getDecimales()) {
+            throw new IOException("El líder usa montos con " + decimales + " decimales y este nodo "
+                    + catalogo.getMontos().getDecimales());
+        }
+        int lotes = in.readInt();
+        for (int i = 0; i < lotes; i++) {
+            String idLote = in.readUTF();
+            byte[] estado = new byte[in.readInt()];
+            in.readFully(estado);
+            byte[] historial = new byte[in.readInt()];
+            in.readFully(historial);
+            EstadoSubasta lote = catalogo.getLote(idLote);
+            if (lote == null) {
+                System.out.println("El líder tiene un lote que este nodo no: " + idLote);
+                continue;
+            }
+            lote.leerInstantanea(new DataInputStream(new ByteArrayInputStream(estado)), version);
+            lote.leerHistorialReplicado(new DataInputStream(new ByteArrayInputStream(historial)));
+        }
+        mandato = mandatoLider;
+        mandatoConocido = Math.max(mandatoConocido, mandatoLider);
+    }
+
+    /**
+     * Reenvía una puja al líder. El futuro devuelve lo mismo que
+     * EstadoSubasta.registrarOferta, una vez que el líder la anotó; falla si
+     * no hay líder, si se pierde la conexión o si el líder no pudo anotarla.
+     */
+    CompletableFuture<Integer> reenviarPuja(EstadoSubasta lote, long monto, String idCliente, String alias) {
+        ConexionLider conexion = conexionLider;
+        if (conexion == null) {
+            CompletableFuture<Integer> f = new CompletableFuture<Integer>();
+            f.completeExceptionally(new IOException("El clúster no tiene líder"));
+            return f;
+        }
+        long peticion = siguientePeticion.incrementAndGet();
+        CompletableFuture<Integer> resultado = conexion.esperar(peticion);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(peticion);
+            out.writeUTF(lote.getIdLote());
+            out.writeLong(monto);
+            out.writeUTF(idCliente);
+            out.writeUTF(alias);
+            conexion.enviar(PUJA, bytes.toByteArray());
+        } catch (IOException ex) {
+            conexion.responder(peticion, ex);
+        }
+        return resultado;
+    }
+
+    /**
+     * En una réplica, cuenta en el líder el JOIN de un cliente de este nodo.
+     * Sin líder no se cuenta más que aquí.
+     */
+    void reenviarParticipante(EstadoSubasta lote, ClienteConectado cliente) {
+        ConexionLider conexion = conexionLider;
+        if (lider || conexion == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(lote.getIdLote());
+            out.writeUTF(cliente.getIdCliente());
+            conexion.enviar(PARTICIPANTE, bytes.toByteArray());
+        } catch (IOException ex) {
+            // La conexión se da por perdida en el hilo de la réplica
+        }
+    }
+
+    /**
+     * En una réplica, avisa al líder de que un cliente que hizo JOIN se fue.
+     */
+    void reenviarBaja(ClienteConectado cliente) {
+        ConexionLider conexion = conexionLider;
+        if (lider || conexion == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+            new DataOutputStream(bytes).writeUTF(cliente.getIdCliente());
+            conexion.enviar(BAJA, bytes.toByteArray());
+        } catch (IOException ex) {
+            // La conexión se da por perdida en el hilo de la réplica
+        }
+    }
+
+    /**
+     * Conexión de una réplica con su líder: las sesiones escriben en ella
+     * sus peticiones y esperan los resultados de las pujas.
+     */
+    private static final class ConexionLider {
+        private final DataOutputStream out;
+        private final ReentrantLock cerrojo = new ReentrantLock();
+        private final ConcurrentHashMap<Long, CompletableFuture<Integer>> pendientes =
+                new ConcurrentHashMap<Long, CompletableFuture<Integer>>();
+        private volatile boolean cerrada;
+
+        ConexionLider(DataOutputStream out) {
+            this.out = out;
+        }
+
+        void enviar(byte tipo, byte[] contenido) throws IOException {
+            cerrojo.lock();
+            try {
+                escribirTrama(out, tipo, contenido);
+                out.flush();
+            } finally {
+                cerrojo.unlock();
+            }
+        }
+
+        CompletableFuture<Integer> esperar(long peticion) {
+            CompletableFuture<Integer> f = new CompletableFuture<Integer>();
+            pendientes.put(peticion, f);
+            if (cerrada) {
+                // cerrar pudo recorrer los pendientes antes de que se añadiera
+                responder(peticion, new IOException("Conexión con el líder perdida"));
+            }
+            return f;
+        }
+
+        void responder(long peticion, int resultado) {
+            if (resultado == RESULTADO_ERROR) {
+                responder(peticion, new IOException("El líder no pudo anotar la puja"));
+                return;
+            }
+            CompletableFuture<Integer> f = pendientes.remove(peticion);
+            if (f != null) {
+                f.complete(Integer.valueOf(resultado));
+            }
+        }
+
+        void responder(long peticion, IOException error) {
+            CompletableFuture<Integer> f = pendientes.remove(peticion);
+            if (f != null) {
+                f.completeExceptionally(error);
+            }
+        }
+
+        void cerrar() {
+            cerrada = true;
+            IOException error = new IOException("Conexión con el líder perdida");
+            for (Long peticion : pendientes.keySet()) {
+                responder(peticion.longValue(), error);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------
+    // Líder
+
+    /**
+     * Copia de cada registro del diario (ver DiarioSubastas.setCopiaRegistros):
+     * se encola, ya enmarcada, para cada réplica.
+     */
+    private void replicar(byte[] registro) {
+        if (replicas.isEmpty()) {
+            return;
+        }
+        byte[] t = trama(REGISTRO, registro);
+        for (Replica r : replicas) {
+            r.enviar(t);
+        }
+    }
+
+    private void escuchar(ServerSocket servidor) {
+        while (true) {
+            try {
+                Socket socket = servidor.accept();
+                Thread hilo = new Thread(() -> atender(socket), "cluster-conexion");
+                hilo.setDaemon(true);
+                hilo.start();
+            } catch (IOException ex) {
+                System.out.println("Nodo " + id + ": error aceptando conexiones del clúster: " + ex);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Conexión entrante de otro nodo: si este es líder, la convierte en una
+     * réplica (instantánea, luego registros) y atiende sus peticiones.
+     */
+    private void atender(Socket socket) {
+        Replica replica = null;
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout((int) (latidoMillis * LATIDOS_PERDIDOS));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            byte tipo = in.readByte();
+            byte[] hola = leerContenido(in);
+            if (tipo == SONDEO) {
+                ByteArrayOutputStream estado = new ByteArrayOutputStream(9);
+                DataOutputStream datos = new DataOutputStream(estado);
+                datos.writeBoolean(lider);
+                datos.writeLong(mandato);
+                escribirTrama(out, ESTADO, estado.toByteArray());
+                out.flush();
+                return;
+            }
+            if (tipo != HOLA || !lider) {
+                escribirTrama(out, NO_LIDER, new byte[0]);
+                out.flush();
+                return;
+            }
+            socket.setSoTimeout(0);
+            DataInputStream datosHola = new DataInputStream(new ByteArrayInputStream(hola));
+            replica = new Replica(datosHola.readInt(), socket, out);
+            // Primero se anota como réplica: lo que se replique desde ahora ya
+            // está en la instantánea o le llega detrás (y aplicarlo dos veces no cambia nada)
+            replicas.add(replica);
+            escribirTrama(out, INSTANTANEA, instantanea(datosHola));
+            out.flush();
+            Thread envio = new Thread(replica, "cluster-envio-" + replica.idNodo);
+            envio.setDaemon(true);
+            envio.start();
+            BITACORA.info("cluster_replica_conectada", "nodo=" + replica.idNodo);
+            while (true) {
+                tipo = in.readByte();
+                atenderPeticion(replica, tipo, new DataInputStream(new ByteArrayInputStream(leerContenido(in))));
+            }
+        } catch (IOException ex) {
+            if (replica != null) {
+                BITACORA.aviso("cluster_replica_desconectada", "nodo=" + replica.idNodo + " " + ex);
+            }
+        } finally {
+            if (replica != null) {
+                replica.cerrar();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignorar
+            }
+        }
+    }
+
+    /**
+     * INSTANTANEA: mandato, versión del estado de los lotes (ver
+     * EstadoSubasta.VERSION_INSTANTANEA), decimales y, por lote, su estado y
+     * el historial posterior al último id que la réplica dijo tener.
+     */
+    private byte[] instantanea(DataInputStream hola) throws IOException {
+        Map<String, Integer> ultimosIds = new HashMap<String, Integer>();
+        int n = hola.readInt();
+        for (int i = 0; i < n; i++) {
+            ultimosIds.put(hola.readUTF(), Integer.valueOf(hola.readInt()));
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(mandato);
+        out.writeInt(EstadoSubasta.VERSION_INSTANTANEA);
+        out.writeInt(catalogo.getMontos().getDecimales());
+        out.writeInt(catalogo.getLotes().size());
+        for (EstadoSubasta lote : catalogo.getLotes()) {
+            out.writeUTF(lote.getIdLote());
+            // El estado antes que el historial: un cierre que el estado ya
+            // refleja tiene su resumen guardado (se guarda bajo el cerrojo del lote)
+            ByteArrayOutputStream parte = new ByteArrayOutputStream();
+            lote.escribirInstantanea(new DataOutputStream(parte));
+            out.writeInt(parte.size());
+            parte.writeTo(out);
+            parte.reset();
+            Integer ultimo = ultimosIds.get(lote.getIdLote());
+            lote.escribirHistorialDesde((ultimo != null) ? ultimo.intValue() : 0, new DataOutputStream(parte));
+            out.writeInt(parte.size());
+            parte.writeTo(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void atenderPeticion(Replica replica, byte tipo, DataInputStream in) throws IOException {
+        if (tipo == PUJA) {
+            long peticion = in.readLong();
+            EstadoSubasta lote = catalogo.getLote(in.readUTF());
+            long monto = in.readLong();
+            String idCliente = in.readUTF();
+            String alias = in.readUTF();
+            atenderPuja(replica, peticion, lote, monto, idCliente, alias);
+        } else if (tipo == PARTICIPANTE) {
+            EstadoSubasta lote = catalogo.getLote(in.readUTF());
+            String idCliente = in.readUTF();
+            if (lote != null) {
+                lote.registrarParticipanteParaSiguienteSubasta(
+                        participantesRemotos.computeIfAbsent(idCliente, ClienteConectado::new));
+            }
+        } else if (tipo == BAJA) {
+            participantesRemotos.remove(in.readUTF());
+        }
+    }
+
+    /**
+     * Lo mismo que un BID de un cliente propio, pero la respuesta va a la
+     * réplica y el NEW_BID solo a los clientes de este nodo (a los de las
+     * réplicas les llega con el registro). Si el diario falla, anotarPuja ya
+     * ha devuelto el lote a la última oferta anotada antes de responder ERROR.
+     */
+    private void atenderPuja(Replica replica, long peticion, EstadoSubasta lote, long monto,
+                             String idCliente, String alias) {
+        if (lote == null) {
+            replica.responder(peticion, EstadoSubasta.RECHAZO_SUBASTA_CERRADA);
+            return;
+        }
+        int idSubasta = lote.registrarOferta(monto, idCliente, alias);
+        if (idSubasta < 0) {
+            replica.responder(peticion, idSubasta);
+            return;
+        }
+        lote.anotarPuja(idSubasta, monto, idCliente, alias).whenComplete((r, ex) -> {
+            if (ex != null) {
+                BITACORA.registrar(Bitacora.Nivel.ERROR, "puja_no_anotada", idCliente,
+                        lote.getIdLote(), idSubasta, monto, ex.toString());
+                replica.responder(peticion, RESULTADO_ERROR);
+                return;
+            }
+            replica.responder(peticion, idSubasta);
+            difusorPujas.publicar(lote, idSubasta, monto, idCliente, alias, null);
+        });
+    }
+
+    /**
+     * Una réplica vista desde el líder. Todo lo que se le envía pasa por su
+     * cola y lo escribe un solo hilo, que manda un latido si no hay nada.
+     * Si la réplica no da abasto y la cola se llena, se la desconecta: al
+     * volver recibe una instantánea nueva.
+     */
+    private final class Replica implements Runnable {
+        private final int idNodo;
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final LinkedBlockingQueue<byte[]> cola =
+                new LinkedBlockingQueue<byte[]>(CAPACIDAD_COLA_REPLICA);
+        private volatile boolean cerrada;
+
+        Replica(int idNodo, Socket socket, DataOutputStream out) {
+            this.idNodo = idNodo;
+            this.socket = socket;
+            this.out = out;
+        }
+
+        void enviar(byte[] trama) {
+            if (!cola.offer(trama) && !cerrada) {
+                BITACORA.aviso("cluster_replica_atrasada", "nodo=" + idNodo);
+                cerrar();
+            }
+        }
+
+        void responder(long peticion, int resultado) {
+            byte[] t = new byte[5 + 12];
+            t[0] = RESULTADO;
+            escribirEntero(t, 1, 12);
+            escribirEntero(t, 5, (int) (peticion >>> 32));
+            escribirEntero(t, 9, (int) peticion);
+            escribirEntero(t, 13, resultado);
+            enviar(t);
+        }
+
+        public void run() {
+            try {
+                while (!cerrada) {
+                    byte[] t = cola.poll(latidoMillis, TimeUnit.MILLISECONDS);
+                    if (t == null) {
+                        out.write(TRAMA_LATIDO);
+                    } else {
+                        // Todo lo acumulado en una escritura
+                        do {
+                            out.write(t);
+                        } while ((t = cola.poll()) != null);
+                    }
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException ex) {
+                // la conexión se cierra abajo
+            } finally {
+                cerrar();
+            }
+        }
+
+        void cerrar() {
+            if (cerrada) {
+                return;
+            }
+            cerrada = true;
+            replicas.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignorar
+            }
+            // Sus clientes ya no cuentan como participantes
+            String sufijo = "-N" + idNodo;
+            Iterator<String> ids = participantesRemotos.keySet().iterator();
+            while (ids.hasNext()) {
+                if (ids.next().endsWith(sufijo)) {
+                    ids.remove();
+                }
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------
+    // Tramas
+
+    private static byte[] trama(byte tipo, byte[] contenido) {
+        byte[] t = new byte[5 + contenido.length];
+        t[0] = tipo;
+        escribirEntero(t, 1, contenido.length);
+        System.arraycopy(contenido, 0, t, 5, contenido.length);
+        return t;
+    }
+
+    private static void escribirEntero(byte[] destino, int pos, int valor) {
+        destino[pos] = (byte) (valor >>> 24);
+        destino[pos + 1] = (byte) (valor >>> 16);
+        destino[pos + 2] = (byte) (valor >>> 8);
+        destino[pos + 3] = (byte) valor;
+    }
+
+    private static void escribirTrama(DataOutputStream out, byte tipo, byte[] contenido) throws IOException {
+        out.writeByte(tipo);
+        out.writeInt(contenido.length);
+        out.write(contenido);
+    }
+
+    private static byte[] leerContenido(DataInputStream in) throws IOException {
+        int largo = in.readInt();
+        if (largo < 0 || largo > MAX_TRAMA) {
+            throw new IOException("Trama del clúster con un largo inválido: " + largo);
+        }
+        byte[] contenido = new byte[largo];
+        in.readFully(contenido);
+        return contenido;
+    }
+}
@@ -0,0 +1,227 @@
+package socket.conconexion.servidor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static socket.conconexion.servidor.BitacoraSubasta.BITACORA;
+
+/**
+ * Rueda de temporizadores jerárquica (hashed hierarchical timing wheel,
+ * Varghese y Lauck) con resolución de un milisegundo.
+ *
+ * Hay NIVELES ruedas de 64 ranuras: la del nivel 0 avanza una ranura por
+ * milisegundo, la del nivel 1 una por cada vuelta de la del nivel 0
+ * (64 ms), y así sucesivamente (64^6 ms, unos 2 años en total). Un
+ * temporizador se guarda en la ranura del nivel más bajo que alcanza su
+ * vencimiento; al empezar cada vuelta de un nivel, la ranura que toca del
+ * nivel superior se reparte (cascada) entre los inferiores. Programar y
+ * vencer cuestan O(1) sea cual sea el número de temporizadores.
+ *
+ * Un único hilo mueve la rueda (ejecutar) y corre las tareas vencidas,
+ * así que las tareas no necesitan sincronizarse entre sí y no deben
+ * bloquearse. programar puede llamarse desde cualquier hilo: el
+ * temporizador entra por una cola sin cerrojos y, si vence antes de lo
+ * que el hilo de la rueda pensaba dormir, se le despierta. Sin nada que
+ * vencer, el hilo duerme hasta el siguiente vencimiento (saltándose los
+ * milisegundos sin temporizadores), no hace sondeos.
+ */
+class RuedaTemporizadores {
+
+    private static final int BITS_NIVEL = 6;
+    private static final int RANURAS = 1 << BITS_NIVEL;
+    private static final int MASCARA = RANURAS - 1;
+    private static final int NIVELES = 6;
+    private static final long NANOS_TICK = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Una tarea programada. cancelar() evita que se ejecute si aún no venció.
+     */
+    static final class Temporizador {
+        // Tick (milisegundo desde el origen de la rueda) en que vence
+        private final long vencimiento;
+        private final Runnable tarea;
+        private volatile boolean cancelado;
+
+        private Temporizador(long vencimiento, Runnable tarea) {
+            this.vencimiento = vencimiento;
+            this.tarea = tarea;
+        }
+
+        void cancelar() {
+            cancelado = true;
+        }
+    }
+
+    private final ArrayDeque<Temporizador>[][] ranuras;
+    private final ConcurrentLinkedQueue<Temporizador> entrantes = new ConcurrentLinkedQueue<Temporizador>();
+    private final long origenNanos = System.nanoTime();
+
+    // Solo los toca el hilo de la rueda
+    private long tickActual;
+    private int pendientes;
+    private final List<Temporizador> vencidos = new ArrayList<Temporizador>();
+
+    private volatile Thread hilo;
+    // Tick hasta el que el hilo de la rueda planea dormir
+    private volatile long despertarEn = Long.MAX_VALUE;
+
+    @SuppressWarnings("unchecked")
+    RuedaTemporizadores() {
+        ranuras = (ArrayDeque<Temporizador>[][]) new ArrayDeque<?>[NIVELES][RANURAS];
+        for (int nivel = 0; nivel < NIVELES; nivel++) {
+            for (int i = 0; i < RANURAS; i++) {
+                ranuras[nivel][i] = new ArrayDeque<Temporizador>();
+            }
+        }
+    }
+
+    /**
+     * Programa la tarea para dentro de retardoMs milisegundos (0 o negativo:
+     * en cuanto pueda el hilo de la rueda). Nunca se ejecuta antes de tiempo.
+     */
+    Temporizador programar(long retardoMs, Runnable tarea) {
+        long retardoNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, retardoMs));
+        // Redondeado hacia arriba: el tick que vence ya ha transcurrido entero
+        long vencimiento = (System.nanoTime() - origenNanos + retardoNanos + NANOS_TICK - 1) / NANOS_TICK;
+        Temporizador t = new Temporizador(vencimiento, tarea);
+        entrantes.add(t);
+        if (vencimiento < despertarEn) {
+            LockSupport.unpark(hilo);
+        }
+        return t;
+    }
+
+    private long tickAhora() {
+        return (System.nanoTime() - origenNanos) / NANOS_TICK;
+    }
+
+    /**
+     * Mueve la rueda y ejecuta las tareas vencidas hasta que se interrumpa el hilo.
+     */
+    void ejecutar() {
+        hilo = Thread.currentThread();
+        tickActual = tickAhora();
+        while (!Thread.currentThread().isInterrupted()) {
+            recogerEntrantes();
+            avanzarHasta(tickAhora());
+
+            long proximo = proximoTick();
+            despertarEn = proximo;
+            // Releer la cola tras publicar despertarEn: lo que llegue después nos despierta
+            if (!entrantes.isEmpty()) {
+                continue;
+            }
+            if (proximo == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                long espera = proximo * NANOS_TICK - (System.nanoTime() - origenNanos);
+                if (espera > 0L) {
+                    LockSupport.parkNanos(this, espera);
+                }
+            }
+            despertarEn = Long.MAX_VALUE;
+        }
+    }
+
+    private void recogerEntrantes() {
+        Temporizador t;
+        while ((t = entrantes.poll()) != null) {
+            pendientes++;
+            colocar(t);
+        }
+        ejecutarVencidos();
+    }
+
+    /**
+     * Guarda el temporizador en el nivel que alcanza su vencimiento, o lo da
+     * por vencido si ya pasó.
+     */
+    private void colocar(Temporizador t) {
+        long delta = t.vencimiento - tickActual;
+        if (delta <= 0L) {
+            vencidos.add(t);
+            return;
+        }
+        int nivel = 0;
+        while (nivel < NIVELES - 1 && delta >= (1L << (BITS_NIVEL * (nivel + 1)))) {
+            nivel++;
+        }
+        int ranura = (int) ((t.vencimiento >>> (BITS_NIVEL * nivel)) & MASCARA);
+        ranuras[nivel][ranura].add(t);
+    }
+
+    private void avanzarHasta(long ahora) {
+        while (tickActual < ahora) {
+            // Saltar los ticks en los que no vence ni se reparte nada
+            long siguiente = Math.min(proximoTick(), ahora);
+            tickActual = Math.max(tickActual + 1, siguiente);
+            procesarTick(tickActual);
+        }
+    }
+
+    private void procesarTick(long tick) {
+        // Cascadas del nivel más alto al más bajo que empiezan vuelta en este tick
+        int niveles = 0;
+        while (niveles < NIVELES - 1 && ((tick >>> (BITS_NIVEL * niveles)) & MASCARA) == 0) {
+            niveles++;
+        }
+        for (int nivel = niveles; nivel >= 1; nivel--) {
+            ArrayDeque<Temporizador> ranura = ranuras[nivel][(int) ((tick >>> (BITS_NIVEL * nivel)) & MASCARA)];
+            Temporizador t;
+            while ((t = ranura.poll()) != null) {
+                colocar(t);
+            }
+        }
+        ArrayDeque<Temporizador> ranura = ranuras[0][(int) (tick & MASCARA)];
+        vencidos.addAll(ranura);
+        ranura.clear();
+        ejecutarVencidos();
+    }
+
+    private void ejecutarVencidos() {
+        for (int i = 0; i < vencidos.size(); i++) {
+            Temporizador t = vencidos.get(i);
+            pendientes--;
+            if (t.cancelado) {
+                continue;
+            }
+            try {
+                t.tarea.run();
+            } catch (RuntimeException ex) {
+                BITACORA.error("temporizador_tarea_fallida", ex.toString());
+            }
+        }
+        vencidos.clear();
+    }
+
+    /**
+     * Primer tick posterior al actual en el que vence o se reparte algún
+     * temporizador (una cota inferior del siguiente vencimiento), o
+     * Long.MAX_VALUE si la rueda está vacía.
+     */
+    private long proximoTick() {
+        if (pendientes == 0) {
+            return Long.MAX_VALUE;
+        }
+        long proximo = Long.MAX_VALUE;
+        for (int nivel = 0; nivel < NIVELES; nivel++) {
+            int desplazamiento = BITS_NIVEL * nivel;
+            long vuelta = tickActual >>> desplazamiento;
+            for (int j = 1; j <= RANURAS; j++) {
+                long inicio = (vuelta + j) << desplazamiento;
+                if (inicio >= proximo) {
+                    break;
+                }
+                if (!ranuras[nivel][(int) ((vuelta + j) & MASCARA)].isEmpty()) {
+                    proximo = inicio;
+                    break;
+                }
+            }
+        }
+        return proximo;
+    }
+}
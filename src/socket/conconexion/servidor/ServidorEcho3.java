@@ -2,11 +2,108 @@ package socket.conconexion.servidor;
 
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import socket.conconexion.bitacora.Bitacora;
+import socket.conconexion.metricas.ServidorMetricasHttp;
 import socket.conconexion.stream.MiSocketStream;
 
 /**
  * Servidor de subasta basado en el modelo de servidor Echo concurrente.
  * Acepta múltiples clientes en paralelo y comparte un estado de subasta.
+ *
+ * Opciones de arranque (propiedades del sistema):
+ *  -Dsubasta.modo=hilos|virtual|nio
+ *                               un hilo por cliente (por defecto), un hilo virtual
+ *                               por cliente o bucles de eventos NIO
+ *  -Dsubasta.nio.bucles=N       número de bucles de eventos en modo nio (por defecto, núcleos)
+ *  -Dsubasta.lotes=id:durSeg:cooldownSeg:minPart:conflacionMs:incremento:ventanaSeg:extSeg:maxExt,...
+ *                               lotes que se subastan en paralelo (por defecto, solo GENERAL
+ *                               con los valores de las constantes de esta clase)
+ *  -Dsubasta.montos.decimales=N decimales de la moneda; los montos se guardan como
+ *                               enteros de unidades mínimas (2)
+ *  -Dsubasta.incrementoMinimo=X lo mínimo que una puja debe superar a la vigente en los
+ *                               lotes que no indiquen otro (por defecto, una unidad mínima)
+ *  -Dsubasta.conflacionMs=N     ventana de conflación de NEW_BID de los lotes que no
+ *                               indiquen otra (0 = difundir cada puja, por defecto)
+ *  -Dsubasta.cierreSuave=ventanaSeg:extensionSeg:maxExtensiones
+ *                               cierre suave de los lotes que no indiquen otro: una puja
+ *                               aceptada en los últimos ventanaSeg alarga la subasta hasta
+ *                               extensionSeg después de ella, como mucho maxExtensiones
+ *                               veces, y se anuncia con AUCTION_EXTENDED (sin valor, cierre fijo)
+ *  -Dsubasta.diario=directorio   diario de eventos de subasta con fsync agrupado, más
+ *                               instantáneas; al arrancar se recupera el estado desde
+ *                               ahí (sin valor, no se guarda nada en disco)
+ *  -Dsubasta.diario.fsyncMs=N   espera para agrupar registros en un mismo fsync (0)
+ *  -Dsubasta.historial=directorio
+ *                               ficheros de historial por lote (por defecto, el
+ *                               directorio del diario o ./historial sin diario)
+ *  -Dsubasta.instantanea.intervaloSeg=N
+ *                               cada cuánto se toma una instantánea del estado (60)
+ *  -Dsubasta.cluster.nodos=id@host:puerto,...
+ *                               nodos de un clúster con líder y réplicas (ver NodoCluster);
+ *                               el puerto es el de la conexión entre nodos. Todos deben
+ *                               arrancar con los mismos lotes (sin valor, servidor solo)
+ *  -Dsubasta.cluster.id=N       id de este nodo en subasta.cluster.nodos
+ *  -Dsubasta.cluster.latidoMs=N cada cuánto el líder da señales de vida; tras seis
+ *                               latidos perdidos las réplicas eligen otro líder (250)
+ *  -Dsubasta.relevo.puerto=N    acepta en ese puerto las conexiones de relevos
+ *                               (socket.conconexion.relevo.RelevoSubasta), que atienden
+ *                               clientes y los multiplexan en pocas conexiones
+ *                               (sin valor, no se aceptan relevos)
+ *  -Dsubasta.relevo.direccion=IP
+ *                               dirección del puerto de relevos (127.0.0.1); solo deben
+ *                               alcanzarlo los relevos propios
+ *  -Dsubasta.relevo.secreto=texto
+ *                               secreto que deben presentar los relevos al conectarse
+ *                               (relevo.secreto en el relevo); obligatorio si la
+ *                               dirección de relevos no es de loopback
+ *  -Dsubasta.limite.bid=porSeg:rafaga
+ *  -Dsubasta.limite.status=porSeg:rafaga
+ *  -Dsubasta.limite.otros=porSeg:rafaga
+ *                               límite de ritmo por conexión de BID, de STATUS y del resto
+ *                               de comandos: porSeg de media, hasta rafaga seguidos (por
+ *                               defecto, un segundo de ritmo); lo que lo supera se responde
+ *                               con ERROR RATE_LIMITED (sin valor, sin límite)
+ *  -Dsubasta.limite.alias.bid=porSeg:rafaga (y .status, .otros)
+ *                               lo mismo, compartido por todas las conexiones de un alias
+ *  -Dsubasta.limite.pujasGlobal=porSeg:rafaga
+ *                               admisión de pujas de todo el servidor: en un pico se
+ *                               rechazan las que superan el ritmo (sin valor, sin límite)
+ *  -Dsubasta.admision.maxSesiones=N
+ *                               sesiones abiertas como mucho; a las conexiones de más se
+ *                               les responde "BUSY <segundos>" y se cierran (sin valor,
+ *                               sin tope)
+ *  -Dsubasta.admision.reserva=N de ese tope, sesiones que solo se dan a IPs que hicieron
+ *                               JOIN a una subasta aún sin terminar (un 10% del tope)
+ *  -Dsubasta.admision.maxPorIp=N
+ *                               conexiones abiertas como mucho desde una misma IP (sin
+ *                               valor, sin tope)
+ *  -Dsubasta.admision.reintentoSeg=N
+ *                               BUSY pide esperar entre N y 2N-1 segundos (5)
+ *  -Dsubasta.admision.backlog=N conexiones que el sistema encola sin aceptar todavía (50)
+ *  -Dsubasta.salida.capacidad=N mensajes de broadcast que puede acumular un cliente (256)
+ *  -Dsubasta.salida.politica=DESCARTAR_ANTIGUO|CONFLAR|DESCONECTAR
+ *                               qué hacer cuando un cliente lento llena su cola (CONFLAR)
+ *  -Dsubasta.metricas.puerto=N  publica las métricas en formato Prometheus en
+ *                               http://<dirección>:N/metrics (sin valor, no se publican;
+ *                               el comando STATS siempre está disponible por loopback)
+ *  -Dsubasta.metricas.direccion=IP
+ *                               dirección del endpoint de métricas (127.0.0.1)
+ *  -Dsubasta.bitacora.nivel=DEPURACION|INFO|AVISO|ERROR
+ *                               nivel mínimo de la bitácora de eventos (INFO)
+ *  -Dsubasta.bitacora.muestreo=N
+ *                               de los eventos frecuentes (cada broadcast) se registra
+ *                               uno de cada N (16; 1 = todos)
+ *  -Dsubasta.bitacora.capacidad=N
+ *                               registros que esperan al escritor de la bitácora; si se
+ *                               llena se descartan en lugar de frenar al servidor (8192)
+ *  -Dsubasta.bitacora.fichero=ruta
+ *                               escribe la bitácora en ese fichero (por defecto, la
+ *                               salida estándar)
  */
 public class ServidorEcho3 {
 
@@ -16,6 +113,8 @@ public class ServidorEcho3 {
     private static final long COOLDOWN_MS = 60 * 1000;
     // Mínimo de participantes para iniciar una subasta
     private static final int MIN_PARTICIPANTES = 2;
+    // Lote que se usa cuando un comando no indica ninguno
+    private static final String LOTE_POR_DEFECTO = "GENERAL";
 
     public static void main(String[] args) {
         int puertoServidor = 8007; // Puerto por defecto
@@ -24,45 +123,193 @@ public class ServidorEcho3 {
             puertoServidor = Integer.parseInt(args[0]);
         }
 
+        // Modo de E/S: "hilos" (un hilo por cliente), "virtual" (un hilo
+        // virtual por cliente) o "nio" (bucles de eventos)
+        String modo = System.getProperty("subasta.modo", "hilos");
+
+        boolean virtual = "virtual".equalsIgnoreCase(modo);
+
         ServerSocket miSocketConexion = null;
+        ExecutorService ejecutorSesiones = null;
+        ExecutorService escritores = null;
+        ScheduledExecutorService programador = null;
+        ScheduledExecutorService programadorInstantaneas = null;
+        ServidorMetricasHttp servidorMetricas = null;
+        ServidorRelevos servidorRelevos = null;
 
         try {
-            miSocketConexion = new ServerSocket(puertoServidor);
-            System.out.println("Servidor de subasta iniciado en el puerto " + puertoServidor);
+            // Diario durable de inicios, pujas y resultados
+            String rutaDiario = System.getProperty("subasta.diario", "");
+            DiarioSubastas diario = (rutaDiario.length() == 0)
+                    ? DiarioSubastas.deshabilitado()
+                    : DiarioSubastas.abrir(Paths.get(rutaDiario), Long.getLong("subasta.diario.fsyncMs", 0L));
+
+            // Montos en punto fijo con los decimales de la moneda
+            Montos montos = new Montos(Integer.getInteger("subasta.montos.decimales", 2));
+            String textoIncremento = System.getProperty("subasta.incrementoMinimo");
+            long incrementoMinimo = (textoIncremento == null) ? 1L : montos.parsear(textoIncremento);
 
-            // Estado global de la subasta
-            EstadoSubasta estadoSubasta = new EstadoSubasta(
-                    DURACION_SUBASTA_MS, COOLDOWN_MS, MIN_PARTICIPANTES);
+            // Lotes que se subastan en paralelo
+            long conflacionMs = Long.getLong("subasta.conflacionMs", 0L);
+            CierreSuave cierreSuave = CierreSuave.parsear(System.getProperty("subasta.cierreSuave"));
+            String dirHistorial = System.getProperty("subasta.historial",
+                    (rutaDiario.length() == 0) ? "historial" : rutaDiario);
+            CatalogoLotes catalogo = new CatalogoLotes(LOTE_POR_DEFECTO, diario, montos,
+                    Paths.get(dirHistorial));
+            catalogo.crearLote(LOTE_POR_DEFECTO, DURACION_SUBASTA_MS, COOLDOWN_MS,
+                    MIN_PARTICIPANTES, conflacionMs, incrementoMinimo, cierreSuave);
+            catalogo.crearLotes(System.getProperty("subasta.lotes", ""),
+                    DURACION_SUBASTA_MS, COOLDOWN_MS, MIN_PARTICIPANTES, conflacionMs, incrementoMinimo,
+                    cierreSuave);
+
+            if (diario.isHabilitado()) {
+                // Reconstruir el estado previo a la caída: instantánea + cola del diario
+                InstantaneasSubastas.recuperar(diario.getDirectorio(),
+                        diario.getSegmentoActual() - 1, catalogo);
+                long intervaloSeg = Long.getLong("subasta.instantanea.intervaloSeg", 60L);
+                programadorInstantaneas = Executors.newSingleThreadScheduledExecutor();
+                programadorInstantaneas.scheduleWithFixedDelay(
+                        new InstantaneasSubastas(diario, catalogo),
+                        intervaloSeg, intervaloSeg, TimeUnit.SECONDS);
+            }
+
+            // Escritores que vacían las colas de salida de los clientes
+            escritores = virtual
+                    ? Executors.newVirtualThreadPerTaskExecutor()
+                    : Executors.newCachedThreadPool();
+            int capacidadCola = Integer.getInteger("subasta.salida.capacidad", 256);
+            ColaSalida.Politica politica = ColaSalida.Politica.valueOf(
+                    System.getProperty("subasta.salida.politica", "CONFLAR").toUpperCase());
+
+            // En un clúster los ids de cliente llevan el del nodo
+            String nodosCluster = System.getProperty("subasta.cluster.nodos", "");
+            boolean cluster = nodosCluster.length() > 0;
+            int idNodo = Integer.getInteger("subasta.cluster.id", 1);
 
             // Gestor de clientes conectados
-            GestorClientes gestorClientes = new GestorClientes();
+            GestorClientes gestorClientes = new GestorClientes(escritores, capacidadCola, politica,
+                    cluster ? "-N" + idNodo : "");
 
-            // Temporizador para orquestar las subastas
+            // Difusión de NEW_BID con ventanas de conflación por lote
+            programador = Executors.newSingleThreadScheduledExecutor();
+            DifusorPujas difusorPujas = new DifusorPujas(gestorClientes, programador, catalogo.getMontos());
+
+            // Límites de ritmo de los comandos; los cubos de alias sin uso se olvidan
+            LimitadorComandos limitador = LimitadorComandos.desdePropiedades();
+            gestorClientes.setLimitador(limitador);
+            if (limitador.isConAlias()) {
+                programador.scheduleWithFixedDelay(limitador::purgar, 1, 1, TimeUnit.MINUTES);
+            }
+
+            // Admisión de conexiones; las participaciones en subastas ya terminadas se olvidan
+            ControlAdmision admision = ControlAdmision.desdePropiedades(gestorClientes);
+            if (admision.isActivo()) {
+                programador.scheduleWithFixedDelay(gestorClientes::purgarParticipaciones,
+                        1, 1, TimeUnit.MINUTES);
+            }
+
+            // Métricas: tasas por segundo y, si se pide, endpoint HTTP para Prometheus
+            MetricasSubasta.vigilarClientes(gestorClientes);
+            programador.scheduleAtFixedRate(MetricasSubasta.REGISTRO::muestrear, 1, 1, TimeUnit.SECONDS);
+            int puertoMetricas = Integer.getInteger("subasta.metricas.puerto", 0);
+            if (puertoMetricas > 0) {
+                String direccionMetricas = System.getProperty("subasta.metricas.direccion", "127.0.0.1");
+                servidorMetricas = ServidorMetricasHttp.iniciar(
+                        direccionMetricas, puertoMetricas, MetricasSubasta.REGISTRO);
+                System.out.println("Métricas en http://" + direccionMetricas + ":"
+                        + servidorMetricas.getPuerto() + "/metrics");
+            }
+
+            // Temporizador para orquestar las subastas de todos los lotes
+            // (en un clúster, solo cuando este nodo sea el líder)
             TemporizadorSubasta temporizador = new TemporizadorSubasta(
-                    estadoSubasta, gestorClientes);
-            Thread hiloTemporizador = new Thread(temporizador);
-            hiloTemporizador.start();
+                    catalogo, gestorClientes, difusorPujas, !cluster);
+            if (virtual) {
+                Thread.ofVirtual().name("temporizador-subasta").start(temporizador);
+            } else {
+                Thread hiloTemporizador = new Thread(temporizador);
+                hiloTemporizador.start();
+            }
+
+            if (cluster) {
+                new NodoCluster(idNodo, nodosCluster, Long.getLong("subasta.cluster.latidoMs", 250L),
+                        diario, catalogo, difusorPujas, temporizador).iniciar();
+            }
+
+            // Relevos: cada enlace trae las sesiones de muchos clientes
+            int puertoRelevos = Integer.getInteger("subasta.relevo.puerto", 0);
+            if (puertoRelevos > 0) {
+                servidorRelevos = ServidorRelevos.iniciar(
+                        System.getProperty("subasta.relevo.direccion", "127.0.0.1"), puertoRelevos,
+                        escritores, System.getProperty("subasta.relevo.secreto"),
+                        catalogo, gestorClientes, difusorPujas);
+                System.out.println("Relevos en el puerto " + servidorRelevos.getPuerto());
+            }
+
+            if ("nio".equalsIgnoreCase(modo)) {
+                int bucles = Integer.getInteger("subasta.nio.bucles",
+                        Runtime.getRuntime().availableProcessors());
+                new ServidorSubastaNio(puertoServidor, bucles,
+                        catalogo, gestorClientes, difusorPujas, admision).ejecutar();
+                return;
+            }
+
+            if (virtual) {
+                ejecutorSesiones = Executors.newVirtualThreadPerTaskExecutor();
+            }
+
+            miSocketConexion = new ServerSocket(puertoServidor, ControlAdmision.backlog());
+            System.out.println("Servidor de subasta iniciado en el puerto " + puertoServidor
+                    + (virtual ? " (hilos virtuales)" : ""));
 
             // Bucle principal de aceptación de clientes
             while (true) {
-                System.out.println("Espera una conexión.");
                 Socket socketAceptado = miSocketConexion.accept();
+                if (admision.rechazar(socketAceptado)) {
+                    // Saturado: BUSY y cerrado, sin registrar ni crear hilo
+                    continue;
+                }
                 MiSocketStream miSocketDatos = new MiSocketStream(socketAceptado);
-                System.out.println("Conexión aceptada");
+                if (BitacoraSubasta.BITACORA.activo(Bitacora.Nivel.DEPURACION)) {
+                    BitacoraSubasta.BITACORA.depuracion("conexion_aceptada",
+                            String.valueOf(socketAceptado.getRemoteSocketAddress()));
+                }
 
                 // Registrar cliente en el gestor
                 ClienteConectado cliente = gestorClientes.registrarCliente(miSocketDatos);
 
                 // Arranca un hilo para manejar la sesión de subasta de este cliente
-                Thread elHilo = new Thread(
-                        new HiloServidorSubasta(cliente, estadoSubasta, gestorClientes)
-                );
-                elHilo.start();
+                HiloServidorSubasta sesion = new HiloServidorSubasta(
+                        miSocketDatos, cliente, catalogo, gestorClientes, difusorPujas);
+                if (ejecutorSesiones != null) {
+                    ejecutorSesiones.execute(sesion);
+                } else {
+                    Thread elHilo = new Thread(sesion);
+                    elHilo.start();
+                }
                 // y continúa con el siguiente cliente
             }
         } catch (Exception ex) {
             ex.printStackTrace();
         } finally {
+            if (ejecutorSesiones != null) {
+                ejecutorSesiones.shutdownNow();
+            }
+            if (escritores != null) {
+                escritores.shutdownNow();
+            }
+            if (programador != null) {
+                programador.shutdownNow();
+            }
+            if (programadorInstantaneas != null) {
+                programadorInstantaneas.shutdownNow();
+            }
+            if (servidorMetricas != null) {
+                servidorMetricas.detener();
+            }
+            if (servidorRelevos != null) {
+                servidorRelevos.detener();
+            }
             if (miSocketConexion != null) {
                 try {
                     miSocketConexion.close();
@@ -0,0 +1,96 @@
+package socket.conconexion.servidor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+import socket.conconexion.stream.MiSocketStream;
+
+import static socket.conconexion.servidor.BitacoraSubasta.BITACORA;
+
+/**
+ * Acepta las conexiones de los relevos (ver EnlaceRelevo) en su propio
+ * puerto y atiende cada enlace con un hilo. Quien se conecta a este puerto
+ * habla en nombre de sus clientes, IP de origen incluida: solo deben
+ * alcanzarlo los relevos propios. Con secreto, cada enlace debe empezar
+ * por "A <secreto>" o se cierra; fuera de loopback el secreto es
+ * obligatorio.
+ */
+public class ServidorRelevos implements Runnable {
+
+    private final ServerSocket socketServidor;
+    private final Executor escritores;
+    // Secreto que deben presentar los relevos, o null si no se pide
+    private final byte[] secreto;
+    private final CatalogoLotes catalogo;
+    private final GestorClientes gestorClientes;
+    private final DifusorPujas difusorPujas;
+
+    private ServidorRelevos(ServerSocket socketServidor, Executor escritores, byte[] secreto,
+                            CatalogoLotes catalogo, GestorClientes gestorClientes,
+                            DifusorPujas difusorPujas) {
+        this.socketServidor = socketServidor;
+        this.escritores = escritores;
+        this.secreto = secreto;
+        this.catalogo = catalogo;
+        this.gestorClientes = gestorClientes;
+        this.difusorPujas = difusorPujas;
+    }
+
+    /**
+     * Abre el puerto y empieza a aceptar relevos en un hilo propio.
+     *
+     * @param escritores ejecutor que vacía las colas de avisos de los enlaces
+     * @param secreto    lo que deben presentar los relevos al conectarse, o
+     *                   null (solo si la dirección es de loopback)
+     */
+    public static ServidorRelevos iniciar(String direccion, int puerto, Executor escritores,
+                                          String secreto, CatalogoLotes catalogo,
+                                          GestorClientes gestorClientes,
+                                          DifusorPujas difusorPujas) throws IOException {
+        InetAddress ip = InetAddress.getByName(direccion);
+        if (secreto == null && !ip.isLoopbackAddress()) {
+            throw new IllegalArgumentException(
+                    "El puerto de relevos fuera de loopback requiere subasta.relevo.secreto");
+        }
+        ServerSocket socketServidor = new ServerSocket(puerto, 50, ip);
+        ServidorRelevos servidor = new ServidorRelevos(socketServidor, escritores,
+                (secreto == null) ? null : secreto.getBytes(StandardCharsets.UTF_8),
+                catalogo, gestorClientes, difusorPujas);
+        Thread hilo = new Thread(servidor, "relevos");
+        hilo.setDaemon(true);
+        hilo.start();
+        return servidor;
+    }
+
+    public int getPuerto() {
+        return socketServidor.getLocalPort();
+    }
+
+    public void run() {
+        int enlaces = 0;
+        while (!socketServidor.isClosed()) {
+            try {
+                Socket socket = socketServidor.accept();
+                socket.setTcpNoDelay(true);
+                EnlaceRelevo enlace = new EnlaceRelevo(new MiSocketStream(socket), escritores,
+                        secreto, catalogo, gestorClientes, difusorPujas);
+                new Thread(enlace, "enlace-relevo-" + (++enlaces)).start();
+            } catch (IOException ex) {
+                if (!socketServidor.isClosed()) {
+                    BITACORA.aviso("relevo_aceptar", ex.toString());
+                }
+            }
+        }
+    }
+
+    public void detener() {
+        try {
+            socketServidor.close();
+        } catch (IOException ex) {
+            // ignorar
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package socket.conconexion.servidor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Modo no bloqueante del servidor de subasta.
+ * Un hilo acepta conexiones y las reparte en turno rotatorio entre un
+ * número fijo de bucles de eventos, que comparten el mismo estado de
+ * subasta y el mismo gestor de clientes que el modo de un hilo por cliente.
+ * Las conexiones que no admite el ControlAdmision se rechazan en el hilo
+ * que acepta, sin llegar a ningún bucle.
+ */
+public class ServidorSubastaNio {
+
+    private final int puerto;
+    private final BucleEventosNio[] bucles;
+    private final ControlAdmision admision;
+
+    public ServidorSubastaNio(int puerto, int numBucles,
+                              CatalogoLotes catalogo,
+                              GestorClientes gestorClientes,
+                              DifusorPujas difusorPujas,
+                              ControlAdmision admision) throws IOException {
+        this.puerto = puerto;
+        this.admision = admision;
+        this.bucles = new BucleEventosNio[numBucles];
+        for (int i = 0; i < numBucles; i++) {
+            bucles[i] = new BucleEventosNio(catalogo, gestorClientes, difusorPujas);
+        }
+    }
+
+    /**
+     * Arranca los bucles de eventos y acepta conexiones indefinidamente.
+     */
+    public void ejecutar() throws IOException {
+        for (int i = 0; i < bucles.length; i++) {
+            Thread hilo = new Thread(bucles[i], "bucle-nio-" + i);
+            hilo.start();
+        }
+
+        ServerSocketChannel canalServidor = ServerSocketChannel.open();
+        try {
+            canalServidor.bind(new InetSocketAddress(puerto), ControlAdmision.backlog());
+            System.out.println("Servidor de subasta (NIO, " + bucles.length
+                    + " bucles) iniciado en el puerto " + puerto);
+
+            int siguiente = 0;
+            while (true) {
+                SocketChannel canal = canalServidor.accept();
+                Socket socket = canal.socket();
+                if (admision.rechazar(socket)) {
+                    continue;
+                }
+                bucles[siguiente].registrar(canal);
+                siguiente = (siguiente + 1) % bucles.length;
+            }
+        } finally {
+            canalServidor.close();
+        }
+    }
+}
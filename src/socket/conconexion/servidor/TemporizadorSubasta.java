@@ -1,64 +1,256 @@
 package socket.conconexion.servidor;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import static socket.conconexion.servidor.BitacoraSubasta.BITACORA;
+
 /**
- * Hilo que orquesta las subastas:
- *  - Espera a que haya suficientes participantes y termine el cooldown
- *  - Inicia la subasta
- *  - Espera la duración configurada
- *  - Finaliza la subasta, almacena el resultado y avisa a los clientes
+ * Hilo que orquesta las subastas de todos los lotes:
+ *  - Inicia la subasta de cada lote cuando hay suficientes participantes
+ *    y terminó su cooldown
+ *  - Finaliza cada subasta al cumplirse su duración, almacena el
+ *    resultado y avisa a los clientes
+ *
+ * No sondea: todo lo mueve una RuedaTemporizadores cuyo hilo es este.
+ *  - El JOIN que completa los participantes de un lote avisa (ver
+ *    EstadoSubasta.setAvisoParticipantes) y la subasta empieza en el acto
+ *    si el cooldown ya terminó; si no, se revisa justo cuando termine.
+ *  - Al iniciar una subasta se programa su cierre para el milisegundo en
+ *    que vence. Si al llegar ese momento el fin se ha movido más tarde,
+ *    se vuelve a programar para el nuevo fin. Con cierre suave se
+ *    programa además la apertura de la ventana de cierre.
+ *  - Cuando el cierre suave alarga una subasta (ver
+ *    EstadoSubasta.setAvisoExtension) se anuncia el nuevo fin con
+ *    AUCTION_EXTENDED. Varias extensiones seguidas se anuncian una vez.
+ *    Si el fin vuelve atrás (se deshizo la puja que lo alargó) se anuncia
+ *    igual y el cierre se programa de nuevo.
+ * Los avisos van a los suscritos al lote; los de inicio y fin, también a
+ * los suscritos a LOBBY (ver GestorClientes).
+ * En una réplica de un clúster (ver NodoCluster) el temporizador está
+ * inactivo: no inicia ni cierra nada, solo anuncia a los clientes de este
+ * nodo las transiciones que llegan del líder (ver OyenteRegistros). Si el
+ * nodo pasa a ser líder, activar lo pone a orquestar desde el estado
+ * replicado; si deja de serlo, desactivar lo detiene.
+ * Los lotes avanzan de forma independiente y un solo hilo atiende todos
+ * sus vencimientos. Las tareas corren en el hilo de la rueda, de modo que
+ * los mapas de programaciones pendientes no necesitan sincronización.
  */
-public class TemporizadorSubasta implements Runnable {
+public class TemporizadorSubasta implements Runnable, DiarioSubastas.OyenteRegistros {
 
-    private final EstadoSubasta estadoSubasta;
+    private final CatalogoLotes catalogo;
     private final GestorClientes gestorClientes;
+    private final DifusorPujas difusorPujas;
+    private final RuedaTemporizadores rueda = new RuedaTemporizadores();
+    // false en una réplica: las transiciones las decide el líder
+    private volatile boolean activo;
 
-    public TemporizadorSubasta(EstadoSubasta estadoSubasta,
-                               GestorClientes gestorClientes) {
-        this.estadoSubasta = estadoSubasta;
+    // Fin (ms) para el que está programado el cierre de cada lote
+    private final Map<EstadoSubasta, Long> cierresProgramados = new HashMap<EstadoSubasta, Long>();
+    // Fin de cooldown (ms) para el que está programada la revisión de cada lote
+    private final Map<EstadoSubasta, Long> revisionesProgramadas = new HashMap<EstadoSubasta, Long>();
+    // Último fin anunciado con AUCTION_EXTENDED de cada lote
+    private final Map<EstadoSubasta, Long> extensionesAnunciadas = new HashMap<EstadoSubasta, Long>();
+
+    public TemporizadorSubasta(CatalogoLotes catalogo,
+                               GestorClientes gestorClientes,
+                               DifusorPujas difusorPujas) {
+        this(catalogo, gestorClientes, difusorPujas, true);
+    }
+
+    /**
+     * @param activo false para un nodo de clúster que aún no sabe si es
+     *               líder (ver activar)
+     */
+    public TemporizadorSubasta(CatalogoLotes catalogo,
+                               GestorClientes gestorClientes,
+                               DifusorPujas difusorPujas,
+                               boolean activo) {
+        this.activo = activo;
+        this.catalogo = catalogo;
         this.gestorClientes = gestorClientes;
+        this.difusorPujas = difusorPujas;
     }
 
     public void run() {
-        while (true) {
-            try {
-                // Esperar hasta que se cumplan las condiciones para iniciar
-                while (!estadoSubasta.condicionesParaIniciar()) {
-                    Thread.sleep(1000);
-                }
-
-                int id = estadoSubasta.iniciarSubasta();
-                if (id < 0) {
-                    continue;
-                }
-
-                gestorClientes.broadcast("AUCTION_STARTED " + id);
-
-                long duracion = estadoSubasta.getDuracionSubastaMillis();
-                Thread.sleep(duracion);
-
-                EstadoSubasta.ResumenSubasta resumen = estadoSubasta.finalizarSubasta();
-                if (resumen != null) {
-                    String idGan = resumen.getIdGanador();
-                    String aliasGan = resumen.getAliasGanador();
-                    if (idGan == null) {
-                        idGan = "SIN_GANADOR";
-                    }
-                    if (aliasGan == null) {
-                        aliasGan = "-";
-                    }
-                    double monto = resumen.getOfertaMaxima();
-
-                    String msgFin = "AUCTION_ENDED " + resumen.getId() + " " + monto + " " +
-                            idGan + " " + aliasGan;
-                    gestorClientes.broadcast(msgFin);
-
-                    long segundosCooldown = estadoSubasta.getCooldownSeconds();
-                    gestorClientes.broadcast("NEW_AUCTION_IN " + segundosCooldown);
-                }
-            } catch (InterruptedException e) {
-                System.out.println("Temporizador de subasta interrumpido: " + e);
-                break;
+        registrarAvisos();
+        // Estado recuperado al arrancar: cerrar a su hora lo que esté en
+        // curso y comprobar si algún lote puede empezar ya. Un JOIN que
+        // llegó antes de registrar los avisos lo recoge esta revisión
+        for (EstadoSubasta lote : catalogo.getLotes()) {
+            rueda.programar(0L, () -> revisar(lote));
+        }
+        rueda.ejecutar();
+        BITACORA.aviso("temporizador_interrumpido", null);
+    }
+
+    /**
+     * Pide a cada lote que avise a la rueda cuando complete participantes
+     * y cuando el cierre suave lo alargue. Se hace al arrancar y no en el
+     * constructor, que no debe dejar escapar this.
+     */
+    private void registrarAvisos() {
+        for (EstadoSubasta lote : catalogo.getLotes()) {
+            lote.setAvisoParticipantes(() -> rueda.programar(0L, () -> revisar(lote)));
+            lote.setAvisoExtension(() -> rueda.programar(0L, () -> anunciarExtension(lote)));
+        }
+    }
+
+    /**
+     * Empieza a orquestar las subastas (el nodo pasó a ser líder): cierra a
+     * su hora lo que esté en curso y revisa si algún lote puede empezar.
+     */
+    void activar() {
+        activo = true;
+        for (EstadoSubasta lote : catalogo.getLotes()) {
+            rueda.programar(0L, () -> revisar(lote));
+        }
+    }
+
+    /**
+     * Deja de orquestar (el nodo ya no es líder). Las tareas ya programadas
+     * vencen sin hacer nada.
+     */
+    void desactivar() {
+        activo = false;
+    }
+
+    /**
+     * Lleva el lote a lo que le toque ahora: programar el cierre de la
+     * subasta en curso, esperar al fin del cooldown o iniciar la siguiente.
+     */
+    private void revisar(EstadoSubasta lote) {
+        if (!activo) {
+            return;
+        }
+        if (lote.isSubastaEnCurso()) {
+            programarCierre(lote);
+            return;
+        }
+        long finCooldown = lote.getTiempoFinCooldown();
+        if (finCooldown > System.currentTimeMillis()) {
+            programarRevision(lote, finCooldown);
+            return;
+        }
+        if (lote.condicionesParaIniciar()) {
+            int id = lote.iniciarSubasta();
+            if (id >= 0) {
+                inicio(lote, id);
+                programarCierre(lote);
             }
         }
     }
+
+    private void programarCierre(EstadoSubasta lote) {
+        long fin = lote.getTiempoFinSubasta();
+        Long programado = cierresProgramados.get(lote);
+        if (programado != null && programado.longValue() == fin) {
+            return;
+        }
+        if (programado == null && lote.getCierreSuave().isActivo()) {
+            // Sin cierre pendiente (inicio o fin movido): abrir a tiempo la ventana de cierre
+            int id = lote.getIdSubastaActual();
+            long ventana = lote.getCierreSuave().getVentanaMillis();
+            rueda.programar(fin - ventana - System.currentTimeMillis(), () -> lote.abrirVentanaCierre(id));
+        }
+        cierresProgramados.put(lote, fin);
+        rueda.programar(fin - System.currentTimeMillis(), () -> {
+            cierresProgramados.remove(lote, fin);
+            cerrarSiVencio(lote);
+        });
+    }
+
+    private void programarRevision(EstadoSubasta lote, long instante) {
+        Long programada = revisionesProgramadas.get(lote);
+        if (programada != null && programada.longValue() == instante) {
+            return;
+        }
+        revisionesProgramadas.put(lote, instante);
+        rueda.programar(instante - System.currentTimeMillis(), () -> {
+            revisionesProgramadas.remove(lote, instante);
+            revisar(lote);
+        });
+    }
+
+    private void anunciarExtension(EstadoSubasta lote) {
+        long fin = lote.getTiempoFinSubasta();
+        Long programado = cierresProgramados.get(lote);
+        if (activo && fin != 0L && programado != null && fin < programado.longValue()) {
+            // Se deshizo una puja que no llegó al diario, y con ella su extensión
+            programarCierre(lote);
+        }
+        Long anunciado = extensionesAnunciadas.get(lote);
+        if (fin == 0L || (anunciado != null && anunciado.longValue() == fin)) {
+            return;
+        }
+        extensionesAnunciadas.put(lote, fin);
+        extension(lote);
+    }
+
+    public void inicio(EstadoSubasta lote, int idSubasta) {
+        gestorClientes.publicarConLobby(lote.getIdLote(),
+                "AUCTION_STARTED " + idSubasta + " " + lote.getIdLote());
+    }
+
+    /**
+     * Solo en una réplica: en el líder quien puja difunde su NEW_BID.
+     */
+    public void puja(EstadoSubasta lote, int idSubasta, long monto, String idCliente, String alias) {
+        // Si la puja la hizo un cliente de este nodo, ya recibió su BID_OK
+        difusorPujas.publicar(lote, idSubasta, monto, idCliente, alias, gestorClientes.getCliente(idCliente));
+    }
+
+    public void extension(EstadoSubasta lote) {
+        // AUCTION_EXTENDED <idSubasta> <segundosRestantes> <extensiones> <lote>
+        gestorClientes.publicar(lote.getIdLote(), "AUCTION_EXTENDED " + lote.getIdSubastaActual() + " "
+                + lote.getSegundosRestantes() + " " + lote.getExtensiones() + " " + lote.getIdLote());
+    }
+
+    private void cerrarSiVencio(EstadoSubasta lote) {
+        if (!activo || !lote.isSubastaEnCurso()) {
+            return;
+        }
+        if (lote.getTiempoFinSubasta() > System.currentTimeMillis()) {
+            // El fin se movió: esperar al nuevo
+            programarCierre(lote);
+            return;
+        }
+        finalizar(lote);
+        // Tras el cooldown puede empezar la siguiente si ya hay participantes
+        revisar(lote);
+    }
+
+    private void finalizar(EstadoSubasta lote) {
+        EstadoSubasta.ResumenSubasta resumen = lote.finalizarSubasta();
+        if (resumen != null) {
+            fin(lote, resumen);
+        }
+    }
+
+    public void fin(EstadoSubasta lote, EstadoSubasta.ResumenSubasta resumen) {
+        String idGan = resumen.getIdGanador();
+        String aliasGan = resumen.getAliasGanador();
+        if (aliasGan == null) {
+            aliasGan = "-";
+        }
+
+        // La oferta ganadora sale antes que el fin, y nada de esta subasta después
+        String avisoGanador = (idGan == null) ? null : HiloServidorSubasta.avisoNuevaPuja(
+                catalogo.getMontos(), resumen.getOfertaMaxima(), idGan, aliasGan, lote);
+        difusorPujas.cerrar(lote, resumen, avisoGanador);
+
+        if (idGan == null) {
+            idGan = "SIN_GANADOR";
+        }
+        String monto = catalogo.getMontos().formatear(resumen.getOfertaMaxima());
+
+        // AUCTION_ENDED <idSubasta> <monto> <idGanador> <aliasGanador> <lote>
+        String msgFin = "AUCTION_ENDED " + resumen.getId() + " " + monto + " " +
+                idGan + " " + aliasGan + " " + lote.getIdLote();
+        gestorClientes.publicarConLobby(lote.getIdLote(), msgFin);
+
+        long segundosCooldown = lote.getCooldownSeconds();
+        gestorClientes.publicarConLobby(lote.getIdLote(),
+                "NEW_AUCTION_IN " + segundosCooldown + " " + lote.getIdLote());
+    }
 }
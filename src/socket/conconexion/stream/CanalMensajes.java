@@ -0,0 +1,59 @@
+package socket.conconexion.stream;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Operaciones mínimas de un canal de mensajes por líneas con un cliente.
+ * La implementan tanto el socket bloqueante (MiSocketStream) como las
+ * conexiones no bloqueantes del servidor NIO, de modo que el resto del
+ * servidor no depende del modelo de E/S.
+ */
+public interface CanalMensajes {
+
+    /**
+     * Enviar un mensaje (termina en salto de línea), junto con lo que
+     * estuviera agregado antes.
+     */
+    void enviaMensaje(String mensaje);
+
+    /**
+     * Enviar un mensaje armado en un buffer reutilizable (por ejemplo un
+     * StringBuilder). El canal lo copia o lo escribe antes de volver, así que
+     * quien llama puede reutilizar el buffer enseguida.
+     */
+    default void enviaMensaje(CharSequence mensaje) {
+        enviaMensaje(mensaje.toString());
+    }
+
+    /**
+     * Agregar un mensaje a la salida sin forzar su envío: queda en el buffer
+     * del canal hasta la siguiente llamada a vacia() (o hasta que el buffer
+     * se llena), así varias líneas salen en una sola escritura. Igual que
+     * enviaMensaje, el canal copia el mensaje antes de volver.
+     */
+    default void agregaMensaje(CharSequence mensaje) {
+        enviaMensaje(mensaje);
+    }
+
+    /**
+     * Enviar lo agregado con agregaMensaje que aún no se haya escrito.
+     */
+    default void vacia() {
+    }
+
+    /**
+     * IP del otro extremo.
+     */
+    InetAddress getInetAddress();
+
+    /**
+     * Puerto remoto del otro extremo.
+     */
+    int getPort();
+
+    /**
+     * Cerrar el canal.
+     */
+    void close() throws IOException;
+}
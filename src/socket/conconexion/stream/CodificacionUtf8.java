@@ -0,0 +1,72 @@
+package socket.conconexion.stream;
+
+/**
+ * Codifica texto en UTF-8 directamente sobre un arreglo de bytes ya
+ * reservado, sin crear Strings ni buffers intermedios como hace
+ * String.getBytes o un OutputStreamWriter.
+ * Los sustitutos (surrogates) sueltos se codifican como '?', igual que
+ * String.getBytes.
+ */
+public final class CodificacionUtf8 {
+
+    private CodificacionUtf8() {
+    }
+
+    /**
+     * Número de bytes que ocupa el texto codificado.
+     */
+    public static int longitud(CharSequence texto) {
+        int largo = texto.length();
+        int bytes = largo;
+        for (int i = 0; i < largo; i++) {
+            char c = texto.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < largo
+                    && Character.isLowSurrogate(texto.charAt(i + 1))) {
+                // El par ocupa 2 chars y 4 bytes
+                bytes += 2;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // Se escribe '?'
+            } else {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Escribe el texto en destino a partir de posicion y devuelve la
+     * posición siguiente. destino debe tener al menos longitud(texto) bytes libres.
+     */
+    public static int codificar(CharSequence texto, byte[] destino, int posicion) {
+        int largo = texto.length();
+        for (int i = 0; i < largo; i++) {
+            char c = texto.charAt(i);
+            if (c < 0x80) {
+                destino[posicion++] = (byte) c;
+            } else if (c < 0x800) {
+                destino[posicion++] = (byte) (0xC0 | (c >> 6));
+                destino[posicion++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < largo
+                    && Character.isLowSurrogate(texto.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, texto.charAt(++i));
+                destino[posicion++] = (byte) (0xF0 | (cp >> 18));
+                destino[posicion++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                destino[posicion++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                destino[posicion++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                destino[posicion++] = (byte) '?';
+            } else {
+                destino[posicion++] = (byte) (0xE0 | (c >> 12));
+                destino[posicion++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                destino[posicion++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return posicion;
+    }
+}
@@ -2,17 +2,44 @@ package socket.conconexion.stream;
 
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Una clase de envoltura de Socket que contiene
  * métodos para mandar y recibir mensajes fácilmente.
  * Sirve tanto para el cliente como para el servidor.
+ *
+ * Lee y escribe bytes UTF-8 sobre buffers propios que se reutilizan:
+ * recibeLinea deja la línea en getLinea() sin crear un String, y
+ * enviaMensaje codifica directamente al buffer de salida.
+ *
+ * agregaMensaje acumula las líneas en el buffer de salida y vacia() las
+ * escribe juntas: una respuesta de varias líneas (o las de varios comandos
+ * leídos de una vez) cuesta una escritura en el socket en lugar de una
+ * por línea. enviaMensaje agrega y vacía.
  */
-public class MiSocketStream {
+public class MiSocketStream implements CanalMensajes {
+
+    // Longitud máxima de una línea recibida
+    public static final int MAX_LINEA = 8192;
 
     private Socket socket;
-    private BufferedReader entrada;
-    private PrintWriter salida;
+    private InputStream entrada;
+    private OutputStream salida;
+
+    // Entrada: bytes leídos del socket y línea actual
+    private final byte[] bufferEntrada = new byte[8192];
+    private int posEntrada;
+    private int finEntrada;
+    private byte[] linea = new byte[256];
+
+    // Salida: se escribe desde el hilo de la sesión y desde el de difusión.
+    // Los bytes de bufferSalida[0, finSalida) esperan a vacia()
+    private static final int TAM_SALIDA = 8192;
+    private final ReentrantLock cerrojoSalida = new ReentrantLock();
+    private byte[] bufferSalida = new byte[TAM_SALIDA];
+    private int finSalida;
 
     /**
      * Constructor usado por el CLIENTE.
@@ -30,19 +57,78 @@ public class MiSocketStream {
         this.socket = socketAceptado;
 
         // Canal de entrada
-        this.entrada = new BufferedReader(
-                new InputStreamReader(socket.getInputStream()));
+        this.entrada = socket.getInputStream();
 
         // Canal de salida
-        this.salida = new PrintWriter(
-                new OutputStreamWriter(socket.getOutputStream()), true);
+        this.salida = socket.getOutputStream();
     }
 
     /**
      * Enviar un mensaje (termina en salto de línea).
      */
     public void enviaMensaje(String mensaje) {
-        salida.println(mensaje);
+        enviaMensaje((CharSequence) mensaje);
+    }
+
+    /**
+     * Enviar un mensaje armado en un buffer reutilizable. Se codifica y se
+     * escribe antes de volver, junto con lo agregado antes.
+     */
+    public void enviaMensaje(CharSequence mensaje) {
+        cerrojoSalida.lock();
+        try {
+            agregaMensaje(mensaje);
+            vacia();
+        } finally {
+            cerrojoSalida.unlock();
+        }
+    }
+
+    /**
+     * Codificar el mensaje al final del buffer de salida sin escribirlo.
+     * Si no cabe, antes se escribe lo acumulado.
+     */
+    public void agregaMensaje(CharSequence mensaje) {
+        cerrojoSalida.lock();
+        try {
+            int largo = CodificacionUtf8.longitud(mensaje) + 1;
+            if (finSalida + largo > bufferSalida.length) {
+                escribirSalida();
+                if (largo > bufferSalida.length) {
+                    bufferSalida = new byte[Math.max(largo, bufferSalida.length * 2)];
+                }
+            }
+            int fin = CodificacionUtf8.codificar(mensaje, bufferSalida, finSalida);
+            bufferSalida[fin++] = '\n';
+            finSalida = fin;
+        } catch (IOException ex) {
+            // Igual que PrintWriter: el error de escritura se descubre al leer
+        } finally {
+            cerrojoSalida.unlock();
+        }
+    }
+
+    /**
+     * Escribir en el socket lo acumulado con agregaMensaje.
+     */
+    public void vacia() {
+        cerrojoSalida.lock();
+        try {
+            escribirSalida();
+        } catch (IOException ex) {
+            // Igual que PrintWriter: el error de escritura se descubre al leer
+        } finally {
+            cerrojoSalida.unlock();
+        }
+    }
+
+    private void escribirSalida() throws IOException {
+        if (finSalida > 0) {
+            int fin = finSalida;
+            // Si la escritura falla, lo acumulado se pierde igual que con PrintWriter
+            finSalida = 0;
+            salida.write(bufferSalida, 0, fin);
+        }
     }
 
     /**
@@ -50,7 +136,76 @@ public class MiSocketStream {
      * Regresa null si el cliente cerró la conexión.
      */
     public String recibeMensaje() throws IOException {
-        return entrada.readLine();
+        int largo = recibeLinea();
+        if (largo < 0) {
+            return null;
+        }
+        return new String(linea, 0, largo, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Recibir una línea sin convertirla a String: los bytes quedan en
+     * getLinea() (sin el salto de línea) hasta la siguiente llamada.
+     * Regresa su longitud, o -1 si el otro extremo cerró la conexión.
+     */
+    public int recibeLinea() throws IOException {
+        int largo = 0;
+        while (true) {
+            if (posEntrada == finEntrada) {
+                int leidos = entrada.read(bufferEntrada, 0, bufferEntrada.length);
+                if (leidos < 0) {
+                    // Como readLine: la última línea puede no tener salto
+                    return (largo > 0) ? quitarRetorno(largo) : -1;
+                }
+                posEntrada = 0;
+                finEntrada = leidos;
+            }
+            int inicio = posEntrada;
+            while (posEntrada < finEntrada && bufferEntrada[posEntrada] != '\n') {
+                posEntrada++;
+            }
+            int trozo = posEntrada - inicio;
+            if (largo + trozo > MAX_LINEA) {
+                throw new IOException("Línea de más de " + MAX_LINEA + " bytes");
+            }
+            if (largo + trozo > linea.length) {
+                byte[] nueva = new byte[Math.min(MAX_LINEA, Math.max(linea.length * 2, largo + trozo))];
+                System.arraycopy(linea, 0, nueva, 0, largo);
+                linea = nueva;
+            }
+            System.arraycopy(bufferEntrada, inicio, linea, largo, trozo);
+            largo += trozo;
+            if (posEntrada < finEntrada) {
+                // Saltar el '\n'
+                posEntrada++;
+                return quitarRetorno(largo);
+            }
+        }
+    }
+
+    private int quitarRetorno(int largo) {
+        // Tolerar finales de línea \r\n
+        return (largo > 0 && linea[largo - 1] == '\r') ? largo - 1 : largo;
+    }
+
+    /**
+     * true si entre lo ya leído del socket queda otra línea completa, es
+     * decir, si recibeLinea puede devolverla sin esperar a la red.
+     */
+    public boolean hayLineaPendiente() {
+        for (int i = posEntrada; i < finEntrada; i++) {
+            if (bufferEntrada[i] == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Bytes de la última línea leída con recibeLinea.
+     */
+    public byte[] getLinea() {
+        return linea;
     }
 
     /**